@@ -0,0 +1,584 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.assimp.Assimp.*;
+import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lwjgl.assimp.AIFace;
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.assimp.AIVector3D;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Streams textures and meshes from disk to the GPU in the background.
+ * <p>
+ * Files are read into native memory that's freed as soon as the decoder
+ * returns, so nothing is copied into the Java heap. stb_image and Assimp
+ * decode straight out of it into their own native memory, and from there
+ * it's one copy into the StagingUploader's ring. No byte[] anywhere along
+ * the way.
+ * <p>
+ * Files over MAX_READ_BYTES are memory-mapped instead, so the OS pages them
+ * in as the decoder walks them and we never hold the whole thing. Java
+ * can't unmap a MappedByteBuffer explicitly; the mapping, and on Windows
+ * the lock on the file, lasts until the buffer is garbage collected. That
+ * is why only the big, rare files get one.
+ * <p>
+ * Decoding happens on virtual threads where the JVM has them (21 and up),
+ * and on a daemon pool with a thread per core where it doesn't. Either way,
+ * a worker that waits on a page fault or on room in the staging ring only
+ * holds up itself.
+ * <p>
+ * Requests wait in a queue ordered by priority, higher first, then by age.
+ * We start the next one as long as the bytes in flight stay under the
+ * budget, counting the source file when it starts and the decoded data
+ * once we know its size, until the upload's future completes. One request
+ * always gets through, however big, so a huge file can't wedge the queue.
+ * Asking for something that's already queued or loading returns the same
+ * future, and bumps its priority if the new request's is higher.
+ * <p>
+ * Nothing here blocks the caller beyond a stat of the file, so it's fine
+ * to call from the render thread. The returned futures complete from
+ * StagingUploader.poll(), usually on the render thread, so keep anything
+ * heavy chained onto them async.
+ */
+public class AssetLoader {
+	/**
+	 * Meshes come out as position, normal and texture coordinate, three,
+	 * three and two floats. The MeshPool has to have this stride.
+	 */
+	public static final int VERTEX_STRIDE = 32;
+
+	/**
+	 * Files up to this size are read into native memory and freed after
+	 * decoding; bigger ones are mapped. See the class doc.
+	 */
+	public static final long MAX_READ_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Every mesh in a file is flattened into one, in the file's own space.
+	 */
+	public static final int MESH_FLAGS = aiProcess_Triangulate
+		| aiProcess_JoinIdenticalVertices
+		| aiProcess_GenSmoothNormals
+		| aiProcess_PreTransformVertices
+		| aiProcess_ImproveCacheLocality;
+
+	public static class Stats {
+		public final long requested;
+		public final long deduplicated;
+		public final long loaded;
+		public final long failed;
+		public final int queued;
+		public final int loading;
+		public final long inFlightBytes;
+		public final long maxInFlightBytes;
+		public final long sourceBytes;
+		public final long decodedBytes;
+		public final LatencyHistogram.Snapshot loadTimes;
+
+		protected Stats(long requested, long deduplicated, long loaded, long failed, int queued, int loading, long inFlightBytes, long maxInFlightBytes, long sourceBytes, long decodedBytes, LatencyHistogram.Snapshot loadTimes) {
+			this.requested = requested;
+			this.deduplicated = deduplicated;
+			this.loaded = loaded;
+			this.failed = failed;
+			this.queued = queued;
+			this.loading = loading;
+			this.inFlightBytes = inFlightBytes;
+			this.maxInFlightBytes = maxInFlightBytes;
+			this.sourceBytes = sourceBytes;
+			this.decodedBytes = decodedBytes;
+			this.loadTimes = loadTimes;
+		}
+
+		public String toString() {
+			return String.format(
+				"AssetLoader.Stats<requested: %d, deduplicated: %d, loaded: %d, failed: %d, queued: %d, loading: %d, in flight: %d/%d bytes, read: %d bytes, decoded: %d bytes, load p50: %.2fms, p99: %.2fms>",
+				this.requested,
+				this.deduplicated,
+				this.loaded,
+				this.failed,
+				this.queued,
+				this.loading,
+				this.inFlightBytes,
+				this.maxInFlightBytes,
+				this.sourceBytes,
+				this.decodedBytes,
+				this.loadTimes.getPercentile(50) / 1000000.0,
+				this.loadTimes.getPercentile(99) / 1000000.0
+			);
+		}
+	}
+
+	/**
+	 * Turns a mapped file into something on the GPU. The future completes
+	 * once the upload has.
+	 */
+	protected interface Decoder<T> {
+		CompletableFuture<T> decode(Request<T> request, ByteBuffer data);
+	}
+
+	protected static class Request<T> {
+		protected String key;
+		protected Path path;
+		protected int priority;
+		protected long sequence;
+		protected long sourceSize;
+		protected Decoder<T> decoder;
+		protected CompletableFuture<T> future = new CompletableFuture<T>();
+
+		/**
+		 * Guarded by the AssetLoader.
+		 */
+		protected boolean isStarted;
+		protected long charged;
+		protected long start;
+
+		public String toString() {
+			return "Request<" + this.key + ", priority: " + this.priority + ", bytes: " + this.sourceSize + ">";
+		}
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected StagingUploader uploader;
+	protected MeshPool meshPool;
+	protected long maxInFlightBytes;
+	protected ExecutorService executor;
+	protected boolean isDisposed;
+
+	/**
+	 * Everything below is guarded by this.
+	 */
+	protected PriorityQueue<Request<?>> queue = new PriorityQueue<Request<?>>((a, b) -> {
+		if (a.priority != b.priority) return Integer.compare(b.priority, a.priority);
+		return Long.compare(a.sequence, b.sequence);
+	});
+	protected HashMap<String, Request<?>> active = new HashMap<String, Request<?>>();
+	protected long nextSequence;
+	protected int loading;
+	protected long inFlightBytes;
+
+	protected AtomicLong requested = new AtomicLong();
+	protected AtomicLong deduplicated = new AtomicLong();
+	protected AtomicLong loaded = new AtomicLong();
+	protected AtomicLong failed = new AtomicLong();
+	protected AtomicLong sourceBytes = new AtomicLong();
+	protected AtomicLong decodedBytes = new AtomicLong();
+	protected LatencyHistogram loadTimes = new LatencyHistogram();
+
+	/**
+	 * @param uploader Decoded data goes to the GPU through this.
+	 * @param meshPool Where meshes go. Needs a stride of VERTEX_STRIDE. May
+	 *        be null if we only load textures.
+	 * @param maxInFlightBytes How many bytes may be loading at once. Keep it
+	 *        under the uploader's budget, so workers rarely have to wait on
+	 *        the ring.
+	 */
+	public AssetLoader(LogicalDevice logicalDevice, StagingUploader uploader, MeshPool meshPool, long maxInFlightBytes) {
+		if (meshPool != null && meshPool.getVertexStride() != AssetLoader.VERTEX_STRIDE) {
+			throw new AssertionError("AssetLoader needs a MeshPool with a stride of " + AssetLoader.VERTEX_STRIDE + ", not " + meshPool.getVertexStride());
+		}
+
+		this.logicalDevice = logicalDevice;
+		this.uploader = uploader;
+		this.meshPool = meshPool;
+		this.maxInFlightBytes = Math.max(1, maxInFlightBytes);
+		this.executor = AssetLoader.createExecutor();
+	}
+
+	/**
+	 * Virtual threads are looked up reflectively, since we still build for
+	 * JVMs that don't have them.
+	 */
+	protected static ExecutorService createExecutor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			AtomicInteger threadNumber = new AtomicInteger();
+			return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+				Thread thread = new Thread(runnable, "AssetLoader-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Loads an image file (anything stb_image reads) into a new sampled
+	 * RGBA8 image, left in SHADER_READ_ONLY_OPTIMAL.
+	 *
+	 * @param isSrgb True for color textures, false for data like normals.
+	 */
+	public CompletableFuture<Image> loadTexture(Path path, int priority, boolean isSrgb) {
+		int format = isSrgb ? VK_FORMAT_R8G8B8A8_SRGB : VK_FORMAT_R8G8B8A8_UNORM;
+		return this.request(isSrgb ? "srgb:" : "unorm:", path, priority, (request, data) -> this.decodeTexture(request, data, format));
+	}
+
+	/**
+	 * Loads a model file (anything Assimp reads) into the MeshPool, with all
+	 * of its meshes merged into one.
+	 */
+	public CompletableFuture<MeshPool.Mesh> loadMesh(Path path, int priority) {
+		if (this.meshPool == null) {
+			throw new AssertionError("AssetLoader has no MeshPool to load meshes into.");
+		}
+		return this.request("mesh:", path, priority, this::decodeMesh);
+	}
+
+	@SuppressWarnings("unchecked")
+	protected synchronized <T> CompletableFuture<T> request(String kind, Path path, int priority, Decoder<T> decoder) {
+		if (this.isDisposed) {
+			throw new AssertionError("AssetLoader has been disposed.");
+		}
+		this.requested.incrementAndGet();
+
+		Path absolute = path.toAbsolutePath().normalize();
+		String key = kind + absolute;
+
+		Request<T> existing = (Request<T>)this.active.get(key);
+		if (existing != null) {
+			this.deduplicated.incrementAndGet();
+			if (!existing.isStarted && priority > existing.priority) {
+				this.queue.remove(existing);
+				existing.priority = priority;
+				this.queue.add(existing);
+			}
+			return existing.future;
+		}
+
+		Request<T> request = new Request<T>();
+		request.key = key;
+		request.path = absolute;
+		request.priority = priority;
+		request.sequence = this.nextSequence++;
+		request.decoder = decoder;
+		try {
+			request.sourceSize = Files.size(absolute);
+		} catch (IOException e) {
+			this.failed.incrementAndGet();
+			request.future.completeExceptionally(e);
+			return request.future;
+		}
+
+		this.active.put(key, request);
+		this.queue.add(request);
+		this.pump();
+		return request.future;
+	}
+
+	/**
+	 * Starts queued requests while they fit in the budget.
+	 */
+	protected synchronized void pump() {
+		while (!this.queue.isEmpty() && !this.isDisposed) {
+			Request<?> next = this.queue.peek();
+			if (this.loading > 0 && this.inFlightBytes + next.sourceSize > this.maxInFlightBytes) break;
+
+			this.queue.poll();
+			next.isStarted = true;
+			next.charged = next.sourceSize;
+			this.inFlightBytes += next.sourceSize;
+			this.loading++;
+			this.executor.execute(() -> this.load(next));
+		}
+	}
+
+	protected <T> void load(Request<T> request) {
+		request.start = System.nanoTime();
+
+		CompletableFuture<T> upload;
+		ByteBuffer read = null;
+		try {
+			ByteBuffer data;
+			try (FileChannel channel = FileChannel.open(request.path, StandardOpenOption.READ)) {
+				long size = channel.size();
+				if (size > Integer.MAX_VALUE) {
+					throw new IOException(request.path + " is too big to map, at " + size + " bytes.");
+				}
+				if (size == 0) throw new IOException(request.path + " is empty.");
+				if (size <= AssetLoader.MAX_READ_BYTES) {
+					read = memAlloc((int)size);
+					while (read.hasRemaining()) {
+						if (channel.read(read) < 0) throw new IOException(request.path + " ended early, at " + read.position() + " of " + size + " bytes.");
+					}
+					read.flip();
+					data = read;
+				} else {
+					data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				}
+			}
+			this.sourceBytes.addAndGet(data.remaining());
+			upload = request.decoder.decode(request, data);
+			if (upload == null) {
+				throw new AssertionError("Decoder for " + request.path + " returned no future.");
+			}
+		} catch (Throwable e) {
+			/**
+			 * Anything at all, including missing natives and running out of
+			 * memory, has to reach finish(), or the request's budget and its
+			 * place in active are never given back.
+			 */
+			upload = new CompletableFuture<T>();
+			upload.completeExceptionally(e);
+		} finally {
+			/**
+			 * Decoders are done with the source by the time they return.
+			 */
+			if (read != null) memFree(read);
+		}
+
+		upload.whenComplete((result, error) -> this.finish(request, result, error));
+	}
+
+	/**
+	 * Called from a worker once the decoded size is known, so it counts
+	 * towards the budget until the upload is done.
+	 */
+	protected synchronized void charge(Request<?> request, long bytes) {
+		request.charged += bytes;
+		this.inFlightBytes += bytes;
+		this.decodedBytes.addAndGet(bytes);
+	}
+
+	protected <T> void finish(Request<T> request, T result, Throwable error) {
+		synchronized (this) {
+			this.inFlightBytes -= request.charged;
+			this.loading--;
+			this.active.remove(request.key);
+			this.pump();
+		}
+
+		if (error != null) {
+			this.failed.incrementAndGet();
+			request.future.completeExceptionally(error);
+		} else {
+			this.loaded.incrementAndGet();
+			this.loadTimes.record(System.nanoTime() - request.start);
+			request.future.complete(result);
+		}
+	}
+
+	protected CompletableFuture<Image> decodeTexture(Request<Image> request, ByteBuffer data, int format) {
+		ByteBuffer pixels;
+		int width;
+		int height;
+		try (MemoryStack stack = stackPush()) {
+			IntBuffer pWidth = stack.mallocInt(1);
+			IntBuffer pHeight = stack.mallocInt(1);
+			IntBuffer pComponents = stack.mallocInt(1);
+			pixels = stbi_load_from_memory(data, pWidth, pHeight, pComponents, 4);
+			if (pixels == null) {
+				throw new AssertionError("Failed to decode " + request.path + ": " + stbi_failure_reason());
+			}
+			width = pWidth.get(0);
+			height = pHeight.get(0);
+		}
+
+		try {
+			this.charge(request, pixels.remaining());
+
+			Image image = new Image(this.logicalDevice, width, height, format, VK_IMAGE_USAGE_SAMPLED_BIT | VK_IMAGE_USAGE_TRANSFER_DST_BIT, VK_IMAGE_ASPECT_COLOR_BIT);
+			StagingUploader.ImageRegion region = new StagingUploader.ImageRegion(image.getImage(), width, height, 4);
+			region.oldLayout = VK_IMAGE_LAYOUT_UNDEFINED;
+			region.newLayout = VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL;
+
+			CompletableFuture<Void> upload;
+			try {
+				upload = this.uploader.upload(pixels, region);
+			} catch (RuntimeException | AssertionError e) {
+				image.dispose();
+				throw e;
+			}
+			return upload.thenApply(v -> image);
+		} finally {
+			/**
+			 * The uploader has its own copy by now.
+			 */
+			stbi_image_free(pixels);
+		}
+	}
+
+	protected CompletableFuture<MeshPool.Mesh> decodeMesh(Request<MeshPool.Mesh> request, ByteBuffer data) {
+		String name = request.path.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		AIScene scene = aiImportFileFromMemory(data, AssetLoader.MESH_FLAGS, dot < 0 ? "" : name.substring(dot + 1));
+		if (scene == null) {
+			throw new AssertionError("Failed to import " + request.path + ": " + aiGetErrorString());
+		}
+
+		ByteBuffer vertices = null;
+		ByteBuffer indices = null;
+		try {
+			ArrayList<AIMesh> meshes = new ArrayList<AIMesh>(scene.mNumMeshes());
+			long vertexCount = 0;
+			long indexCount = 0;
+			for (int i = 0; i < scene.mNumMeshes(); i++) {
+				AIMesh mesh = AIMesh.create(scene.mMeshes().get(i));
+				if ((mesh.mPrimitiveTypes() & aiPrimitiveType_TRIANGLE) == 0) continue;
+				meshes.add(mesh);
+				vertexCount += mesh.mNumVertices();
+				indexCount += mesh.mNumFaces() * 3L;
+			}
+			if (vertexCount == 0) {
+				throw new AssertionError(request.path + " has no triangles.");
+			}
+			if (vertexCount * AssetLoader.VERTEX_STRIDE > Integer.MAX_VALUE || indexCount * 4 > Integer.MAX_VALUE) {
+				throw new AssertionError(request.path + " is too big to load as one mesh.");
+			}
+
+			vertices = memAlloc((int)(vertexCount * AssetLoader.VERTEX_STRIDE));
+			indices = memAlloc((int)(indexCount * 4));
+			this.charge(request, vertices.remaining() + indices.remaining());
+
+			long vertexAddress = memAddress(vertices);
+			long indexAddress = memAddress(indices);
+			int baseVertex = 0;
+			int indexPosition = 0;
+			for (AIMesh mesh: meshes) {
+				AIVector3D.Buffer positions = mesh.mVertices();
+				AIVector3D.Buffer normals = mesh.mNormals();
+				AIVector3D.Buffer coordinates = mesh.mTextureCoords(0);
+
+				for (int v = 0; v < mesh.mNumVertices(); v++) {
+					long address = vertexAddress + (long)(baseVertex + v) * AssetLoader.VERTEX_STRIDE;
+					AIVector3D position = positions.get(v);
+					memPutFloat(address, position.x());
+					memPutFloat(address + 4, position.y());
+					memPutFloat(address + 8, position.z());
+					if (normals != null) {
+						AIVector3D normal = normals.get(v);
+						memPutFloat(address + 12, normal.x());
+						memPutFloat(address + 16, normal.y());
+						memPutFloat(address + 20, normal.z());
+					} else {
+						memPutFloat(address + 12, 0);
+						memPutFloat(address + 16, 0);
+						memPutFloat(address + 20, 1);
+					}
+					if (coordinates != null) {
+						AIVector3D coordinate = coordinates.get(v);
+						memPutFloat(address + 24, coordinate.x());
+						memPutFloat(address + 28, coordinate.y());
+					} else {
+						memPutFloat(address + 24, 0);
+						memPutFloat(address + 28, 0);
+					}
+				}
+
+				/**
+				 * Points and lines can share a mesh with triangles even after
+				 * aiProcess_Triangulate, so only whole triangles are kept.
+				 */
+				AIFace.Buffer faces = mesh.mFaces();
+				for (int f = 0; f < mesh.mNumFaces(); f++) {
+					AIFace face = faces.get(f);
+					if (face.mNumIndices() != 3) continue;
+					IntBuffer faceIndices = face.mIndices();
+					for (int k = 0; k < 3; k++) {
+						memPutInt(indexAddress + indexPosition * 4L, baseVertex + faceIndices.get(k));
+						indexPosition++;
+					}
+				}
+				baseVertex += mesh.mNumVertices();
+			}
+			indices.limit(indexPosition * 4);
+
+			MeshPool.Mesh mesh = this.meshPool.add(vertices, indices);
+			if (mesh == null) {
+				throw new AssertionError("MeshPool has no room for " + request.path + ".");
+			}
+			return mesh.getReady().thenApply(v -> mesh);
+		} finally {
+			aiReleaseImport(scene);
+			if (vertices != null) memFree(vertices);
+			if (indices != null) memFree(indices);
+		}
+	}
+
+	/**
+	 * Drops a queued request. One that's already loading carries on, and its
+	 * future completes as usual.
+	 *
+	 * @return True if it was still queued.
+	 */
+	public synchronized boolean cancel(CompletableFuture<?> future) {
+		for (Request<?> request: this.queue) {
+			if (request.future != future) continue;
+
+			this.queue.remove(request);
+			this.active.remove(request.key);
+			request.future.cancel(false);
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized Stats getStats() {
+		return new Stats(
+			this.requested.get(),
+			this.deduplicated.get(),
+			this.loaded.get(),
+			this.failed.get(),
+			this.queue.size(),
+			this.loading,
+			this.inFlightBytes,
+			this.maxInFlightBytes,
+			this.sourceBytes.get(),
+			this.decodedBytes.get(),
+			this.loadTimes.snapshot()
+		);
+	}
+
+	public synchronized String toString() {
+		return "AssetLoader<queued: " + this.queue.size() + ", loading: " + this.loading + ", bytes: " + this.inFlightBytes + "/" + this.maxInFlightBytes + ">";
+	}
+
+	/**
+	 * Fails everything still queued and waits for loads in progress to get
+	 * their data to the uploader. Their uploads may still be pending, so
+	 * flush or waitIdle the uploader before disposing it.
+	 */
+	public void dispose() {
+		ArrayList<Request<?>> dropped;
+		synchronized (this) {
+			this.isDisposed = true;
+			dropped = new ArrayList<Request<?>>(this.queue);
+			this.queue.clear();
+			for (Request<?> request: dropped) {
+				this.active.remove(request.key);
+			}
+		}
+		for (Request<?> request: dropped) {
+			request.future.completeExceptionally(new AssertionError("AssetLoader was disposed before " + request.path + " loaded."));
+		}
+
+		this.executor.shutdown();
+		try {
+			while (!this.executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// Big models can take a while to import.
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,500 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.EXTDescriptorIndexing;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkDescriptorBufferInfo;
+import org.lwjgl.vulkan.VkDescriptorImageInfo;
+import org.lwjgl.vulkan.VkDescriptorPoolCreateInfo;
+import org.lwjgl.vulkan.VkDescriptorPoolSize;
+import org.lwjgl.vulkan.VkDescriptorSetAllocateInfo;
+import org.lwjgl.vulkan.VkWriteDescriptorSet;
+
+/**
+ * Every texture and storage buffer in one descriptor set, picked by index in
+ * the shader, so materials don't need descriptor sets of their own.
+ * <p>
+ * Textures and buffers are registered once and get back an int handle. With
+ * bindless on, the handle is an index into one big array of combined image
+ * samplers (binding TEXTURE_BINDING) or storage buffers (BUFFER_BINDING) in
+ * a single update after bind set. The set is bound once per command buffer
+ * and each draw pushes its handles (as push constants or in a buffer).
+ * Registering writes one descriptor, even while earlier frames using other
+ * elements are still on the GPU.
+ * <p>
+ * Bindless needs VK_EXT_descriptor_indexing with update after bind, partial
+ * binding and update unused while pending for sampled images and storage
+ * buffers, and the core dynamic indexing features for both. Ask for them
+ * with DeviceCapabilities.preferBindless(). On devices that lack any of
+ * them, isBindless() is false and bind() makes a classic set per material
+ * out of the handles instead, through a DescriptorSetCache, with the
+ * textures and buffers at the same bindings in small fixed-size arrays.
+ * Handles work the same either way; only the shaders differ.
+ * <p>
+ * Removing a handle doesn't free it until the frame it was removed in has
+ * come back around, so nothing in flight sees its slot reused.
+ */
+public class BindlessDescriptors implements FrameScheduler.Recycler {
+	public static final int TEXTURE_BINDING = 0;
+	public static final int BUFFER_BINDING = 1;
+
+	public static final int DEFAULT_MAX_TEXTURES = 16384;
+	public static final int DEFAULT_MAX_BUFFERS = 4096;
+	public static final int DEFAULT_TEXTURES_PER_SET = 8;
+	public static final int DEFAULT_BUFFERS_PER_SET = 2;
+
+	/**
+	 * Hands out indices below a fixed capacity, reusing freed ones first.
+	 */
+	protected static class HandleAllocator {
+		protected int capacity;
+		protected int next;
+		protected int[] free;
+		protected int freeCount;
+
+		protected HandleAllocator(int capacity) {
+			this.capacity = capacity;
+			this.free = new int[16];
+		}
+
+		/**
+		 * @return A free index, or -1 if every one is in use.
+		 */
+		protected int allocate() {
+			if (this.freeCount > 0) return this.free[--this.freeCount];
+			if (this.next < this.capacity) return this.next++;
+			return -1;
+		}
+
+		protected void release(int handle) {
+			if (this.freeCount == this.free.length) {
+				this.free = Arrays.copyOf(this.free, this.free.length * 2);
+			}
+			this.free[this.freeCount++] = handle;
+		}
+
+		protected int getUsed() {
+			return this.next - this.freeCount;
+		}
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected FrameScheduler frameScheduler;
+	protected boolean isBindless;
+	protected int stageFlags;
+
+	protected HandleAllocator textureHandles;
+	protected HandleAllocator bufferHandles;
+
+	/**
+	 * What each handle points at. In bindless mode this is only kept for
+	 * toString() and debugging; in classic mode bind() builds sets from it.
+	 */
+	protected long[] textureViews;
+	protected long[] textureSamplers;
+	protected int[] textureLayouts;
+	protected long[] buffers;
+	protected long[] bufferOffsets;
+	protected long[] bufferRanges;
+
+	/**
+	 * Handles removed during each frame slot, freed when it's recycled.
+	 * Indexed by frame slot. Textures are stored as is, buffers as
+	 * -(handle + 1).
+	 */
+	protected ArrayList<ArrayList<Integer>> pendingFrees = new ArrayList<ArrayList<Integer>>();
+
+	/**
+	 * Bindless mode.
+	 */
+	protected DescriptorSetLayout layout;
+	protected long descriptorPool;
+	protected long descriptorSet;
+
+	/**
+	 * Classic mode.
+	 */
+	protected DescriptorSetCache cache;
+	protected int texturesPerSet;
+	protected int buffersPerSet;
+	protected ThreadLocal<DescriptorSetCache.Bindings> bindings;
+
+	public BindlessDescriptors(LogicalDevice logicalDevice, FrameScheduler frameScheduler, DescriptorAllocator allocator, DescriptorSetCache cache) {
+		this(logicalDevice, frameScheduler, allocator, cache, BindlessDescriptors.DEFAULT_MAX_TEXTURES, BindlessDescriptors.DEFAULT_MAX_BUFFERS, BindlessDescriptors.DEFAULT_TEXTURES_PER_SET, BindlessDescriptors.DEFAULT_BUFFERS_PER_SET);
+	}
+
+	/**
+	 * Registers itself with frameScheduler.
+	 *
+	 * @param maxTextures How many textures can be registered at once. In
+	 *        bindless mode this is cut down to what the device allows.
+	 * @param maxBuffers Likewise for storage buffers.
+	 * @param texturesPerSet How many textures a material can use in classic
+	 *        mode.
+	 * @param buffersPerSet Likewise for storage buffers.
+	 */
+	public BindlessDescriptors(LogicalDevice logicalDevice, FrameScheduler frameScheduler, DescriptorAllocator allocator, DescriptorSetCache cache, int maxTextures, int maxBuffers, int texturesPerSet, int buffersPerSet) {
+		this.logicalDevice = logicalDevice;
+		this.frameScheduler = frameScheduler;
+		this.cache = cache;
+		this.stageFlags = VK_SHADER_STAGE_ALL;
+
+		int[] capacity = BindlessDescriptors.isSupported(logicalDevice) ? BindlessDescriptors.getBindlessCapacity(logicalDevice.getDescriptorIndexingSupport(), maxTextures, maxBuffers) : null;
+		this.isBindless = capacity != null;
+
+		if (this.isBindless) {
+			this.createHandles(capacity[0], capacity[1]);
+			this.createBindlessSet(capacity[0], capacity[1]);
+		} else {
+			this.createHandles(maxTextures, maxBuffers);
+			this.useClassicLayout(allocator.getLayout(BindlessDescriptors.getClassicBindings(texturesPerSet, buffersPerSet)), texturesPerSet, buffersPerSet);
+		}
+
+		frameScheduler.addRecycler(this);
+	}
+
+	/**
+	 * Classic mode without a device, for tests. The layout only has to know
+	 * its bindings, and nothing is ever bound.
+	 */
+	protected BindlessDescriptors(FrameScheduler frameScheduler, int maxTextures, int maxBuffers, int texturesPerSet, int buffersPerSet) {
+		this.frameScheduler = frameScheduler;
+		this.stageFlags = VK_SHADER_STAGE_ALL;
+		this.createHandles(maxTextures, maxBuffers);
+		this.useClassicLayout(new DescriptorSetLayout(0, BindlessDescriptors.getClassicBindings(texturesPerSet, buffersPerSet)), texturesPerSet, buffersPerSet);
+		frameScheduler.addRecycler(this);
+	}
+
+	/**
+	 * Cuts maxTextures and maxBuffers down to what the device can hold in
+	 * one update after bind set.
+	 *
+	 * @return Textures and buffers, or null if the device claims the
+	 *         features but has no room for them, which is no better than a
+	 *         device without them.
+	 */
+	protected static int[] getBindlessCapacity(DescriptorIndexingSupport support, int maxTextures, int maxBuffers) {
+		int textures = Math.min(maxTextures, Math.min(
+			Math.min(support.maxDescriptorSetUpdateAfterBindSampledImages, support.maxDescriptorSetUpdateAfterBindSamplers),
+			Math.min(support.maxPerStageDescriptorUpdateAfterBindSampledImages, support.maxPerStageDescriptorUpdateAfterBindSamplers)
+		));
+		int buffers = Math.min(maxBuffers, Math.min(support.maxDescriptorSetUpdateAfterBindStorageBuffers, support.maxPerStageDescriptorUpdateAfterBindStorageBuffers));
+		buffers = Math.min(buffers, support.maxPerStageUpdateAfterBindResources - textures);
+
+		/**
+		 * The pool holds every descriptor of both bindings, and all update
+		 * after bind pools together have a cap of their own.
+		 */
+		textures = Math.min(textures, support.maxUpdateAfterBindDescriptorsInAllPools);
+		buffers = Math.min(buffers, support.maxUpdateAfterBindDescriptorsInAllPools - textures);
+
+		if (textures < 1 || buffers < 1) return null;
+		return new int[] { textures, buffers };
+	}
+
+	protected static DescriptorSetLayout.Binding[] getClassicBindings(int texturesPerSet, int buffersPerSet) {
+		ArrayList<DescriptorSetLayout.Binding> ret = new ArrayList<DescriptorSetLayout.Binding>();
+		if (texturesPerSet > 0) {
+			ret.add(new DescriptorSetLayout.Binding(BindlessDescriptors.TEXTURE_BINDING, VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER, texturesPerSet, VK_SHADER_STAGE_ALL));
+		}
+		if (buffersPerSet > 0) {
+			ret.add(new DescriptorSetLayout.Binding(BindlessDescriptors.BUFFER_BINDING, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, buffersPerSet, VK_SHADER_STAGE_ALL));
+		}
+		return ret.toArray(new DescriptorSetLayout.Binding[ret.size()]);
+	}
+
+	protected void createHandles(int maxTextures, int maxBuffers) {
+		this.textureHandles = new HandleAllocator(maxTextures);
+		this.bufferHandles = new HandleAllocator(maxBuffers);
+		this.textureViews = new long[maxTextures];
+		this.textureSamplers = new long[maxTextures];
+		this.textureLayouts = new int[maxTextures];
+		this.buffers = new long[maxBuffers];
+		this.bufferOffsets = new long[maxBuffers];
+		this.bufferRanges = new long[maxBuffers];
+
+		for (int i = 0; i < this.frameScheduler.getFramesInFlight(); i++) {
+			this.pendingFrees.add(new ArrayList<Integer>());
+		}
+	}
+
+	protected void useClassicLayout(DescriptorSetLayout layout, int texturesPerSet, int buffersPerSet) {
+		this.layout = layout;
+		this.texturesPerSet = texturesPerSet;
+		this.buffersPerSet = buffersPerSet;
+		this.bindings = ThreadLocal.withInitial(() -> new DescriptorSetCache.Bindings(layout));
+	}
+
+	/**
+	 * @return True if logicalDevice was created with everything bindless
+	 *         mode needs turned on.
+	 */
+	public static boolean isSupported(LogicalDevice logicalDevice) {
+		PhysicalDeviceFeatures features = logicalDevice.getEnabledFeatures();
+		return logicalDevice.getDescriptorIndexingSupport().isBindlessCapable()
+			&& features.shaderSampledImageArrayDynamicIndexing
+			&& features.shaderStorageBufferArrayDynamicIndexing;
+	}
+
+	protected void createBindlessSet(int maxTextures, int maxBuffers) {
+		int bindingFlags = EXTDescriptorIndexing.VK_DESCRIPTOR_BINDING_UPDATE_AFTER_BIND_BIT_EXT
+			| EXTDescriptorIndexing.VK_DESCRIPTOR_BINDING_UPDATE_UNUSED_WHILE_PENDING_BIT_EXT
+			| EXTDescriptorIndexing.VK_DESCRIPTOR_BINDING_PARTIALLY_BOUND_BIT_EXT;
+		this.layout = new DescriptorSetLayout(
+			this.logicalDevice,
+			EXTDescriptorIndexing.VK_DESCRIPTOR_SET_LAYOUT_CREATE_UPDATE_AFTER_BIND_POOL_BIT_EXT,
+			new int[] { bindingFlags, bindingFlags },
+			new DescriptorSetLayout.Binding(BindlessDescriptors.TEXTURE_BINDING, VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER, maxTextures, this.stageFlags),
+			new DescriptorSetLayout.Binding(BindlessDescriptors.BUFFER_BINDING, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, maxBuffers, this.stageFlags)
+		);
+
+		try (MemoryStack stack = stackPush()) {
+			VkDescriptorPoolSize.Buffer poolSizes = VkDescriptorPoolSize.callocStack(2, stack);
+			poolSizes.get(0).type(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER).descriptorCount(maxTextures);
+			poolSizes.get(1).type(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER).descriptorCount(maxBuffers);
+
+			VkDescriptorPoolCreateInfo createInfo = VkDescriptorPoolCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO);
+			createInfo.flags(EXTDescriptorIndexing.VK_DESCRIPTOR_POOL_CREATE_UPDATE_AFTER_BIND_BIT_EXT);
+			createInfo.maxSets(1);
+			createInfo.pPoolSizes(poolSizes);
+
+			LongBuffer pHandle = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_DESCRIPTOR_POOL.invoke(() -> vkCreateDescriptorPool(this.logicalDevice.getDevice(), createInfo, null, pHandle));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create bindless descriptor pool: " + Vulkan.translateVulkanResult(err));
+			}
+			this.descriptorPool = pHandle.get(0);
+
+			VkDescriptorSetAllocateInfo allocateInfo = VkDescriptorSetAllocateInfo.callocStack(stack);
+			allocateInfo.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO);
+			allocateInfo.descriptorPool(this.descriptorPool);
+			allocateInfo.pSetLayouts(stack.longs(this.layout.getLayout()));
+
+			err = VulkanCall.ALLOCATE_DESCRIPTOR_SETS.invoke(() -> vkAllocateDescriptorSets(this.logicalDevice.getDevice(), allocateInfo, pHandle));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to allocate bindless descriptor set: " + Vulkan.translateVulkanResult(err));
+			}
+			this.descriptorSet = pHandle.get(0);
+		}
+	}
+
+	public boolean isBindless() {
+		return this.isBindless;
+	}
+
+	/**
+	 * @return The layout to build pipeline layouts with. In bindless mode
+	 *         it's the one big set; in classic mode it's the per-material set.
+	 */
+	public DescriptorSetLayout getLayout() {
+		return this.layout;
+	}
+
+	public int addTexture(Image image, long sampler) {
+		return this.addTexture(image.getImageView(), sampler, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+	}
+
+	/**
+	 * @return The texture's handle.
+	 */
+	public synchronized int addTexture(long imageView, long sampler, int imageLayout) {
+		int handle = this.textureHandles.allocate();
+		if (handle < 0) {
+			throw new AssertionError("All " + this.textureHandles.capacity + " texture handles are in use.");
+		}
+		this.textureViews[handle] = imageView;
+		this.textureSamplers[handle] = sampler;
+		this.textureLayouts[handle] = imageLayout;
+
+		if (this.isBindless) {
+			try (MemoryStack stack = stackPush()) {
+				VkDescriptorImageInfo.Buffer imageInfo = VkDescriptorImageInfo.callocStack(1, stack);
+				imageInfo.get(0)
+					.imageView(imageView)
+					.sampler(sampler)
+					.imageLayout(imageLayout);
+
+				VkWriteDescriptorSet.Buffer write = VkWriteDescriptorSet.callocStack(1, stack);
+				write.get(0)
+					.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+					.dstSet(this.descriptorSet)
+					.dstBinding(BindlessDescriptors.TEXTURE_BINDING)
+					.dstArrayElement(handle)
+					.descriptorType(VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER)
+					.pImageInfo(imageInfo);
+				this.update(write);
+			}
+		}
+		return handle;
+	}
+
+	public int addBuffer(DeviceBuffer buffer) {
+		return this.addBuffer(buffer.getBuffer(), 0, VK_WHOLE_SIZE);
+	}
+
+	/**
+	 * @return The buffer's handle.
+	 */
+	public synchronized int addBuffer(long buffer, long offset, long range) {
+		int handle = this.bufferHandles.allocate();
+		if (handle < 0) {
+			throw new AssertionError("All " + this.bufferHandles.capacity + " buffer handles are in use.");
+		}
+		this.buffers[handle] = buffer;
+		this.bufferOffsets[handle] = offset;
+		this.bufferRanges[handle] = range;
+
+		if (this.isBindless) {
+			try (MemoryStack stack = stackPush()) {
+				VkDescriptorBufferInfo.Buffer bufferInfo = VkDescriptorBufferInfo.callocStack(1, stack);
+				bufferInfo.get(0)
+					.buffer(buffer)
+					.offset(offset)
+					.range(range);
+
+				VkWriteDescriptorSet.Buffer write = VkWriteDescriptorSet.callocStack(1, stack);
+				write.get(0)
+					.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+					.dstSet(this.descriptorSet)
+					.dstBinding(BindlessDescriptors.BUFFER_BINDING)
+					.dstArrayElement(handle)
+					.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+					.pBufferInfo(bufferInfo);
+				this.update(write);
+			}
+		}
+		return handle;
+	}
+
+	protected void update(VkWriteDescriptorSet.Buffer write) {
+		VulkanCall.UPDATE_DESCRIPTOR_SETS.run(() -> vkUpdateDescriptorSets(this.logicalDevice.getDevice(), write, null));
+	}
+
+	/**
+	 * Frees handle once every frame that might use it is done. Draws in the
+	 * current frame can still use it.
+	 */
+	public synchronized void removeTexture(int handle) {
+		this.pendingFrees.get(this.currentSlot()).add(handle);
+	}
+
+	public synchronized void removeBuffer(int handle) {
+		this.pendingFrees.get(this.currentSlot()).add(-(handle + 1));
+	}
+
+	/**
+	 * @return The slot of the current frame, or of the last one if we're
+	 *         between frames. Either way it isn't recycled until everything
+	 *         submitted so far is done. Before the first frame the number is
+	 *         -1, which wraps to the last slot like any other.
+	 */
+	protected int currentSlot() {
+		FrameScheduler.Frame frame = this.frameScheduler.getCurrentFrame();
+		if (frame != null) return frame.getSlot();
+		return (int)Math.floorMod(this.frameScheduler.getFrameNumber(), (long)this.frameScheduler.getFramesInFlight());
+	}
+
+	public synchronized void recycle(FrameScheduler.Frame frame) {
+		ArrayList<Integer> pending = this.pendingFrees.get(frame.getSlot());
+		for (int entry: pending) {
+			if (entry >= 0) {
+				this.textureViews[entry] = 0;
+				this.textureSamplers[entry] = 0;
+				this.textureHandles.release(entry);
+			} else {
+				this.buffers[-entry - 1] = 0;
+				this.bufferHandles.release(-entry - 1);
+			}
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Binds what a draw needs at descriptor set index set.
+	 * <p>
+	 * In bindless mode this binds the one big set and ignores the handles,
+	 * which the shader gets some other way (push constants, usually). Call
+	 * it once per command buffer and pipeline layout rather than per draw.
+	 * In classic mode it binds a set holding exactly these textures and
+	 * buffers, in order, from the DescriptorSetCache.
+	 *
+	 * @param bindPoint A VK_PIPELINE_BIND_POINT_*.
+	 * @param textures Texture handles, texturesPerSet of them in classic
+	 *        mode.
+	 * @param buffers Buffer handles, buffersPerSet of them in classic mode.
+	 */
+	public void bind(VkCommandBuffer commandBuffer, int bindPoint, long pipelineLayout, int set, int[] textures, int[] buffers) {
+		long descriptorSet;
+		if (this.isBindless) {
+			descriptorSet = this.descriptorSet;
+		} else {
+			descriptorSet = this.cache.get(this.getBindings(textures, buffers));
+		}
+
+		try (MemoryStack stack = stackPush()) {
+			vkCmdBindDescriptorSets(commandBuffer, bindPoint, pipelineLayout, set, stack.longs(descriptorSet), null);
+		}
+	}
+
+	/**
+	 * Classic mode: what the handles point at right now, in this thread's
+	 * Bindings. Reading the arrays takes our lock, since addTexture() and
+	 * recycle() write them from other threads; building the set from the
+	 * result doesn't need it.
+	 */
+	protected synchronized DescriptorSetCache.Bindings getBindings(int[] textures, int[] buffers) {
+		if (textures.length != this.texturesPerSet || buffers.length != this.buffersPerSet) {
+			throw new AssertionError("Classic descriptor sets need " + this.texturesPerSet + " textures and " + this.buffersPerSet + " buffers, got " + textures.length + " and " + buffers.length);
+		}
+
+		DescriptorSetCache.Bindings bindings = this.bindings.get().clear();
+		for (int i = 0; i < textures.length; i++) {
+			int handle = textures[i];
+			bindings.image(BindlessDescriptors.TEXTURE_BINDING, i, this.textureViews[handle], this.textureSamplers[handle], this.textureLayouts[handle]);
+		}
+		for (int i = 0; i < buffers.length; i++) {
+			int handle = buffers[i];
+			bindings.buffer(BindlessDescriptors.BUFFER_BINDING, i, this.buffers[handle], this.bufferOffsets[handle], this.bufferRanges[handle]);
+		}
+		return bindings;
+	}
+
+	/**
+	 * @return The one big set in bindless mode, or 0 in classic mode.
+	 */
+	public long getDescriptorSet() {
+		return this.descriptorSet;
+	}
+
+	public synchronized int getTextureCount() {
+		return this.textureHandles.getUsed();
+	}
+
+	public synchronized int getBufferCount() {
+		return this.bufferHandles.getUsed();
+	}
+
+	public synchronized String toString() {
+		return "BindlessDescriptors<" + (this.isBindless ? "bindless" : "classic") + ", textures: " + this.textureHandles.getUsed() + "/" + this.textureHandles.capacity + ", buffers: " + this.bufferHandles.getUsed() + "/" + this.bufferHandles.capacity + ">";
+	}
+
+	/**
+	 * Destroys the bindless set and its layout. Only once the GPU is idle.
+	 * In classic mode the layout belongs to the DescriptorAllocator.
+	 */
+	public synchronized void dispose() {
+		this.frameScheduler.removeRecycler(this);
+		if (!this.isBindless) return;
+
+		VulkanCall.DESTROY_DESCRIPTOR_POOL.run(() -> vkDestroyDescriptorPool(this.logicalDevice.getDevice(), this.descriptorPool, null));
+		this.layout.dispose();
+	}
+}
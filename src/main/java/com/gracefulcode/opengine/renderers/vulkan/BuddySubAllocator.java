@@ -0,0 +1,115 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Classic binary buddy allocation.
+ * <p>
+ * Every range is a power of two and sits at an offset that is a multiple of
+ * its own size, so alignment comes for free. Freeing is cheap and never
+ * leaves fragments that can't be merged back together. The price is that
+ * every request gets rounded up to the next power of two.
+ */
+public class BuddySubAllocator extends SubAllocator {
+	/**
+	 * Nothing smaller than this gets handed out.
+	 */
+	public static final long MIN_BLOCK_SIZE = 256;
+
+	protected int minOrder;
+	protected int maxOrder;
+
+	/**
+	 * Free ranges, indexed by order - minOrder.
+	 */
+	protected ArrayList<HashSet<Long>> freeLists;
+
+	/**
+	 * Which order each live allocation has, so that free() only needs the
+	 * offset.
+	 */
+	protected HashMap<Long, Integer> allocated = new HashMap<Long, Integer>();
+
+	/**
+	 * @param size The total size of the region. Anything past the largest
+	 *        power of two that fits is not used.
+	 */
+	public BuddySubAllocator(long size) {
+		super(size);
+
+		this.minOrder = BuddySubAllocator.order(BuddySubAllocator.MIN_BLOCK_SIZE);
+		this.maxOrder = 63 - Long.numberOfLeadingZeros(size);
+		if (this.maxOrder < this.minOrder) {
+			throw new AssertionError("Region of " + size + " bytes is too small for a buddy allocator.");
+		}
+
+		this.freeLists = new ArrayList<HashSet<Long>>(this.maxOrder - this.minOrder + 1);
+		for (int order = this.minOrder; order <= this.maxOrder; order++) {
+			this.freeLists.add(new HashSet<Long>());
+		}
+		this.freeLists.get(this.maxOrder - this.minOrder).add(Long.valueOf(0));
+	}
+
+	public long allocate(long size, long alignment) {
+		int wantedOrder = Math.max(
+			this.minOrder,
+			Math.max(BuddySubAllocator.order(size), BuddySubAllocator.order(alignment))
+		);
+		if (wantedOrder > this.maxOrder) return SubAllocator.NO_SPACE;
+
+		int order = wantedOrder;
+		while (order <= this.maxOrder && this.freeLists.get(order - this.minOrder).isEmpty()) {
+			order++;
+		}
+		if (order > this.maxOrder) return SubAllocator.NO_SPACE;
+
+		Iterator<Long> iterator = this.freeLists.get(order - this.minOrder).iterator();
+		long offset = iterator.next().longValue();
+		iterator.remove();
+
+		/**
+		 * Split down until we're at the size we want, leaving the upper half
+		 * of every split free.
+		 */
+		while (order > wantedOrder) {
+			order--;
+			this.freeLists.get(order - this.minOrder).add(Long.valueOf(offset + (1L << order)));
+		}
+
+		this.allocated.put(Long.valueOf(offset), Integer.valueOf(order));
+		this.usedSize += 1L << order;
+		this.allocationCount++;
+		return offset;
+	}
+
+	public void free(long offset) {
+		Integer storedOrder = this.allocated.remove(Long.valueOf(offset));
+		if (storedOrder == null) {
+			throw new AssertionError("Offset " + offset + " was not allocated from this buddy allocator.");
+		}
+
+		int order = storedOrder.intValue();
+		this.usedSize -= 1L << order;
+		this.allocationCount--;
+
+		while (order < this.maxOrder) {
+			long buddy = offset ^ (1L << order);
+			if (!this.freeLists.get(order - this.minOrder).remove(Long.valueOf(buddy))) break;
+
+			offset = Math.min(offset, buddy);
+			order++;
+		}
+		this.freeLists.get(order - this.minOrder).add(Long.valueOf(offset));
+	}
+
+	/**
+	 * @return The smallest order whose block holds value.
+	 */
+	protected static int order(long value) {
+		if (value <= 1) return 0;
+		return 64 - Long.numberOfLeadingZeros(value - 1);
+	}
+}
@@ -0,0 +1,200 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+import com.gracefulcode.opengine.core.Ternary;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * The part that extension and layer configurations have in common: a set of
+ * names, each of which we want (YES), don't want (NO), or don't care about
+ * (UNKNOWN).
+ * <p>
+ * Before lock() any name can be added. That's how the names Vulkan supports
+ * get in. After lock(), requiring a name that isn't there is an error and
+ * anything else about unknown names is ignored. Asking for YES and NO on the
+ * same name is always an error.
+ * <p>
+ * Names are stored as CapabilityNames IDs in three BitSets, so nothing here
+ * allocates once the names have been seen, and the list handed to Vulkan is
+ * cached until something changes.
+ */
+public abstract class CapabilityConfiguration {
+	protected BitSet known = new BitSet();
+	protected BitSet yes = new BitSet();
+	protected BitSet no = new BitSet();
+	protected boolean isLocked = false;
+
+	/**
+	 * What getConfigured() handed out last, or null if things have changed
+	 * since. The strings belong to CapabilityNames, only the array is ours.
+	 */
+	protected PointerBuffer configured;
+
+	/**
+	 * @return "Extension", "Layer", etc. for error messages.
+	 */
+	protected abstract String getKind();
+
+	/**
+	 * @return What getRequireType() says about names we've never heard of.
+	 */
+	protected abstract Ternary getDefaultRequireType();
+
+	public void lock() {
+		this.isLocked = true;
+	}
+
+	public boolean isLocked() {
+		return this.isLocked;
+	}
+
+	protected void set(String name, Ternary requireType) {
+		int id = this.isLocked ? CapabilityNames.find(name) : CapabilityNames.intern(name);
+		if (id < 0 || !this.known.get(id)) {
+			if (this.isLocked) {
+				if (requireType == Ternary.YES) {
+					throw new AssertionError(this.getKind() + " " + name + " is being marked as required, but it is not supported.");
+				}
+				return;
+			}
+			this.known.set(id);
+		}
+		this.set(id, requireType);
+	}
+
+	/**
+	 * Applies requireType to a name that we already know about.
+	 */
+	protected void set(int id, Ternary requireType) {
+		if (this.yes.get(id)) {
+			if (requireType == Ternary.NO) {
+				throw new AssertionError(CapabilityNames.name(id) + " is both required and not desired. Cannot resolve.");
+			}
+			return;
+		}
+		if (this.no.get(id)) {
+			if (requireType == Ternary.YES) {
+				throw new AssertionError(CapabilityNames.name(id) + " is both required and not desired. Cannot resolve.");
+			}
+			return;
+		}
+
+		switch (requireType) {
+			case YES:
+				this.yes.set(id);
+				this.invalidate();
+				break;
+			case NO:
+				this.no.set(id);
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Adds every name in ids as UNKNOWN. Only allowed before lock().
+	 */
+	protected void addSupported(BitSet ids) {
+		if (this.isLocked) {
+			throw new AssertionError("Can't add supported " + this.getKind() + "s after locking.");
+		}
+		this.known.or(ids);
+	}
+
+	public Ternary getRequireType(String name) {
+		int id = CapabilityNames.find(name);
+		if (id < 0 || !this.known.get(id)) return this.getDefaultRequireType();
+		if (this.yes.get(id)) return Ternary.YES;
+		if (this.no.get(id)) return Ternary.NO;
+		return Ternary.UNKNOWN;
+	}
+
+	public boolean shouldHave(String name) {
+		int id = CapabilityNames.find(name);
+		return id >= 0 && this.yes.get(id);
+	}
+
+	public boolean isSupported(String name) {
+		int id = CapabilityNames.find(name);
+		return id >= 0 && this.known.get(id);
+	}
+
+	/**
+	 * @return The IDs of everything we should enable. A copy.
+	 */
+	public BitSet getEnabledIds() {
+		return (BitSet)this.yes.clone();
+	}
+
+	public List<String> getEnabledNames() {
+		ArrayList<String> ret = new ArrayList<String>();
+		for (int id = this.yes.nextSetBit(0); id >= 0; id = this.yes.nextSetBit(id + 1)) {
+			ret.add(CapabilityNames.name(id));
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The names of everything we should enable. The buffer belongs to
+	 *         the configuration and is reused until the configuration
+	 *         changes, so don't free it.
+	 */
+	protected PointerBuffer getConfigured() {
+		if (this.configured == null) {
+			this.configured = this.encode(memAllocPointer(this.yes.cardinality()));
+		}
+		return this.configured;
+	}
+
+	/**
+	 * @return The names of everything we should enable, allocated on stack.
+	 */
+	protected PointerBuffer getConfigured(MemoryStack stack) {
+		return this.encode(stack.mallocPointer(this.yes.cardinality()));
+	}
+
+	protected PointerBuffer encode(PointerBuffer ret) {
+		for (int id = this.yes.nextSetBit(0); id >= 0; id = this.yes.nextSetBit(id + 1)) {
+			ret.put(CapabilityNames.address(id));
+		}
+		ret.flip();
+		return ret;
+	}
+
+	/**
+	 * Frees the cached name list, if there is one.
+	 */
+	protected void invalidate() {
+		if (this.configured == null) return;
+		memFree(this.configured);
+		this.configured = null;
+	}
+
+	public void dispose() {
+		this.invalidate();
+	}
+
+	public String toString() {
+		StringBuilder ret = new StringBuilder("{");
+		for (int id = this.known.nextSetBit(0); id >= 0; id = this.known.nextSetBit(id + 1)) {
+			if (ret.length() > 1) ret.append(", ");
+			ret.append(CapabilityNames.name(id)).append('=');
+			if (this.yes.get(id)) {
+				ret.append(Ternary.YES);
+			} else if (this.no.get(id)) {
+				ret.append(Ternary.NO);
+			} else {
+				ret.append(Ternary.UNKNOWN);
+			}
+		}
+		return ret.append('}').toString();
+	}
+}
@@ -0,0 +1,84 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every extension and layer name a small integer ID.
+ * <p>
+ * With IDs, a set of extensions is just a BitSet, so checking requirements
+ * against what a device supports is a couple of word-wide ANDs instead of a
+ * pile of string compares. Each name is also encoded as UTF-8 once, so
+ * building the name list Vulkan wants doesn't allocate any strings.
+ * <p>
+ * There are only a few hundred extension names in existence, so interned
+ * names are kept forever. Their UTF-8 copies will show up in
+ * NativeMemory.getLeaks() under intern(), and that's expected.
+ */
+public class CapabilityNames {
+	protected static ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	protected static ArrayList<String> names = new ArrayList<String>();
+	protected static ArrayList<ByteBuffer> encoded = new ArrayList<ByteBuffer>();
+
+	/**
+	 * Replaced wholesale (never changed in place) whenever a name is added,
+	 * so address() can read it without locking.
+	 */
+	protected static volatile long[] addresses = new long[0];
+
+	private CapabilityNames() {
+	}
+
+	/**
+	 * @return The ID for name, assigning a new one if we haven't seen it.
+	 */
+	public static int intern(String name) {
+		Integer id = CapabilityNames.ids.get(name);
+		if (id != null) return id.intValue();
+
+		synchronized (CapabilityNames.class) {
+			id = CapabilityNames.ids.get(name);
+			if (id != null) return id.intValue();
+
+			int ret = CapabilityNames.names.size();
+			ByteBuffer utf8 = memUTF8(name);
+			CapabilityNames.names.add(name);
+			CapabilityNames.encoded.add(utf8);
+
+			long[] addresses = Arrays.copyOf(CapabilityNames.addresses, ret + 1);
+			addresses[ret] = memAddress(utf8);
+			CapabilityNames.addresses = addresses;
+
+			CapabilityNames.ids.put(name, Integer.valueOf(ret));
+			return ret;
+		}
+	}
+
+	/**
+	 * @return The ID for name, or -1 if nobody has interned it. Unlike
+	 *         intern(), this never allocates.
+	 */
+	public static int find(String name) {
+		Integer id = CapabilityNames.ids.get(name);
+		return id == null ? -1 : id.intValue();
+	}
+
+	public static synchronized String name(int id) {
+		return CapabilityNames.names.get(id);
+	}
+
+	/**
+	 * @return The address of the null-terminated UTF-8 name for id.
+	 */
+	public static long address(int id) {
+		return CapabilityNames.addresses[id];
+	}
+
+	public static int size() {
+		return CapabilityNames.addresses.length;
+	}
+}
@@ -0,0 +1,137 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkCommandBufferAllocateInfo;
+import org.lwjgl.vulkan.VkCommandPoolCreateInfo;
+
+/**
+ * A VkCommandPool and the command buffers we've allocated from it.
+ * <p>
+ * Command pools are not thread-safe, so a CommandPool belongs to exactly one
+ * thread (see CommandPoolManager). We never reset or free individual command
+ * buffers. Instead the whole pool is reset at once, which is much cheaper,
+ * and the command buffers are handed out again from the start.
+ */
+public class CommandPool {
+	protected LogicalDevice logicalDevice;
+	protected long commandPool;
+	protected int queueFamilyIndex;
+
+	protected ArrayList<VkCommandBuffer> primaries = new ArrayList<VkCommandBuffer>();
+	protected ArrayList<VkCommandBuffer> secondaries = new ArrayList<VkCommandBuffer>();
+	protected int primaryCursor;
+	protected int secondaryCursor;
+
+	/**
+	 * The frame number this pool was last reset for. CommandPoolManager uses
+	 * this to reset pools lazily.
+	 */
+	protected long resetFrame = -1;
+
+	public CommandPool(LogicalDevice logicalDevice, int queueFamilyIndex) {
+		this.logicalDevice = logicalDevice;
+		this.queueFamilyIndex = queueFamilyIndex;
+
+		try (MemoryStack stack = stackPush()) {
+			VkCommandPoolCreateInfo createInfo = VkCommandPoolCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO);
+			createInfo.flags(VK_COMMAND_POOL_CREATE_TRANSIENT_BIT);
+			createInfo.queueFamilyIndex(queueFamilyIndex);
+
+			LongBuffer pCommandPool = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_COMMAND_POOL.invoke(() -> vkCreateCommandPool(logicalDevice.getDevice(), createInfo, null, pCommandPool));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create command pool: " + Vulkan.translateVulkanResult(err));
+			}
+			this.commandPool = pCommandPool.get(0);
+		}
+	}
+
+	/**
+	 * Just the bookkeeping, without a device or a Vulkan pool.
+	 */
+	protected CommandPool(int queueFamilyIndex) {
+		this.queueFamilyIndex = queueFamilyIndex;
+	}
+
+	public long getCommandPool() {
+		return this.commandPool;
+	}
+
+	public int getQueueFamilyIndex() {
+		return this.queueFamilyIndex;
+	}
+
+	/**
+	 * @return A primary command buffer that hasn't been handed out since the
+	 *         last reset. It's ready for vkBeginCommandBuffer.
+	 */
+	public VkCommandBuffer obtainPrimary() {
+		if (this.primaryCursor == this.primaries.size()) {
+			this.primaries.add(this.allocate(VK_COMMAND_BUFFER_LEVEL_PRIMARY));
+		}
+		return this.primaries.get(this.primaryCursor++);
+	}
+
+	/**
+	 * @return A secondary command buffer that hasn't been handed out since
+	 *         the last reset.
+	 */
+	public VkCommandBuffer obtainSecondary() {
+		if (this.secondaryCursor == this.secondaries.size()) {
+			this.secondaries.add(this.allocate(VK_COMMAND_BUFFER_LEVEL_SECONDARY));
+		}
+		return this.secondaries.get(this.secondaryCursor++);
+	}
+
+	/**
+	 * Resets every command buffer from this pool at once. Only call this
+	 * once the GPU is done with all of them.
+	 */
+	public void reset() {
+		this.resetPool();
+		this.primaryCursor = 0;
+		this.secondaryCursor = 0;
+	}
+
+	protected void resetPool() {
+		int err = VulkanCall.RESET_COMMAND_POOL.invoke(() -> vkResetCommandPool(this.logicalDevice.getDevice(), this.commandPool, 0));
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to reset command pool: " + Vulkan.translateVulkanResult(err));
+		}
+	}
+
+	protected VkCommandBuffer allocate(int level) {
+		try (MemoryStack stack = stackPush()) {
+			VkCommandBufferAllocateInfo allocateInfo = VkCommandBufferAllocateInfo.callocStack(stack);
+			allocateInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
+			allocateInfo.commandPool(this.commandPool);
+			allocateInfo.level(level);
+			allocateInfo.commandBufferCount(1);
+
+			PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+			int err = VulkanCall.ALLOCATE_COMMAND_BUFFERS.invoke(() -> vkAllocateCommandBuffers(this.logicalDevice.getDevice(), allocateInfo, pCommandBuffer));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to allocate command buffer: " + Vulkan.translateVulkanResult(err));
+			}
+			return new VkCommandBuffer(pCommandBuffer.get(0), this.logicalDevice.getDevice());
+		}
+	}
+
+	public String toString() {
+		return "CommandPool<family: " + this.queueFamilyIndex + ", primaries: " + this.primaries.size() + ", secondaries: " + this.secondaries.size() + ">";
+	}
+
+	public void dispose() {
+		// Destroying the pool frees its command buffers too.
+		VulkanCall.DESTROY_COMMAND_POOL.run(() -> vkDestroyCommandPool(this.logicalDevice.getDevice(), this.commandPool, null));
+	}
+}
@@ -0,0 +1,120 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+/**
+ * Hands out command pools so that any number of threads can record at
+ * once.
+ * <p>
+ * Every thread gets its own CommandPool per queue family per frame in
+ * flight, created the first time it asks. Since nothing is shared there is
+ * nothing to lock. When a thread asks for a pool in a new frame, the pool
+ * for that frame slot is reset first. The caller has to make sure that
+ * beginFrame() is only called once the GPU is done with the frame that last
+ * used that slot (the FrameScheduler does this).
+ */
+public class CommandPoolManager {
+	protected LogicalDevice logicalDevice;
+	protected int framesInFlight;
+	protected int numQueueFamilies;
+
+	protected volatile long frameNumber;
+
+	/**
+	 * Indexed by frame slot, then queue family.
+	 */
+	protected ThreadLocal<CommandPool[][]> threadPools;
+
+	/**
+	 * Every pool any thread has created, so we can clean up.
+	 */
+	protected ConcurrentLinkedQueue<CommandPool> allPools = new ConcurrentLinkedQueue<CommandPool>();
+
+	public CommandPoolManager(LogicalDevice logicalDevice, int framesInFlight) {
+		this(framesInFlight, logicalDevice.getPhysicalDevice().getQueues().size());
+		this.logicalDevice = logicalDevice;
+	}
+
+	/**
+	 * Without a device, for subclasses that make their own pools.
+	 */
+	protected CommandPoolManager(int framesInFlight, int numQueueFamilies) {
+		this.framesInFlight = framesInFlight;
+		this.numQueueFamilies = numQueueFamilies;
+		this.threadPools = ThreadLocal.withInitial(() -> new CommandPool[this.framesInFlight][this.numQueueFamilies]);
+	}
+
+	/**
+	 * Moves every thread on to a new frame. Pools for the frame's slot are
+	 * reset the next time each thread asks for one.
+	 *
+	 * @param frameNumber Goes up by one every frame.
+	 */
+	public void beginFrame(long frameNumber) {
+		this.frameNumber = frameNumber;
+	}
+
+	public long getFrameNumber() {
+		return this.frameNumber;
+	}
+
+	/**
+	 * @return The calling thread's pool for the current frame and the given
+	 *         queue family.
+	 */
+	public CommandPool getPool(int queueFamilyIndex) {
+		long frameNumber = this.frameNumber;
+		int slot = (int)(frameNumber % this.framesInFlight);
+
+		CommandPool[][] pools = this.threadPools.get();
+		CommandPool pool = pools[slot][queueFamilyIndex];
+		if (pool == null) {
+			pool = this.createPool(queueFamilyIndex);
+			pools[slot][queueFamilyIndex] = pool;
+			this.allPools.add(pool);
+		} else if (pool.resetFrame != frameNumber) {
+			pool.reset();
+		}
+		pool.resetFrame = frameNumber;
+		return pool;
+	}
+
+	protected CommandPool createPool(int queueFamilyIndex) {
+		return new CommandPool(this.logicalDevice, queueFamilyIndex);
+	}
+
+	public CommandPool getPool(DeviceQueue queue) {
+		return this.getPool(queue.getFamilyIndex());
+	}
+
+	public VkCommandBuffer obtainPrimary(DeviceQueue queue) {
+		return this.getPool(queue).obtainPrimary();
+	}
+
+	public VkCommandBuffer obtainSecondary(DeviceQueue queue) {
+		return this.getPool(queue).obtainSecondary();
+	}
+
+	public int getFramesInFlight() {
+		return this.framesInFlight;
+	}
+
+	/**
+	 * @return How many pools all threads together have created.
+	 */
+	public int getPoolCount() {
+		return this.allPools.size();
+	}
+
+	/**
+	 * Only call this once the device is idle and no thread is recording.
+	 */
+	public void dispose() {
+		CommandPool pool;
+		while ((pool = this.allPools.poll()) != null) {
+			pool.dispose();
+		}
+	}
+}
@@ -0,0 +1,709 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkCommandBufferAllocateInfo;
+import org.lwjgl.vulkan.VkCommandBufferBeginInfo;
+import org.lwjgl.vulkan.VkCommandPoolCreateInfo;
+import org.lwjgl.vulkan.VkDescriptorBufferInfo;
+import org.lwjgl.vulkan.VkDescriptorPoolCreateInfo;
+import org.lwjgl.vulkan.VkDescriptorPoolSize;
+import org.lwjgl.vulkan.VkDescriptorSetAllocateInfo;
+import org.lwjgl.vulkan.VkFenceCreateInfo;
+import org.lwjgl.vulkan.VkMemoryBarrier;
+import org.lwjgl.vulkan.VkQueryPoolCreateInfo;
+import org.lwjgl.vulkan.VkSubmitInfo;
+import org.lwjgl.vulkan.VkWriteDescriptorSet;
+
+/**
+ * Runs ComputeKernels on the compute queue.
+ * <p>
+ * dispatch() only queues a job and hands back a future. flush() records
+ * every queued job into one command buffer and submits it, so a hundred
+ * small jobs cost one vkQueueSubmit; poll() completes the futures of
+ * batches that have finished and never blocks. Jobs run in the order they
+ * were dispatched with a memory barrier between each, so a job sees what
+ * the jobs before it wrote, and the batch ends with a barrier that makes
+ * everything visible to the host and to transfers.
+ * <p>
+ * Each job uses its kernel's workgroup shape from the WorkgroupTuner and
+ * its pipeline from the PipelineCompiler. A job whose pipeline is still
+ * compiling stays queued (along with everything behind it) until a later
+ * flush finds it ready. A job whose pipeline failed to build fails with the
+ * compiler's error, and the jobs behind it carry on. A grid that needs more groups than
+ * maxComputeWorkGroupCount on any side is split into several dispatches.
+ * <p>
+ * benchmark() runs a kernel at every legal workgroup shape, times each with
+ * timestamp queries, and tells the tuner which was fastest.
+ */
+public class ComputeDispatcher {
+	/**
+	 * Descriptor writes are built on the stack, so a batch holds at most this
+	 * many jobs and buffers. A flush with more goes out as several batches.
+	 */
+	public static final int MAX_JOBS_PER_BATCH = 64;
+	public static final int MAX_BUFFERS_PER_BATCH = 256;
+
+	public static class Stats {
+		public final long jobs;
+		public final long batches;
+		public final long dispatches;
+		public final long deferred;
+
+		protected Stats(long jobs, long batches, long dispatches, long deferred) {
+			this.jobs = jobs;
+			this.batches = batches;
+			this.dispatches = dispatches;
+			this.deferred = deferred;
+		}
+
+		public double getJobsPerBatch() {
+			return this.batches == 0 ? 0 : (double)this.jobs / this.batches;
+		}
+
+		public String toString() {
+			return String.format("ComputeDispatcher.Stats<jobs: %d, batches: %d, dispatches: %d, deferred: %d>", this.jobs, this.batches, this.dispatches, this.deferred);
+		}
+	}
+
+	protected static class Job {
+		protected ComputeKernel kernel;
+		protected PipelineDescription description;
+		protected int[] shape;
+		protected DeviceBuffer[] buffers;
+		protected ByteBuffer pushData;
+		protected int[] grid;
+		protected CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		/**
+		 * Why its pipeline failed to build, once flush() finds out.
+		 */
+		protected Throwable error;
+	}
+
+	protected static class Batch {
+		protected VkCommandBuffer commandBuffer;
+		protected long fence;
+		protected long descriptorPool;
+		protected ArrayList<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected DeviceQueue queue;
+	protected PipelineCompiler compiler;
+	protected WorkgroupTuner tuner;
+	protected long commandPool;
+	protected int[] maxGroupCount;
+	protected float timestampPeriod;
+	protected long timestampMask;
+
+	protected ArrayList<Job> pending = new ArrayList<Job>();
+	protected ArrayDeque<Batch> inFlight = new ArrayDeque<Batch>();
+	protected ArrayDeque<Batch> spare = new ArrayDeque<Batch>();
+	protected ArrayList<Batch> dead = new ArrayList<Batch>();
+
+	protected long jobCount;
+	protected long batchCount;
+	protected long dispatchCount;
+	protected long deferredCount;
+
+	/**
+	 * @param compiler Where pipelines come from. Shared with anything else.
+	 * @param tuner Where workgroup shapes come from, and where benchmark()
+	 *        leaves its results.
+	 */
+	public ComputeDispatcher(LogicalDevice logicalDevice, PipelineCompiler compiler, WorkgroupTuner tuner) {
+		this(compiler, tuner);
+		this.logicalDevice = logicalDevice;
+		this.queue = logicalDevice.getComputeQueue();
+
+		PhysicalDeviceLimits limits = logicalDevice.getPhysicalDevice().getLimits();
+		this.maxGroupCount = new int[] { limits.maxComputeWorkGroupCountX, limits.maxComputeWorkGroupCountY, limits.maxComputeWorkGroupCountZ };
+		this.timestampPeriod = limits.timestampPeriod;
+		this.timestampMask = GpuProfiler.validBitMask(this.queue.getFamily().getTimestampValidBits());
+
+		try (MemoryStack stack = stackPush()) {
+			VkCommandPoolCreateInfo poolInfo = VkCommandPoolCreateInfo.callocStack(stack);
+			poolInfo.sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO);
+			poolInfo.flags(VK_COMMAND_POOL_CREATE_TRANSIENT_BIT | VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT);
+			poolInfo.queueFamilyIndex(this.queue.getFamilyIndex());
+
+			LongBuffer pCommandPool = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_COMMAND_POOL.invoke(() -> vkCreateCommandPool(logicalDevice.getDevice(), poolInfo, null, pCommandPool));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create compute command pool: " + Vulkan.translateVulkanResult(err));
+			}
+			this.commandPool = pCommandPool.get(0);
+		}
+	}
+
+	/**
+	 * Only the queueing, with no device; submit() has to be overridden.
+	 */
+	protected ComputeDispatcher(PipelineCompiler compiler, WorkgroupTuner tuner) {
+		this.compiler = compiler;
+		this.tuner = tuner;
+	}
+
+	/**
+	 * Queues a job. Starts compiling its pipeline if that hasn't happened
+	 * yet.
+	 *
+	 * @param buffers One per kernel binding, bound whole. Have to stay alive
+	 *        until the future completes.
+	 * @param pushData The kernel's own push constants, between position and
+	 *        limit, or null. Copied before we return.
+	 * @param x The grid size in invocations. y and z are ignored past the
+	 *        kernel's dimensions.
+	 * @return Completes once the job has run and its writes are visible.
+	 */
+	public synchronized CompletableFuture<Void> dispatch(ComputeKernel kernel, DeviceBuffer[] buffers, ByteBuffer pushData, int x, int y, int z) {
+		Job job = this.createJob(kernel, this.tuner.getShape(kernel), buffers, pushData, x, y, z);
+		this.compiler.request(job.description);
+		this.pending.add(job);
+		this.jobCount++;
+		return job.future;
+	}
+
+	protected Job createJob(ComputeKernel kernel, int[] shape, DeviceBuffer[] buffers, ByteBuffer pushData, int x, int y, int z) {
+		if (buffers.length != kernel.getBufferCount()) {
+			throw new AssertionError(kernel + " takes " + kernel.getBufferCount() + " buffers, got " + buffers.length);
+		}
+		if (buffers.length > ComputeDispatcher.MAX_BUFFERS_PER_BATCH) {
+			throw new AssertionError(kernel + " takes more than " + ComputeDispatcher.MAX_BUFFERS_PER_BATCH + " buffers.");
+		}
+		int pushSize = pushData == null ? 0 : pushData.remaining();
+		if (pushSize > kernel.getUserPushConstantSize()) {
+			throw new AssertionError(kernel + " takes " + kernel.getUserPushConstantSize() + " bytes of push constants, got " + pushSize);
+		}
+		if (pushSize % 4 != 0) {
+			throw new AssertionError("Push constants come in multiples of 4 bytes, got " + pushSize);
+		}
+
+		Job job = new Job();
+		job.kernel = kernel;
+		job.shape = shape;
+		job.description = kernel.getDescription(shape);
+		job.buffers = buffers.clone();
+		job.grid = new int[] {
+			Math.max(1, x),
+			kernel.getDimensions() >= 2 ? Math.max(1, y) : 1,
+			kernel.getDimensions() >= 3 ? Math.max(1, z) : 1
+		};
+		if (pushSize > 0) {
+			job.pushData = ByteBuffer.allocate(pushSize);
+			job.pushData.put(pushData.duplicate());
+			job.pushData.flip();
+		}
+		return job;
+	}
+
+	/**
+	 * Submits every queued job whose pipeline is ready, in as few batches as
+	 * fit.
+	 */
+	public synchronized void flush() {
+		this.poll();
+
+		ArrayList<Job> failed = new ArrayList<Job>();
+		try {
+			this.flush(failed);
+		} finally {
+			for (Job job: failed) {
+				job.future.completeExceptionally(job.error);
+			}
+		}
+	}
+
+	/**
+	 * Jobs whose pipelines failed to build come out of the queue into failed,
+	 * and their futures are only completed once the queue is consistent
+	 * again, in case anything chained onto them dispatches or flushes.
+	 */
+	protected void flush(ArrayList<Job> failed) {
+		while (!this.pending.isEmpty()) {
+			int jobs = 0;
+			int buffers = 0;
+			while (jobs < this.pending.size() && jobs < ComputeDispatcher.MAX_JOBS_PER_BATCH) {
+				Job job = this.pending.get(jobs);
+				job.error = this.compiler.getError(job.description);
+				if (job.error != null) {
+					/**
+					 * Its pipeline will never be ready, so it fails and stops
+					 * holding up everything behind it.
+					 */
+					this.pending.remove(jobs);
+					failed.add(job);
+					continue;
+				}
+				if (buffers + job.buffers.length > ComputeDispatcher.MAX_BUFFERS_PER_BATCH) break;
+				if (!this.compiler.isReady(job.description)) break;
+				buffers += job.buffers.length;
+				jobs++;
+			}
+			if (jobs == 0) {
+				this.deferredCount += this.pending.size();
+				return;
+			}
+
+			this.submit(new ArrayList<Job>(this.pending.subList(0, jobs)), -1, 0);
+			this.pending.subList(0, jobs).clear();
+		}
+	}
+
+	/**
+	 * Records and submits jobs as one batch.
+	 *
+	 * @param queryPool If not -1, a timestamp is written before and after
+	 *        the batch at firstQuery.
+	 */
+	protected Batch submit(ArrayList<Job> jobs, long queryPool, int firstQuery) {
+		Batch batch = this.spare.isEmpty() ? this.createBatch() : this.spare.poll();
+
+		try (MemoryStack stack = stackPush()) {
+			int err = VulkanCall.RESET_DESCRIPTOR_POOL.invoke(() -> vkResetDescriptorPool(this.logicalDevice.getDevice(), batch.descriptorPool, 0));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to reset compute descriptor pool: " + Vulkan.translateVulkanResult(err));
+			}
+
+			long[] sets = this.writeDescriptorSets(stack, batch, jobs);
+
+			VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack);
+			beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+			beginInfo.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+			err = VulkanCall.BEGIN_COMMAND_BUFFER.invoke(() -> vkBeginCommandBuffer(batch.commandBuffer, beginInfo));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to begin compute batch: " + Vulkan.translateVulkanResult(err));
+			}
+
+			if (queryPool != -1) {
+				vkCmdResetQueryPool(batch.commandBuffer, queryPool, firstQuery, 2);
+				vkCmdWriteTimestamp(batch.commandBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, queryPool, firstQuery);
+			}
+
+			VkMemoryBarrier.Buffer barrier = VkMemoryBarrier.callocStack(1, stack);
+			barrier.get(0)
+				.sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER)
+				.srcAccessMask(VK_ACCESS_SHADER_WRITE_BIT)
+				.dstAccessMask(VK_ACCESS_SHADER_READ_BIT | VK_ACCESS_SHADER_WRITE_BIT);
+			ByteBuffer push = stack.malloc(ComputeKernel.RESERVED_PUSH_CONSTANT_SIZE);
+
+			long boundPipeline = VK_NULL_HANDLE;
+			for (int i = 0; i < jobs.size(); i++) {
+				Job job = jobs.get(i);
+				if (i > 0) {
+					vkCmdPipelineBarrier(batch.commandBuffer, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, 0, barrier, null, null);
+				}
+
+				long pipeline = this.compiler.get(job.description);
+				if (pipeline != boundPipeline) {
+					vkCmdBindPipeline(batch.commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, pipeline);
+					boundPipeline = pipeline;
+				}
+				long layout = job.kernel.getPipelineLayout().getPipelineLayout();
+				if (job.buffers.length > 0) {
+					vkCmdBindDescriptorSets(batch.commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, layout, 0, stack.longs(sets[i]), null);
+				}
+				if (job.pushData != null) {
+					try (MemoryStack frame = stack.push()) {
+						ByteBuffer userPush = frame.malloc(job.pushData.remaining());
+						userPush.put(job.pushData.duplicate());
+						userPush.flip();
+						vkCmdPushConstants(batch.commandBuffer, layout, VK_SHADER_STAGE_COMPUTE_BIT, ComputeKernel.RESERVED_PUSH_CONSTANT_SIZE, userPush);
+					}
+				}
+				this.recordDispatches(batch.commandBuffer, job, layout, push);
+			}
+
+			barrier.get(0)
+				.srcAccessMask(VK_ACCESS_SHADER_WRITE_BIT)
+				.dstAccessMask(VK_ACCESS_HOST_READ_BIT | VK_ACCESS_TRANSFER_READ_BIT);
+			vkCmdPipelineBarrier(batch.commandBuffer, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_PIPELINE_STAGE_HOST_BIT | VK_PIPELINE_STAGE_TRANSFER_BIT, 0, barrier, null, null);
+
+			if (queryPool != -1) {
+				vkCmdWriteTimestamp(batch.commandBuffer, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, queryPool, firstQuery + 1);
+			}
+
+			err = VulkanCall.END_COMMAND_BUFFER.invoke(() -> vkEndCommandBuffer(batch.commandBuffer));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to record compute batch: " + Vulkan.translateVulkanResult(err));
+			}
+
+			VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack);
+			submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
+			submitInfo.pCommandBuffers(stack.pointers(batch.commandBuffer));
+
+			err = VulkanCall.RESET_FENCES.invoke(() -> vkResetFences(this.logicalDevice.getDevice(), batch.fence));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to reset compute fence: " + Vulkan.translateVulkanResult(err));
+			}
+			this.queue.submit(submitInfo, batch.fence);
+		}
+
+		for (Job job: jobs) {
+			batch.futures.add(job.future);
+		}
+		this.inFlight.add(batch);
+		this.batchCount++;
+		return batch;
+	}
+
+	/**
+	 * Allocates one set per job that has buffers, all in one call, and
+	 * writes them all in one more.
+	 *
+	 * @return The set for each job, or VK_NULL_HANDLE for jobs without
+	 *         buffers.
+	 */
+	protected long[] writeDescriptorSets(MemoryStack stack, Batch batch, ArrayList<Job> jobs) {
+		long[] ret = new long[jobs.size()];
+		int numSets = 0;
+		int numWrites = 0;
+		for (Job job: jobs) {
+			if (job.buffers.length == 0) continue;
+			numSets++;
+			numWrites += job.buffers.length;
+		}
+		if (numSets == 0) return ret;
+
+		LongBuffer pSetLayouts = stack.mallocLong(numSets);
+		for (Job job: jobs) {
+			if (job.buffers.length > 0) pSetLayouts.put(job.kernel.getSetLayout().getLayout());
+		}
+		pSetLayouts.flip();
+
+		VkDescriptorSetAllocateInfo allocateInfo = VkDescriptorSetAllocateInfo.callocStack(stack);
+		allocateInfo.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO);
+		allocateInfo.descriptorPool(batch.descriptorPool);
+		allocateInfo.pSetLayouts(pSetLayouts);
+
+		LongBuffer pSets = stack.mallocLong(numSets);
+		int err = VulkanCall.ALLOCATE_DESCRIPTOR_SETS.invoke(() -> vkAllocateDescriptorSets(this.logicalDevice.getDevice(), allocateInfo, pSets));
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to allocate compute descriptor sets: " + Vulkan.translateVulkanResult(err));
+		}
+
+		VkWriteDescriptorSet.Buffer writes = VkWriteDescriptorSet.callocStack(numWrites, stack);
+		VkDescriptorBufferInfo.Buffer infos = VkDescriptorBufferInfo.callocStack(numWrites, stack);
+		int set = 0;
+		int write = 0;
+		for (int i = 0; i < jobs.size(); i++) {
+			Job job = jobs.get(i);
+			if (job.buffers.length == 0) continue;
+
+			ret[i] = pSets.get(set++);
+			for (int binding = 0; binding < job.buffers.length; binding++) {
+				VkDescriptorBufferInfo info = infos.get(write);
+				info.buffer(job.buffers[binding].getBuffer());
+				info.offset(0);
+				info.range(VK_WHOLE_SIZE);
+
+				writes.get(write)
+					.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+					.dstSet(ret[i])
+					.dstBinding(binding)
+					.descriptorType(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER)
+					.pBufferInfo(VkDescriptorBufferInfo.create(info.address(), 1));
+				write++;
+			}
+		}
+
+		VulkanCall.UPDATE_DESCRIPTOR_SETS.run(() -> vkUpdateDescriptorSets(this.logicalDevice.getDevice(), writes, null));
+		return ret;
+	}
+
+	/**
+	 * One vkCmdDispatch per chunk of at most maxComputeWorkGroupCount groups
+	 * on each side, each told its offset and the full grid size.
+	 */
+	protected void recordDispatches(VkCommandBuffer commandBuffer, Job job, long layout, ByteBuffer push) {
+		push.putInt(12, 0);
+		push.putInt(16, job.grid[0]);
+		push.putInt(20, job.grid[1]);
+		push.putInt(24, job.grid[2]);
+		push.putInt(28, 0);
+
+		for (int[] chunk: ComputeDispatcher.split(job.grid, job.shape, this.maxGroupCount)) {
+			push.putInt(0, chunk[0]);
+			push.putInt(4, chunk[1]);
+			push.putInt(8, chunk[2]);
+			vkCmdPushConstants(commandBuffer, layout, VK_SHADER_STAGE_COMPUTE_BIT, 0, push);
+			vkCmdDispatch(commandBuffer, chunk[3], chunk[4], chunk[5]);
+			this.dispatchCount++;
+		}
+	}
+
+	/**
+	 * Cuts the groups a grid needs into dispatches of at most maxGroupCount
+	 * groups on each side, x fastest.
+	 *
+	 * @return The group offset (x, y, z) and group count (x, y, z) of each
+	 *         dispatch.
+	 */
+	protected static ArrayList<int[]> split(int[] grid, int[] shape, int[] maxGroupCount) {
+		int[] groups = new int[3];
+		for (int i = 0; i < 3; i++) {
+			groups[i] = (grid[i] + shape[i] - 1) / shape[i];
+		}
+
+		ArrayList<int[]> ret = new ArrayList<int[]>();
+		for (int z = 0; z < groups[2]; z += maxGroupCount[2]) {
+			for (int y = 0; y < groups[1]; y += maxGroupCount[1]) {
+				for (int x = 0; x < groups[0]; x += maxGroupCount[0]) {
+					ret.add(new int[] {
+						x, y, z,
+						Math.min(maxGroupCount[0], groups[0] - x),
+						Math.min(maxGroupCount[1], groups[1] - y),
+						Math.min(maxGroupCount[2], groups[2] - z)
+					});
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Completes the futures of finished batches. Never blocks. If a fence
+	 * can't be read (the device was lost, usually) every batch in flight
+	 * fails with the error instead.
+	 */
+	public synchronized void poll() {
+		while (!this.inFlight.isEmpty()) {
+			Batch batch = this.inFlight.peek();
+			int status = VulkanCall.GET_FENCE_STATUS.invoke(() -> vkGetFenceStatus(this.logicalDevice.getDevice(), batch.fence));
+			if (status == VK_NOT_READY) break;
+			if (status != VK_SUCCESS) {
+				this.failInFlight(new AssertionError("Failed to get compute fence status: " + Vulkan.translateVulkanResult(status)));
+				break;
+			}
+
+			this.retire(this.inFlight.poll());
+		}
+	}
+
+	/**
+	 * Runs everything queued, waiting for pipelines to compile if need be,
+	 * and blocks until it's all done.
+	 */
+	public synchronized void waitIdle() {
+		this.flush();
+		while (!this.pending.isEmpty()) {
+			/**
+			 * A pipeline that fails to build fails its job in the next
+			 * flush, not here.
+			 */
+			this.compiler.request(this.pending.get(0).description).handle((pipeline, error) -> pipeline).join();
+			this.flush();
+		}
+		while (!this.inFlight.isEmpty()) {
+			this.waitFor(this.inFlight.poll());
+		}
+	}
+
+	protected void waitFor(Batch batch) {
+		int err = VulkanCall.WAIT_FOR_FENCES.invoke(() -> vkWaitForFences(this.logicalDevice.getDevice(), batch.fence, true, -1L));
+		if (err != VK_SUCCESS) {
+			AssertionError error = new AssertionError("Failed to wait for compute fence: " + Vulkan.translateVulkanResult(err));
+			this.fail(batch, error);
+			this.failInFlight(error);
+			throw error;
+		}
+		this.retire(batch);
+	}
+
+	protected void retire(Batch batch) {
+		for (CompletableFuture<Void> future: batch.futures) {
+			future.complete(null);
+		}
+		batch.futures.clear();
+		this.spare.add(batch);
+	}
+
+	protected void failInFlight(Throwable error) {
+		while (!this.inFlight.isEmpty()) {
+			this.fail(this.inFlight.poll(), error);
+		}
+	}
+
+	/**
+	 * The batch's fence may never signal, so it isn't reused. dispose()
+	 * still destroys it.
+	 */
+	protected void fail(Batch batch, Throwable error) {
+		for (CompletableFuture<Void> future: batch.futures) {
+			future.completeExceptionally(error);
+		}
+		batch.futures.clear();
+		this.dead.add(batch);
+	}
+
+	/**
+	 * Runs the kernel at every legal workgroup shape and remembers the
+	 * fastest with the tuner. Blocks, and compiles a pipeline per shape, so
+	 * it belongs in a loading screen or a first-run setup step. The kernel
+	 * runs iterations times per shape (as many as fit in one batch), so it
+	 * shouldn't matter if it runs more than once on the same buffers.
+	 *
+	 * @return Nanoseconds per run for each shape, in the order
+	 *         WorkgroupTuner.getCandidates() gives them.
+	 */
+	public synchronized long[] benchmark(ComputeKernel kernel, DeviceBuffer[] buffers, ByteBuffer pushData, int x, int y, int z, int iterations) {
+		this.waitIdle();
+
+		int[][] candidates = this.tuner.getCandidates(kernel.getDimensions(), kernel.getSharedBytesPerInvocation(), kernel.getSharedBytesFixed());
+		long[] times = new long[candidates.length];
+		int runs = Math.max(1, Math.min(iterations, ComputeDispatcher.MAX_JOBS_PER_BATCH));
+		if (buffers.length > 0) runs = Math.max(1, Math.min(runs, ComputeDispatcher.MAX_BUFFERS_PER_BATCH / buffers.length));
+
+		/**
+		 * Without timestamps on the compute queue we fall back to timing the
+		 * whole submission on the CPU, which includes the submit itself.
+		 */
+		long queryPool = this.timestampMask == 0 ? -1 : this.createQueryPool(candidates.length * 2);
+
+		try {
+			for (int i = 0; i < candidates.length; i++) {
+				PipelineDescription description = kernel.getDescription(candidates[i]);
+				this.compiler.getBlocking(description);
+
+				ArrayList<Job> jobs = new ArrayList<Job>(runs);
+				for (int j = 0; j < runs; j++) {
+					jobs.add(this.createJob(kernel, candidates[i], buffers, pushData, x, y, z));
+				}
+
+				long start = System.nanoTime();
+				Batch batch = this.submit(jobs, queryPool, i * 2);
+				this.inFlight.remove(batch);
+				this.waitFor(batch);
+				times[i] = (System.nanoTime() - start) / runs;
+			}
+
+			if (queryPool != -1) {
+				long[] results = new long[candidates.length * 2];
+				int err = VulkanCall.GET_QUERY_POOL_RESULTS.invoke(() -> vkGetQueryPoolResults(this.logicalDevice.getDevice(), queryPool, 0, results.length, results, 8, VK_QUERY_RESULT_64_BIT | VK_QUERY_RESULT_WAIT_BIT));
+				if (err != VK_SUCCESS) {
+					throw new AssertionError("Failed to get benchmark timestamps: " + Vulkan.translateVulkanResult(err));
+				}
+				for (int i = 0; i < candidates.length; i++) {
+					long ticks = (results[i * 2 + 1] - results[i * 2]) & this.timestampMask;
+					times[i] = (long)(ticks * (double)this.timestampPeriod) / runs;
+				}
+			}
+		} finally {
+			if (queryPool != -1) {
+				VulkanCall.DESTROY_QUERY_POOL.run(() -> vkDestroyQueryPool(this.logicalDevice.getDevice(), queryPool, null));
+			}
+		}
+
+		int best = 0;
+		for (int i = 1; i < candidates.length; i++) {
+			if (times[i] < times[best]) best = i;
+		}
+		this.tuner.setShape(kernel, candidates[best]);
+		return times;
+	}
+
+	protected long createQueryPool(int count) {
+		try (MemoryStack stack = stackPush()) {
+			VkQueryPoolCreateInfo createInfo = VkQueryPoolCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_QUERY_POOL_CREATE_INFO);
+			createInfo.queryType(VK_QUERY_TYPE_TIMESTAMP);
+			createInfo.queryCount(count);
+
+			LongBuffer pQueryPool = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_QUERY_POOL.invoke(() -> vkCreateQueryPool(this.logicalDevice.getDevice(), createInfo, null, pQueryPool));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create benchmark query pool: " + Vulkan.translateVulkanResult(err));
+			}
+			return pQueryPool.get(0);
+		}
+	}
+
+	protected Batch createBatch() {
+		Batch batch = new Batch();
+
+		try (MemoryStack stack = stackPush()) {
+			VkCommandBufferAllocateInfo allocateInfo = VkCommandBufferAllocateInfo.callocStack(stack);
+			allocateInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
+			allocateInfo.commandPool(this.commandPool);
+			allocateInfo.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY);
+			allocateInfo.commandBufferCount(1);
+
+			PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+			int err = VulkanCall.ALLOCATE_COMMAND_BUFFERS.invoke(() -> vkAllocateCommandBuffers(this.logicalDevice.getDevice(), allocateInfo, pCommandBuffer));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to allocate compute command buffer: " + Vulkan.translateVulkanResult(err));
+			}
+			batch.commandBuffer = new VkCommandBuffer(pCommandBuffer.get(0), this.logicalDevice.getDevice());
+
+			VkFenceCreateInfo fenceInfo = VkFenceCreateInfo.callocStack(stack);
+			fenceInfo.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+
+			LongBuffer pFence = stack.mallocLong(1);
+			err = VulkanCall.CREATE_FENCE.invoke(() -> vkCreateFence(this.logicalDevice.getDevice(), fenceInfo, null, pFence));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create compute fence: " + Vulkan.translateVulkanResult(err));
+			}
+			batch.fence = pFence.get(0);
+
+			VkDescriptorPoolSize.Buffer poolSizes = VkDescriptorPoolSize.callocStack(1, stack);
+			poolSizes.get(0).type(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER).descriptorCount(ComputeDispatcher.MAX_BUFFERS_PER_BATCH);
+
+			VkDescriptorPoolCreateInfo poolInfo = VkDescriptorPoolCreateInfo.callocStack(stack);
+			poolInfo.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO);
+			poolInfo.maxSets(ComputeDispatcher.MAX_JOBS_PER_BATCH);
+			poolInfo.pPoolSizes(poolSizes);
+
+			LongBuffer pPool = stack.mallocLong(1);
+			err = VulkanCall.CREATE_DESCRIPTOR_POOL.invoke(() -> vkCreateDescriptorPool(this.logicalDevice.getDevice(), poolInfo, null, pPool));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create compute descriptor pool: " + Vulkan.translateVulkanResult(err));
+			}
+			batch.descriptorPool = pPool.get(0);
+		}
+		return batch;
+	}
+
+	public WorkgroupTuner getTuner() {
+		return this.tuner;
+	}
+
+	public synchronized int getPendingCount() {
+		return this.pending.size();
+	}
+
+	public synchronized Stats getStats() {
+		return new Stats(this.jobCount, this.batchCount, this.dispatchCount, this.deferredCount);
+	}
+
+	public synchronized String toString() {
+		return "ComputeDispatcher<pending: " + this.pending.size() + ", in flight: " + this.inFlight.size() + ">";
+	}
+
+	/**
+	 * Runs anything still queued, then frees everything. Kernels and the
+	 * compiler still belong to the caller.
+	 */
+	public synchronized void dispose() {
+		this.waitIdle();
+		this.spare.addAll(this.dead);
+		this.dead.clear();
+		for (Batch batch: this.spare) {
+			VulkanCall.DESTROY_FENCE.run(() -> vkDestroyFence(this.logicalDevice.getDevice(), batch.fence, null));
+
+			VulkanCall.DESTROY_DESCRIPTOR_POOL.run(() -> vkDestroyDescriptorPool(this.logicalDevice.getDevice(), batch.descriptorPool, null));
+		}
+		this.spare.clear();
+		VulkanCall.DESTROY_COMMAND_POOL.run(() -> vkDestroyCommandPool(this.logicalDevice.getDevice(), this.commandPool, null));
+	}
+}
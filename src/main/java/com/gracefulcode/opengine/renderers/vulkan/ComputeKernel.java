@@ -0,0 +1,171 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compute shader and everything ComputeDispatcher needs to run it.
+ * <p>
+ * Kernels follow a fixed contract so the dispatcher can pick the workgroup
+ * shape and split big grids on its own:
+ * <pre>
+ * layout(local_size_x_id = 0, local_size_y_id = 1, local_size_z_id = 2) in;
+ * layout(set = 0, binding = 0..bufferCount-1) buffer ... ;
+ * layout(push_constant) uniform Dispatch {
+ *     uvec3 groupOffset; uint pad0;
+ *     uvec3 gridSize; uint pad1;
+ *     ...up to userPushConstantSize more bytes...
+ * };
+ * uvec3 id = (gl_WorkGroupID + groupOffset) * gl_WorkGroupSize + gl_LocalInvocationID;
+ * if (any(greaterThanEqual(id, gridSize))) return;
+ * </pre>
+ * The workgroup size comes in through specialization constants, so each
+ * shape is its own pipeline. A grid bigger than maxComputeWorkGroupCount is
+ * run as several dispatches, each told where it starts by groupOffset.
+ * gridSize is in invocations, so the last group along each side has to
+ * bounds check.
+ */
+public class ComputeKernel {
+	/**
+	 * groupOffset and gridSize, with their padding.
+	 */
+	public static final int RESERVED_PUSH_CONSTANT_SIZE = 32;
+
+	protected LogicalDevice logicalDevice;
+	protected String name;
+	protected ShaderModule shaderModule;
+	protected String entryPoint;
+	protected int dimensions;
+	protected int bufferCount;
+	protected int userPushConstantSize;
+	protected int sharedBytesPerInvocation;
+	protected int sharedBytesFixed;
+
+	protected DescriptorSetLayout setLayout;
+	protected PipelineLayout pipelineLayout;
+	protected String key;
+
+	/**
+	 * Keyed by the packed shape.
+	 */
+	protected ConcurrentHashMap<Long, PipelineDescription> descriptions = new ConcurrentHashMap<Long, PipelineDescription>();
+
+	/**
+	 * @param name Only for logging and profiling.
+	 * @param shaderModule Still belongs to the caller.
+	 * @param dimensions How many sides the grid has, 1 to 3.
+	 * @param bufferCount How many storage buffers, bound at set 0 bindings 0
+	 *        up.
+	 * @param userPushConstantSize Bytes of push constants after the reserved
+	 *        32, or 0.
+	 */
+	public ComputeKernel(LogicalDevice logicalDevice, String name, ShaderModule shaderModule, String entryPoint, int dimensions, int bufferCount, int userPushConstantSize) {
+		this(logicalDevice, name, shaderModule, entryPoint, dimensions, bufferCount, userPushConstantSize, 0, 0);
+	}
+
+	/**
+	 * @param sharedBytesPerInvocation Shared memory that grows with the
+	 *        workgroup, per invocation.
+	 * @param sharedBytesFixed Shared memory the kernel always needs.
+	 */
+	public ComputeKernel(LogicalDevice logicalDevice, String name, ShaderModule shaderModule, String entryPoint, int dimensions, int bufferCount, int userPushConstantSize, int sharedBytesPerInvocation, int sharedBytesFixed) {
+		if (dimensions < 1 || dimensions > 3) {
+			throw new AssertionError("Kernels have 1 to 3 dimensions, not " + dimensions);
+		}
+		if (userPushConstantSize % 4 != 0) {
+			throw new AssertionError("Push constants come in multiples of 4 bytes, got " + userPushConstantSize);
+		}
+
+		this.logicalDevice = logicalDevice;
+		this.name = name;
+		this.shaderModule = shaderModule;
+		this.entryPoint = entryPoint;
+		this.dimensions = dimensions;
+		this.bufferCount = bufferCount;
+		this.userPushConstantSize = userPushConstantSize;
+		this.sharedBytesPerInvocation = sharedBytesPerInvocation;
+		this.sharedBytesFixed = sharedBytesFixed;
+		this.key = Long.toHexString(shaderModule.getContentHash()) + ":" + entryPoint;
+
+		DescriptorSetLayout.Binding[] bindings = new DescriptorSetLayout.Binding[bufferCount];
+		for (int i = 0; i < bufferCount; i++) {
+			bindings[i] = new DescriptorSetLayout.Binding(i, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, 1, VK_SHADER_STAGE_COMPUTE_BIT);
+		}
+		this.setLayout = new DescriptorSetLayout(logicalDevice, bindings);
+		this.pipelineLayout = new PipelineLayout(
+			logicalDevice,
+			VK_SHADER_STAGE_COMPUTE_BIT,
+			ComputeKernel.RESERVED_PUSH_CONSTANT_SIZE + userPushConstantSize,
+			this.setLayout
+		);
+	}
+
+	/**
+	 * @return The description of this kernel's pipeline for a workgroup
+	 *         shape. The same object every time for the same shape.
+	 */
+	public PipelineDescription getDescription(int[] shape) {
+		long packed = shape[0] | ((long)shape[1] << 21) | ((long)shape[2] << 42);
+		PipelineDescription description = this.descriptions.get(packed);
+		if (description != null) return description;
+
+		return this.descriptions.computeIfAbsent(packed, k -> PipelineDescription.compute(this.name, this.pipelineLayout, this.shaderModule, this.entryPoint)
+			.specialize(0, shape[0])
+			.specialize(1, shape[1])
+			.specialize(2, shape[2])
+		);
+	}
+
+	/**
+	 * What tuned shapes are remembered under. The same SPIR-V and entry point
+	 * loaded twice is the same kernel.
+	 */
+	public String getKey() {
+		return this.key;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public int getDimensions() {
+		return this.dimensions;
+	}
+
+	public int getBufferCount() {
+		return this.bufferCount;
+	}
+
+	public int getUserPushConstantSize() {
+		return this.userPushConstantSize;
+	}
+
+	public int getSharedBytesPerInvocation() {
+		return this.sharedBytesPerInvocation;
+	}
+
+	public int getSharedBytesFixed() {
+		return this.sharedBytesFixed;
+	}
+
+	public DescriptorSetLayout getSetLayout() {
+		return this.setLayout;
+	}
+
+	public PipelineLayout getPipelineLayout() {
+		return this.pipelineLayout;
+	}
+
+	public String toString() {
+		return "ComputeKernel<" + this.name + ", dimensions: " + this.dimensions + ", buffers: " + this.bufferCount + ">";
+	}
+
+	/**
+	 * The pipelines themselves belong to the PipelineCompiler.
+	 */
+	public void dispose() {
+		this.pipelineLayout.dispose();
+		this.setLayout.dispose();
+	}
+}
@@ -0,0 +1,266 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDescriptorPoolCreateInfo;
+import org.lwjgl.vulkan.VkDescriptorPoolSize;
+import org.lwjgl.vulkan.VkDescriptorSetAllocateInfo;
+
+/**
+ * Hands out descriptor sets that live for one frame.
+ * <p>
+ * Every layout gets its own chain of pools per frame slot. Pools are sized
+ * for exactly that layout, so they never fragment and we always know when
+ * one is full without asking the driver. When a chain runs out, the next
+ * pool is twice as big (up to maxSetsPerPool), so a scene settles on a few
+ * big pools after its first frames. Sets are never freed one at a time.
+ * Instead, when the FrameScheduler recycles a slot, every pool in it is
+ * reset with one vkResetDescriptorPool and handed out again from the start.
+ * <p>
+ * Use DescriptorSetCache on top of this, so identical bindings share a set
+ * instead of each draw allocating and writing its own.
+ */
+public class DescriptorAllocator implements FrameScheduler.Recycler {
+	public static final int DEFAULT_INITIAL_SETS_PER_POOL = 16;
+	public static final int DEFAULT_MAX_SETS_PER_POOL = 1024;
+
+	/**
+	 * The pools for one layout in one frame slot.
+	 */
+	protected static class PoolChain {
+		protected DescriptorSetLayout layout;
+		protected ArrayList<Long> pools = new ArrayList<Long>();
+		protected ArrayList<Integer> capacities = new ArrayList<Integer>();
+
+		/**
+		 * The pool we're allocating from, and how many sets it has left.
+		 */
+		protected int current;
+		protected int remaining;
+
+		protected PoolChain(DescriptorSetLayout layout) {
+			this.layout = layout;
+		}
+	}
+
+	public static class Stats {
+		public final int layouts;
+		public final int pools;
+		public final long setsAllocated;
+		public final long poolResets;
+
+		protected Stats(int layouts, int pools, long setsAllocated, long poolResets) {
+			this.layouts = layouts;
+			this.pools = pools;
+			this.setsAllocated = setsAllocated;
+			this.poolResets = poolResets;
+		}
+
+		public String toString() {
+			return String.format("DescriptorAllocator.Stats<layouts: %d, pools: %d, sets allocated: %d, pool resets: %d>", this.layouts, this.pools, this.setsAllocated, this.poolResets);
+		}
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected FrameScheduler frameScheduler;
+	protected int initialSetsPerPool;
+	protected int maxSetsPerPool;
+
+	/**
+	 * Indexed by frame slot.
+	 */
+	protected ArrayList<HashMap<DescriptorSetLayout, PoolChain>> frames = new ArrayList<HashMap<DescriptorSetLayout, PoolChain>>();
+
+	/**
+	 * Layouts by their sorted bindings.
+	 */
+	protected HashMap<List<DescriptorSetLayout.Binding>, DescriptorSetLayout> layouts = new HashMap<List<DescriptorSetLayout.Binding>, DescriptorSetLayout>();
+
+	protected int poolCount;
+	protected long setsAllocated;
+	protected long poolResets;
+
+	public DescriptorAllocator(LogicalDevice logicalDevice, FrameScheduler frameScheduler) {
+		this(logicalDevice, frameScheduler, DescriptorAllocator.DEFAULT_INITIAL_SETS_PER_POOL, DescriptorAllocator.DEFAULT_MAX_SETS_PER_POOL);
+	}
+
+	/**
+	 * Registers itself with frameScheduler, so pools are reset as their
+	 * frames come back around.
+	 */
+	public DescriptorAllocator(LogicalDevice logicalDevice, FrameScheduler frameScheduler, int initialSetsPerPool, int maxSetsPerPool) {
+		this.logicalDevice = logicalDevice;
+		this.frameScheduler = frameScheduler;
+		this.initialSetsPerPool = initialSetsPerPool;
+		this.maxSetsPerPool = Math.max(initialSetsPerPool, maxSetsPerPool);
+
+		for (int i = 0; i < frameScheduler.getFramesInFlight(); i++) {
+			this.frames.add(new HashMap<DescriptorSetLayout, PoolChain>());
+		}
+		frameScheduler.addRecycler(this);
+	}
+
+	/**
+	 * @return The layout for these bindings, created (and checked against
+	 *         the device limits) the first time they're asked for.
+	 */
+	public synchronized DescriptorSetLayout getLayout(DescriptorSetLayout.Binding... bindings) {
+		DescriptorSetLayout.Binding[] sorted = bindings.clone();
+		Arrays.sort(sorted);
+		List<DescriptorSetLayout.Binding> key = Arrays.asList(sorted);
+
+		DescriptorSetLayout ret = this.layouts.get(key);
+		if (ret == null) {
+			ret = new DescriptorSetLayout(this.logicalDevice, sorted);
+			this.layouts.put(key, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return A new set of layout, valid until this frame slot comes back
+	 *         around. Its contents are undefined until written.
+	 */
+	public long allocate(DescriptorSetLayout layout) {
+		FrameScheduler.Frame frame = this.frameScheduler.getCurrentFrame();
+		if (frame == null) {
+			throw new AssertionError("Descriptor sets can only be allocated between beginFrame() and endFrame()");
+		}
+		return this.allocate(frame.getSlot(), layout);
+	}
+
+	protected synchronized long allocate(int slot, DescriptorSetLayout layout) {
+		PoolChain chain = this.frames.get(slot).computeIfAbsent(layout, k -> new PoolChain(k));
+		if (chain.remaining == 0) {
+			this.nextPool(chain);
+		}
+
+		try (MemoryStack stack = stackPush()) {
+			VkDescriptorSetAllocateInfo allocateInfo = VkDescriptorSetAllocateInfo.callocStack(stack);
+			allocateInfo.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO);
+			allocateInfo.descriptorPool(chain.pools.get(chain.current));
+			allocateInfo.pSetLayouts(stack.longs(layout.getLayout()));
+
+			LongBuffer pSet = stack.mallocLong(1);
+			int err = VulkanCall.ALLOCATE_DESCRIPTOR_SETS.invoke(() -> vkAllocateDescriptorSets(this.logicalDevice.getDevice(), allocateInfo, pSet));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to allocate descriptor set: " + Vulkan.translateVulkanResult(err));
+			}
+
+			chain.remaining--;
+			this.setsAllocated++;
+			return pSet.get(0);
+		}
+	}
+
+	/**
+	 * Moves chain on to its next pool, creating one if every pool is full.
+	 */
+	protected void nextPool(PoolChain chain) {
+		if (!chain.pools.isEmpty() && chain.current + 1 < chain.pools.size()) {
+			chain.current++;
+			chain.remaining = chain.capacities.get(chain.current);
+			return;
+		}
+
+		int sets = this.initialSetsPerPool;
+		if (!chain.capacities.isEmpty()) {
+			sets = Math.min(this.maxSetsPerPool, chain.capacities.get(chain.capacities.size() - 1) * 2);
+		}
+
+		chain.pools.add(this.createPool(chain.layout, sets));
+		chain.capacities.add(sets);
+		chain.current = chain.pools.size() - 1;
+		chain.remaining = sets;
+	}
+
+	protected long createPool(DescriptorSetLayout layout, int sets) {
+		try (MemoryStack stack = stackPush()) {
+			int types = 0;
+			for (int i = 0; i < DescriptorSetLayout.NUM_DESCRIPTOR_TYPES; i++) {
+				if (layout.getDescriptorCount(i) > 0) types++;
+			}
+
+			/**
+			 * A pool needs at least one size, even for a layout with no
+			 * bindings.
+			 */
+			VkDescriptorPoolSize.Buffer poolSizes = VkDescriptorPoolSize.callocStack(Math.max(1, types), stack);
+			if (types == 0) {
+				poolSizes.get(0).type(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER).descriptorCount(1);
+			}
+			int index = 0;
+			for (int i = 0; i < DescriptorSetLayout.NUM_DESCRIPTOR_TYPES; i++) {
+				int count = layout.getDescriptorCount(i);
+				if (count == 0) continue;
+				poolSizes.get(index++).type(i).descriptorCount(count * sets);
+			}
+
+			VkDescriptorPoolCreateInfo createInfo = VkDescriptorPoolCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO);
+			createInfo.maxSets(sets);
+			createInfo.pPoolSizes(poolSizes);
+
+			LongBuffer pPool = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_DESCRIPTOR_POOL.invoke(() -> vkCreateDescriptorPool(this.logicalDevice.getDevice(), createInfo, null, pPool));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create descriptor pool: " + Vulkan.translateVulkanResult(err));
+			}
+			this.poolCount++;
+			return pPool.get(0);
+		}
+	}
+
+	/**
+	 * Resets every pool the frame's slot used. The frame's fence has been
+	 * waited on, so none of its sets are in use any more.
+	 */
+	public synchronized void recycle(FrameScheduler.Frame frame) {
+		for (PoolChain chain: this.frames.get(frame.getSlot()).values()) {
+			for (int i = 0; i < chain.pools.size(); i++) {
+				long pool = chain.pools.get(i);
+				VulkanCall.RESET_DESCRIPTOR_POOL.invoke(() -> vkResetDescriptorPool(this.logicalDevice.getDevice(), pool, 0));
+				this.poolResets++;
+			}
+			chain.current = 0;
+			chain.remaining = chain.capacities.isEmpty() ? 0 : chain.capacities.get(0);
+		}
+	}
+
+	public synchronized Stats getStats() {
+		return new Stats(this.layouts.size(), this.poolCount, this.setsAllocated, this.poolResets);
+	}
+
+	public String toString() {
+		return "DescriptorAllocator<" + this.getStats() + ">";
+	}
+
+	/**
+	 * Destroys every pool and layout. Only once the GPU is idle.
+	 */
+	public synchronized void dispose() {
+		this.frameScheduler.removeRecycler(this);
+
+		for (HashMap<DescriptorSetLayout, PoolChain> chains: this.frames) {
+			for (PoolChain chain: chains.values()) {
+				for (long pool: chain.pools) {
+					VulkanCall.DESTROY_DESCRIPTOR_POOL.run(() -> vkDestroyDescriptorPool(this.logicalDevice.getDevice(), pool, null));
+				}
+			}
+			chains.clear();
+		}
+
+		for (DescriptorSetLayout layout: this.layouts.values()) {
+			layout.dispose();
+		}
+		this.layouts.clear();
+	}
+}
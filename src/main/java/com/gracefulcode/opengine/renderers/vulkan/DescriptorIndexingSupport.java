@@ -0,0 +1,102 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.lwjgl.vulkan.VkPhysicalDeviceDescriptorIndexingFeaturesEXT;
+import org.lwjgl.vulkan.VkPhysicalDeviceDescriptorIndexingPropertiesEXT;
+
+/**
+ * The parts of VK_EXT_descriptor_indexing that bindless descriptors need,
+ * copied out once.
+ * <p>
+ * Immutable, like PhysicalDeviceFeatures. A device without the extension
+ * (or an instance that can't ask about it) gets NONE, where everything is
+ * false and every limit is zero.
+ */
+public class DescriptorIndexingSupport {
+	public static final DescriptorIndexingSupport NONE = new DescriptorIndexingSupport();
+
+	public final boolean shaderSampledImageArrayNonUniformIndexing;
+	public final boolean shaderStorageBufferArrayNonUniformIndexing;
+	public final boolean descriptorBindingSampledImageUpdateAfterBind;
+	public final boolean descriptorBindingStorageBufferUpdateAfterBind;
+	public final boolean descriptorBindingUpdateUnusedWhilePending;
+	public final boolean descriptorBindingPartiallyBound;
+	public final boolean runtimeDescriptorArray;
+
+	public final int maxUpdateAfterBindDescriptorsInAllPools;
+	public final int maxDescriptorSetUpdateAfterBindSampledImages;
+	public final int maxDescriptorSetUpdateAfterBindSamplers;
+	public final int maxDescriptorSetUpdateAfterBindStorageBuffers;
+	public final int maxPerStageDescriptorUpdateAfterBindSampledImages;
+	public final int maxPerStageDescriptorUpdateAfterBindSamplers;
+	public final int maxPerStageDescriptorUpdateAfterBindStorageBuffers;
+	public final int maxPerStageUpdateAfterBindResources;
+
+	protected DescriptorIndexingSupport() {
+		this.shaderSampledImageArrayNonUniformIndexing = false;
+		this.shaderStorageBufferArrayNonUniformIndexing = false;
+		this.descriptorBindingSampledImageUpdateAfterBind = false;
+		this.descriptorBindingStorageBufferUpdateAfterBind = false;
+		this.descriptorBindingUpdateUnusedWhilePending = false;
+		this.descriptorBindingPartiallyBound = false;
+		this.runtimeDescriptorArray = false;
+
+		this.maxUpdateAfterBindDescriptorsInAllPools = 0;
+		this.maxDescriptorSetUpdateAfterBindSampledImages = 0;
+		this.maxDescriptorSetUpdateAfterBindSamplers = 0;
+		this.maxDescriptorSetUpdateAfterBindStorageBuffers = 0;
+		this.maxPerStageDescriptorUpdateAfterBindSampledImages = 0;
+		this.maxPerStageDescriptorUpdateAfterBindSamplers = 0;
+		this.maxPerStageDescriptorUpdateAfterBindStorageBuffers = 0;
+		this.maxPerStageUpdateAfterBindResources = 0;
+	}
+
+	public DescriptorIndexingSupport(VkPhysicalDeviceDescriptorIndexingFeaturesEXT features, VkPhysicalDeviceDescriptorIndexingPropertiesEXT properties) {
+		this.shaderSampledImageArrayNonUniformIndexing = features.shaderSampledImageArrayNonUniformIndexing();
+		this.shaderStorageBufferArrayNonUniformIndexing = features.shaderStorageBufferArrayNonUniformIndexing();
+		this.descriptorBindingSampledImageUpdateAfterBind = features.descriptorBindingSampledImageUpdateAfterBind();
+		this.descriptorBindingStorageBufferUpdateAfterBind = features.descriptorBindingStorageBufferUpdateAfterBind();
+		this.descriptorBindingUpdateUnusedWhilePending = features.descriptorBindingUpdateUnusedWhilePending();
+		this.descriptorBindingPartiallyBound = features.descriptorBindingPartiallyBound();
+		this.runtimeDescriptorArray = features.runtimeDescriptorArray();
+
+		this.maxUpdateAfterBindDescriptorsInAllPools = properties.maxUpdateAfterBindDescriptorsInAllPools();
+		this.maxDescriptorSetUpdateAfterBindSampledImages = properties.maxDescriptorSetUpdateAfterBindSampledImages();
+		this.maxDescriptorSetUpdateAfterBindSamplers = properties.maxDescriptorSetUpdateAfterBindSamplers();
+		this.maxDescriptorSetUpdateAfterBindStorageBuffers = properties.maxDescriptorSetUpdateAfterBindStorageBuffers();
+		this.maxPerStageDescriptorUpdateAfterBindSampledImages = properties.maxPerStageDescriptorUpdateAfterBindSampledImages();
+		this.maxPerStageDescriptorUpdateAfterBindSamplers = properties.maxPerStageDescriptorUpdateAfterBindSamplers();
+		this.maxPerStageDescriptorUpdateAfterBindStorageBuffers = properties.maxPerStageDescriptorUpdateAfterBindStorageBuffers();
+		this.maxPerStageUpdateAfterBindResources = properties.maxPerStageUpdateAfterBindResources();
+	}
+
+	/**
+	 * @return True if there's enough here for BindlessDescriptors: big
+	 *         partially bound arrays of textures and storage buffers that can
+	 *         be written while command buffers using other elements are in
+	 *         flight.
+	 */
+	public boolean isBindlessCapable() {
+		return this.descriptorBindingSampledImageUpdateAfterBind
+			&& this.descriptorBindingStorageBufferUpdateAfterBind
+			&& this.descriptorBindingUpdateUnusedWhilePending
+			&& this.descriptorBindingPartiallyBound;
+	}
+
+	/**
+	 * Writes the features BindlessDescriptors uses, where supported, into
+	 * features, for chaining onto VkDeviceCreateInfo.
+	 */
+	public void writeBindlessTo(VkPhysicalDeviceDescriptorIndexingFeaturesEXT features) {
+		features.shaderSampledImageArrayNonUniformIndexing(this.shaderSampledImageArrayNonUniformIndexing);
+		features.shaderStorageBufferArrayNonUniformIndexing(this.shaderStorageBufferArrayNonUniformIndexing);
+		features.descriptorBindingSampledImageUpdateAfterBind(this.descriptorBindingSampledImageUpdateAfterBind);
+		features.descriptorBindingStorageBufferUpdateAfterBind(this.descriptorBindingStorageBufferUpdateAfterBind);
+		features.descriptorBindingUpdateUnusedWhilePending(this.descriptorBindingUpdateUnusedWhilePending);
+		features.descriptorBindingPartiallyBound(this.descriptorBindingPartiallyBound);
+		features.runtimeDescriptorArray(this.runtimeDescriptorArray);
+	}
+
+	public String toString() {
+		return "DescriptorIndexingSupport<bindless: " + this.isBindlessCapable() + ", sampled images: " + this.maxDescriptorSetUpdateAfterBindSampledImages + ", storage buffers: " + this.maxDescriptorSetUpdateAfterBindStorageBuffers + ">";
+	}
+}
@@ -0,0 +1,334 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDescriptorBufferInfo;
+import org.lwjgl.vulkan.VkDescriptorImageInfo;
+import org.lwjgl.vulkan.VkWriteDescriptorSet;
+
+/**
+ * Descriptor sets looked up by what's bound in them.
+ * <p>
+ * Tens of thousands of draws usually come down to a few hundred distinct
+ * combinations of material, textures and buffers. Each draw fills in a
+ * Bindings and asks for a set. The first draw with those exact bindings in a
+ * frame allocates and writes one; everyone after that gets the same handle
+ * back with no Vulkan calls at all.
+ * <p>
+ * Sets come from a DescriptorAllocator, so they only last a frame. The cache
+ * for a frame slot is emptied when the FrameScheduler recycles it, right
+ * alongside the pools.
+ * <p>
+ * Lookups don't lock, and misses only lock inside the allocator. Two
+ * threads missing on the same bindings at once can both write a set; one
+ * of them wins and the other set goes unused until the pools are reset.
+ */
+public class DescriptorSetCache implements FrameScheduler.Recycler {
+	/**
+	 * Longs per write in Bindings.entries.
+	 */
+	protected static final int ENTRY_SIZE = 5;
+
+	/**
+	 * What to bind into one set: a layout and a list of writes.
+	 * <p>
+	 * Meant to be reused. Keep one per thread, clear() it before every draw,
+	 * and nothing is allocated on a cache hit. Bindings written in a different
+	 * order are a different key, so write them in the same order every time.
+	 */
+	public static class Bindings {
+		protected DescriptorSetLayout layout;
+
+		/**
+		 * For each write: binding and array element, buffer or image view,
+		 * sampler, offset or image layout, range.
+		 */
+		protected long[] entries;
+		protected int count;
+		protected int hash;
+
+		public Bindings(DescriptorSetLayout layout) {
+			this.layout = layout;
+			this.entries = new long[DescriptorSetCache.ENTRY_SIZE * 8];
+		}
+
+		protected Bindings(DescriptorSetLayout layout, long[] entries, int count, int hash) {
+			this.layout = layout;
+			this.entries = entries;
+			this.count = count;
+			this.hash = hash;
+		}
+
+		public Bindings clear() {
+			this.count = 0;
+			this.hash = 0;
+			return this;
+		}
+
+		public Bindings clear(DescriptorSetLayout layout) {
+			this.layout = layout;
+			return this.clear();
+		}
+
+		public Bindings buffer(int binding, DeviceBuffer buffer) {
+			return this.buffer(binding, 0, buffer.getBuffer(), 0, VK_WHOLE_SIZE);
+		}
+
+		public Bindings buffer(int binding, DeviceBuffer buffer, long offset, long range) {
+			return this.buffer(binding, 0, buffer.getBuffer(), offset, range);
+		}
+
+		/**
+		 * For uniform and storage buffers, dynamic or not.
+		 */
+		public Bindings buffer(int binding, int arrayElement, long buffer, long offset, long range) {
+			int descriptorType = this.check(binding, arrayElement);
+			switch (descriptorType) {
+				case VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER:
+				case VK_DESCRIPTOR_TYPE_STORAGE_BUFFER:
+				case VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC:
+				case VK_DESCRIPTOR_TYPE_STORAGE_BUFFER_DYNAMIC:
+					break;
+				default:
+					throw new AssertionError("Binding " + binding + " isn't a buffer, it's type " + descriptorType);
+			}
+			return this.add(binding, arrayElement, buffer, 0, offset, range);
+		}
+
+		public Bindings image(int binding, Image image, long sampler, int imageLayout) {
+			return this.image(binding, 0, image.getImageView(), sampler, imageLayout);
+		}
+
+		/**
+		 * For samplers, sampled and storage images, combined image samplers and
+		 * input attachments. Pass 0 for whichever of imageView and sampler the
+		 * descriptor type doesn't use.
+		 */
+		public Bindings image(int binding, int arrayElement, long imageView, long sampler, int imageLayout) {
+			int descriptorType = this.check(binding, arrayElement);
+			switch (descriptorType) {
+				case VK_DESCRIPTOR_TYPE_SAMPLER:
+				case VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER:
+				case VK_DESCRIPTOR_TYPE_SAMPLED_IMAGE:
+				case VK_DESCRIPTOR_TYPE_STORAGE_IMAGE:
+				case VK_DESCRIPTOR_TYPE_INPUT_ATTACHMENT:
+					break;
+				default:
+					throw new AssertionError("Binding " + binding + " isn't an image or sampler, it's type " + descriptorType);
+			}
+			return this.add(binding, arrayElement, imageView, sampler, imageLayout, 0);
+		}
+
+		protected int check(int binding, int arrayElement) {
+			DescriptorSetLayout.Binding b = this.layout.getBinding(binding);
+			if (b == null) {
+				throw new AssertionError("Layout has no binding " + binding);
+			}
+			if (arrayElement < 0 || arrayElement >= b.descriptorCount) {
+				throw new AssertionError("Binding " + binding + " has " + b.descriptorCount + " descriptors, can't write element " + arrayElement);
+			}
+			return b.descriptorType;
+		}
+
+		protected Bindings add(int binding, int arrayElement, long handle, long sampler, long offsetOrLayout, long range) {
+			int base = this.count * DescriptorSetCache.ENTRY_SIZE;
+			if (base + DescriptorSetCache.ENTRY_SIZE > this.entries.length) {
+				this.entries = Arrays.copyOf(this.entries, this.entries.length * 2);
+			}
+
+			this.entries[base] = ((long)binding << 32) | (arrayElement & 0xFFFFFFFFL);
+			this.entries[base + 1] = handle;
+			this.entries[base + 2] = sampler;
+			this.entries[base + 3] = offsetOrLayout;
+			this.entries[base + 4] = range;
+			this.count++;
+
+			int hash = this.hash;
+			for (int i = base; i < base + DescriptorSetCache.ENTRY_SIZE; i++) {
+				hash = hash * 31 + Long.hashCode(this.entries[i]);
+			}
+			this.hash = hash;
+			return this;
+		}
+
+		/**
+		 * @return An unchanging copy, safe to keep as a key.
+		 */
+		protected Bindings copy() {
+			return new Bindings(this.layout, Arrays.copyOf(this.entries, this.count * DescriptorSetCache.ENTRY_SIZE), this.count, this.hash);
+		}
+
+		public DescriptorSetLayout getLayout() {
+			return this.layout;
+		}
+
+		public int getWriteCount() {
+			return this.count;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Bindings)) return false;
+			Bindings other = (Bindings)o;
+			if (this.layout != other.layout || this.count != other.count || this.hash != other.hash) return false;
+
+			int length = this.count * DescriptorSetCache.ENTRY_SIZE;
+			for (int i = 0; i < length; i++) {
+				if (this.entries[i] != other.entries[i]) return false;
+			}
+			return true;
+		}
+
+		public int hashCode() {
+			return this.hash * 31 + System.identityHashCode(this.layout);
+		}
+
+		public String toString() {
+			return "Bindings<" + this.layout + ", writes: " + this.count + ">";
+		}
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected FrameScheduler frameScheduler;
+	protected DescriptorAllocator allocator;
+
+	/**
+	 * Indexed by frame slot.
+	 */
+	protected ArrayList<ConcurrentHashMap<Bindings, Long>> frames = new ArrayList<ConcurrentHashMap<Bindings, Long>>();
+
+	protected AtomicLong hits = new AtomicLong();
+	protected AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Registers itself with frameScheduler.
+	 */
+	public DescriptorSetCache(LogicalDevice logicalDevice, FrameScheduler frameScheduler, DescriptorAllocator allocator) {
+		this.logicalDevice = logicalDevice;
+		this.frameScheduler = frameScheduler;
+		this.allocator = allocator;
+
+		for (int i = 0; i < frameScheduler.getFramesInFlight(); i++) {
+			this.frames.add(new ConcurrentHashMap<Bindings, Long>());
+		}
+		frameScheduler.addRecycler(this);
+	}
+
+	/**
+	 * @return A set with exactly these bindings written, valid for the rest
+	 *         of this frame. bindings can be cleared and reused straight away.
+	 */
+	public long get(Bindings bindings) {
+		FrameScheduler.Frame frame = this.frameScheduler.getCurrentFrame();
+		if (frame == null) {
+			throw new AssertionError("Descriptor sets can only be looked up between beginFrame() and endFrame()");
+		}
+		ConcurrentHashMap<Bindings, Long> sets = this.frames.get(frame.getSlot());
+
+		Long ret = sets.get(bindings);
+		if (ret != null) {
+			this.hits.incrementAndGet();
+			return ret;
+		}
+
+		this.misses.incrementAndGet();
+		long set = this.allocator.allocate(frame.getSlot(), bindings.layout);
+		this.write(set, bindings);
+		ret = sets.putIfAbsent(bindings.copy(), set);
+		return ret != null ? ret : set;
+	}
+
+	/**
+	 * Writes every binding with one vkUpdateDescriptorSets.
+	 */
+	protected void write(long set, Bindings bindings) {
+		if (bindings.count == 0) return;
+
+		try (MemoryStack stack = stackPush()) {
+			VkWriteDescriptorSet.Buffer writes = VkWriteDescriptorSet.callocStack(bindings.count, stack);
+			for (int i = 0; i < bindings.count; i++) {
+				int base = i * DescriptorSetCache.ENTRY_SIZE;
+				int binding = (int)(bindings.entries[base] >>> 32);
+				int arrayElement = (int)bindings.entries[base];
+				int descriptorType = bindings.layout.getBinding(binding).descriptorType;
+
+				VkWriteDescriptorSet write = writes.get(i);
+				write.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET);
+				write.dstSet(set);
+				write.dstBinding(binding);
+				write.dstArrayElement(arrayElement);
+				write.descriptorType(descriptorType);
+
+				switch (descriptorType) {
+					case VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER:
+					case VK_DESCRIPTOR_TYPE_STORAGE_BUFFER:
+					case VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC:
+					case VK_DESCRIPTOR_TYPE_STORAGE_BUFFER_DYNAMIC:
+						VkDescriptorBufferInfo.Buffer bufferInfo = VkDescriptorBufferInfo.callocStack(1, stack);
+						bufferInfo.get(0)
+							.buffer(bindings.entries[base + 1])
+							.offset(bindings.entries[base + 3])
+							.range(bindings.entries[base + 4]);
+						write.pBufferInfo(bufferInfo);
+						break;
+					default:
+						VkDescriptorImageInfo.Buffer imageInfo = VkDescriptorImageInfo.callocStack(1, stack);
+						imageInfo.get(0)
+							.imageView(bindings.entries[base + 1])
+							.sampler(bindings.entries[base + 2])
+							.imageLayout((int)bindings.entries[base + 3]);
+						write.pImageInfo(imageInfo);
+						break;
+				}
+			}
+
+			VulkanCall.UPDATE_DESCRIPTOR_SETS.run(() -> vkUpdateDescriptorSets(this.logicalDevice.getDevice(), writes, null));
+		}
+	}
+
+	/**
+	 * Forgets the slot's sets. The allocator resets the pools they came from.
+	 */
+	public void recycle(FrameScheduler.Frame frame) {
+		this.frames.get(frame.getSlot()).clear();
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return The fraction of lookups that didn't need a new set.
+	 */
+	public double getHitRate() {
+		long hits = this.hits.get();
+		long total = hits + this.misses.get();
+		return total == 0 ? 0 : (double)hits / total;
+	}
+
+	public void resetStats() {
+		this.hits.set(0);
+		this.misses.set(0);
+	}
+
+	public String toString() {
+		return "DescriptorSetCache<hits: " + this.hits.get() + ", misses: " + this.misses.get() + ">";
+	}
+
+	public void dispose() {
+		this.frameScheduler.removeRecycler(this);
+		for (ConcurrentHashMap<Bindings, Long> sets: this.frames) {
+			sets.clear();
+		}
+	}
+}
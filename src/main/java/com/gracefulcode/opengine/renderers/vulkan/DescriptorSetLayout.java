@@ -0,0 +1,282 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.EXTDescriptorIndexing;
+import org.lwjgl.vulkan.VkDescriptorSetLayoutBinding;
+import org.lwjgl.vulkan.VkDescriptorSetLayoutBindingFlagsCreateInfoEXT;
+import org.lwjgl.vulkan.VkDescriptorSetLayoutCreateInfo;
+
+/**
+ * A VkDescriptorSetLayout, plus enough about its bindings to size pools
+ * and check writes against.
+ * <p>
+ * Layouts are checked against the device's descriptor limits when they're
+ * created, so a layout that can't work fails here with a message that says
+ * which limit, rather than later in the driver. The limits that add up over
+ * every set a pipeline uses are checked by validate(), which takes all of
+ * them at once.
+ * <p>
+ * Get layouts from DescriptorAllocator.getLayout(), which hands back the
+ * same one for the same bindings.
+ */
+public class DescriptorSetLayout {
+	/**
+	 * VK_DESCRIPTOR_TYPE_SAMPLER through VK_DESCRIPTOR_TYPE_INPUT_ATTACHMENT,
+	 * the core types.
+	 */
+	public static final int NUM_DESCRIPTOR_TYPES = VK_DESCRIPTOR_TYPE_INPUT_ATTACHMENT + 1;
+
+	public static class Binding implements Comparable<Binding> {
+		public final int binding;
+		public final int descriptorType;
+		public final int descriptorCount;
+		public final int stageFlags;
+
+		/**
+		 * @param descriptorType A core VK_DESCRIPTOR_TYPE_*.
+		 * @param stageFlags VK_SHADER_STAGE_* flags that can see it.
+		 */
+		public Binding(int binding, int descriptorType, int descriptorCount, int stageFlags) {
+			if (descriptorType < 0 || descriptorType >= DescriptorSetLayout.NUM_DESCRIPTOR_TYPES) {
+				throw new AssertionError("Unknown descriptor type " + descriptorType + " for binding " + binding);
+			}
+			this.binding = binding;
+			this.descriptorType = descriptorType;
+			this.descriptorCount = descriptorCount;
+			this.stageFlags = stageFlags;
+		}
+
+		public Binding(int binding, int descriptorType, int stageFlags) {
+			this(binding, descriptorType, 1, stageFlags);
+		}
+
+		public int compareTo(Binding other) {
+			return Integer.compare(this.binding, other.binding);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Binding)) return false;
+			Binding other = (Binding)o;
+			return this.binding == other.binding && this.descriptorType == other.descriptorType && this.descriptorCount == other.descriptorCount && this.stageFlags == other.stageFlags;
+		}
+
+		public int hashCode() {
+			return ((this.binding * 31 + this.descriptorType) * 31 + this.descriptorCount) * 31 + this.stageFlags;
+		}
+
+		public String toString() {
+			return "Binding<" + this.binding + ", type: " + this.descriptorType + ", count: " + this.descriptorCount + ", stages: " + this.stageFlags + ">";
+		}
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected long layout;
+
+	/**
+	 * Sorted by binding number.
+	 */
+	protected Binding[] bindings;
+
+	/**
+	 * How many descriptors of each type one set holds.
+	 */
+	protected int[] typeCounts = new int[DescriptorSetLayout.NUM_DESCRIPTOR_TYPES];
+
+	/**
+	 * Update after bind layouts have their own limits, so validate() leaves
+	 * them out of the totals.
+	 */
+	protected boolean isUpdateAfterBind;
+
+	public DescriptorSetLayout(LogicalDevice logicalDevice, Binding... bindings) {
+		this(logicalDevice, 0, null, bindings);
+	}
+
+	/**
+	 * @param flags VK_DESCRIPTOR_SET_LAYOUT_CREATE_* flags. Layouts with
+	 *        UPDATE_AFTER_BIND_POOL_BIT_EXT answer to the separate update after
+	 *        bind limits, which the caller has to check (see
+	 *        BindlessDescriptors).
+	 * @param bindingFlags VK_DESCRIPTOR_BINDING_*_BIT_EXT flags, one per
+	 *        binding in the order given, or null for none. Needs
+	 *        VK_EXT_descriptor_indexing.
+	 */
+	public DescriptorSetLayout(LogicalDevice logicalDevice, int flags, int[] bindingFlags, Binding... bindings) {
+		this(flags, bindings);
+		if (bindingFlags != null && bindingFlags.length != bindings.length) {
+			throw new AssertionError("Got " + bindingFlags.length + " binding flags for " + bindings.length + " bindings.");
+		}
+		this.logicalDevice = logicalDevice;
+		if (!this.isUpdateAfterBind) {
+			DescriptorSetLayout.validate(logicalDevice.getPhysicalDevice().getLimits(), this);
+		}
+
+		try (MemoryStack stack = stackPush()) {
+			/**
+			 * Flags were given in the caller's order, bindings are sorted, so
+			 * write both in the caller's order.
+			 */
+			VkDescriptorSetLayoutBinding.Buffer layoutBindings = VkDescriptorSetLayoutBinding.callocStack(bindings.length, stack);
+			for (int i = 0; i < bindings.length; i++) {
+				Binding binding = bindings[i];
+				layoutBindings.get(i)
+					.binding(binding.binding)
+					.descriptorType(binding.descriptorType)
+					.descriptorCount(binding.descriptorCount)
+					.stageFlags(binding.stageFlags);
+			}
+
+			VkDescriptorSetLayoutCreateInfo createInfo = VkDescriptorSetLayoutCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_LAYOUT_CREATE_INFO);
+			createInfo.flags(flags);
+			createInfo.pBindings(layoutBindings);
+
+			if (bindingFlags != null) {
+				VkDescriptorSetLayoutBindingFlagsCreateInfoEXT flagsInfo = VkDescriptorSetLayoutBindingFlagsCreateInfoEXT.callocStack(stack);
+				flagsInfo.sType(EXTDescriptorIndexing.VK_STRUCTURE_TYPE_DESCRIPTOR_SET_LAYOUT_BINDING_FLAGS_CREATE_INFO_EXT);
+				flagsInfo.pBindingFlags(stack.ints(bindingFlags));
+				createInfo.pNext(flagsInfo.address());
+			}
+
+			LongBuffer pLayout = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_DESCRIPTOR_SET_LAYOUT.invoke(() -> vkCreateDescriptorSetLayout(logicalDevice.getDevice(), createInfo, null, pLayout));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create descriptor set layout: " + Vulkan.translateVulkanResult(err));
+			}
+			this.layout = pLayout.get(0);
+		}
+	}
+
+	/**
+	 * Just the bookkeeping, without a device or a Vulkan layout.
+	 */
+	protected DescriptorSetLayout(int flags, Binding... bindings) {
+		this.bindings = bindings.clone();
+		Arrays.sort(this.bindings);
+
+		for (int i = 0; i < this.bindings.length; i++) {
+			if (i > 0 && this.bindings[i].binding == this.bindings[i - 1].binding) {
+				throw new AssertionError("Binding " + this.bindings[i].binding + " is declared twice.");
+			}
+			this.typeCounts[this.bindings[i].descriptorType] += this.bindings[i].descriptorCount;
+		}
+
+		this.isUpdateAfterBind = (flags & EXTDescriptorIndexing.VK_DESCRIPTOR_SET_LAYOUT_CREATE_UPDATE_AFTER_BIND_POOL_BIT_EXT) != 0;
+	}
+
+	/**
+	 * Checks that a pipeline using these sets together stays within the
+	 * device's descriptor limits: the number of sets, the per-pipeline total
+	 * of each kind of descriptor, and the per-stage totals.
+	 * <p>
+	 * Counts follow the spec: combined image samplers count as both samplers
+	 * and sampled images, texel buffers count as images, and dynamic buffers
+	 * count against both their own limit and the plain buffer limit. Update
+	 * after bind layouts only count towards the number of sets.
+	 *
+	 * @throws AssertionError Naming every limit that is exceeded.
+	 */
+	public static void validate(PhysicalDeviceLimits limits, DescriptorSetLayout... layouts) {
+		ArrayList<String> problems = new ArrayList<String>();
+		if (layouts.length > limits.maxBoundDescriptorSets) {
+			problems.add(layouts.length + " sets, maxBoundDescriptorSets is " + limits.maxBoundDescriptorSets);
+		}
+
+		int[] total = new int[DescriptorSetLayout.NUM_DESCRIPTOR_TYPES];
+		for (DescriptorSetLayout layout: layouts) {
+			if (layout.isUpdateAfterBind) continue;
+			for (int i = 0; i < total.length; i++) {
+				total[i] += layout.typeCounts[i];
+			}
+		}
+
+		DescriptorSetLayout.check(problems, "maxDescriptorSetSamplers", total[VK_DESCRIPTOR_TYPE_SAMPLER] + total[VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER], limits.maxDescriptorSetSamplers);
+		DescriptorSetLayout.check(problems, "maxDescriptorSetSampledImages", total[VK_DESCRIPTOR_TYPE_SAMPLED_IMAGE] + total[VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER] + total[VK_DESCRIPTOR_TYPE_UNIFORM_TEXEL_BUFFER], limits.maxDescriptorSetSampledImages);
+		DescriptorSetLayout.check(problems, "maxDescriptorSetStorageImages", total[VK_DESCRIPTOR_TYPE_STORAGE_IMAGE] + total[VK_DESCRIPTOR_TYPE_STORAGE_TEXEL_BUFFER], limits.maxDescriptorSetStorageImages);
+		DescriptorSetLayout.check(problems, "maxDescriptorSetUniformBuffers", total[VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER] + total[VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC], limits.maxDescriptorSetUniformBuffers);
+		DescriptorSetLayout.check(problems, "maxDescriptorSetUniformBuffersDynamic", total[VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC], limits.maxDescriptorSetUniformBuffersDynamic);
+		DescriptorSetLayout.check(problems, "maxDescriptorSetStorageBuffers", total[VK_DESCRIPTOR_TYPE_STORAGE_BUFFER] + total[VK_DESCRIPTOR_TYPE_STORAGE_BUFFER_DYNAMIC], limits.maxDescriptorSetStorageBuffers);
+		DescriptorSetLayout.check(problems, "maxDescriptorSetStorageBuffersDynamic", total[VK_DESCRIPTOR_TYPE_STORAGE_BUFFER_DYNAMIC], limits.maxDescriptorSetStorageBuffersDynamic);
+		DescriptorSetLayout.check(problems, "maxDescriptorSetInputAttachments", total[VK_DESCRIPTOR_TYPE_INPUT_ATTACHMENT], limits.maxDescriptorSetInputAttachments);
+
+		/**
+		 * Per stage, one stage bit at a time.
+		 */
+		for (int stage = 1; stage <= VK_SHADER_STAGE_COMPUTE_BIT; stage <<= 1) {
+			int[] stageTotal = new int[DescriptorSetLayout.NUM_DESCRIPTOR_TYPES];
+			for (DescriptorSetLayout layout: layouts) {
+				if (layout.isUpdateAfterBind) continue;
+				for (Binding binding: layout.bindings) {
+					if ((binding.stageFlags & stage) != 0) stageTotal[binding.descriptorType] += binding.descriptorCount;
+				}
+			}
+
+			String prefix = "stage " + stage + ": ";
+			int samplers = stageTotal[VK_DESCRIPTOR_TYPE_SAMPLER] + stageTotal[VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER];
+			int sampledImages = stageTotal[VK_DESCRIPTOR_TYPE_SAMPLED_IMAGE] + stageTotal[VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER] + stageTotal[VK_DESCRIPTOR_TYPE_UNIFORM_TEXEL_BUFFER];
+			int storageImages = stageTotal[VK_DESCRIPTOR_TYPE_STORAGE_IMAGE] + stageTotal[VK_DESCRIPTOR_TYPE_STORAGE_TEXEL_BUFFER];
+			int uniformBuffers = stageTotal[VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER] + stageTotal[VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC];
+			int storageBuffers = stageTotal[VK_DESCRIPTOR_TYPE_STORAGE_BUFFER] + stageTotal[VK_DESCRIPTOR_TYPE_STORAGE_BUFFER_DYNAMIC];
+			int inputAttachments = stageTotal[VK_DESCRIPTOR_TYPE_INPUT_ATTACHMENT];
+
+			DescriptorSetLayout.check(problems, prefix + "maxPerStageDescriptorSamplers", samplers, limits.maxPerStageDescriptorSamplers);
+			DescriptorSetLayout.check(problems, prefix + "maxPerStageDescriptorSampledImages", sampledImages, limits.maxPerStageDescriptorSampledImages);
+			DescriptorSetLayout.check(problems, prefix + "maxPerStageDescriptorStorageImages", storageImages, limits.maxPerStageDescriptorStorageImages);
+			DescriptorSetLayout.check(problems, prefix + "maxPerStageDescriptorUniformBuffers", uniformBuffers, limits.maxPerStageDescriptorUniformBuffers);
+			DescriptorSetLayout.check(problems, prefix + "maxPerStageDescriptorStorageBuffers", storageBuffers, limits.maxPerStageDescriptorStorageBuffers);
+			DescriptorSetLayout.check(problems, prefix + "maxPerStageDescriptorInputAttachments", inputAttachments, limits.maxPerStageDescriptorInputAttachments);
+			DescriptorSetLayout.check(problems, prefix + "maxPerStageResources", sampledImages + storageImages + uniformBuffers + storageBuffers + inputAttachments, limits.maxPerStageResources);
+		}
+
+		if (!problems.isEmpty()) {
+			throw new AssertionError("Descriptor limits exceeded: " + String.join(", ", problems));
+		}
+	}
+
+	protected static void check(ArrayList<String> problems, String limitName, int count, int limit) {
+		if (count > limit) {
+			problems.add(count + " descriptors, " + limitName + " is " + limit);
+		}
+	}
+
+	public long getLayout() {
+		return this.layout;
+	}
+
+	/**
+	 * @return The binding with that number, or null.
+	 */
+	public Binding getBinding(int binding) {
+		for (Binding b: this.bindings) {
+			if (b.binding == binding) return b;
+		}
+		return null;
+	}
+
+	public Binding[] getBindings() {
+		return this.bindings.clone();
+	}
+
+	/**
+	 * @return How many descriptors of descriptorType one set of this layout
+	 *         holds.
+	 */
+	public int getDescriptorCount(int descriptorType) {
+		return this.typeCounts[descriptorType];
+	}
+
+	public String toString() {
+		return "DescriptorSetLayout<" + Arrays.toString(this.bindings) + ">";
+	}
+
+	public void dispose() {
+		VulkanCall.DESTROY_DESCRIPTOR_SET_LAYOUT.run(() -> vkDestroyDescriptorSetLayout(this.logicalDevice.getDevice(), this.layout, null));
+	}
+}
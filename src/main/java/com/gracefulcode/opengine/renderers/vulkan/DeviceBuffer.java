@@ -0,0 +1,132 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkBufferCreateInfo;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+
+/**
+ * A VkBuffer and the memory behind it.
+ * <p>
+ * If the logical device uses more than one queue family, buffers are created
+ * with concurrent sharing between all of them. That way a buffer filled on
+ * the transfer queue can be read on the graphics queue without an ownership
+ * transfer.
+ */
+public class DeviceBuffer {
+	protected LogicalDevice logicalDevice;
+	protected long buffer;
+	protected long size;
+	protected int usage;
+	protected MemoryAllocation allocation;
+
+	/**
+	 * @param logicalDevice The device that owns the buffer.
+	 * @param size How big, in bytes.
+	 * @param usage VK_BUFFER_USAGE_* flags.
+	 * @param requiredMemoryFlags VK_MEMORY_PROPERTY_* flags we must have.
+	 * @param preferredMemoryFlags VK_MEMORY_PROPERTY_* flags we'd like.
+	 */
+	public DeviceBuffer(LogicalDevice logicalDevice, long size, int usage, int requiredMemoryFlags, int preferredMemoryFlags) {
+		this.logicalDevice = logicalDevice;
+		this.size = size;
+		this.usage = usage;
+
+		int[] queueFamilyIndices = logicalDevice.getQueueFamilyIndices();
+
+		try (MemoryStack stack = stackPush()) {
+			VkBufferCreateInfo createInfo = VkBufferCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO);
+			createInfo.size(size);
+			createInfo.usage(usage);
+
+			if (queueFamilyIndices.length > 1) {
+				createInfo.sharingMode(VK_SHARING_MODE_CONCURRENT);
+				createInfo.pQueueFamilyIndices(stack.ints(queueFamilyIndices));
+			} else {
+				createInfo.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+			}
+
+			LongBuffer pBuffer = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_BUFFER.invoke(() -> vkCreateBuffer(logicalDevice.getDevice(), createInfo, null, pBuffer));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create buffer: " + Vulkan.translateVulkanResult(err));
+			}
+			this.buffer = pBuffer.get(0);
+
+			VkMemoryRequirements memoryRequirements = VkMemoryRequirements.mallocStack(stack);
+			VulkanCall.GET_BUFFER_MEMORY_REQUIREMENTS.run(() -> vkGetBufferMemoryRequirements(logicalDevice.getDevice(), this.buffer, memoryRequirements));
+			this.allocation = logicalDevice.getMemoryAllocator().allocate(memoryRequirements, requiredMemoryFlags, preferredMemoryFlags, true);
+		}
+
+		int err = VulkanCall.BIND_BUFFER_MEMORY.invoke(() -> vkBindBufferMemory(logicalDevice.getDevice(), this.buffer, this.allocation.getMemory(), this.allocation.getOffset()));
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to bind buffer memory: " + Vulkan.translateVulkanResult(err));
+		}
+	}
+
+	/**
+	 * @return The VkBuffer handle.
+	 */
+	public long getBuffer() {
+		return this.buffer;
+	}
+
+	public long getSize() {
+		return this.size;
+	}
+
+	public int getUsage() {
+		return this.usage;
+	}
+
+	public MemoryAllocation getAllocation() {
+		return this.allocation;
+	}
+
+	/**
+	 * Maps the buffer. It stays mapped for as long as the buffer lives, so
+	 * this is cheap to call again.
+	 *
+	 * @return The address of the start of the buffer.
+	 */
+	public long map() {
+		return this.logicalDevice.getMemoryAllocator().map(this.allocation);
+	}
+
+	/**
+	 * @return The whole buffer as a ByteBuffer over its mapped memory.
+	 */
+	public ByteBuffer mapByteBuffer() {
+		return memByteBuffer(this.map(), (int)this.size);
+	}
+
+	/**
+	 * Makes CPU writes visible to the GPU. Does nothing on coherent memory.
+	 */
+	public void flush(long offset, long size) {
+		this.logicalDevice.getMemoryAllocator().flush(this.allocation, offset, size);
+	}
+
+	/**
+	 * Makes GPU writes visible to the CPU. Does nothing on coherent memory.
+	 */
+	public void invalidate(long offset, long size) {
+		this.logicalDevice.getMemoryAllocator().invalidate(this.allocation, offset, size);
+	}
+
+	public String toString() {
+		return "DeviceBuffer<size: " + this.size + ", " + this.allocation + ">";
+	}
+
+	public void dispose() {
+		VulkanCall.DESTROY_BUFFER.run(() -> vkDestroyBuffer(this.logicalDevice.getDevice(), this.buffer, null));
+		this.logicalDevice.getMemoryAllocator().free(this.allocation);
+	}
+}
@@ -0,0 +1,225 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+
+import com.gracefulcode.opengine.core.Ternary;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.EXTDescriptorIndexing;
+import org.lwjgl.vulkan.KHRMaintenance3;
+import org.lwjgl.vulkan.VkPhysicalDeviceFeatures;
+
+/**
+ * What the application needs (and would like) from a device: extensions and
+ * features.
+ * <p>
+ * Describe it once, then negotiate() against each candidate GPU. Extensions
+ * are CapabilityNames IDs in BitSets and features are
+ * PhysicalDeviceFeatures masks, so checking a device is a few bitwise
+ * operations. isSatisfiedBy() doesn't allocate at all, which makes it cheap
+ * enough to use as a DeviceScorer requirement.
+ */
+public class DeviceCapabilities {
+	/**
+	 * The result of negotiating with one device.
+	 */
+	public static class Negotiation {
+		protected PhysicalDevice physicalDevice;
+		protected BitSet enabledExtensions;
+		protected BitSet missingExtensions;
+		protected long enabledFeatures;
+		protected long missingFeatures;
+
+		protected Negotiation(PhysicalDevice physicalDevice, BitSet enabledExtensions, BitSet missingExtensions, long enabledFeatures, long missingFeatures) {
+			this.physicalDevice = physicalDevice;
+			this.enabledExtensions = enabledExtensions;
+			this.missingExtensions = missingExtensions;
+			this.enabledFeatures = enabledFeatures;
+			this.missingFeatures = missingFeatures;
+		}
+
+		public PhysicalDevice getPhysicalDevice() {
+			return this.physicalDevice;
+		}
+
+		/**
+		 * @return True if the device has everything that was required.
+		 */
+		public boolean isSatisfied() {
+			return this.missingExtensions.isEmpty() && this.missingFeatures == 0;
+		}
+
+		public List<String> getMissingExtensions() {
+			return DeviceCapabilities.names(this.missingExtensions);
+		}
+
+		public PhysicalDeviceFeatures getMissingFeatures() {
+			return new PhysicalDeviceFeatures(this.missingFeatures);
+		}
+
+		public List<String> getEnabledExtensions() {
+			return DeviceCapabilities.names(this.enabledExtensions);
+		}
+
+		/**
+		 * @return A locked configuration with the negotiated extensions
+		 *         turned on, ready for LogicalDevice.
+		 */
+		public ExtensionConfiguration getExtensionConfiguration() {
+			ExtensionConfiguration ret = this.physicalDevice.newExtensionConfiguration();
+			for (int id = this.enabledExtensions.nextSetBit(0); id >= 0; id = this.enabledExtensions.nextSetBit(id + 1)) {
+				ret.set(id, Ternary.YES);
+			}
+			return ret;
+		}
+
+		/**
+		 * @return Required features plus whichever preferred ones the device
+		 *         has.
+		 */
+		public PhysicalDeviceFeatures getEnabledFeatures() {
+			return new PhysicalDeviceFeatures(this.enabledFeatures);
+		}
+
+		public String toString() {
+			if (this.isSatisfied()) {
+				return "Negotiation<" + this.physicalDevice.getDeviceName() + ", extensions: " + this.getEnabledExtensions() + ">";
+			}
+			return "Negotiation<" + this.physicalDevice.getDeviceName() + ", missing extensions: " + this.getMissingExtensions() + ", missing features: " + this.getMissingFeatures().getNames() + ">";
+		}
+	}
+
+	protected BitSet requiredExtensions = new BitSet();
+	protected BitSet preferredExtensions = new BitSet();
+	protected BitSet rejectedExtensions = new BitSet();
+	protected long requiredFeatures;
+	protected long preferredFeatures;
+
+	public synchronized DeviceCapabilities requireExtension(String extensionName) {
+		int id = CapabilityNames.intern(extensionName);
+		if (this.rejectedExtensions.get(id)) {
+			throw new AssertionError(extensionName + " is both required and not desired. Cannot resolve.");
+		}
+		this.requiredExtensions.set(id);
+		return this;
+	}
+
+	/**
+	 * Turns extensionName on for devices that have it.
+	 */
+	public synchronized DeviceCapabilities preferExtension(String extensionName) {
+		this.preferredExtensions.set(CapabilityNames.intern(extensionName));
+		return this;
+	}
+
+	/**
+	 * Makes sure extensionName is never turned on, even if preferred.
+	 */
+	public synchronized DeviceCapabilities rejectExtension(String extensionName) {
+		int id = CapabilityNames.intern(extensionName);
+		if (this.requiredExtensions.get(id)) {
+			throw new AssertionError(extensionName + " is both required and not desired. Cannot resolve.");
+		}
+		this.rejectedExtensions.set(id);
+		return this;
+	}
+
+	/**
+	 * Requires every feature that is turned on in features.
+	 */
+	public synchronized DeviceCapabilities requireFeatures(PhysicalDeviceFeatures features) {
+		this.requiredFeatures |= features.getMask();
+		return this;
+	}
+
+	/**
+	 * Turns on every feature that is on in features, for devices that have
+	 * them.
+	 */
+	public synchronized DeviceCapabilities preferFeatures(PhysicalDeviceFeatures features) {
+		this.preferredFeatures |= features.getMask();
+		return this;
+	}
+
+	/**
+	 * Asks for what BindlessDescriptors needs, where the device has it:
+	 * VK_EXT_descriptor_indexing (and VK_KHR_maintenance3, which it depends
+	 * on) plus dynamic indexing of sampled image and storage buffer arrays.
+	 * Devices without them still pass, and BindlessDescriptors falls back to
+	 * classic descriptor sets on them.
+	 */
+	public synchronized DeviceCapabilities preferBindless() {
+		this.preferExtension(EXTDescriptorIndexing.VK_EXT_DESCRIPTOR_INDEXING_EXTENSION_NAME);
+		this.preferExtension(KHRMaintenance3.VK_KHR_MAINTENANCE3_EXTENSION_NAME);
+
+		try (MemoryStack stack = stackPush()) {
+			VkPhysicalDeviceFeatures features = VkPhysicalDeviceFeatures.callocStack(stack);
+			features.shaderSampledImageArrayDynamicIndexing(true);
+			features.shaderStorageBufferArrayDynamicIndexing(true);
+			this.preferFeatures(new PhysicalDeviceFeatures(features));
+		}
+		return this;
+	}
+
+	/**
+	 * Asks for what IndirectDrawBatcher needs to go GPU-driven: many draws
+	 * per indirect call, firstInstance in indirect commands, and full 32-bit
+	 * indices. Devices without them still pass, and the batcher draws
+	 * directly from the CPU on them.
+	 */
+	public synchronized DeviceCapabilities preferIndirectDraws() {
+		try (MemoryStack stack = stackPush()) {
+			VkPhysicalDeviceFeatures features = VkPhysicalDeviceFeatures.callocStack(stack);
+			features.multiDrawIndirect(true);
+			features.drawIndirectFirstInstance(true);
+			features.fullDrawIndexUint32(true);
+			this.preferFeatures(new PhysicalDeviceFeatures(features));
+		}
+		return this;
+	}
+
+	/**
+	 * @return True if physicalDevice has every required extension and
+	 *         feature. Doesn't allocate.
+	 */
+	public synchronized boolean isSatisfiedBy(PhysicalDevice physicalDevice) {
+		if ((this.requiredFeatures & ~physicalDevice.getFeatures().getMask()) != 0) return false;
+
+		BitSet supported = physicalDevice.getExtensionIds();
+		for (int id = this.requiredExtensions.nextSetBit(0); id >= 0; id = this.requiredExtensions.nextSetBit(id + 1)) {
+			if (!supported.get(id)) return false;
+		}
+		return true;
+	}
+
+	public synchronized Negotiation negotiate(PhysicalDevice physicalDevice) {
+		BitSet supported = physicalDevice.getExtensionIds();
+		long deviceFeatures = physicalDevice.getFeatures().getMask();
+
+		BitSet missing = (BitSet)this.requiredExtensions.clone();
+		missing.andNot(supported);
+
+		BitSet enabled = (BitSet)this.preferredExtensions.clone();
+		enabled.and(supported);
+		enabled.andNot(this.rejectedExtensions);
+		enabled.or(this.requiredExtensions);
+		enabled.and(supported);
+
+		long missingFeatures = this.requiredFeatures & ~deviceFeatures;
+		long enabledFeatures = (this.requiredFeatures | this.preferredFeatures) & deviceFeatures;
+
+		return new Negotiation(physicalDevice, enabled, missing, enabledFeatures, missingFeatures);
+	}
+
+	protected static List<String> names(BitSet ids) {
+		ArrayList<String> ret = new ArrayList<String>();
+		for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+			ret.add(CapabilityNames.name(id));
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,91 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.util.EnumSet;
+
+import org.lwjgl.vulkan.VkQueue;
+import org.lwjgl.vulkan.VkSubmitInfo;
+
+/**
+ * A queue we got from a LogicalDevice.
+ * <p>
+ * Vulkan requires that only one thread at a time submits to a queue. When
+ * the device doesn't have enough queues and two roles end up sharing one,
+ * they share the same DeviceQueue object, so locking on it is enough.
+ */
+public class DeviceQueue {
+	public enum Role {
+		GRAPHICS,
+		COMPUTE,
+		TRANSFER
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected VkQueue vkQueue;
+	protected PhysicalDevice.Queue family;
+	protected int queueIndex;
+	protected EnumSet<Role> roles = EnumSet.noneOf(Role.class);
+
+	protected DeviceQueue(LogicalDevice logicalDevice, VkQueue vkQueue, PhysicalDevice.Queue family, int queueIndex) {
+		this.logicalDevice = logicalDevice;
+		this.vkQueue = vkQueue;
+		this.family = family;
+		this.queueIndex = queueIndex;
+	}
+
+	public LogicalDevice getLogicalDevice() {
+		return this.logicalDevice;
+	}
+
+	public VkQueue getQueue() {
+		return this.vkQueue;
+	}
+
+	public PhysicalDevice.Queue getFamily() {
+		return this.family;
+	}
+
+	public int getFamilyIndex() {
+		return this.family.getIndex();
+	}
+
+	public int getQueueIndex() {
+		return this.queueIndex;
+	}
+
+	public boolean hasRole(Role role) {
+		return this.roles.contains(role);
+	}
+
+	/**
+	 * Submits work to this queue.
+	 *
+	 * @param submitInfo One or more batches.
+	 * @param fence Signalled when it's all done, or VK_NULL_HANDLE.
+	 */
+	public synchronized void submit(VkSubmitInfo.Buffer submitInfo, long fence) {
+		int err = VulkanCall.QUEUE_SUBMIT.invoke(() -> vkQueueSubmit(this.vkQueue, submitInfo, fence));
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to submit to " + this + ": " + Vulkan.translateVulkanResult(err));
+		}
+	}
+
+	public synchronized void submit(VkSubmitInfo submitInfo, long fence) {
+		int err = VulkanCall.QUEUE_SUBMIT.invoke(() -> vkQueueSubmit(this.vkQueue, submitInfo, fence));
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to submit to " + this + ": " + Vulkan.translateVulkanResult(err));
+		}
+	}
+
+	public synchronized void waitIdle() {
+		int err = VulkanCall.QUEUE_WAIT_IDLE.invoke(() -> vkQueueWaitIdle(this.vkQueue));
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to wait for " + this + ": " + Vulkan.translateVulkanResult(err));
+		}
+	}
+
+	public String toString() {
+		return "DeviceQueue<family: " + this.family.getIndex() + ", index: " + this.queueIndex + ", roles: " + this.roles + ">";
+	}
+}
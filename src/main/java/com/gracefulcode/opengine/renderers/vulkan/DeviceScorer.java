@@ -0,0 +1,232 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Decides which GPU we should be using.
+ * <p>
+ * You describe what you need and what you'd like rather than writing a
+ * comparator. Requirements knock devices out entirely ("must have a compute
+ * queue", "must support multiDrawIndirect"). Preferences each give a value
+ * per device, which is scaled against the best of the eligible devices so
+ * that every preference lands between zero and one, and then weighted.
+ * Highest total wins.
+ * <p>
+ * Each Score remembers how it was put together, so when a machine picks the
+ * "wrong" GPU you can print the ranking and see why.
+ * <p>
+ * The ranking is cached until the requirements, the preferences or the list
+ * of devices change.
+ */
+public class DeviceScorer {
+	public static class Requirement {
+		protected String name;
+		protected Predicate<PhysicalDevice> test;
+
+		public Requirement(String name, Predicate<PhysicalDevice> test) {
+			this.name = name;
+			this.test = test;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+	}
+
+	public static class Preference {
+		protected String name;
+		protected double weight;
+		protected ToDoubleFunction<PhysicalDevice> value;
+
+		/**
+		 * @param name Shows up in explanations.
+		 * @param weight How much this matters relative to other preferences.
+		 * @param value Bigger is better. Should not be negative.
+		 */
+		public Preference(String name, double weight, ToDoubleFunction<PhysicalDevice> value) {
+			this.name = name;
+			this.weight = weight;
+			this.value = value;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public double getWeight() {
+			return this.weight;
+		}
+	}
+
+	/**
+	 * How one device did.
+	 */
+	public static class Score {
+		protected PhysicalDevice physicalDevice;
+		protected boolean isEligible = true;
+		protected double total;
+		protected ArrayList<String> explanation = new ArrayList<String>();
+
+		protected Score(PhysicalDevice physicalDevice) {
+			this.physicalDevice = physicalDevice;
+		}
+
+		public PhysicalDevice getPhysicalDevice() {
+			return this.physicalDevice;
+		}
+
+		/**
+		 * @return False if any requirement failed.
+		 */
+		public boolean isEligible() {
+			return this.isEligible;
+		}
+
+		public double getTotal() {
+			return this.total;
+		}
+
+		/**
+		 * @return One line per requirement failed and per preference scored.
+		 */
+		public List<String> getExplanation() {
+			return Collections.unmodifiableList(this.explanation);
+		}
+
+		public String toString() {
+			StringBuilder ret = new StringBuilder();
+			ret.append(this.physicalDevice).append(": ");
+			if (this.isEligible) {
+				ret.append(String.format("%.3f", this.total));
+			} else {
+				ret.append("ineligible");
+			}
+			for (String line: this.explanation) {
+				ret.append("\n\t").append(line);
+			}
+			return ret.toString();
+		}
+	}
+
+	protected ArrayList<Requirement> requirements = new ArrayList<Requirement>();
+	protected ArrayList<Preference> preferences = new ArrayList<Preference>();
+
+	protected List<PhysicalDevice> rankedDevices;
+	protected List<Score> ranking;
+
+	public synchronized DeviceScorer require(String name, Predicate<PhysicalDevice> test) {
+		this.requirements.add(new Requirement(name, test));
+		this.ranking = null;
+		return this;
+	}
+
+	/**
+	 * Requires a queue family with all of the given VK_QUEUE_*_BIT flags.
+	 */
+	public DeviceScorer requireQueue(String name, int queueFlags) {
+		return this.require(name, physicalDevice -> physicalDevice.hasQueue(queueFlags));
+	}
+
+	public DeviceScorer requireFeature(String name, Predicate<PhysicalDeviceFeatures> test) {
+		return this.require(name, physicalDevice -> test.test(physicalDevice.getFeatures()));
+	}
+
+	/**
+	 * Requires every extension and feature that capabilities requires.
+	 */
+	public DeviceScorer requireCapabilities(String name, DeviceCapabilities capabilities) {
+		return this.require(name, capabilities::isSatisfiedBy);
+	}
+
+	public synchronized DeviceScorer prefer(String name, double weight, ToDoubleFunction<PhysicalDevice> value) {
+		this.preferences.add(new Preference(name, weight, value));
+		this.ranking = null;
+		return this;
+	}
+
+	public DeviceScorer preferIf(String name, double weight, Predicate<PhysicalDevice> test) {
+		return this.prefer(name, weight, physicalDevice -> test.test(physicalDevice) ? 1 : 0);
+	}
+
+	public DeviceScorer preferDiscreteGpu(double weight) {
+		return this.preferIf("discrete GPU", weight, PhysicalDevice::isDiscreteGpu);
+	}
+
+	public DeviceScorer preferLimit(String name, double weight, ToDoubleFunction<PhysicalDeviceLimits> value) {
+		return this.prefer(name, weight, physicalDevice -> value.applyAsDouble(physicalDevice.getLimits()));
+	}
+
+	/**
+	 * Scores every device.
+	 *
+	 * @param physicalDevices The candidates.
+	 * @return Eligible devices best first, then ineligible devices, each in
+	 *         the order they were given when tied.
+	 */
+	public synchronized List<Score> rank(List<PhysicalDevice> physicalDevices) {
+		if (this.ranking != null && this.rankedDevices.equals(physicalDevices)) {
+			return this.ranking;
+		}
+
+		ArrayList<Score> scores = new ArrayList<Score>();
+		for (PhysicalDevice physicalDevice: physicalDevices) {
+			Score score = new Score(physicalDevice);
+			for (Requirement requirement: this.requirements) {
+				if (!requirement.test.test(physicalDevice)) {
+					score.isEligible = false;
+					score.explanation.add("missing requirement: " + requirement.name);
+				}
+			}
+			scores.add(score);
+		}
+
+		double[] values = new double[scores.size()];
+		for (Preference preference: this.preferences) {
+			double max = 0;
+			for (int i = 0; i < scores.size(); i++) {
+				if (!scores.get(i).isEligible) continue;
+
+				values[i] = preference.value.applyAsDouble(scores.get(i).physicalDevice);
+				max = Math.max(max, values[i]);
+			}
+
+			for (int i = 0; i < scores.size(); i++) {
+				Score score = scores.get(i);
+				if (!score.isEligible) continue;
+
+				double normalized = max > 0 ? values[i] / max : 0;
+				double contribution = normalized * preference.weight;
+				score.total += contribution;
+				score.explanation.add(String.format("%s: %s (%.3f x %.3f = %.3f)", preference.name, DeviceScorer.formatValue(values[i]), normalized, preference.weight, contribution));
+			}
+		}
+
+		ArrayList<Score> ranked = new ArrayList<Score>(scores);
+		ranked.sort((a, b) -> {
+			if (a.isEligible != b.isEligible) return a.isEligible ? -1 : 1;
+			return Double.compare(b.total, a.total);
+		});
+
+		this.rankedDevices = new ArrayList<PhysicalDevice>(physicalDevices);
+		this.ranking = Collections.unmodifiableList(ranked);
+		return this.ranking;
+	}
+
+	/**
+	 * @return The best eligible device, or null if none qualify.
+	 */
+	public PhysicalDevice best(List<PhysicalDevice> physicalDevices) {
+		List<Score> ranking = this.rank(physicalDevices);
+		if (ranking.isEmpty() || !ranking.get(0).isEligible) return null;
+		return ranking.get(0).physicalDevice;
+	}
+
+	protected static String formatValue(double value) {
+		if (value == Math.rint(value)) return Long.toString((long)value);
+		return String.format("%.3f", value);
+	}
+}
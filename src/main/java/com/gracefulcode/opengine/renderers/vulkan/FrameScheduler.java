@@ -0,0 +1,415 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkFenceCreateInfo;
+import org.lwjgl.vulkan.VkSemaphoreCreateInfo;
+import org.lwjgl.vulkan.VkSubmitInfo;
+
+/**
+ * Lets the CPU get a fixed number of frames ahead of the GPU and no more.
+ * <p>
+ * There's one Frame per frame in flight, each with a fence and a pair of
+ * semaphores, used round robin. beginFrame() waits for the fence of the
+ * slot it's about to reuse, which is the only place the CPU ever waits for
+ * the GPU. Once that fence has signalled, nothing the GPU might still be
+ * reading belongs to that slot, so this is where per-frame things get
+ * recycled: anything deferred onto the Frame is run, every registered
+ * Recycler is told, and the CommandPoolManager (if any) moves on.
+ * <p>
+ * The fence is signalled by the frame's last submission, so it covers that
+ * submission and everything submitted before it on the same queue. Work
+ * the frame puts on other queues (uploads on the transfer queue, async
+ * compute) only counts if that last submission waits on it with a
+ * semaphore; otherwise keep its resources alive with its own fence or
+ * future rather than with defer().
+ * <p>
+ * Nothing here needs a swapchain or a graphics queue. The semaphores are
+ * there for whoever presents, and are simply unused when running headless,
+ * and the frame queue is whichever queue the frame's work goes to.
+ */
+public class FrameScheduler {
+	public static final int DEFAULT_FRAMES_IN_FLIGHT = 2;
+
+	/**
+	 * Something that keeps per-frame state and wants to know when a frame
+	 * slot is safe to reuse.
+	 */
+	public interface Recycler {
+		public void recycle(Frame frame);
+
+		/**
+		 * Called by endFrame() for every frame, including the first lap of
+		 * the ring, which recycle() never sees. For state shared between
+		 * slots, like where in a ring each frame stopped.
+		 */
+		public default void frameEnded(Frame frame) {
+		}
+	}
+
+	public static class Frame {
+		protected int slot;
+		protected long frameNumber = -1;
+		protected long fence;
+		protected long imageAvailableSemaphore;
+		protected long renderFinishedSemaphore;
+
+		/**
+		 * Whether anybody took the fence this frame. If not, endFrame() has
+		 * to signal it itself or the next wait on it would never return.
+		 */
+		protected boolean isFenceUsed;
+
+		protected ArrayList<Runnable> deferred = new ArrayList<Runnable>();
+
+		protected Frame(int slot) {
+			this.slot = slot;
+		}
+
+		public int getSlot() {
+			return this.slot;
+		}
+
+		public long getFrameNumber() {
+			return this.frameNumber;
+		}
+
+		/**
+		 * @return The fence to pass to the last submission of this frame. It
+		 *         must be submitted exactly once.
+		 */
+		public long getFence() {
+			this.isFenceUsed = true;
+			return this.fence;
+		}
+
+		public long getImageAvailableSemaphore() {
+			return this.imageAvailableSemaphore;
+		}
+
+		public long getRenderFinishedSemaphore() {
+			return this.renderFinishedSemaphore;
+		}
+
+		/**
+		 * Runs something the next time this slot comes around, once the GPU is
+		 * done with this frame. Good for destroying buffers that this frame's
+		 * commands still use.
+		 */
+		public void defer(Runnable runnable) {
+			this.deferred.add(runnable);
+		}
+
+		public String toString() {
+			return "Frame<slot: " + this.slot + ", number: " + this.frameNumber + ", deferred: " + this.deferred.size() + ">";
+		}
+	}
+
+	/**
+	 * A copy of the scheduler's numbers at one point in time. All times are
+	 * in nanoseconds.
+	 */
+	public static class Stats {
+		public final long frames;
+		public final long lastFrameTime;
+		public final long maxFrameTime;
+		public final long totalFrameTime;
+		public final long lastGpuWaitTime;
+		public final long maxGpuWaitTime;
+		public final long totalGpuWaitTime;
+
+		protected Stats(long frames, long lastFrameTime, long maxFrameTime, long totalFrameTime, long lastGpuWaitTime, long maxGpuWaitTime, long totalGpuWaitTime) {
+			this.frames = frames;
+			this.lastFrameTime = lastFrameTime;
+			this.maxFrameTime = maxFrameTime;
+			this.totalFrameTime = totalFrameTime;
+			this.lastGpuWaitTime = lastGpuWaitTime;
+			this.maxGpuWaitTime = maxGpuWaitTime;
+			this.totalGpuWaitTime = totalGpuWaitTime;
+		}
+
+		public double getAverageFrameTime() {
+			if (this.frames <= 1) return 0;
+			return this.totalFrameTime / (double)(this.frames - 1);
+		}
+
+		public double getAverageGpuWaitTime() {
+			if (this.frames == 0) return 0;
+			return this.totalGpuWaitTime / (double)this.frames;
+		}
+
+		public String toString() {
+			return String.format("FrameScheduler.Stats<frames: %d, avg frame: %.0fns, max frame: %dns, avg gpu wait: %.0fns, max gpu wait: %dns>", this.frames, this.getAverageFrameTime(), this.maxFrameTime, this.getAverageGpuWaitTime(), this.maxGpuWaitTime);
+		}
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected DeviceQueue queue;
+	protected CommandPoolManager commandPoolManager;
+	protected Frame[] frames;
+	protected Frame currentFrame;
+	protected long frameNumber = -1;
+
+	protected CopyOnWriteArrayList<Recycler> recyclers = new CopyOnWriteArrayList<Recycler>();
+
+	protected long lastBeginTime;
+	protected long framesBegun;
+	protected long lastFrameTime;
+	protected long maxFrameTime;
+	protected long totalFrameTime;
+	protected long lastGpuWaitTime;
+	protected long maxGpuWaitTime;
+	protected long totalGpuWaitTime;
+
+	public FrameScheduler(LogicalDevice logicalDevice) {
+		this(logicalDevice, FrameScheduler.DEFAULT_FRAMES_IN_FLIGHT, null);
+	}
+
+	/**
+	 * Frames go on the graphics queue, or the compute queue on a device
+	 * without graphics.
+	 */
+	public FrameScheduler(LogicalDevice logicalDevice, int framesInFlight, CommandPoolManager commandPoolManager) {
+		this(logicalDevice, framesInFlight, commandPoolManager, FrameScheduler.defaultQueue(logicalDevice));
+	}
+
+	/**
+	 * @param logicalDevice The device the frames run on.
+	 * @param framesInFlight How many frames the CPU may be ahead of the GPU.
+	 * @param commandPoolManager Moved on to each new frame, or null. Its
+	 *        framesInFlight must match.
+	 * @param queue Where the frame's last submission goes, and so where
+	 *        endFrame() signals the fence if nobody else did.
+	 */
+	public FrameScheduler(LogicalDevice logicalDevice, int framesInFlight, CommandPoolManager commandPoolManager, DeviceQueue queue) {
+		if (framesInFlight < 1) {
+			throw new AssertionError("Need at least one frame in flight, got " + framesInFlight);
+		}
+		if (commandPoolManager != null && commandPoolManager.getFramesInFlight() != framesInFlight) {
+			throw new AssertionError("CommandPoolManager has " + commandPoolManager.getFramesInFlight() + " frames in flight, scheduler has " + framesInFlight);
+		}
+
+		this.logicalDevice = logicalDevice;
+		this.queue = queue;
+		this.commandPoolManager = commandPoolManager;
+		this.frames = new Frame[framesInFlight];
+		for (int i = 0; i < framesInFlight; i++) {
+			this.frames[i] = new Frame(i);
+			this.createSyncObjects(this.frames[i]);
+		}
+	}
+
+	protected static DeviceQueue defaultQueue(LogicalDevice logicalDevice) {
+		DeviceQueue ret = logicalDevice.getGraphicsQueue();
+		if (ret == null) ret = logicalDevice.getComputeQueue();
+		if (ret == null) ret = logicalDevice.getTransferQueue();
+		return ret;
+	}
+
+	protected void createSyncObjects(Frame frame) {
+		try (MemoryStack stack = stackPush()) {
+			VkFenceCreateInfo fenceInfo = VkFenceCreateInfo.callocStack(stack);
+			fenceInfo.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+			/**
+			 * Start signalled so that the first pass through the ring doesn't wait
+			 * on fences that were never submitted.
+			 */
+			fenceInfo.flags(VK_FENCE_CREATE_SIGNALED_BIT);
+
+			VkSemaphoreCreateInfo semaphoreInfo = VkSemaphoreCreateInfo.callocStack(stack);
+			semaphoreInfo.sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO);
+
+			LongBuffer pHandle = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_FENCE.invoke(() -> vkCreateFence(this.logicalDevice.getDevice(), fenceInfo, null, pHandle));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create frame fence: " + Vulkan.translateVulkanResult(err));
+			}
+			frame.fence = pHandle.get(0);
+
+			err = VulkanCall.CREATE_SEMAPHORE.invoke(() -> vkCreateSemaphore(this.logicalDevice.getDevice(), semaphoreInfo, null, pHandle));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create frame semaphore: " + Vulkan.translateVulkanResult(err));
+			}
+			frame.imageAvailableSemaphore = pHandle.get(0);
+
+			err = VulkanCall.CREATE_SEMAPHORE.invoke(() -> vkCreateSemaphore(this.logicalDevice.getDevice(), semaphoreInfo, null, pHandle));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create frame semaphore: " + Vulkan.translateVulkanResult(err));
+			}
+			frame.renderFinishedSemaphore = pHandle.get(0);
+		}
+	}
+
+	public void addRecycler(Recycler recycler) {
+		this.recyclers.add(recycler);
+	}
+
+	public void removeRecycler(Recycler recycler) {
+		this.recyclers.remove(recycler);
+	}
+
+	/**
+	 * Starts the next frame, waiting for the GPU to finish the frame that last
+	 * used the same slot if it hasn't already.
+	 */
+	public Frame beginFrame() {
+		if (this.currentFrame != null) {
+			throw new AssertionError("beginFrame() called twice without endFrame()");
+		}
+
+		long frameNumber = this.frameNumber + 1;
+		Frame frame = this.frames[(int)(frameNumber % this.frames.length)];
+
+		long waitStart = System.nanoTime();
+		int err = this.waitForFence(frame);
+		long waitEnd = System.nanoTime();
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to wait for frame fence: " + Vulkan.translateVulkanResult(err));
+		}
+		this.resetFence(frame);
+
+		this.recycle(frame);
+
+		this.frameNumber = frameNumber;
+		frame.frameNumber = frameNumber;
+		frame.isFenceUsed = false;
+		this.currentFrame = frame;
+
+		if (this.commandPoolManager != null) {
+			this.commandPoolManager.beginFrame(frameNumber);
+		}
+
+		synchronized (this) {
+			long gpuWaitTime = waitEnd - waitStart;
+			this.lastGpuWaitTime = gpuWaitTime;
+			this.totalGpuWaitTime += gpuWaitTime;
+			this.maxGpuWaitTime = Math.max(this.maxGpuWaitTime, gpuWaitTime);
+
+			if (this.framesBegun > 0) {
+				long frameTime = waitStart - this.lastBeginTime;
+				this.lastFrameTime = frameTime;
+				this.totalFrameTime += frameTime;
+				this.maxFrameTime = Math.max(this.maxFrameTime, frameTime);
+			}
+			this.lastBeginTime = waitStart;
+			this.framesBegun++;
+		}
+
+		return frame;
+	}
+
+	/**
+	 * Finishes the current frame. If nothing was submitted with the frame's
+	 * fence, an empty submission on the frame queue signals it, so the fence
+	 * still means "everything before this on that queue is done".
+	 */
+	public void endFrame() {
+		Frame frame = this.currentFrame;
+		if (frame == null) {
+			throw new AssertionError("endFrame() called without beginFrame()");
+		}
+
+		if (!frame.isFenceUsed) {
+			this.signalFence(frame);
+		}
+
+		for (Recycler recycler: this.recyclers) {
+			recycler.frameEnded(frame);
+		}
+		this.currentFrame = null;
+	}
+
+	/**
+	 * @return The VkResult.
+	 */
+	protected int waitForFence(Frame frame) {
+		int err = VulkanCall.WAIT_FOR_FENCES.invoke(() -> vkWaitForFences(this.logicalDevice.getDevice(), frame.fence, true, -1L));
+		return err;
+	}
+
+	protected void resetFence(Frame frame) {
+		int err = VulkanCall.RESET_FENCES.invoke(() -> vkResetFences(this.logicalDevice.getDevice(), frame.fence));
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to reset frame fence: " + Vulkan.translateVulkanResult(err));
+		}
+	}
+
+	protected void signalFence(Frame frame) {
+		if (this.queue == null) {
+			throw new AssertionError("No queue to signal the frame fence on.");
+		}
+		try (MemoryStack stack = stackPush()) {
+			VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack);
+			submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
+			this.queue.submit(submitInfo, frame.getFence());
+		}
+	}
+
+	protected void destroySyncObjects(Frame frame) {
+		VulkanCall.DESTROY_SEMAPHORE.run(() -> vkDestroySemaphore(this.logicalDevice.getDevice(), frame.renderFinishedSemaphore, null));
+		VulkanCall.DESTROY_SEMAPHORE.run(() -> vkDestroySemaphore(this.logicalDevice.getDevice(), frame.imageAvailableSemaphore, null));
+		VulkanCall.DESTROY_FENCE.run(() -> vkDestroyFence(this.logicalDevice.getDevice(), frame.fence, null));
+	}
+
+	protected void recycle(Frame frame) {
+		for (Runnable runnable: frame.deferred) {
+			runnable.run();
+		}
+		frame.deferred.clear();
+
+		// Nothing to recycle the first time through the ring.
+		if (frame.frameNumber < 0) return;
+
+		for (Recycler recycler: this.recyclers) {
+			recycler.recycle(frame);
+		}
+	}
+
+	public Frame getCurrentFrame() {
+		return this.currentFrame;
+	}
+
+	public long getFrameNumber() {
+		return this.frameNumber;
+	}
+
+	/**
+	 * @return Where endFrame() signals fences nobody took.
+	 */
+	public DeviceQueue getQueue() {
+		return this.queue;
+	}
+
+	public int getFramesInFlight() {
+		return this.frames.length;
+	}
+
+	public synchronized Stats getStats() {
+		return new Stats(this.framesBegun, this.lastFrameTime, this.maxFrameTime, this.totalFrameTime, this.lastGpuWaitTime, this.maxGpuWaitTime, this.totalGpuWaitTime);
+	}
+
+	/**
+	 * Waits for every frame to finish, runs anything still deferred, and
+	 * destroys the fences and semaphores.
+	 */
+	public void dispose() {
+		if (this.currentFrame != null) {
+			this.endFrame();
+		}
+
+		for (Frame frame: this.frames) {
+			this.waitForFence(frame);
+			this.recycle(frame);
+		}
+
+		for (Frame frame: this.frames) {
+			this.destroySyncObjects(frame);
+		}
+	}
+}
@@ -0,0 +1,439 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Culls objects against the view frustum on all cores and writes the
+ * survivors' per-instance data straight into a mapped buffer.
+ * <p>
+ * Objects are bounding spheres plus a fixed number of floats of instance
+ * data (usually a transform) and a mesh index, kept structure-of-arrays in
+ * plain primitive arrays: centers and radii in their own float arrays so
+ * the test loop streams through exactly what it needs. Nothing is
+ * allocated per object, ever.
+ * <p>
+ * cull() runs in two parallel passes over fixed-size chunks on a
+ * ForkJoinPool. The first tests every sphere against the six planes,
+ * marks the survivors and counts them per chunk. A prefix sum over the
+ * counts gives each chunk its first slot in the output, and the second pass
+ * copies each chunk's survivors' instance data there. Survivors keep their
+ * relative order, so objects added grouped by mesh come out grouped by
+ * mesh, and submit() turns each run into a single instanced draw.
+ * remove() keeps those runs intact, at the cost of moving one object per
+ * run after the removed one.
+ * <p>
+ * Not thread safe; one thread adds, removes and culls.
+ */
+public class FrustumCuller {
+	/**
+	 * Objects per fork-join chunk. Big enough that the task overhead is
+	 * noise, small enough that a few thousand objects still spread out.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+	/**
+	 * Told about every object remove() moves, so callers can fix up the
+	 * indices they hold.
+	 */
+	public interface Mover {
+		public void moved(int from, int to);
+	}
+
+	public static class Stats {
+		public final long objects;
+		public final long visible;
+		public final long nanos;
+		public final long totalObjects;
+		public final long totalNanos;
+		public final LatencyHistogram.Snapshot latency;
+
+		protected Stats(long objects, long visible, long nanos, long totalObjects, long totalNanos, LatencyHistogram.Snapshot latency) {
+			this.objects = objects;
+			this.visible = visible;
+			this.nanos = nanos;
+			this.totalObjects = totalObjects;
+			this.totalNanos = totalNanos;
+			this.latency = latency;
+		}
+
+		/**
+		 * @return Objects culled per millisecond, over every cull so far.
+		 */
+		public double getObjectsPerMillisecond() {
+			return this.totalNanos == 0 ? 0 : this.totalObjects * 1000000.0 / this.totalNanos;
+		}
+
+		public String toString() {
+			return String.format("FrustumCuller.Stats<last: %d of %d visible in %.3fms, %.0f objects/ms>", this.visible, this.objects, this.nanos / 1000000.0, this.getObjectsPerMillisecond());
+		}
+	}
+
+	/**
+	 * One chunk of a pass. The range is split until it's a single chunk.
+	 */
+	protected class Pass extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean isWrite;
+		protected int firstChunk;
+		protected int lastChunk;
+
+		protected Pass(boolean isWrite, int firstChunk, int lastChunk) {
+			this.isWrite = isWrite;
+			this.firstChunk = firstChunk;
+			this.lastChunk = lastChunk;
+		}
+
+		protected void compute() {
+			if (this.lastChunk - this.firstChunk > 1) {
+				int middle = (this.firstChunk + this.lastChunk) >>> 1;
+				RecursiveAction.invokeAll(new Pass(this.isWrite, this.firstChunk, middle), new Pass(this.isWrite, middle, this.lastChunk));
+				return;
+			}
+			if (this.isWrite) {
+				FrustumCuller.this.writeChunk(this.firstChunk);
+			} else {
+				FrustumCuller.this.testChunk(this.firstChunk);
+			}
+		}
+	}
+
+	protected ForkJoinPool pool;
+	protected int floatsPerInstance;
+	protected int chunkSize;
+
+	protected int count;
+	protected float[] centerX;
+	protected float[] centerY;
+	protected float[] centerZ;
+	protected float[] radius;
+	protected int[] meshes;
+	protected float[] instanceData;
+
+	/**
+	 * Per object, set by the test pass.
+	 */
+	protected boolean[] visible;
+
+	/**
+	 * Per chunk: survivors, then after the prefix sum, first output slot.
+	 */
+	protected int[] chunkCounts = new int[0];
+	protected int[] chunkStarts = new int[0];
+
+	/**
+	 * a, b, c, d for each plane, normalized, pointing inwards.
+	 */
+	protected float[] planes = new float[24];
+	protected long outputAddress;
+
+	protected LatencyHistogram latency = new LatencyHistogram();
+	protected long lastObjects;
+	protected long lastVisible;
+	protected long lastNanos;
+	protected long totalObjects;
+	protected long totalNanos;
+
+	/**
+	 * @param floatsPerInstance How many floats of instance data each object
+	 *        has, e.g. 12 for a 3x4 transform.
+	 */
+	public FrustumCuller(int floatsPerInstance, int initialCapacity) {
+		this(ForkJoinPool.commonPool(), floatsPerInstance, initialCapacity, FrustumCuller.DEFAULT_CHUNK_SIZE);
+	}
+
+	public FrustumCuller(ForkJoinPool pool, int floatsPerInstance, int initialCapacity, int chunkSize) {
+		this.pool = pool;
+		this.floatsPerInstance = floatsPerInstance;
+		this.chunkSize = Math.max(64, chunkSize);
+
+		int capacity = Math.max(16, initialCapacity);
+		this.centerX = new float[capacity];
+		this.centerY = new float[capacity];
+		this.centerZ = new float[capacity];
+		this.radius = new float[capacity];
+		this.meshes = new int[capacity];
+		this.visible = new boolean[capacity];
+		this.instanceData = new float[capacity * floatsPerInstance];
+	}
+
+	/**
+	 * @param instanceData floatsPerInstance floats from offset.
+	 * @return The object's index. Indices are dense, so remove() moves
+	 *         others; see there.
+	 */
+	public int add(float x, float y, float z, float radius, int mesh, float[] instanceData, int offset) {
+		if (this.count == this.radius.length) this.grow();
+
+		int index = this.count++;
+		this.setBounds(index, x, y, z, radius);
+		this.meshes[index] = mesh;
+		System.arraycopy(instanceData, offset, this.instanceData, index * this.floatsPerInstance, this.floatsPerInstance);
+		return index;
+	}
+
+	protected void grow() {
+		int capacity = this.radius.length * 2;
+		this.centerX = Arrays.copyOf(this.centerX, capacity);
+		this.centerY = Arrays.copyOf(this.centerY, capacity);
+		this.centerZ = Arrays.copyOf(this.centerZ, capacity);
+		this.radius = Arrays.copyOf(this.radius, capacity);
+		this.meshes = Arrays.copyOf(this.meshes, capacity);
+		this.visible = Arrays.copyOf(this.visible, capacity);
+		this.instanceData = Arrays.copyOf(this.instanceData, capacity * this.floatsPerInstance);
+	}
+
+	public void setBounds(int index, float x, float y, float z, float radius) {
+		this.centerX[index] = x;
+		this.centerY[index] = y;
+		this.centerZ[index] = z;
+		this.radius[index] = radius;
+	}
+
+	public void setInstanceData(int index, float[] instanceData, int offset) {
+		System.arraycopy(instanceData, offset, this.instanceData, index * this.floatsPerInstance, this.floatsPerInstance);
+	}
+
+	/**
+	 * Removes an object without splitting any mesh run. The last object of
+	 * the removed one's run fills the hole, which leaves a hole at the end of
+	 * that run; the last object of the next run fills that one, and so on to
+	 * the end. Every object stays in its run, so the order submit() relies
+	 * on survives, and only the last object of each later run moves.
+	 *
+	 * @param mover Told about each move, in order. May be null.
+	 * @return How many objects moved.
+	 */
+	public int remove(int index, Mover mover) {
+		if (index < 0 || index >= this.count) {
+			throw new AssertionError("No object at index " + index + ", there are " + this.count);
+		}
+
+		int moves = 0;
+		int hole = index;
+		int last = --this.count;
+		while (hole < last) {
+			/**
+			 * The run the hole is in ends just before the next different
+			 * mesh, or at the end.
+			 */
+			int mesh = this.meshes[hole];
+			int runEnd = hole;
+			while (runEnd < last && this.meshes[runEnd + 1] == mesh) runEnd++;
+
+			if (runEnd != hole) {
+				this.move(runEnd, hole);
+				if (mover != null) mover.moved(runEnd, hole);
+				moves++;
+			}
+			if (runEnd == last) break;
+
+			/**
+			 * runEnd is now the hole, right before the next run. Its mesh
+			 * takes over the hole so the next lap finds that run's end.
+			 */
+			hole = runEnd;
+			this.meshes[hole] = this.meshes[hole + 1];
+		}
+		this.visible[last] = false;
+		return moves;
+	}
+
+	public int remove(int index) {
+		return this.remove(index, null);
+	}
+
+	protected void move(int from, int to) {
+		this.centerX[to] = this.centerX[from];
+		this.centerY[to] = this.centerY[from];
+		this.centerZ[to] = this.centerZ[from];
+		this.radius[to] = this.radius[from];
+		this.meshes[to] = this.meshes[from];
+		this.visible[to] = this.visible[from];
+		System.arraycopy(this.instanceData, from * this.floatsPerInstance, this.instanceData, to * this.floatsPerInstance, this.floatsPerInstance);
+	}
+
+	public int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Culls against the frustum of a view-projection matrix and writes the
+	 * survivors' instance data to the buffer, tightly packed.
+	 *
+	 * @param viewProjection Column-major, with Vulkan's 0 to 1 depth.
+	 * @param buffer Host-visible and big enough for every object.
+	 * @param byteOffset Where in the buffer to start writing.
+	 * @return How many survived.
+	 */
+	public int cull(float[] viewProjection, DeviceBuffer buffer, long byteOffset) {
+		long needed = byteOffset + (long)this.count * this.floatsPerInstance * 4;
+		if (needed > buffer.getSize()) {
+			throw new AssertionError("Instance buffer is " + buffer.getSize() + " bytes, culling could need " + needed);
+		}
+		int ret = this.cull(viewProjection, buffer.map() + byteOffset);
+		if (ret > 0) buffer.flush(byteOffset, (long)ret * this.floatsPerInstance * 4);
+		return ret;
+	}
+
+	/**
+	 * @param address Where to write the survivors. Has to have room for
+	 *        every object.
+	 */
+	public int cull(float[] viewProjection, long address) {
+		long start = System.nanoTime();
+		FrustumCuller.extractPlanes(viewProjection, this.planes);
+		this.outputAddress = address;
+
+		int chunks = (this.count + this.chunkSize - 1) / this.chunkSize;
+		if (this.chunkCounts.length < chunks) {
+			this.chunkCounts = new int[chunks * 2];
+			this.chunkStarts = new int[chunks * 2];
+		}
+
+		int visible = 0;
+		if (chunks > 0) {
+			this.run(false, chunks);
+			for (int i = 0; i < chunks; i++) {
+				this.chunkStarts[i] = visible;
+				visible += this.chunkCounts[i];
+			}
+			this.run(true, chunks);
+		}
+
+		long elapsed = System.nanoTime() - start;
+		this.latency.record(elapsed);
+		this.lastObjects = this.count;
+		this.lastVisible = visible;
+		this.lastNanos = elapsed;
+		this.totalObjects += this.count;
+		this.totalNanos += elapsed;
+		return visible;
+	}
+
+	protected void run(boolean isWrite, int chunks) {
+		if (chunks == 1) {
+			if (isWrite) {
+				this.writeChunk(0);
+			} else {
+				this.testChunk(0);
+			}
+			return;
+		}
+		this.pool.invoke(new Pass(isWrite, 0, chunks));
+	}
+
+	protected void testChunk(int chunk) {
+		int first = chunk * this.chunkSize;
+		int last = Math.min(this.count, first + this.chunkSize);
+		float[] p = this.planes;
+		int survivors = 0;
+
+		for (int i = first; i < last; i++) {
+			float x = this.centerX[i];
+			float y = this.centerY[i];
+			float z = this.centerZ[i];
+			float r = -this.radius[i];
+
+			boolean inside = p[0] * x + p[1] * y + p[2] * z + p[3] >= r
+				&& p[4] * x + p[5] * y + p[6] * z + p[7] >= r
+				&& p[8] * x + p[9] * y + p[10] * z + p[11] >= r
+				&& p[12] * x + p[13] * y + p[14] * z + p[15] >= r
+				&& p[16] * x + p[17] * y + p[18] * z + p[19] >= r
+				&& p[20] * x + p[21] * y + p[22] * z + p[23] >= r;
+			this.visible[i] = inside;
+			if (inside) survivors++;
+		}
+		this.chunkCounts[chunk] = survivors;
+	}
+
+	protected void writeChunk(int chunk) {
+		int survivors = this.chunkCounts[chunk];
+		if (survivors == 0) return;
+
+		int first = chunk * this.chunkSize;
+		int last = Math.min(this.count, first + this.chunkSize);
+		int floats = this.floatsPerInstance;
+		FloatBuffer output = memFloatBuffer(this.outputAddress + (long)this.chunkStarts[chunk] * floats * 4, survivors * floats);
+
+		/**
+		 * Copy runs of consecutive survivors in one go; in a typical view
+		 * most of the scene is either all in or all out.
+		 */
+		int i = first;
+		while (i < last) {
+			if (!this.visible[i]) {
+				i++;
+				continue;
+			}
+			int runStart = i;
+			while (i < last && this.visible[i]) i++;
+			output.put(this.instanceData, runStart * floats, (i - runStart) * floats);
+		}
+	}
+
+	/**
+	 * Adds the last cull's survivors to a batcher as instanced draws, one per
+	 * run of the same mesh. Instance numbers are their slots in the output,
+	 * offset by firstInstance.
+	 *
+	 * @param meshes Indexed by the mesh numbers given to add().
+	 */
+	public void submit(IndirectDrawBatcher batcher, MeshPool.Mesh[] meshes, int firstInstance) {
+		int instance = firstInstance;
+		int runMesh = -1;
+		int runStart = instance;
+		for (int i = 0; i < this.count; i++) {
+			if (!this.visible[i]) continue;
+			int mesh = this.meshes[i];
+			if (mesh != runMesh) {
+				if (runMesh >= 0) batcher.draw(meshes[runMesh], runStart, instance - runStart);
+				runMesh = mesh;
+				runStart = instance;
+			}
+			instance++;
+		}
+		if (runMesh >= 0) batcher.draw(meshes[runMesh], runStart, instance - runStart);
+	}
+
+	/**
+	 * The six frustum planes of a column-major view-projection matrix, for
+	 * clip space with x and y from -w to w and z from 0 to w.
+	 */
+	protected static void extractPlanes(float[] m, float[] planes) {
+		for (int i = 0; i < 4; i++) {
+			float row0 = m[i * 4];
+			float row1 = m[i * 4 + 1];
+			float row2 = m[i * 4 + 2];
+			float row3 = m[i * 4 + 3];
+			planes[i] = row3 + row0;
+			planes[4 + i] = row3 - row0;
+			planes[8 + i] = row3 + row1;
+			planes[12 + i] = row3 - row1;
+			planes[16 + i] = row2;
+			planes[20 + i] = row3 - row2;
+		}
+		for (int plane = 0; plane < 6; plane++) {
+			int p = plane * 4;
+			float length = (float)Math.sqrt(planes[p] * planes[p] + planes[p + 1] * planes[p + 1] + planes[p + 2] * planes[p + 2]);
+			if (length == 0) continue;
+			planes[p] /= length;
+			planes[p + 1] /= length;
+			planes[p + 2] /= length;
+			planes[p + 3] /= length;
+		}
+	}
+
+	public Stats getStats() {
+		return new Stats(this.lastObjects, this.lastVisible, this.lastNanos, this.totalObjects, this.totalNanos, this.latency.snapshot());
+	}
+
+	public String toString() {
+		return "FrustumCuller<objects: " + this.count + ", floats per instance: " + this.floatsPerInstance + ">";
+	}
+}
@@ -0,0 +1,535 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkQueryPoolCreateInfo;
+
+/**
+ * Times named scopes on the GPU with timestamp queries.
+ * <p>
+ * There's one query pool per frame in flight. A frame's timestamps are read
+ * when its FrameScheduler slot comes around again, after the fence wait, so
+ * they're already there and reading them never stalls. A timestamp that
+ * still isn't available then (its command buffer went to a queue that the
+ * frame fence doesn't cover, or was never submitted) drops its scope
+ * instead of waiting.
+ * <p>
+ * Usage, once per frame:
+ * <pre>
+ * profiler.reset(commandBuffer);
+ * int scope = profiler.begin(commandBuffer, "shadows");
+ * ...
+ * profiler.end(commandBuffer, scope);
+ * </pre>
+ * reset() has to be recorded outside a render pass, in a command buffer that
+ * runs before any other scope of the frame. Scopes nest per thread, and the
+ * nesting becomes the tree in FrameTimings.
+ * <p>
+ * Ticks become nanoseconds with the device's timestampPeriod, after masking
+ * the difference to the queue family's timestampValidBits so a counter that
+ * wraps between begin and end still comes out right. Families without
+ * timestamps (timestampValidBits of 0) are skipped: begin() returns -1 and
+ * end() ignores it.
+ */
+public class GpuProfiler implements FrameScheduler.Recycler {
+	public static final int DEFAULT_MAX_SCOPES = 256;
+
+	/**
+	 * One scope in one frame.
+	 */
+	public static class Node {
+		protected String name;
+		protected long duration;
+		protected ArrayList<Node> children = new ArrayList<Node>();
+
+		protected Node(String name, long duration) {
+			this.name = name;
+			this.duration = duration;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * @return Nanoseconds between the top of pipe before the scope and
+		 *         the bottom of pipe after it.
+		 */
+		public long getDuration() {
+			return this.duration;
+		}
+
+		/**
+		 * @return The duration not accounted for by children. Never less than
+		 *         zero, even though children can overlap on the GPU.
+		 */
+		public long getSelfTime() {
+			long ret = this.duration;
+			for (Node child: this.children) {
+				ret -= child.duration;
+			}
+			return Math.max(ret, 0);
+		}
+
+		public List<Node> getChildren() {
+			return Collections.unmodifiableList(this.children);
+		}
+
+		protected void append(StringBuilder ret, int depth) {
+			for (int i = 0; i < depth; i++) {
+				ret.append("  ");
+			}
+			ret.append(this.name).append(": ").append(String.format("%.3fms", this.duration / 1000000.0)).append('\n');
+			for (Node child: this.children) {
+				child.append(ret, depth + 1);
+			}
+		}
+
+		public String toString() {
+			return "Node<" + this.name + ", " + this.duration + "ns, children: " + this.children.size() + ">";
+		}
+	}
+
+	/**
+	 * Everything that was timed in one frame.
+	 */
+	public static class FrameTimings {
+		protected long frameNumber;
+		protected List<Node> roots;
+		protected int droppedScopes;
+
+		protected FrameTimings(long frameNumber, List<Node> roots, int droppedScopes) {
+			this.frameNumber = frameNumber;
+			this.roots = Collections.unmodifiableList(roots);
+			this.droppedScopes = droppedScopes;
+		}
+
+		public long getFrameNumber() {
+			return this.frameNumber;
+		}
+
+		/**
+		 * @return Scopes that weren't nested in anything, in recording order.
+		 */
+		public List<Node> getRoots() {
+			return this.roots;
+		}
+
+		/**
+		 * @return The sum of the top level scopes, in nanoseconds.
+		 */
+		public long getTotal() {
+			long ret = 0;
+			for (Node root: this.roots) {
+				ret += root.duration;
+			}
+			return ret;
+		}
+
+		/**
+		 * @return Scopes that didn't fit in the query pool or whose
+		 *         timestamps weren't ready.
+		 */
+		public int getDroppedScopes() {
+			return this.droppedScopes;
+		}
+
+		/**
+		 * @return The tree, one scope per line, indented by depth.
+		 */
+		public String format() {
+			StringBuilder ret = new StringBuilder();
+			for (Node root: this.roots) {
+				root.append(ret, 0);
+			}
+			return ret.toString();
+		}
+
+		public String toString() {
+			return "FrameTimings<frame: " + this.frameNumber + ", total: " + this.getTotal() + "ns, scopes: " + this.roots.size() + ", dropped: " + this.droppedScopes + ">";
+		}
+	}
+
+	/**
+	 * Told about every frame once its timings are in.
+	 */
+	public interface Listener {
+		public void frameTimed(FrameTimings timings);
+	}
+
+	/**
+	 * The query pool for one frame slot and what was recorded into it.
+	 */
+	protected static class FrameQueries {
+		protected long queryPool;
+		protected volatile boolean isReset;
+		protected AtomicInteger used = new AtomicInteger();
+		protected AtomicInteger dropped = new AtomicInteger();
+		protected String[] names;
+		protected int[] parents;
+		protected int[] families;
+
+		protected FrameQueries(int maxScopes) {
+			this.names = new String[maxScopes];
+			this.parents = new int[maxScopes];
+			this.families = new int[maxScopes];
+		}
+	}
+
+	/**
+	 * The scopes a thread has open, innermost last.
+	 */
+	protected static class ScopeStack {
+		protected long frameNumber = -1;
+		protected int[] scopes = new int[16];
+		protected int size;
+
+		protected void push(int scope) {
+			if (this.size == this.scopes.length) {
+				this.scopes = Arrays.copyOf(this.scopes, this.size * 2);
+			}
+			this.scopes[this.size++] = scope;
+		}
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected FrameScheduler frameScheduler;
+	protected int maxScopes;
+	protected double timestampPeriod;
+
+	/**
+	 * The family of the graphics queue, or -1 if the device has none.
+	 */
+	protected int graphicsFamily;
+
+	/**
+	 * Per queue family, the bits of a timestamp that are valid. 0 if the
+	 * family can't do timestamps.
+	 */
+	protected long[] validBitMasks;
+
+	protected FrameQueries[] frames;
+
+	/**
+	 * Begin value, begin availability, end value, end availability for each
+	 * scope. Only the thread that recycles frames touches this.
+	 */
+	protected long[] results;
+
+	protected ThreadLocal<ScopeStack> scopeStacks = ThreadLocal.withInitial(ScopeStack::new);
+
+	protected volatile FrameTimings lastFrame;
+	protected ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+	protected CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	public GpuProfiler(LogicalDevice logicalDevice, FrameScheduler frameScheduler) {
+		this(logicalDevice, frameScheduler, GpuProfiler.DEFAULT_MAX_SCOPES);
+	}
+
+	/**
+	 * @param maxScopes How many scopes a single frame can have. Any more are
+	 *        dropped.
+	 */
+	public GpuProfiler(LogicalDevice logicalDevice, FrameScheduler frameScheduler, int maxScopes) {
+		this(
+			frameScheduler,
+			maxScopes,
+			logicalDevice.getPhysicalDevice().getLimits().timestampPeriod,
+			logicalDevice.getGraphicsQueue() == null ? -1 : logicalDevice.getGraphicsQueue().getFamilyIndex(),
+			GpuProfiler.getTimestampValidBits(logicalDevice.getPhysicalDevice())
+		);
+		this.logicalDevice = logicalDevice;
+
+		try (MemoryStack stack = stackPush()) {
+			VkQueryPoolCreateInfo createInfo = VkQueryPoolCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_QUERY_POOL_CREATE_INFO);
+			createInfo.queryType(VK_QUERY_TYPE_TIMESTAMP);
+			createInfo.queryCount(maxScopes * 2);
+
+			LongBuffer pQueryPool = stack.mallocLong(1);
+			for (int i = 0; i < this.frames.length; i++) {
+				int err = VulkanCall.CREATE_QUERY_POOL.invoke(() -> vkCreateQueryPool(logicalDevice.getDevice(), createInfo, null, pQueryPool));
+				if (err != VK_SUCCESS) {
+					throw new AssertionError("Failed to create query pool: " + Vulkan.translateVulkanResult(err));
+				}
+				this.frames[i].queryPool = pQueryPool.get(0);
+			}
+		}
+
+		frameScheduler.addRecycler(this);
+	}
+
+	/**
+	 * Just the bookkeeping, without a device or query pools. Doesn't
+	 * register with frameScheduler.
+	 *
+	 * @param graphicsFamily What begin() without a family uses, or -1.
+	 * @param timestampValidBits Per queue family.
+	 */
+	protected GpuProfiler(FrameScheduler frameScheduler, int maxScopes, double timestampPeriod, int graphicsFamily, int... timestampValidBits) {
+		if (maxScopes < 1) {
+			throw new AssertionError("Need room for at least one scope, got " + maxScopes);
+		}
+
+		this.frameScheduler = frameScheduler;
+		this.maxScopes = maxScopes;
+		this.results = new long[maxScopes * 4];
+		this.timestampPeriod = timestampPeriod;
+		this.graphicsFamily = graphicsFamily;
+
+		this.validBitMasks = new long[timestampValidBits.length];
+		for (int i = 0; i < this.validBitMasks.length; i++) {
+			this.validBitMasks[i] = GpuProfiler.validBitMask(timestampValidBits[i]);
+		}
+
+		this.frames = new FrameQueries[frameScheduler.getFramesInFlight()];
+		for (int i = 0; i < this.frames.length; i++) {
+			this.frames[i] = new FrameQueries(maxScopes);
+		}
+	}
+
+	protected static int[] getTimestampValidBits(PhysicalDevice physicalDevice) {
+		List<PhysicalDevice.Queue> families = physicalDevice.getQueues();
+		int[] ret = new int[families.size()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = families.get(i).getTimestampValidBits();
+		}
+		return ret;
+	}
+
+	/**
+	 * Records the reset of this frame's queries. Has to run on the GPU before
+	 * any scope of the frame, and outside of a render pass.
+	 */
+	public void reset(VkCommandBuffer commandBuffer) {
+		FrameQueries queries = this.getFrameQueries();
+		this.resetQueries(commandBuffer, queries.queryPool);
+		queries.isReset = true;
+	}
+
+	protected void resetQueries(VkCommandBuffer commandBuffer, long queryPool) {
+		vkCmdResetQueryPool(commandBuffer, queryPool, 0, this.maxScopes * 2);
+	}
+
+	/**
+	 * Starts a scope in a command buffer that will go to the graphics queue.
+	 * A device without one (compute only, say) has nothing to time here, so
+	 * this returns -1; pass the family of the queue you do submit to.
+	 */
+	public int begin(VkCommandBuffer commandBuffer, String name) {
+		return this.begin(commandBuffer, this.graphicsFamily, name);
+	}
+
+	/**
+	 * @param queueFamilyIndex The family the command buffer will be
+	 *        submitted to. Decides how many timestamp bits are valid. -1
+	 *        isn't timed.
+	 * @return The scope to pass to end(), or -1 if it isn't being timed.
+	 */
+	public int begin(VkCommandBuffer commandBuffer, int queueFamilyIndex, String name) {
+		FrameQueries queries = this.getFrameQueries();
+		if (!queries.isReset) {
+			throw new AssertionError("GpuProfiler.reset() has to be recorded before the first scope of a frame");
+		}
+		if (queueFamilyIndex < 0 || this.validBitMasks[queueFamilyIndex] == 0) return -1;
+
+		int scope = queries.used.getAndIncrement();
+		if (scope >= this.maxScopes) {
+			queries.dropped.incrementAndGet();
+			return -1;
+		}
+
+		ScopeStack stack = this.scopeStacks.get();
+		long frameNumber = this.frameScheduler.getFrameNumber();
+		if (stack.frameNumber != frameNumber) {
+			stack.frameNumber = frameNumber;
+			stack.size = 0;
+		}
+
+		queries.names[scope] = name;
+		queries.parents[scope] = stack.size == 0 ? -1 : stack.scopes[stack.size - 1];
+		queries.families[scope] = queueFamilyIndex;
+		stack.push(scope);
+
+		this.writeTimestamp(commandBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, queries.queryPool, scope * 2);
+		return scope;
+	}
+
+	/**
+	 * Ends a scope from begin(). Scopes on a thread have to end innermost
+	 * first.
+	 */
+	public void end(VkCommandBuffer commandBuffer, int scope) {
+		if (scope < 0) return;
+
+		ScopeStack stack = this.scopeStacks.get();
+		if (stack.size == 0 || stack.scopes[stack.size - 1] != scope) {
+			throw new AssertionError("GPU scope " + scope + " ended out of order");
+		}
+		stack.size--;
+
+		this.writeTimestamp(commandBuffer, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, this.getFrameQueries().queryPool, scope * 2 + 1);
+	}
+
+	protected void writeTimestamp(VkCommandBuffer commandBuffer, int pipelineStage, long queryPool, int query) {
+		vkCmdWriteTimestamp(commandBuffer, pipelineStage, queryPool, query);
+	}
+
+	/**
+	 * The frame's fence has signalled, so its timestamps can be read without
+	 * waiting.
+	 */
+	public void recycle(FrameScheduler.Frame frame) {
+		FrameQueries queries = this.frames[frame.getSlot()];
+		int count = Math.min(queries.used.get(), this.maxScopes);
+		if (queries.isReset && count > 0) {
+			this.collect(frame.getFrameNumber(), queries, count);
+		}
+
+		Arrays.fill(queries.names, 0, count, null);
+		queries.used.set(0);
+		queries.dropped.set(0);
+		queries.isReset = false;
+	}
+
+	protected void collect(long frameNumber, FrameQueries queries, int count) {
+		this.readResults(queries.queryPool, count * 2);
+
+		int dropped = queries.dropped.get();
+		Node[] nodes = new Node[count];
+		ArrayList<Node> roots = new ArrayList<Node>();
+		for (int i = 0; i < count; i++) {
+			int offset = i * 4;
+			if (this.results[offset + 1] == 0 || this.results[offset + 3] == 0) {
+				dropped++;
+				continue;
+			}
+
+			long ticks = (this.results[offset + 2] - this.results[offset]) & this.validBitMasks[queries.families[i]];
+			Node node = new Node(queries.names[i], (long)(ticks * this.timestampPeriod));
+			nodes[i] = node;
+
+			/**
+			 * Parents always come before their children. If one was dropped,
+			 * hang the child off the nearest ancestor that wasn't.
+			 */
+			int parent = queries.parents[i];
+			while (parent >= 0 && nodes[parent] == null) {
+				parent = queries.parents[parent];
+			}
+			if (parent >= 0) {
+				nodes[parent].children.add(node);
+			} else {
+				roots.add(node);
+			}
+
+			LatencyHistogram histogram = this.histograms.get(node.name);
+			if (histogram == null) histogram = this.histograms.computeIfAbsent(node.name, k -> new LatencyHistogram());
+			histogram.record(node.duration);
+		}
+
+		FrameTimings timings = new FrameTimings(frameNumber, roots, dropped);
+		this.lastFrame = timings;
+		for (Listener listener: this.listeners) {
+			listener.frameTimed(timings);
+		}
+	}
+
+	/**
+	 * Reads value and availability of the first count queries into results.
+	 */
+	protected void readResults(long queryPool, int count) {
+		int err = VulkanCall.GET_QUERY_POOL_RESULTS.invoke(() -> vkGetQueryPoolResults(this.logicalDevice.getDevice(), queryPool, 0, count, this.results, 16, VK_QUERY_RESULT_64_BIT | VK_QUERY_RESULT_WITH_AVAILABILITY_BIT));
+		/**
+		 * VK_NOT_READY just means some of them aren't there. The availability
+		 * words say which.
+		 */
+		if (err != VK_SUCCESS && err != VK_NOT_READY) {
+			throw new AssertionError("Failed to get query pool results: " + Vulkan.translateVulkanResult(err));
+		}
+	}
+
+	protected FrameQueries getFrameQueries() {
+		FrameScheduler.Frame frame = this.frameScheduler.getCurrentFrame();
+		if (frame == null) {
+			throw new AssertionError("GPU scopes can only be recorded between beginFrame() and endFrame()");
+		}
+		return this.frames[frame.getSlot()];
+	}
+
+	/**
+	 * @return The most recent frame whose timings are in, or null if there
+	 *         hasn't been one yet. Frames come in framesInFlight frames late.
+	 */
+	public FrameTimings getLastFrame() {
+		return this.lastFrame;
+	}
+
+	/**
+	 * @return Durations of every scope name across every frame since the
+	 *         last resetStats(), sorted by name.
+	 */
+	public Map<String, LatencyHistogram.Snapshot> getScopeStats() {
+		TreeMap<String, LatencyHistogram.Snapshot> ret = new TreeMap<String, LatencyHistogram.Snapshot>();
+		for (Map.Entry<String, LatencyHistogram> entry: this.histograms.entrySet()) {
+			ret.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		return Collections.unmodifiableMap(ret);
+	}
+
+	public void resetStats() {
+		this.histograms.clear();
+	}
+
+	public void addListener(Listener listener) {
+		this.listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		this.listeners.remove(listener);
+	}
+
+	public int getMaxScopes() {
+		return this.maxScopes;
+	}
+
+	/**
+	 * @return A mask of the low validBits bits. Timestamps are at most 64
+	 *         bits, and 0 means no timestamps at all.
+	 */
+	protected static long validBitMask(int validBits) {
+		if (validBits <= 0) return 0;
+		if (validBits >= 64) return -1L;
+		return (1L << validBits) - 1;
+	}
+
+	public String toString() {
+		return "GpuProfiler<frames: " + this.frames.length + ", max scopes: " + this.maxScopes + ", period: " + this.timestampPeriod + "ns>";
+	}
+
+	/**
+	 * Stops listening to the FrameScheduler and destroys the query pools.
+	 * Only call this once the GPU is idle. Frames still waiting to be read
+	 * don't get timed.
+	 */
+	public void dispose() {
+		this.frameScheduler.removeRecycler(this);
+		for (FrameQueries queries: this.frames) {
+			VulkanCall.DESTROY_QUERY_POOL.run(() -> vkDestroyQueryPool(this.logicalDevice.getDevice(), queries.queryPool, null));
+		}
+	}
+}
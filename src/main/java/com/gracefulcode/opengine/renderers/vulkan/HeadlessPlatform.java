@@ -0,0 +1,79 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+import com.gracefulcode.opengine.core.Ternary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A platform with no display at all, for rendering on servers.
+ * <p>
+ * Window platforms turn on VK_KHR_surface and friends. This one doesn't, so
+ * it works on machines with no window system and on CPU implementations like
+ * lavapipe and SwiftShader, which often don't ship surface support at all.
+ * Nothing that presents can be used with it. Render into an OffscreenTarget
+ * instead (HeadlessRenderer does the bookkeeping).
+ * <p>
+ * To run on a CPU implementation, point the Vulkan loader at it (for
+ * example VK_ICD_FILENAMES=/usr/share/vulkan/icd.d/lvp_icd.x86_64.json) and
+ * pick a device with newDeviceScorer(true).
+ */
+public class HeadlessPlatform implements VulkanPlatform {
+	protected ArrayList<String> requiredExtensions = new ArrayList<String>();
+	protected VkInstance instance;
+
+	public HeadlessPlatform() {
+	}
+
+	/**
+	 * @param requiredExtensions Instance extensions to turn on anyway, like
+	 *        VK_EXT_debug_utils.
+	 */
+	public HeadlessPlatform(List<String> requiredExtensions) {
+		this.requiredExtensions.addAll(requiredExtensions);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public void configureRendererExtensions(com.gracefulcode.opengine.core.ExtensionConfiguration configuration) {
+		ExtensionConfiguration extensionConfiguration = (ExtensionConfiguration)configuration;
+		for (String extensionName: this.requiredExtensions) {
+			extensionConfiguration.setExtension(extensionName, Ternary.YES);
+		}
+	}
+
+	public void setInstance(VkInstance instance) {
+		this.instance = instance;
+	}
+
+	public VkInstance getInstance() {
+		return this.instance;
+	}
+
+	public List<String> getRequiredExtensions() {
+		return Collections.unmodifiableList(this.requiredExtensions);
+	}
+
+	/**
+	 * @param allowCpu Whether software implementations count. They're
+	 *        always ranked last, but they're what CI machines have.
+	 * @return A scorer for devices that can render without a display: a
+	 *         graphics queue, preferring real GPUs and discrete ones most.
+	 */
+	public static DeviceScorer newDeviceScorer(boolean allowCpu) {
+		DeviceScorer ret = new DeviceScorer()
+			.requireQueue("graphics queue", VK_QUEUE_GRAPHICS_BIT)
+			.preferDiscreteGpu(2)
+			.preferIf("hardware", 4, physicalDevice -> !physicalDevice.isCpu());
+		if (!allowCpu) {
+			ret.require("hardware", physicalDevice -> !physicalDevice.isCpu());
+		}
+		return ret;
+	}
+
+	public String toString() {
+		return "HeadlessPlatform<extensions: " + this.requiredExtensions + ">";
+	}
+}
@@ -0,0 +1,321 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkCommandBufferBeginInfo;
+
+/**
+ * Runs independent render jobs into offscreen images and hands back the
+ * pixels. Made for servers rendering thumbnails and batches, with a
+ * HeadlessPlatform.
+ * <p>
+ * Each job gets an OffscreenTarget of the size it asked for, a command
+ * buffer with the render pass already begun, and a readback buffer that the
+ * image is copied into afterwards. Up to jobsInFlight jobs can be on the GPU
+ * at once; submit() blocks when they all are. Submissions from every thread
+ * go through one SubmissionBatcher, so lots of small jobs cost few
+ * vkQueueSubmit calls.
+ * <p>
+ * Targets and readback buffers are pooled by size, so a steady stream of
+ * same-sized jobs allocates nothing after the first few.
+ */
+public class HeadlessRenderer {
+	public static final int DEFAULT_JOBS_IN_FLIGHT = 4;
+
+	/**
+	 * Records one job. The render pass of target has already begun, and is
+	 * ended after record() returns.
+	 */
+	public interface Job {
+		public void record(VkCommandBuffer commandBuffer, OffscreenTarget target);
+	}
+
+	/**
+	 * The pixels of a finished job, tightly packed rows of the target's color
+	 * format.
+	 */
+	public static class Result {
+		protected ReadbackPool readbackPool;
+		protected DeviceBuffer buffer;
+		protected int width;
+		protected int height;
+		protected int format;
+		protected boolean isReleased;
+
+		protected Result(ReadbackPool readbackPool, DeviceBuffer buffer, int width, int height, int format) {
+			this.readbackPool = readbackPool;
+			this.buffer = buffer;
+			this.width = width;
+			this.height = height;
+			this.format = format;
+		}
+
+		public int getWidth() {
+			return this.width;
+		}
+
+		public int getHeight() {
+			return this.height;
+		}
+
+		public int getFormat() {
+			return this.format;
+		}
+
+		/**
+		 * @return A view straight onto the mapped readback buffer. Only valid
+		 *         until release().
+		 */
+		public ByteBuffer getPixels() {
+			if (this.isReleased) {
+				throw new AssertionError("Result has already been released.");
+			}
+			return this.buffer.mapByteBuffer();
+		}
+
+		/**
+		 * Gives the readback buffer back to the pool. Call this once you're
+		 * done with getPixels().
+		 */
+		public synchronized void release() {
+			if (this.isReleased) return;
+			this.isReleased = true;
+			this.readbackPool.release(this.buffer);
+		}
+
+		public String toString() {
+			return "Result<" + this.width + "x" + this.height + ", format: " + this.format + ", released: " + this.isReleased + ">";
+		}
+	}
+
+	/**
+	 * What a job in flight holds on to. There are exactly jobsInFlight of
+	 * these, which is what limits the jobs in flight.
+	 */
+	protected static class Slot {
+		protected CommandPool commandPool;
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected int colorFormat;
+	protected int depthFormat;
+	protected int jobsInFlight;
+
+	protected SubmissionBatcher submissionBatcher;
+	protected ReadbackPool readbackPool;
+	protected ArrayBlockingQueue<Slot> slots;
+
+	/**
+	 * Free targets, by width and height packed into a long.
+	 */
+	protected HashMap<Long, ArrayDeque<OffscreenTarget>> targets = new HashMap<Long, ArrayDeque<OffscreenTarget>>();
+
+	protected float[] clearColor = new float[] { 0, 0, 0, 0 };
+
+	protected AtomicLong submitted = new AtomicLong();
+	protected AtomicLong completed = new AtomicLong();
+	protected AtomicLong failed = new AtomicLong();
+
+	public HeadlessRenderer(LogicalDevice logicalDevice) {
+		this(logicalDevice, VK_FORMAT_R8G8B8A8_UNORM, VK_FORMAT_D32_SFLOAT, HeadlessRenderer.DEFAULT_JOBS_IN_FLIGHT);
+	}
+
+	/**
+	 * @param colorFormat The VK_FORMAT_* of every target's color image.
+	 * @param depthFormat The VK_FORMAT_* of every target's depth image, or
+	 *        VK_FORMAT_UNDEFINED for none.
+	 * @param jobsInFlight How many jobs may be on the GPU at once.
+	 */
+	public HeadlessRenderer(LogicalDevice logicalDevice, int colorFormat, int depthFormat, int jobsInFlight) {
+		if (jobsInFlight < 1) {
+			throw new AssertionError("Need at least one job in flight, got " + jobsInFlight);
+		}
+
+		this.logicalDevice = logicalDevice;
+		this.colorFormat = colorFormat;
+		this.depthFormat = depthFormat;
+		this.jobsInFlight = jobsInFlight;
+
+		DeviceQueue queue = logicalDevice.getGraphicsQueue();
+		this.submissionBatcher = new SubmissionBatcher(queue);
+		this.readbackPool = new ReadbackPool(logicalDevice);
+		this.slots = new ArrayBlockingQueue<Slot>(jobsInFlight);
+		for (int i = 0; i < jobsInFlight; i++) {
+			Slot slot = new Slot();
+			slot.commandPool = new CommandPool(logicalDevice, queue.getFamilyIndex());
+			this.slots.add(slot);
+		}
+	}
+
+	/**
+	 * Sets what each target is cleared to before a job draws into it.
+	 */
+	public void setClearColor(float red, float green, float blue, float alpha) {
+		this.clearColor = new float[] { red, green, blue, alpha };
+	}
+
+	/**
+	 * Records job and queues it. Blocks while jobsInFlight jobs are already
+	 * running.
+	 *
+	 * @return Completes with the pixels once the GPU is done. Release the
+	 *         result when finished with it.
+	 */
+	public CompletableFuture<Result> submit(int width, int height, Job job) {
+		Slot slot = this.acquireSlot();
+		OffscreenTarget target = null;
+		DeviceBuffer readback = null;
+		VkCommandBuffer commandBuffer;
+		try {
+			target = this.obtainTarget(width, height);
+			readback = this.readbackPool.obtain(target.getColor().getByteSize());
+			commandBuffer = this.record(slot, target, readback, job);
+		} catch (RuntimeException | Error e) {
+			if (readback != null) this.readbackPool.release(readback);
+			if (target != null) this.releaseTarget(target);
+			this.slots.add(slot);
+			throw e;
+		}
+
+		this.submitted.incrementAndGet();
+
+		OffscreenTarget finalTarget = target;
+		DeviceBuffer finalReadback = readback;
+		return this.submissionBatcher.enqueue(commandBuffer).handle((ignored, t) -> {
+			this.releaseTarget(finalTarget);
+			this.slots.add(slot);
+
+			if (t != null) {
+				this.failed.incrementAndGet();
+				this.readbackPool.release(finalReadback);
+				throw new CompletionException(t);
+			}
+
+			finalReadback.invalidate(0, finalReadback.getSize());
+			this.completed.incrementAndGet();
+			return new Result(this.readbackPool, finalReadback, width, height, this.colorFormat);
+		});
+	}
+
+	protected VkCommandBuffer record(Slot slot, OffscreenTarget target, DeviceBuffer readback, Job job) {
+		/**
+		 * The slot came back after its last job finished, so nothing in this
+		 * pool is still in use.
+		 */
+		slot.commandPool.reset();
+		VkCommandBuffer commandBuffer = slot.commandPool.obtainPrimary();
+
+		try (MemoryStack stack = stackPush()) {
+			VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack);
+			beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+			beginInfo.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+			int err = VulkanCall.BEGIN_COMMAND_BUFFER.invoke(() -> vkBeginCommandBuffer(commandBuffer, beginInfo));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to begin headless job: " + Vulkan.translateVulkanResult(err));
+			}
+		}
+
+		float[] clearColor = this.clearColor;
+		target.beginRenderPass(commandBuffer, clearColor[0], clearColor[1], clearColor[2], clearColor[3]);
+		job.record(commandBuffer, target);
+		target.endRenderPass(commandBuffer);
+		target.copyTo(commandBuffer, readback, 0);
+
+		int err = VulkanCall.END_COMMAND_BUFFER.invoke(() -> vkEndCommandBuffer(commandBuffer));
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to record headless job: " + Vulkan.translateVulkanResult(err));
+		}
+		return commandBuffer;
+	}
+
+	protected Slot acquireSlot() {
+		try {
+			return this.slots.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AssertionError("Interrupted while waiting for a job slot.");
+		}
+	}
+
+	protected OffscreenTarget obtainTarget(int width, int height) {
+		synchronized (this.targets) {
+			ArrayDeque<OffscreenTarget> free = this.targets.get(HeadlessRenderer.key(width, height));
+			if (free != null && !free.isEmpty()) return free.poll();
+		}
+		return new OffscreenTarget(this.logicalDevice, width, height, this.colorFormat, this.depthFormat);
+	}
+
+	protected void releaseTarget(OffscreenTarget target) {
+		synchronized (this.targets) {
+			this.targets.computeIfAbsent(HeadlessRenderer.key(target.getWidth(), target.getHeight()), k -> new ArrayDeque<OffscreenTarget>()).add(target);
+		}
+	}
+
+	protected static long key(int width, int height) {
+		return ((long)width << 32) | (height & 0xFFFFFFFFL);
+	}
+
+	public ReadbackPool getReadbackPool() {
+		return this.readbackPool;
+	}
+
+	public SubmissionBatcher getSubmissionBatcher() {
+		return this.submissionBatcher;
+	}
+
+	/**
+	 * @return Jobs submitted but not yet finished on the GPU.
+	 */
+	public int getJobsInFlight() {
+		return this.jobsInFlight - this.slots.size();
+	}
+
+	public long getSubmittedCount() {
+		return this.submitted.get();
+	}
+
+	public long getCompletedCount() {
+		return this.completed.get();
+	}
+
+	public long getFailedCount() {
+		return this.failed.get();
+	}
+
+	public String toString() {
+		return "HeadlessRenderer<in flight: " + this.getJobsInFlight() + ", submitted: " + this.submitted.get() + ", completed: " + this.completed.get() + ", failed: " + this.failed.get() + ">";
+	}
+
+	/**
+	 * Waits for every job to finish, then destroys everything. Release every
+	 * Result first: buffers that are still out aren't destroyed.
+	 */
+	public void dispose() {
+		this.submissionBatcher.flush();
+		for (int i = 0; i < this.jobsInFlight; i++) {
+			this.acquireSlot().commandPool.dispose();
+		}
+		this.submissionBatcher.dispose();
+
+		synchronized (this.targets) {
+			for (ArrayDeque<OffscreenTarget> free: this.targets.values()) {
+				for (OffscreenTarget target: free) {
+					target.dispose();
+				}
+			}
+			this.targets.clear();
+		}
+		this.readbackPool.dispose();
+	}
+}
@@ -0,0 +1,284 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.LongBuffer;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkImageCreateInfo;
+import org.lwjgl.vulkan.VkImageViewCreateInfo;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+
+/**
+ * A 2D, optimally tiled, device-local VkImage with one mip level, the
+ * memory behind it, and a view of the whole thing.
+ * <p>
+ * Like DeviceBuffer, images are shared concurrently between every queue
+ * family the logical device uses.
+ */
+public class Image {
+	protected LogicalDevice logicalDevice;
+	protected long image;
+	protected long imageView;
+	protected int width;
+	protected int height;
+	protected int format;
+	protected int usage;
+	protected int aspectMask;
+	protected MemoryAllocation allocation;
+
+	/**
+	 * False when the memory was handed to bind() by somebody else.
+	 */
+	protected boolean isAllocationOwned;
+
+	/**
+	 * @param logicalDevice The device that owns the image.
+	 * @param format A VK_FORMAT_*.
+	 * @param usage VK_IMAGE_USAGE_* flags.
+	 * @param aspectMask Every VK_IMAGE_ASPECT_* the format has, for
+	 *        barriers. The view only gets getViewAspectMask().
+	 */
+	public Image(LogicalDevice logicalDevice, int width, int height, int format, int usage, int aspectMask) {
+		this(logicalDevice, width, height, format, usage, aspectMask, true);
+	}
+
+	/**
+	 * @param allocate False to leave the image without memory or a view
+	 *        until bind() is called.
+	 */
+	protected Image(LogicalDevice logicalDevice, int width, int height, int format, int usage, int aspectMask, boolean allocate) {
+		this.logicalDevice = logicalDevice;
+		this.width = width;
+		this.height = height;
+		this.format = format;
+		this.usage = usage;
+		this.aspectMask = aspectMask;
+
+		int[] queueFamilyIndices = logicalDevice.getQueueFamilyIndices();
+
+		try (MemoryStack stack = stackPush()) {
+			VkImageCreateInfo createInfo = VkImageCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO);
+			createInfo.imageType(VK_IMAGE_TYPE_2D);
+			createInfo.format(format);
+			createInfo.extent().set(width, height, 1);
+			createInfo.mipLevels(1);
+			createInfo.arrayLayers(1);
+			createInfo.samples(VK_SAMPLE_COUNT_1_BIT);
+			createInfo.tiling(VK_IMAGE_TILING_OPTIMAL);
+			createInfo.usage(usage);
+			createInfo.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+
+			if (queueFamilyIndices.length > 1) {
+				createInfo.sharingMode(VK_SHARING_MODE_CONCURRENT);
+				createInfo.pQueueFamilyIndices(stack.ints(queueFamilyIndices));
+			} else {
+				createInfo.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+			}
+
+			LongBuffer pImage = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_IMAGE.invoke(() -> vkCreateImage(logicalDevice.getDevice(), createInfo, null, pImage));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create image: " + Vulkan.translateVulkanResult(err));
+			}
+			this.image = pImage.get(0);
+
+			if (!allocate) return;
+
+			VkMemoryRequirements memoryRequirements = VkMemoryRequirements.mallocStack(stack);
+			this.getMemoryRequirements(memoryRequirements);
+			this.allocation = logicalDevice.getMemoryAllocator().allocate(memoryRequirements, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, 0, false);
+			this.isAllocationOwned = true;
+		}
+
+		this.bind(this.allocation, 0);
+	}
+
+	/**
+	 * Creates an image with no memory behind it, for when the memory is
+	 * shared with other images (see RenderGraph). Call bind() before using
+	 * it.
+	 */
+	public static Image createUnbound(LogicalDevice logicalDevice, int width, int height, int format, int usage, int aspectMask) {
+		return new Image(logicalDevice, width, height, format, usage, aspectMask, false);
+	}
+
+	public void getMemoryRequirements(VkMemoryRequirements memoryRequirements) {
+		VulkanCall.GET_IMAGE_MEMORY_REQUIREMENTS.run(() -> vkGetImageMemoryRequirements(this.logicalDevice.getDevice(), this.image, memoryRequirements));
+	}
+
+	/**
+	 * Binds memory and creates the view. Only for images from
+	 * createUnbound(), and only once. The allocation still belongs to the
+	 * caller, and dispose() won't free it.
+	 *
+	 * @param offset Where in allocation the image starts.
+	 */
+	public void bind(MemoryAllocation allocation, long offset) {
+		if (this.imageView != 0) {
+			throw new AssertionError("Image is already bound.");
+		}
+		this.allocation = allocation;
+
+		int err = VulkanCall.BIND_IMAGE_MEMORY.invoke(() -> vkBindImageMemory(this.logicalDevice.getDevice(), this.image, allocation.getMemory(), allocation.getOffset() + offset));
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to bind image memory: " + Vulkan.translateVulkanResult(err));
+		}
+
+		try (MemoryStack stack = stackPush()) {
+			VkImageViewCreateInfo viewInfo = VkImageViewCreateInfo.callocStack(stack);
+			viewInfo.sType(VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO);
+			viewInfo.image(this.image);
+			viewInfo.viewType(VK_IMAGE_VIEW_TYPE_2D);
+			viewInfo.format(this.format);
+			viewInfo.subresourceRange()
+				.aspectMask(this.getViewAspectMask())
+				.baseMipLevel(0)
+				.levelCount(1)
+				.baseArrayLayer(0)
+				.layerCount(1);
+
+			LongBuffer pImageView = stack.mallocLong(1);
+			err = VulkanCall.CREATE_IMAGE_VIEW.invoke(() -> vkCreateImageView(this.logicalDevice.getDevice(), viewInfo, null, pImageView));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create image view: " + Vulkan.translateVulkanResult(err));
+			}
+			this.imageView = pImageView.get(0);
+		}
+	}
+
+	/**
+	 * @return The VkImage handle.
+	 */
+	public long getImage() {
+		return this.image;
+	}
+
+	public long getImageView() {
+		return this.imageView;
+	}
+
+	public int getWidth() {
+		return this.width;
+	}
+
+	public int getHeight() {
+		return this.height;
+	}
+
+	public int getFormat() {
+		return this.format;
+	}
+
+	public int getUsage() {
+		return this.usage;
+	}
+
+	/**
+	 * @return Every aspect of the image, which is what barriers and layout
+	 *         transitions need.
+	 */
+	public int getAspectMask() {
+		return this.aspectMask;
+	}
+
+	/**
+	 * @return The aspect of the image view, and of copies to and from the
+	 *         image.
+	 */
+	public int getViewAspectMask() {
+		return Image.viewAspectMask(this.aspectMask);
+	}
+
+	public MemoryAllocation getAllocation() {
+		return this.allocation;
+	}
+
+	/**
+	 * @return How many bytes the image takes up tightly packed, as it would
+	 *         be copied into a buffer.
+	 */
+	public long getByteSize() {
+		return (long)this.width * this.height * Image.bytesPerTexel(this.format);
+	}
+
+	/**
+	 * @return The VK_IMAGE_ASPECT_* flags of format, all of which a barrier
+	 *         on the whole image has to name.
+	 */
+	public static int aspectMask(int format) {
+		switch (format) {
+			case VK_FORMAT_D16_UNORM:
+			case VK_FORMAT_X8_D24_UNORM_PACK32:
+			case VK_FORMAT_D32_SFLOAT:
+				return VK_IMAGE_ASPECT_DEPTH_BIT;
+			case VK_FORMAT_S8_UINT:
+				return VK_IMAGE_ASPECT_STENCIL_BIT;
+			case VK_FORMAT_D16_UNORM_S8_UINT:
+			case VK_FORMAT_D24_UNORM_S8_UINT:
+			case VK_FORMAT_D32_SFLOAT_S8_UINT:
+				return VK_IMAGE_ASPECT_DEPTH_BIT | VK_IMAGE_ASPECT_STENCIL_BIT;
+			default:
+				return VK_IMAGE_ASPECT_COLOR_BIT;
+		}
+	}
+
+	/**
+	 * A view that gets sampled may only have one aspect, and so may a copy,
+	 * so combined depth/stencil formats get a depth view. Stencil needs a
+	 * view of its own.
+	 */
+	public static int viewAspectMask(int aspectMask) {
+		if ((aspectMask & VK_IMAGE_ASPECT_DEPTH_BIT) != 0) return VK_IMAGE_ASPECT_DEPTH_BIT;
+		return aspectMask;
+	}
+
+	/**
+	 * @return The size of one texel of format. Only knows the uncompressed
+	 *         color formats that we render to or read back.
+	 */
+	public static int bytesPerTexel(int format) {
+		switch (format) {
+			case VK_FORMAT_R8_UNORM:
+			case VK_FORMAT_R8_UINT:
+				return 1;
+			case VK_FORMAT_R8G8_UNORM:
+			case VK_FORMAT_R16_SFLOAT:
+			case VK_FORMAT_R16_UINT:
+				return 2;
+			case VK_FORMAT_R8G8B8A8_UNORM:
+			case VK_FORMAT_R8G8B8A8_SRGB:
+			case VK_FORMAT_B8G8R8A8_UNORM:
+			case VK_FORMAT_B8G8R8A8_SRGB:
+			case VK_FORMAT_A2B10G10R10_UNORM_PACK32:
+			case VK_FORMAT_R16G16_SFLOAT:
+			case VK_FORMAT_R32_SFLOAT:
+			case VK_FORMAT_R32_UINT:
+				return 4;
+			case VK_FORMAT_R16G16B16A16_SFLOAT:
+			case VK_FORMAT_R32G32_SFLOAT:
+				return 8;
+			case VK_FORMAT_R32G32B32A32_SFLOAT:
+				return 16;
+			default:
+				throw new AssertionError("Don't know the texel size of format " + format);
+		}
+	}
+
+	public String toString() {
+		return "Image<" + this.width + "x" + this.height + ", format: " + this.format + ", " + this.allocation + ">";
+	}
+
+	public void dispose() {
+		long start;
+		if (this.imageView != 0) {
+			VulkanCall.DESTROY_IMAGE_VIEW.run(() -> vkDestroyImageView(this.logicalDevice.getDevice(), this.imageView, null));
+		}
+		VulkanCall.DESTROY_IMAGE.run(() -> vkDestroyImage(this.logicalDevice.getDevice(), this.image, null));
+		if (this.isAllocationOwned) {
+			this.logicalDevice.getMemoryAllocator().free(this.allocation);
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.util.Arrays;
+
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+/**
+ * Turns lots of draws of MeshPool meshes into a few vkCmdDrawIndexedIndirect
+ * calls.
+ * <p>
+ * Draws are collected as VkDrawIndexedIndirectCommand records in a plain
+ * int array, five ints each, with no allocation per draw. A draw of the
+ * same mesh as the one before, continuing its instance range, just adds to
+ * that record's instanceCount. record() copies the records into this
+ * frame's host-visible indirect buffer and issues them maxDrawIndirectCount
+ * at a time, so usually in a single call. Each record's firstInstance is
+ * there for the shader to find per-object data with gl_InstanceIndex.
+ * <p>
+ * That needs the multiDrawIndirect feature, and drawIndirectFirstInstance
+ * for any draw with a firstInstance other than 0. Without them we fall
+ * back to one vkCmdDrawIndexed per record, built on the CPU. That's still
+ * far fewer calls than objects, thanks to the merging.
+ * <p>
+ * One thread records at a time. Each frame slot has its own indirect
+ * buffer, which grows when a frame needs more and is written from the
+ * start again once its slot is recycled.
+ */
+public class IndirectDrawBatcher implements FrameScheduler.Recycler {
+	/**
+	 * sizeof(VkDrawIndexedIndirectCommand).
+	 */
+	public static final int COMMAND_SIZE = 20;
+	protected static final int COMMAND_INTS = 5;
+
+	public static class Stats {
+		public final long draws;
+		public final long commands;
+		public final long calls;
+		public final boolean isIndirect;
+
+		protected Stats(long draws, long commands, long calls, boolean isIndirect) {
+			this.draws = draws;
+			this.commands = commands;
+			this.calls = calls;
+			this.isIndirect = isIndirect;
+		}
+
+		/**
+		 * @return Draws per Vulkan draw call.
+		 */
+		public double getDrawsPerCall() {
+			return this.calls == 0 ? 0 : (double)this.draws / this.calls;
+		}
+
+		public String toString() {
+			return String.format("IndirectDrawBatcher.Stats<%s, draws: %d, commands: %d, calls: %d>", this.isIndirect ? "indirect" : "direct", this.draws, this.commands, this.calls);
+		}
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected FrameScheduler frameScheduler;
+	protected boolean hasMultiDrawIndirect;
+	protected boolean hasFirstInstance;
+	protected int maxDrawIndirectCount;
+
+	/**
+	 * indexCount, instanceCount, firstIndex, vertexOffset, firstInstance.
+	 */
+	protected int[] commands = new int[1024 * IndirectDrawBatcher.COMMAND_INTS];
+	protected int commandCount;
+	protected boolean usesFirstInstance;
+
+	/**
+	 * Indexed by frame slot.
+	 */
+	protected DeviceBuffer[] buffers;
+	protected long[] addresses;
+	protected long[] cursors;
+
+	protected long drawCount;
+	protected long totalCommands;
+	protected long callCount;
+
+	/**
+	 * @param initialCommands How many commands each frame's indirect buffer
+	 *        starts with room for.
+	 */
+	public IndirectDrawBatcher(LogicalDevice logicalDevice, FrameScheduler frameScheduler, int initialCommands) {
+		this.logicalDevice = logicalDevice;
+		this.frameScheduler = frameScheduler;
+
+		PhysicalDeviceFeatures features = logicalDevice.getEnabledFeatures();
+		this.hasMultiDrawIndirect = features != null && features.multiDrawIndirect;
+		this.hasFirstInstance = features != null && features.drawIndirectFirstInstance;
+		this.maxDrawIndirectCount = Math.max(1, logicalDevice.getPhysicalDevice().getLimits().maxDrawIndirectCount);
+
+		int slots = frameScheduler.getFramesInFlight();
+		this.buffers = new DeviceBuffer[slots];
+		this.addresses = new long[slots];
+		this.cursors = new long[slots];
+		if (this.hasMultiDrawIndirect) {
+			for (int i = 0; i < slots; i++) {
+				this.createBuffer(i, Math.max(1, initialCommands) * (long)IndirectDrawBatcher.COMMAND_SIZE);
+			}
+		}
+
+		frameScheduler.addRecycler(this);
+	}
+
+	protected void createBuffer(int slot, long size) {
+		this.buffers[slot] = new DeviceBuffer(
+			this.logicalDevice,
+			size,
+			VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT,
+			VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+			VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT
+		);
+		this.addresses[slot] = this.buffers[slot].map();
+	}
+
+	/**
+	 * Adds a draw of instanceCount instances of mesh, numbered from
+	 * firstInstance.
+	 */
+	public void draw(MeshPool.Mesh mesh, int firstInstance, int instanceCount) {
+		if (instanceCount <= 0) return;
+		this.drawCount++;
+		if (firstInstance != 0) this.usesFirstInstance = true;
+
+		if (this.commandCount > 0) {
+			int last = (this.commandCount - 1) * IndirectDrawBatcher.COMMAND_INTS;
+			if (this.commands[last + 2] == mesh.getFirstIndex()
+				&& this.commands[last + 3] == mesh.getVertexOffset()
+				&& this.commands[last + 4] + this.commands[last + 1] == firstInstance) {
+				this.commands[last + 1] += instanceCount;
+				return;
+			}
+		}
+
+		int index = this.commandCount * IndirectDrawBatcher.COMMAND_INTS;
+		if (index + IndirectDrawBatcher.COMMAND_INTS > this.commands.length) {
+			this.commands = Arrays.copyOf(this.commands, this.commands.length * 2);
+		}
+		this.commands[index] = mesh.getIndexCount();
+		this.commands[index + 1] = instanceCount;
+		this.commands[index + 2] = mesh.getFirstIndex();
+		this.commands[index + 3] = mesh.getVertexOffset();
+		this.commands[index + 4] = firstInstance;
+		this.commandCount++;
+	}
+
+	/**
+	 * @return True if the draws collected so far would go out indirectly.
+	 */
+	public boolean isIndirect() {
+		return this.hasMultiDrawIndirect && (this.hasFirstInstance || !this.usesFirstInstance);
+	}
+
+	public int getCommandCount() {
+		return this.commandCount;
+	}
+
+	/**
+	 * Records every draw collected since the last record() and starts a new
+	 * batch. The pipeline and the MeshPool's buffers have to be bound
+	 * already. Only during a frame.
+	 */
+	public void record(VkCommandBuffer commandBuffer) {
+		if (this.commandCount == 0) return;
+		this.totalCommands += this.commandCount;
+
+		if (this.isIndirect()) {
+			this.recordIndirect(commandBuffer);
+		} else {
+			for (int i = 0; i < this.commandCount; i++) {
+				int index = i * IndirectDrawBatcher.COMMAND_INTS;
+				vkCmdDrawIndexed(commandBuffer, this.commands[index], this.commands[index + 1], this.commands[index + 2], this.commands[index + 3], this.commands[index + 4]);
+			}
+			this.callCount += this.commandCount;
+		}
+
+		this.commandCount = 0;
+		this.usesFirstInstance = false;
+	}
+
+	protected void recordIndirect(VkCommandBuffer commandBuffer) {
+		FrameScheduler.Frame frame = this.frameScheduler.getCurrentFrame();
+		if (frame == null) {
+			throw new AssertionError("Indirect draws can only be recorded during a frame.");
+		}
+		int slot = frame.getSlot();
+
+		long bytes = (long)this.commandCount * IndirectDrawBatcher.COMMAND_SIZE;
+		if (this.cursors[slot] + bytes > this.buffers[slot].getSize()) {
+			/**
+			 * Command buffers already recorded this frame still point at the
+			 * old buffer, so it lives until this frame is done.
+			 */
+			DeviceBuffer old = this.buffers[slot];
+			frame.defer(old::dispose);
+			this.createBuffer(slot, Math.max(old.getSize() * 2, this.cursors[slot] + bytes));
+			this.cursors[slot] = 0;
+		}
+
+		long offset = this.cursors[slot];
+		long address = this.addresses[slot] + offset;
+		for (int i = 0; i < this.commandCount * IndirectDrawBatcher.COMMAND_INTS; i++) {
+			memPutInt(address + i * 4L, this.commands[i]);
+		}
+		this.cursors[slot] += bytes;
+
+		for (int first = 0; first < this.commandCount; first += this.maxDrawIndirectCount) {
+			int count = Math.min(this.maxDrawIndirectCount, this.commandCount - first);
+			vkCmdDrawIndexedIndirect(commandBuffer, this.buffers[slot].getBuffer(), offset + (long)first * IndirectDrawBatcher.COMMAND_SIZE, count, IndirectDrawBatcher.COMMAND_SIZE);
+			this.callCount++;
+		}
+	}
+
+	/**
+	 * The slot's commands have been read, so its buffer can be written from
+	 * the start again.
+	 */
+	public void recycle(FrameScheduler.Frame frame) {
+		this.cursors[frame.getSlot()] = 0;
+	}
+
+	public Stats getStats() {
+		return new Stats(this.drawCount, this.totalCommands, this.callCount, this.isIndirect());
+	}
+
+	public String toString() {
+		return "IndirectDrawBatcher<" + (this.isIndirect() ? "indirect" : "direct") + ", pending: " + this.commandCount + ">";
+	}
+
+	/**
+	 * The device has to be idle.
+	 */
+	public void dispose() {
+		this.frameScheduler.removeRecycler(this);
+		for (DeviceBuffer buffer: this.buffers) {
+			if (buffer != null) buffer.dispose();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and times every call we make into Vulkan.
+ * <p>
+ * Call sites go through VulkanCall.invoke() and run(), which are the only
+ * callers of begin() and end().
+ * <p>
+ * Turn it on with -Dopengine.vulkan.instrument=true. ENABLED is a static
+ * final, so when it's off the JIT throws both calls away and the cost is
+ * nothing at all. When it's on, each call costs two nanoTime() calls and a
+ * few atomic increments, and a JFR event if a recording has asked for
+ * VulkanCallEvent.
+ * <p>
+ * snapshot() copies everything out for whatever wants to export it.
+ */
+public class Instrumentation {
+	public static final String PROPERTY = "opengine.vulkan.instrument";
+	public static final boolean ENABLED = Boolean.getBoolean(Instrumentation.PROPERTY);
+
+	/**
+	 * The numbers for one VulkanCall at one point in time.
+	 */
+	public static class CallStats {
+		public final VulkanCall call;
+		public final LatencyHistogram.Snapshot latency;
+
+		/**
+		 * How many times each result other than VK_SUCCESS came back.
+		 */
+		public final Map<Integer, Long> results;
+
+		protected CallStats(VulkanCall call, LatencyHistogram.Snapshot latency, Map<Integer, Long> results) {
+			this.call = call;
+			this.latency = latency;
+			this.results = results;
+		}
+
+		public long getCalls() {
+			return this.latency.count;
+		}
+
+		/**
+		 * @return How many calls returned an error. VK_NOT_READY, VK_TIMEOUT
+		 *         and the like aren't errors.
+		 */
+		public long getErrors() {
+			long ret = 0;
+			for (Map.Entry<Integer, Long> entry: this.results.entrySet()) {
+				if (entry.getKey().intValue() < 0) ret += entry.getValue().longValue();
+			}
+			return ret;
+		}
+
+		public String toString() {
+			return this.call.getFunctionName() + "<" + this.latency + ", results: " + this.results + ">";
+		}
+	}
+
+	protected static final LatencyHistogram[] histograms = new LatencyHistogram[VulkanCall.values().length];
+
+	/**
+	 * Filled in once below and never changed after, so it's safe to read
+	 * from any thread.
+	 */
+	protected static final EnumMap<VulkanCall, ConcurrentHashMap<Integer, LongAdder>> results = new EnumMap<VulkanCall, ConcurrentHashMap<Integer, LongAdder>>(VulkanCall.class);
+
+	static {
+		for (int i = 0; i < Instrumentation.histograms.length; i++) {
+			Instrumentation.histograms[i] = new LatencyHistogram();
+		}
+		for (VulkanCall call: VulkanCall.values()) {
+			Instrumentation.results.put(call, new ConcurrentHashMap<Integer, LongAdder>());
+		}
+	}
+
+	private Instrumentation() {
+	}
+
+	/**
+	 * @return A start time to pass to end(), or 0 when disabled.
+	 */
+	protected static long begin() {
+		if (!Instrumentation.ENABLED) return 0;
+		return System.nanoTime();
+	}
+
+	/**
+	 * For functions that don't return a VkResult.
+	 */
+	protected static void end(VulkanCall call, long start) {
+		if (!Instrumentation.ENABLED) return;
+		Instrumentation.record(call, start, VK_SUCCESS);
+	}
+
+	protected static void end(VulkanCall call, long start, int result) {
+		if (!Instrumentation.ENABLED) return;
+		Instrumentation.record(call, start, result);
+	}
+
+	protected static void record(VulkanCall call, long start, int result) {
+		long latency = System.nanoTime() - start;
+		Instrumentation.histograms[call.ordinal()].record(latency);
+
+		if (result != VK_SUCCESS) {
+			Integer key = Integer.valueOf(result);
+			ConcurrentHashMap<Integer, LongAdder> tally = Instrumentation.results.get(call);
+			LongAdder adder = tally.get(key);
+			if (adder == null) adder = tally.computeIfAbsent(key, k -> new LongAdder());
+			adder.increment();
+		}
+
+		VulkanCallEvent event = new VulkanCallEvent();
+		if (event.isEnabled()) {
+			event.function = call.getFunctionName();
+			event.result = result;
+			event.latency = latency;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return Stats for every call that has been made at least once.
+	 */
+	public static Map<VulkanCall, CallStats> snapshot() {
+		EnumMap<VulkanCall, CallStats> ret = new EnumMap<VulkanCall, CallStats>(VulkanCall.class);
+		for (VulkanCall call: VulkanCall.values()) {
+			LatencyHistogram.Snapshot latency = Instrumentation.histograms[call.ordinal()].snapshot();
+			if (latency.count == 0) continue;
+
+			TreeMap<Integer, Long> results = new TreeMap<Integer, Long>();
+			for (Map.Entry<Integer, LongAdder> entry: Instrumentation.results.get(call).entrySet()) {
+				results.put(entry.getKey(), Long.valueOf(entry.getValue().sum()));
+			}
+			ret.put(call, new CallStats(call, latency, Collections.unmodifiableMap(results)));
+		}
+		return Collections.unmodifiableMap(ret);
+	}
+
+	public static void reset() {
+		for (VulkanCall call: VulkanCall.values()) {
+			Instrumentation.histograms[call.ordinal()].reset();
+			Instrumentation.results.get(call).clear();
+		}
+	}
+}
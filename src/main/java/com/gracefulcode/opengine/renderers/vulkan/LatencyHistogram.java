@@ -0,0 +1,149 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of nanosecond latencies.
+ * <p>
+ * Buckets are log-linear like HdrHistogram's: every power of two is split
+ * into SUB_BUCKETS equal buckets, so any recorded value is off by at most
+ * 1/SUB_BUCKETS (12.5%) no matter whether it's 50ns or 5s. That's a few
+ * hundred longs for the whole range, and recording is one array increment.
+ */
+public class LatencyHistogram {
+	protected static final int SUB_BUCKET_BITS = 3;
+	protected static final int SUB_BUCKETS = 1 << LatencyHistogram.SUB_BUCKET_BITS;
+
+	/**
+	 * Enough for values up to 2^63. The last one is bucket(Long.MAX_VALUE);
+	 * any more and its upper bound would overflow.
+	 */
+	protected static final int BUCKETS = (64 - LatencyHistogram.SUB_BUCKET_BITS) * LatencyHistogram.SUB_BUCKETS;
+
+	/**
+	 * An immutable copy of a histogram.
+	 */
+	public static class Snapshot {
+		protected long[] counts;
+		public final long count;
+		public final long total;
+		public final long max;
+
+		protected Snapshot(long[] counts, long count, long total, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.total = total;
+			this.max = max;
+		}
+
+		public double getMean() {
+			if (this.count == 0) return 0;
+			return this.total / (double)this.count;
+		}
+
+		/**
+		 * @param percentile Between 0 and 100.
+		 * @return The upper edge of the bucket that the percentile falls in,
+		 *         never more than max.
+		 */
+		public long getPercentile(double percentile) {
+			if (this.count == 0) return 0;
+
+			long target = (long)Math.ceil(this.count * (percentile / 100.0));
+			if (target < 1) target = 1;
+
+			long seen = 0;
+			for (int i = 0; i < this.counts.length; i++) {
+				seen += this.counts[i];
+				if (seen >= target) {
+					return Math.min(LatencyHistogram.upperBound(i), this.max);
+				}
+			}
+			return this.max;
+		}
+
+		/**
+		 * @return How many values landed in bucket i.
+		 */
+		public long getCount(int bucket) {
+			return this.counts[bucket];
+		}
+
+		public int getBucketCount() {
+			return this.counts.length;
+		}
+
+		public long getLowerBound(int bucket) {
+			return LatencyHistogram.lowerBound(bucket);
+		}
+
+		public String toString() {
+			return String.format("Histogram<count: %d, mean: %.0fns, p50: %dns, p99: %dns, max: %dns>", this.count, this.getMean(), this.getPercentile(50), this.getPercentile(99), this.max);
+		}
+	}
+
+	protected AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKETS);
+	protected AtomicLong count = new AtomicLong();
+	protected AtomicLong total = new AtomicLong();
+	protected AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+
+		this.counts.incrementAndGet(LatencyHistogram.bucket(nanos));
+		this.count.incrementAndGet();
+		this.total.addAndGet(nanos);
+
+		long current;
+		while (nanos > (current = this.max.get())) {
+			if (this.max.compareAndSet(current, nanos)) break;
+		}
+	}
+
+	/**
+	 * Not atomic with respect to concurrent record() calls, which can make
+	 * count and the bucket totals disagree by a few.
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[LatencyHistogram.BUCKETS];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = this.counts.get(i);
+		}
+		return new Snapshot(counts, this.count.get(), this.total.get(), this.max.get());
+	}
+
+	public void reset() {
+		for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+			this.counts.set(i, 0);
+		}
+		this.count.set(0);
+		this.total.set(0);
+		this.max.set(0);
+	}
+
+	/**
+	 * Values below SUB_BUCKETS get a bucket each. Above that, the top
+	 * SUB_BUCKET_BITS + 1 bits of the value pick the bucket.
+	 */
+	protected static int bucket(long value) {
+		if (value < LatencyHistogram.SUB_BUCKETS) return (int)value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int)(value >>> (exponent - LatencyHistogram.SUB_BUCKET_BITS)) & (LatencyHistogram.SUB_BUCKETS - 1);
+		return (exponent - LatencyHistogram.SUB_BUCKET_BITS + 1) * LatencyHistogram.SUB_BUCKETS + subBucket;
+	}
+
+	protected static long lowerBound(int bucket) {
+		if (bucket < LatencyHistogram.SUB_BUCKETS) return bucket;
+
+		int exponent = bucket / LatencyHistogram.SUB_BUCKETS + LatencyHistogram.SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % LatencyHistogram.SUB_BUCKETS;
+		return (LatencyHistogram.SUB_BUCKETS + subBucket) << (exponent - LatencyHistogram.SUB_BUCKET_BITS);
+	}
+
+	protected static long upperBound(int bucket) {
+		if (bucket + 1 >= LatencyHistogram.BUCKETS) return Long.MAX_VALUE;
+		return LatencyHistogram.lowerBound(bucket + 1) - 1;
+	}
+}
@@ -1,83 +1,42 @@
 package com.gracefulcode.opengine.renderers.vulkan;
 
-import static org.lwjgl.system.MemoryUtil.*;
-
 import com.gracefulcode.opengine.core.Ternary;
 
 import org.lwjgl.PointerBuffer;
-
-import java.util.HashMap;
-
-public class LayerConfiguration implements com.gracefulcode.opengine.core.LayerConfiguration<PointerBuffer, String> {
-	protected HashMap<String, Ternary> layers = new HashMap<String, Ternary>();
-	protected boolean isLocked = false;
-
-	public void lock() {
-		this.isLocked = true;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Instance layers, and whether we want each of them.
+ *
+ * @see CapabilityConfiguration
+ */
+public class LayerConfiguration extends CapabilityConfiguration implements com.gracefulcode.opengine.core.LayerConfiguration<PointerBuffer, String> {
+	protected String getKind() {
+		return "Layer";
 	}
 
-	public String toString() {
-		return this.layers.toString();
+	protected Ternary getDefaultRequireType() {
+		return Ternary.UNKNOWN;
 	}
 
+	/**
+	 * @return The names of every layer we should enable. This buffer belongs
+	 *         to the configuration and is reused until the configuration
+	 *         changes, so don't free it.
+	 */
 	public PointerBuffer getConfiguredLayers() {
-		int i = 0;
-		for (String key: this.layers.keySet()) {
-			if (this.shouldHave(key)) i++;
-		}
-
-		PointerBuffer ret = memAllocPointer(i);
-		for (String key: this.layers.keySet()) {
-			if (this.shouldHave(key)) ret.put(memUTF8(key));
-		}
-		ret.flip();
-
-		return ret;
+		return this.getConfigured();
 	}
 
-	public void setLayer(String layerName, Ternary requireType) {
-		if (!this.layers.containsKey(layerName)) {
-			if (this.isLocked) {
-				if (requireType == Ternary.YES) {
-					throw new AssertionError("Layer " + layerName + " is being marked as required, but it is not supported.");
-				}
-			} else {
-				this.layers.put(layerName, requireType);
-			}
-			return;
-		}
-
-		Ternary previousValue = this.layers.get(layerName);
-		switch (previousValue) {
-			case UNKNOWN:
-				this.layers.put(layerName, requireType);
-				break;
-			case NO:
-				if (requireType == Ternary.YES) {
-					throw new AssertionError(layerName + " is both required and not desired. Cannot resolve.");
-				}
-				break;
-			case YES:
-				if (requireType == Ternary.NO) {
-					throw new AssertionError(layerName + " is both reqiuerd and not desired. Cannot resolve.");
-				}
-				break;
-		}
-	}
-
-	public Ternary getRequireType(String layerName) {
-		if (this.layers.containsKey(layerName))
-			return this.layers.get(layerName);
-		return Ternary.UNKNOWN;
+	/**
+	 * @return The names of every layer we should enable, allocated on stack.
+	 *         Nothing to free and nothing cached.
+	 */
+	public PointerBuffer getConfiguredLayers(MemoryStack stack) {
+		return this.getConfigured(stack);
 	}
 
-	public boolean shouldHave(String layerName) {
-		if (this.layers.containsKey(layerName)) {
-			switch (this.layers.get(layerName)) {
-				case YES:
-					return true;
-			}
-		}
-		return false;
+	public void setLayer(String layerName, Ternary requireType) {
+		this.set(layerName, requireType);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,297 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import com.gracefulcode.opengine.core.Ternary;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.EXTDescriptorIndexing;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkDeviceCreateInfo;
+import org.lwjgl.vulkan.VkDeviceQueueCreateInfo;
+import org.lwjgl.vulkan.VkPhysicalDeviceDescriptorIndexingFeaturesEXT;
+import org.lwjgl.vulkan.VkPhysicalDeviceFeatures;
+import org.lwjgl.vulkan.VkQueue;
+
+/**
+ * A logical device is our connection to one GPU, and what almost everything
+ * else in Vulkan hangs off of.
+ * <p>
+ * Creating one means deciding up front which queues we want. We let the
+ * QueueFamilyPlanner decide that, so that we end up with separate graphics,
+ * compute and transfer queues whenever the hardware has them. Uploads and
+ * compute work can then run while we render instead of waiting in line.
+ *
+ * @author Daniel Grace <dgrace@gracefulcode.com>
+ * @version 0.1
+ */
+public class LogicalDevice {
+	protected PhysicalDevice physicalDevice;
+	protected VkDevice vkDevice;
+	protected QueueFamilyPlanner.Plan queuePlan;
+
+	protected DeviceQueue[] queuesByRole = new DeviceQueue[DeviceQueue.Role.values().length];
+	protected ArrayList<DeviceQueue> queues = new ArrayList<DeviceQueue>();
+	protected int[] queueFamilyIndices;
+
+	protected MemoryAllocator memoryAllocator;
+	protected ExtensionConfiguration extensionConfiguration;
+	protected PhysicalDeviceFeatures enabledFeatures;
+
+	/**
+	 * The descriptor indexing features turned on, or NONE.
+	 */
+	protected DescriptorIndexingSupport descriptorIndexing = DescriptorIndexingSupport.NONE;
+
+	/**
+	 * A device with no Vulkan handle behind it, for subclasses that stand in
+	 * for real hardware. Anything that asks the driver will fail.
+	 */
+	protected LogicalDevice(PhysicalDevice physicalDevice, PhysicalDeviceFeatures enabledFeatures) {
+		this.physicalDevice = physicalDevice;
+		this.enabledFeatures = enabledFeatures != null ? enabledFeatures : new PhysicalDeviceFeatures(0);
+	}
+
+	/**
+	 * Creates a logical device with no extensions or features turned on.
+	 */
+	public LogicalDevice(PhysicalDevice physicalDevice) {
+		this(physicalDevice, Collections.<String>emptyList(), null);
+	}
+
+	/**
+	 * @param physicalDevice The GPU to connect to.
+	 * @param extensions Device extensions to enable.
+	 * @param enabledFeatures Features to enable, or null for none.
+	 */
+	public LogicalDevice(PhysicalDevice physicalDevice, Collection<String> extensions, PhysicalDeviceFeatures enabledFeatures) {
+		this(physicalDevice, LogicalDevice.requireAll(physicalDevice, extensions), enabledFeatures);
+	}
+
+	/**
+	 * Creates a logical device with whatever negotiation settled on.
+	 */
+	public LogicalDevice(DeviceCapabilities.Negotiation negotiation) {
+		this(negotiation.getPhysicalDevice(), LogicalDevice.checked(negotiation).getExtensionConfiguration(), negotiation.getEnabledFeatures());
+	}
+
+	/**
+	 * @param physicalDevice The GPU to connect to.
+	 * @param extensions Which device extensions to enable, usually from
+	 *        physicalDevice.newExtensionConfiguration(). The device keeps it.
+	 * @param enabledFeatures Features to enable, or null for none.
+	 */
+	public LogicalDevice(PhysicalDevice physicalDevice, ExtensionConfiguration extensions, PhysicalDeviceFeatures enabledFeatures) {
+		this.physicalDevice = physicalDevice;
+		this.extensionConfiguration = extensions;
+		this.enabledFeatures = enabledFeatures != null ? enabledFeatures : new PhysicalDeviceFeatures(0);
+		this.queuePlan = new QueueFamilyPlanner(physicalDevice).plan();
+
+		int numFamilies = 0;
+		for (int i = 0; i < this.queuePlan.getFamilyCount(); i++) {
+			if (this.queuePlan.getPriorities(i) != null) numFamilies++;
+		}
+
+		try (MemoryStack stack = stackPush()) {
+			VkDeviceQueueCreateInfo.Buffer queueCreateInfos = VkDeviceQueueCreateInfo.callocStack(numFamilies, stack);
+			this.queueFamilyIndices = new int[numFamilies];
+			int q = 0;
+			for (int i = 0; i < this.queuePlan.getFamilyCount(); i++) {
+				float[] priorities = this.queuePlan.getPriorities(i);
+				if (priorities == null) continue;
+
+				VkDeviceQueueCreateInfo queueCreateInfo = queueCreateInfos.get(q);
+				queueCreateInfo.sType(VK_STRUCTURE_TYPE_DEVICE_QUEUE_CREATE_INFO);
+				queueCreateInfo.queueFamilyIndex(i);
+				queueCreateInfo.pQueuePriorities(stack.floats(priorities));
+
+				this.queueFamilyIndices[q] = i;
+				q++;
+			}
+
+			VkPhysicalDeviceFeatures features = VkPhysicalDeviceFeatures.callocStack(stack);
+			if (enabledFeatures != null) enabledFeatures.writeTo(features);
+
+			VkDeviceCreateInfo createInfo = VkDeviceCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_DEVICE_CREATE_INFO);
+			createInfo.pNext(NULL);
+
+			/**
+			 * With descriptor indexing turned on, also turn on everything
+			 * bindless descriptors use that the device has.
+			 */
+			DescriptorIndexingSupport descriptorIndexing = physicalDevice.getDescriptorIndexingSupport();
+			if (extensions.shouldHave(EXTDescriptorIndexing.VK_EXT_DESCRIPTOR_INDEXING_EXTENSION_NAME) && descriptorIndexing.isBindlessCapable()) {
+				VkPhysicalDeviceDescriptorIndexingFeaturesEXT indexingFeatures = VkPhysicalDeviceDescriptorIndexingFeaturesEXT.callocStack(stack);
+				indexingFeatures.sType(EXTDescriptorIndexing.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_DESCRIPTOR_INDEXING_FEATURES_EXT);
+				descriptorIndexing.writeBindlessTo(indexingFeatures);
+				createInfo.pNext(indexingFeatures.address());
+				this.descriptorIndexing = descriptorIndexing;
+			}
+			createInfo.pQueueCreateInfos(queueCreateInfos);
+			createInfo.ppEnabledExtensionNames(extensions.getConfiguredExtensions(stack));
+			createInfo.pEnabledFeatures(features);
+
+			PointerBuffer pDevice = stack.mallocPointer(1);
+			int err = VulkanCall.CREATE_DEVICE.invoke(() -> vkCreateDevice(physicalDevice.getPhysicalDevice(), createInfo, null, pDevice));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create logical device: " + Vulkan.translateVulkanResult(err));
+			}
+
+			/**
+			 * lwjgl reads the enabled extensions out of createInfo to work out
+			 * which functions it can call, so this has to happen before the
+			 * stack frame goes away.
+			 */
+			this.vkDevice = new VkDevice(pDevice.get(0), physicalDevice.getPhysicalDevice(), createInfo);
+		}
+
+		this.setupQueues();
+		this.memoryAllocator = new MemoryAllocator(this.vkDevice, physicalDevice);
+	}
+
+	protected static ExtensionConfiguration requireAll(PhysicalDevice physicalDevice, Collection<String> extensions) {
+		ExtensionConfiguration ret = physicalDevice.newExtensionConfiguration();
+		for (String extension: extensions) {
+			ret.setExtension(extension, Ternary.YES);
+		}
+		return ret;
+	}
+
+	protected static DeviceCapabilities.Negotiation checked(DeviceCapabilities.Negotiation negotiation) {
+		if (!negotiation.isSatisfied()) {
+			throw new AssertionError("Device does not meet the requirements: " + negotiation);
+		}
+		return negotiation;
+	}
+
+	protected void setupQueues() {
+		try (MemoryStack stack = stackPush()) {
+			this.setupQueues(stack.mallocPointer(1));
+		}
+	}
+
+	protected void setupQueues(PointerBuffer pQueue) {
+		for (DeviceQueue.Role role: DeviceQueue.Role.values()) {
+			QueueFamilyPlanner.Assignment assignment = this.queuePlan.getAssignment(role);
+			if (assignment == null) continue;
+
+			DeviceQueue deviceQueue = null;
+			for (DeviceQueue existing: this.queues) {
+				if (existing.getFamilyIndex() == assignment.getFamily().getIndex() && existing.getQueueIndex() == assignment.getQueueIndex()) {
+					deviceQueue = existing;
+				}
+			}
+
+			if (deviceQueue == null) {
+				VulkanCall.GET_DEVICE_QUEUE.run(() -> vkGetDeviceQueue(this.vkDevice, assignment.getFamily().getIndex(), assignment.getQueueIndex(), pQueue));
+				VkQueue vkQueue = new VkQueue(pQueue.get(0), this.vkDevice);
+				deviceQueue = new DeviceQueue(this, vkQueue, assignment.getFamily(), assignment.getQueueIndex());
+				this.queues.add(deviceQueue);
+			}
+
+			deviceQueue.roles.add(role);
+			this.queuesByRole[role.ordinal()] = deviceQueue;
+		}
+	}
+
+	public PhysicalDevice getPhysicalDevice() {
+		return this.physicalDevice;
+	}
+
+	public VkDevice getDevice() {
+		return this.vkDevice;
+	}
+
+	/**
+	 * @return The device extensions, with the ones we enabled set to YES.
+	 */
+	public ExtensionConfiguration getExtensionConfiguration() {
+		return this.extensionConfiguration;
+	}
+
+	public boolean isExtensionEnabled(String extensionName) {
+		return this.extensionConfiguration.shouldHave(extensionName);
+	}
+
+	/**
+	 * @return The core features that were turned on.
+	 */
+	public PhysicalDeviceFeatures getEnabledFeatures() {
+		return this.enabledFeatures;
+	}
+
+	/**
+	 * @return The descriptor indexing features that were turned on, or
+	 *         DescriptorIndexingSupport.NONE if the extension wasn't enabled or
+	 *         the device can't do bindless.
+	 */
+	public DescriptorIndexingSupport getDescriptorIndexingSupport() {
+		return this.descriptorIndexing;
+	}
+
+	public MemoryAllocator getMemoryAllocator() {
+		return this.memoryAllocator;
+	}
+
+	/**
+	 * @return The queue for role, or null if this device can't do that at
+	 *         all (such as graphics on a compute-only card).
+	 */
+	public DeviceQueue getQueue(DeviceQueue.Role role) {
+		return this.queuesByRole[role.ordinal()];
+	}
+
+	public DeviceQueue getGraphicsQueue() {
+		return this.getQueue(DeviceQueue.Role.GRAPHICS);
+	}
+
+	public DeviceQueue getComputeQueue() {
+		return this.getQueue(DeviceQueue.Role.COMPUTE);
+	}
+
+	public DeviceQueue getTransferQueue() {
+		return this.getQueue(DeviceQueue.Role.TRANSFER);
+	}
+
+	/**
+	 * @return Every distinct queue we created.
+	 */
+	public List<DeviceQueue> getQueues() {
+		return Collections.unmodifiableList(this.queues);
+	}
+
+	/**
+	 * @return The distinct queue family indices we're using. Resources that
+	 *         are touched from more than one of these need concurrent sharing
+	 *         or an ownership transfer.
+	 */
+	public int[] getQueueFamilyIndices() {
+		return this.queueFamilyIndices.clone();
+	}
+
+	public void waitIdle() {
+		int err = VulkanCall.DEVICE_WAIT_IDLE.invoke(() -> vkDeviceWaitIdle(this.vkDevice));
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to wait for device: " + Vulkan.translateVulkanResult(err));
+		}
+	}
+
+	public String toString() {
+		return "LogicalDevice<" + this.physicalDevice + ", queues: " + this.queues + ">";
+	}
+
+	public void dispose() {
+		this.memoryAllocator.dispose();
+		VulkanCall.DESTROY_DEVICE.run(() -> vkDestroyDevice(this.vkDevice, null));
+		this.extensionConfiguration.dispose();
+	}
+}
@@ -0,0 +1,56 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+/**
+ * A range of device memory handed out by the MemoryAllocator.
+ * <p>
+ * This is what a buffer or image gets bound to: the VkDeviceMemory handle
+ * and the offset within it.
+ */
+public class MemoryAllocation {
+	protected MemoryBlock block;
+	protected long offset;
+	protected long size;
+	protected boolean isFreed = false;
+
+	protected MemoryAllocation(MemoryBlock block, long offset, long size) {
+		this.block = block;
+		this.offset = offset;
+		this.size = size;
+	}
+
+	/**
+	 * @return The VkDeviceMemory handle that this allocation lives in.
+	 */
+	public long getMemory() {
+		return this.block.memory;
+	}
+
+	public long getOffset() {
+		return this.offset;
+	}
+
+	public long getSize() {
+		return this.size;
+	}
+
+	public int getMemoryTypeIndex() {
+		return this.block.memoryTypeIndex;
+	}
+
+	/**
+	 * @return Where this allocation is mapped, or 0 if it isn't. See
+	 *         MemoryAllocator.map().
+	 */
+	public long getMappedAddress() {
+		if (this.block.mappedAddress == 0) return 0;
+		return this.block.mappedAddress + this.offset;
+	}
+
+	public boolean isDedicated() {
+		return this.block.isDedicated();
+	}
+
+	public String toString() {
+		return "MemoryAllocation<type: " + this.block.memoryTypeIndex + ", offset: " + this.offset + ", size: " + this.size + ">";
+	}
+}
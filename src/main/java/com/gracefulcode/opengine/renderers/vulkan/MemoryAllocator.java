@@ -0,0 +1,381 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkMappedMemoryRange;
+import org.lwjgl.vulkan.VkMemoryAllocateInfo;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+
+/**
+ * The MemoryAllocator is the one place that we call vkAllocateMemory.
+ * <p>
+ * Drivers only guarantee us maxMemoryAllocationCount real allocations (4096
+ * on a lot of hardware), and each one is slow. So instead of one allocation
+ * per resource, we grab big blocks per memory type and hand out aligned
+ * ranges of them. One block can back thousands of buffers and images.
+ * <p>
+ * Buffers and linearly tiled images on one side and optimally tiled images
+ * on the other have to be bufferImageGranularity apart if they share a
+ * block. Rather than tracking neighbours, we just never let them share a
+ * block when the device cares.
+ */
+public class MemoryAllocator {
+	public enum Strategy {
+		BUDDY,
+		TLSF
+	}
+
+	/**
+	 * How big our blocks are unless the heap is small.
+	 */
+	public static final long DEFAULT_BLOCK_SIZE = 64L * 1024 * 1024;
+
+	protected VkDevice device;
+	protected PhysicalDevice physicalDevice;
+	protected Strategy strategy;
+	protected long preferredBlockSize;
+
+	/**
+	 * Blocks indexed by memory type, then by pool (see poolIndex).
+	 */
+	protected ArrayList<ArrayList<MemoryBlock>> pools = new ArrayList<ArrayList<MemoryBlock>>();
+
+	/**
+	 * Blocks that belong to a single resource.
+	 */
+	protected ArrayList<MemoryBlock> dedicatedBlocks = new ArrayList<MemoryBlock>();
+
+	protected long allocateCount;
+	protected long freeCount;
+	protected long liveAllocations;
+	protected long bytesInUse;
+	protected int deviceMemoryCount;
+	protected long deviceMemoryBytes;
+
+	public MemoryAllocator(VkDevice device, PhysicalDevice physicalDevice) {
+		this(device, physicalDevice, Strategy.TLSF, MemoryAllocator.DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param device The logical device that memory will be allocated from.
+	 * @param physicalDevice The physical device that backs it. We need its
+	 *        memory types and limits.
+	 * @param strategy How blocks get carved up.
+	 * @param preferredBlockSize How big each block should be. Small heaps get
+	 *        smaller blocks than this.
+	 */
+	public MemoryAllocator(VkDevice device, PhysicalDevice physicalDevice, Strategy strategy, long preferredBlockSize) {
+		this.device = device;
+		this.physicalDevice = physicalDevice;
+		this.strategy = strategy;
+		this.preferredBlockSize = preferredBlockSize;
+
+		for (int i = 0; i < physicalDevice.getMemoryProperties().getMemoryTypes().size() * 2; i++) {
+			this.pools.add(new ArrayList<MemoryBlock>());
+		}
+	}
+
+	/**
+	 * Allocates memory for a resource.
+	 *
+	 * @param requirements What vkGet*MemoryRequirements said.
+	 * @param requiredFlags Memory property flags we must have.
+	 * @param preferredFlags Memory property flags we'd like to have.
+	 * @param linear True for buffers and linearly tiled images, false for
+	 *        optimally tiled images.
+	 * @return The allocation, which must be given back with free().
+	 */
+	public MemoryAllocation allocate(VkMemoryRequirements requirements, int requiredFlags, int preferredFlags, boolean linear) {
+		return this.allocate(requirements.size(), requirements.alignment(), requirements.memoryTypeBits(), requiredFlags, preferredFlags, linear);
+	}
+
+	public synchronized MemoryAllocation allocate(long size, long alignment, int memoryTypeBits, int requiredFlags, int preferredFlags, boolean linear) {
+		int memoryTypeIndex = this.physicalDevice.findMemoryType(memoryTypeBits, requiredFlags, preferredFlags);
+		if (memoryTypeIndex == -1) {
+			throw new AssertionError("No memory type supports bits " + memoryTypeBits + " with properties " + requiredFlags + ".");
+		}
+
+		MemoryAllocation ret;
+		long blockSize = this.getBlockSize(memoryTypeIndex);
+		if (size > blockSize / 2) {
+			MemoryBlock block = this.allocateBlock(memoryTypeIndex, size, linear, false);
+			this.dedicatedBlocks.add(block);
+			ret = new MemoryAllocation(block, 0, size);
+		} else {
+			ret = this.allocateFromPool(memoryTypeIndex, size, alignment, linear, blockSize);
+		}
+
+		this.allocateCount++;
+		this.liveAllocations++;
+		this.bytesInUse += size;
+		return ret;
+	}
+
+	public synchronized void free(MemoryAllocation allocation) {
+		if (allocation.isFreed) {
+			throw new AssertionError("Double free of " + allocation);
+		}
+		allocation.isFreed = true;
+
+		MemoryBlock block = allocation.block;
+		if (block.isDedicated()) {
+			this.dedicatedBlocks.remove(block);
+			this.freeBlock(block);
+		} else {
+			block.subAllocator.free(allocation.offset);
+
+			/**
+			 * We keep one empty block around per pool so that a resource
+			 * being freed and recreated every frame doesn't thrash the
+			 * driver.
+			 */
+			if (block.isEmpty()) {
+				ArrayList<MemoryBlock> pool = this.pools.get(this.poolIndex(block.memoryTypeIndex, block.linear));
+				for (MemoryBlock other: pool) {
+					if (other != block && other.isEmpty()) {
+						pool.remove(block);
+						this.freeBlock(block);
+						break;
+					}
+				}
+			}
+		}
+
+		this.freeCount++;
+		this.liveAllocations--;
+		this.bytesInUse -= allocation.size;
+	}
+
+	protected MemoryAllocation allocateFromPool(int memoryTypeIndex, long size, long alignment, boolean linear, long blockSize) {
+		ArrayList<MemoryBlock> pool = this.pools.get(this.poolIndex(memoryTypeIndex, linear));
+		for (MemoryBlock block: pool) {
+			long offset = block.subAllocator.allocate(size, alignment);
+			if (offset != SubAllocator.NO_SPACE) {
+				return new MemoryAllocation(block, offset, size);
+			}
+		}
+
+		MemoryBlock block = this.allocateBlock(memoryTypeIndex, blockSize, linear, true);
+		pool.add(block);
+
+		long offset = block.subAllocator.allocate(size, alignment);
+		if (offset == SubAllocator.NO_SPACE) {
+			throw new AssertionError("Could not fit " + size + " bytes aligned to " + alignment + " in a fresh " + block);
+		}
+		return new MemoryAllocation(block, offset, size);
+	}
+
+	protected MemoryBlock allocateBlock(int memoryTypeIndex, long size, boolean linear, boolean pooled) {
+		int maxMemoryAllocationCount = this.physicalDevice.getLimits().maxMemoryAllocationCount;
+		if (this.deviceMemoryCount >= maxMemoryAllocationCount) {
+			throw new AssertionError("Hit maxMemoryAllocationCount (" + maxMemoryAllocationCount + ") of device memory allocations.");
+		}
+
+		long memory;
+		try (MemoryStack stack = stackPush()) {
+			VkMemoryAllocateInfo allocateInfo = VkMemoryAllocateInfo.callocStack(stack);
+			allocateInfo.sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO);
+			allocateInfo.allocationSize(size);
+			allocateInfo.memoryTypeIndex(memoryTypeIndex);
+
+			LongBuffer pMemory = stack.mallocLong(1);
+			int err = VulkanCall.ALLOCATE_MEMORY.invoke(() -> vkAllocateMemory(this.device, allocateInfo, null, pMemory));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to allocate device memory: " + Vulkan.translateVulkanResult(err));
+			}
+			memory = pMemory.get(0);
+		}
+
+		this.deviceMemoryCount++;
+		this.deviceMemoryBytes += size;
+
+		SubAllocator subAllocator = null;
+		if (pooled) {
+			switch (this.strategy) {
+				case BUDDY:
+					subAllocator = new BuddySubAllocator(size);
+					break;
+				case TLSF:
+					subAllocator = new TlsfSubAllocator(size);
+					break;
+			}
+		}
+		return new MemoryBlock(memory, size, memoryTypeIndex, linear, subAllocator);
+	}
+
+	protected void freeBlock(MemoryBlock block) {
+		VulkanCall.FREE_MEMORY.run(() -> vkFreeMemory(this.device, block.memory, null));
+		this.deviceMemoryCount--;
+		this.deviceMemoryBytes -= block.size;
+	}
+
+	/**
+	 * Maps an allocation into our address space.
+	 * <p>
+	 * Vulkan only allows one mapping per VkDeviceMemory at a time, and
+	 * sub-allocations share them, so we map the whole block the first time
+	 * anything in it asks and leave it mapped. Mapping is then free for
+	 * everything else in the block.
+	 *
+	 * @return The address of the start of the allocation.
+	 */
+	public synchronized long map(MemoryAllocation allocation) {
+		MemoryBlock block = allocation.block;
+		if (block.mappedAddress == 0) {
+			try (MemoryStack stack = stackPush()) {
+				PointerBuffer pData = stack.mallocPointer(1);
+				int err = VulkanCall.MAP_MEMORY.invoke(() -> vkMapMemory(this.device, block.memory, 0, VK_WHOLE_SIZE, 0, pData));
+				if (err != VK_SUCCESS) {
+					throw new AssertionError("Failed to map device memory: " + Vulkan.translateVulkanResult(err));
+				}
+				block.mappedAddress = pData.get(0);
+			}
+		}
+		return block.mappedAddress + allocation.offset;
+	}
+
+	/**
+	 * @return True if the allocation's memory type is HOST_COHERENT, in which
+	 *         case flush and invalidate don't need to do anything.
+	 */
+	public boolean isCoherent(MemoryAllocation allocation) {
+		return this.physicalDevice.getMemoryProperties().getMemoryType(allocation.getMemoryTypeIndex()).hasProperties(VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+	}
+
+	/**
+	 * Makes CPU writes to a range of a mapped allocation visible to the GPU.
+	 *
+	 * @param allocation The allocation that was written to.
+	 * @param offset Where the writes start, relative to the allocation.
+	 * @param size How many bytes were written.
+	 */
+	public void flush(MemoryAllocation allocation, long offset, long size) {
+		if (this.isCoherent(allocation)) return;
+
+		try (MemoryStack stack = stackPush()) {
+			int err = VulkanCall.FLUSH_MAPPED_MEMORY_RANGES.invoke(() -> vkFlushMappedMemoryRanges(this.device, this.mappedRange(stack, allocation, offset, size)));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to flush mapped memory: " + Vulkan.translateVulkanResult(err));
+			}
+		}
+	}
+
+	/**
+	 * Makes GPU writes to a range of a mapped allocation visible to the CPU.
+	 */
+	public void invalidate(MemoryAllocation allocation, long offset, long size) {
+		if (this.isCoherent(allocation)) return;
+
+		try (MemoryStack stack = stackPush()) {
+			int err = VulkanCall.INVALIDATE_MAPPED_MEMORY_RANGES.invoke(() -> vkInvalidateMappedMemoryRanges(this.device, this.mappedRange(stack, allocation, offset, size)));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to invalidate mapped memory: " + Vulkan.translateVulkanResult(err));
+			}
+		}
+	}
+
+	/**
+	 * Flushes and invalidates have to start and end on a nonCoherentAtomSize
+	 * boundary (or the end of the memory), so we widen the range to fit.
+	 */
+	protected VkMappedMemoryRange mappedRange(MemoryStack stack, MemoryAllocation allocation, long offset, long size) {
+		long atomSize = Math.max(1, this.physicalDevice.getLimits().nonCoherentAtomSize);
+		long start = allocation.offset + offset;
+		long end = start + size;
+
+		start = start - (start % atomSize);
+		end = SubAllocator.alignUp(end, atomSize);
+
+		VkMappedMemoryRange range = VkMappedMemoryRange.callocStack(stack);
+		range.sType(VK_STRUCTURE_TYPE_MAPPED_MEMORY_RANGE);
+		range.memory(allocation.block.memory);
+		range.offset(start);
+		if (end >= allocation.block.size) {
+			range.size(VK_WHOLE_SIZE);
+		} else {
+			range.size(end - start);
+		}
+		return range;
+	}
+
+	/**
+	 * Small heaps (integrated GPUs, the host-visible window into VRAM) get
+	 * an eighth of the heap per block so one block can't swallow the whole
+	 * thing.
+	 */
+	protected long getBlockSize(int memoryTypeIndex) {
+		PhysicalDeviceMemoryProperties memoryProperties = this.physicalDevice.getMemoryProperties();
+		PhysicalDeviceMemoryProperties.MemoryType memoryType = memoryProperties.getMemoryType(memoryTypeIndex);
+		long heapSize = memoryProperties.getMemoryHeap(memoryType.getHeapIndex()).getSize();
+		long blockSize = Math.min(this.preferredBlockSize, heapSize / 8);
+
+		// The buddy allocator can only use a power of two.
+		return Long.highestOneBit(blockSize);
+	}
+
+	/**
+	 * When the device has a bufferImageGranularity bigger than one, linear
+	 * and non-linear resources get separate pools.
+	 */
+	protected int poolIndex(int memoryTypeIndex, boolean linear) {
+		if (linear || this.physicalDevice.getLimits().bufferImageGranularity <= 1) return memoryTypeIndex * 2;
+		return memoryTypeIndex * 2 + 1;
+	}
+
+	/**
+	 * @return How many times allocate() has been called.
+	 */
+	public synchronized long getAllocateCount() {
+		return this.allocateCount;
+	}
+
+	/**
+	 * @return How many times free() has been called.
+	 */
+	public synchronized long getFreeCount() {
+		return this.freeCount;
+	}
+
+	public synchronized long getLiveAllocationCount() {
+		return this.liveAllocations;
+	}
+
+	public synchronized long getBytesInUse() {
+		return this.bytesInUse;
+	}
+
+	/**
+	 * @return How many real vkAllocateMemory allocations we're holding.
+	 */
+	public synchronized int getDeviceMemoryCount() {
+		return this.deviceMemoryCount;
+	}
+
+	public synchronized long getDeviceMemoryBytes() {
+		return this.deviceMemoryBytes;
+	}
+
+	public synchronized String toString() {
+		return "MemoryAllocator<strategy: " + this.strategy + ", allocations: " + this.liveAllocations + ", bytes: " + this.bytesInUse + "/" + this.deviceMemoryBytes + ", deviceMemory: " + this.deviceMemoryCount + ">";
+	}
+
+	public synchronized void dispose() {
+		for (ArrayList<MemoryBlock> pool: this.pools) {
+			for (MemoryBlock block: pool) {
+				this.freeBlock(block);
+			}
+			pool.clear();
+		}
+		for (MemoryBlock block: this.dedicatedBlocks) {
+			this.freeBlock(block);
+		}
+		this.dedicatedBlocks.clear();
+	}
+}
@@ -0,0 +1,52 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+/**
+ * One real vkAllocateMemory call, which the MemoryAllocator then carves up.
+ * <p>
+ * Large resources get a block all to themselves. Those are "dedicated" and
+ * have no SubAllocator.
+ */
+public class MemoryBlock {
+	protected long memory;
+	protected long size;
+	protected int memoryTypeIndex;
+	protected boolean linear;
+	protected SubAllocator subAllocator;
+
+	/**
+	 * Where the whole block is mapped, or 0 if nobody has mapped it yet. Once
+	 * mapped, a block stays mapped until it's freed.
+	 */
+	protected long mappedAddress;
+
+	protected MemoryBlock(long memory, long size, int memoryTypeIndex, boolean linear, SubAllocator subAllocator) {
+		this.memory = memory;
+		this.size = size;
+		this.memoryTypeIndex = memoryTypeIndex;
+		this.linear = linear;
+		this.subAllocator = subAllocator;
+	}
+
+	public long getMemory() {
+		return this.memory;
+	}
+
+	public long getSize() {
+		return this.size;
+	}
+
+	public boolean isDedicated() {
+		return this.subAllocator == null;
+	}
+
+	public boolean isEmpty() {
+		return this.subAllocator == null || this.subAllocator.isEmpty();
+	}
+
+	public String toString() {
+		if (this.subAllocator == null) {
+			return "MemoryBlock<type: " + this.memoryTypeIndex + ", size: " + this.size + ", dedicated>";
+		}
+		return "MemoryBlock<type: " + this.memoryTypeIndex + ", size: " + this.size + ", used: " + this.subAllocator.getUsedSize() + ", allocations: " + this.subAllocator.getAllocationCount() + ">";
+	}
+}
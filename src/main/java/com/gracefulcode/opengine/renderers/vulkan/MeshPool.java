@@ -0,0 +1,244 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CompletableFuture;
+
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+/**
+ * Packs many meshes into one shared vertex buffer and one shared index
+ * buffer.
+ * <p>
+ * With everything in two buffers, a whole scene binds its geometry once and
+ * each draw is just offsets into them, which is what lets
+ * IndirectDrawBatcher fold thousands of objects into a handful of indirect
+ * draws. Ranges are handed out by a TlsfSubAllocator on each buffer, so
+ * meshes can come and go without the buffers fragmenting badly.
+ * <p>
+ * Every mesh in a pool has the same vertex stride, and indices are always
+ * 32-bit and relative to the mesh's own first vertex. Without
+ * fullDrawIndexUint32 they have to stay below maxDrawIndexedIndexValue,
+ * which we check on add.
+ */
+public class MeshPool {
+	/**
+	 * Where one mesh lives in the pool.
+	 */
+	public static class Mesh {
+		protected long vertexAllocation;
+		protected long vertexByteOffset;
+		protected long indexByteOffset;
+		protected int vertexOffset;
+		protected int vertexCount;
+		protected int firstIndex;
+		protected int indexCount;
+		protected CompletableFuture<Void> ready;
+
+		/**
+		 * @return The first vertex, in vertices, for vertexOffset in a draw.
+		 */
+		public int getVertexOffset() {
+			return this.vertexOffset;
+		}
+
+		public int getVertexCount() {
+			return this.vertexCount;
+		}
+
+		/**
+		 * @return The first index, in indices, for firstIndex in a draw.
+		 */
+		public int getFirstIndex() {
+			return this.firstIndex;
+		}
+
+		public int getIndexCount() {
+			return this.indexCount;
+		}
+
+		/**
+		 * @return Completes once the data is on the GPU.
+		 */
+		public CompletableFuture<Void> getReady() {
+			return this.ready;
+		}
+
+		public String toString() {
+			return "Mesh<vertices: " + this.vertexOffset + "+" + this.vertexCount + ", indices: " + this.firstIndex + "+" + this.indexCount + ">";
+		}
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected StagingUploader uploader;
+	protected FrameScheduler frameScheduler;
+	protected int vertexStride;
+	protected long maxIndexValue;
+
+	protected DeviceBuffer vertexBuffer;
+	protected DeviceBuffer indexBuffer;
+	protected TlsfSubAllocator vertexRanges;
+	protected TlsfSubAllocator indexRanges;
+	protected int meshCount;
+
+	/**
+	 * @param uploader Mesh data goes to the GPU through this.
+	 * @param frameScheduler Removed meshes are only freed once frames that
+	 *        might draw them are done.
+	 * @param vertexStride Bytes per vertex.
+	 * @param maxVertices How many vertices fit, across all meshes.
+	 * @param maxIndices How many indices fit, across all meshes.
+	 */
+	public MeshPool(LogicalDevice logicalDevice, StagingUploader uploader, FrameScheduler frameScheduler, int vertexStride, int maxVertices, int maxIndices) {
+		this.logicalDevice = logicalDevice;
+		this.uploader = uploader;
+		this.frameScheduler = frameScheduler;
+		this.vertexStride = vertexStride;
+
+		PhysicalDeviceFeatures features = logicalDevice.getEnabledFeatures();
+		this.maxIndexValue = features != null && features.fullDrawIndexUint32 ? 0xFFFFFFFEL : (logicalDevice.getPhysicalDevice().getLimits().maxDrawIndexedIndexValue & 0xFFFFFFFFL);
+
+		this.vertexBuffer = new DeviceBuffer(
+			logicalDevice,
+			(long)maxVertices * vertexStride,
+			VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+			VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT,
+			0
+		);
+		this.indexBuffer = new DeviceBuffer(
+			logicalDevice,
+			(long)maxIndices * 4,
+			VK_BUFFER_USAGE_INDEX_BUFFER_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+			VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT,
+			0
+		);
+		this.vertexRanges = new TlsfSubAllocator(this.vertexBuffer.getSize());
+		this.indexRanges = new TlsfSubAllocator(this.indexBuffer.getSize());
+	}
+
+	/**
+	 * Copies a mesh into the pool.
+	 *
+	 * @param vertices Whole vertices between position and limit.
+	 * @param indices 32-bit indices between position and limit, in native
+	 *        order, relative to the first of these vertices.
+	 * @return Where it went, or null if the pool is full.
+	 */
+	public synchronized Mesh add(ByteBuffer vertices, ByteBuffer indices) {
+		if (vertices.remaining() % this.vertexStride != 0) {
+			throw new AssertionError(vertices.remaining() + " bytes of vertices isn't a multiple of the stride, " + this.vertexStride);
+		}
+		if (indices.remaining() % 4 != 0) {
+			throw new AssertionError("Indices are 32-bit, got " + indices.remaining() + " bytes.");
+		}
+
+		int vertexCount = vertices.remaining() / this.vertexStride;
+		int indexCount = indices.remaining() / 4;
+		long maxIndex = MeshPool.maxIndex(indices);
+		if (maxIndex >= vertexCount) {
+			throw new AssertionError("Index " + maxIndex + " is past the last of " + vertexCount + " vertices.");
+		}
+		if (maxIndex > this.maxIndexValue) {
+			throw new AssertionError("Index " + maxIndex + " is above maxDrawIndexedIndexValue, " + this.maxIndexValue);
+		}
+
+		/**
+		 * Every mesh has to start on a whole vertex, so its offset can be
+		 * given to a draw in vertices rather than bytes. The allocator only
+		 * aligns to powers of two, so for a stride like 24 we align to 8 and
+		 * ask for enough slack to round up to the next multiple of 24.
+		 */
+		int alignment = Integer.lowestOneBit(this.vertexStride);
+		long vertexAllocation = this.vertexRanges.allocate(vertices.remaining() + this.vertexStride - alignment, alignment);
+		if (vertexAllocation == SubAllocator.NO_SPACE) return null;
+		long indexByteOffset = this.indexRanges.allocate(indices.remaining(), 4);
+		if (indexByteOffset == SubAllocator.NO_SPACE) {
+			this.vertexRanges.free(vertexAllocation);
+			return null;
+		}
+		long vertexByteOffset = (vertexAllocation + this.vertexStride - 1) / this.vertexStride * this.vertexStride;
+
+		Mesh mesh = new Mesh();
+		mesh.vertexAllocation = vertexAllocation;
+		mesh.vertexByteOffset = vertexByteOffset;
+		mesh.indexByteOffset = indexByteOffset;
+		mesh.vertexOffset = (int)(vertexByteOffset / this.vertexStride);
+		mesh.vertexCount = vertexCount;
+		mesh.firstIndex = (int)(indexByteOffset / 4);
+		mesh.indexCount = indexCount;
+		mesh.ready = CompletableFuture.allOf(
+			this.uploader.upload(vertices, this.vertexBuffer, vertexByteOffset),
+			this.uploader.upload(indices, this.indexBuffer, indexByteOffset)
+		);
+		this.meshCount++;
+		return mesh;
+	}
+
+	protected static long maxIndex(ByteBuffer indices) {
+		ByteBuffer data = indices.duplicate().order(ByteOrder.nativeOrder());
+		long ret = 0;
+		for (int i = data.position(); i < data.limit(); i += 4) {
+			ret = Math.max(ret, data.getInt(i) & 0xFFFFFFFFL);
+		}
+		return ret;
+	}
+
+	/**
+	 * Gives the mesh's ranges back once every frame that might still draw it
+	 * has finished. Outside a frame they're given back right away, so only
+	 * do that when the GPU is idle.
+	 */
+	public void remove(Mesh mesh) {
+		FrameScheduler.Frame frame = this.frameScheduler.getCurrentFrame();
+		if (frame != null) {
+			frame.defer(() -> this.free(mesh));
+		} else {
+			this.free(mesh);
+		}
+	}
+
+	protected synchronized void free(Mesh mesh) {
+		this.vertexRanges.free(mesh.vertexAllocation);
+		this.indexRanges.free(mesh.indexByteOffset);
+		this.meshCount--;
+	}
+
+	/**
+	 * Binds the shared buffers. Once per command buffer is enough for every
+	 * mesh in the pool.
+	 */
+	public void bind(VkCommandBuffer commandBuffer, int binding) {
+		vkCmdBindVertexBuffers(commandBuffer, binding, new long[] { this.vertexBuffer.getBuffer() }, new long[] { 0 });
+		vkCmdBindIndexBuffer(commandBuffer, this.indexBuffer.getBuffer(), 0, VK_INDEX_TYPE_UINT32);
+	}
+
+	public DeviceBuffer getVertexBuffer() {
+		return this.vertexBuffer;
+	}
+
+	public DeviceBuffer getIndexBuffer() {
+		return this.indexBuffer;
+	}
+
+	public int getVertexStride() {
+		return this.vertexStride;
+	}
+
+	public synchronized int getMeshCount() {
+		return this.meshCount;
+	}
+
+	public synchronized String toString() {
+		return "MeshPool<meshes: " + this.meshCount + ", vertex bytes: " + this.vertexRanges.getUsedSize() + "/" + this.vertexRanges.getSize() + ", index bytes: " + this.indexRanges.getUsedSize() + "/" + this.indexRanges.getSize() + ">";
+	}
+
+	/**
+	 * The device has to be idle.
+	 */
+	public void dispose() {
+		this.vertexBuffer.dispose();
+		this.indexBuffer.dispose();
+	}
+}
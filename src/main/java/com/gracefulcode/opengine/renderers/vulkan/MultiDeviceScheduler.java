@@ -0,0 +1,372 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Spreads independent jobs over every suitable GPU instead of just the best
+ * one.
+ * <p>
+ * We make a LogicalDevice on each device the scorer accepts, and a context
+ * on each of those (a HeadlessRenderer, a ComputeDispatcher, whatever the
+ * jobs need). A job is a function from a context to a future; it's handed
+ * to whichever device we expect to finish it soonest.
+ * <p>
+ * That expectation is (jobs in flight + 1) times the device's cost per job.
+ * The cost is an exponentially weighted moving average of how long jobs
+ * take, divided by how many were in flight when each started, which is
+ * roughly the time the device spends on one job when it's kept busy. A
+ * device we haven't measured yet is assumed to be as fast as the fastest
+ * one we have, so every device gets tried early on. So a GPU twice as fast
+ * ends up with about twice the jobs, and a device that's backed up gets
+ * passed over until it drains.
+ * <p>
+ * Jobs must not depend on each other; two of them can run on different
+ * GPUs at once, and nothing is shared between the devices.
+ */
+public class MultiDeviceScheduler<C> {
+	/**
+	 * Weight of the newest sample in the cost average.
+	 */
+	public static final double DEFAULT_SMOOTHING = 0.2;
+
+	/**
+	 * One GPU's numbers at one point in time.
+	 */
+	public static class DeviceStats {
+		public final String name;
+		public final int inFlight;
+		public final int maxInFlight;
+		public final long submitted;
+		public final long completed;
+		public final long failed;
+
+		/**
+		 * Nanoseconds per job when busy, 0 if not measured yet.
+		 */
+		public final double cost;
+
+		/**
+		 * The fraction of all submitted jobs this device got.
+		 */
+		public final double share;
+		public final LatencyHistogram.Snapshot latency;
+
+		protected DeviceStats(String name, int inFlight, int maxInFlight, long submitted, long completed, long failed, double cost, double share, LatencyHistogram.Snapshot latency) {
+			this.name = name;
+			this.inFlight = inFlight;
+			this.maxInFlight = maxInFlight;
+			this.submitted = submitted;
+			this.completed = completed;
+			this.failed = failed;
+			this.cost = cost;
+			this.share = share;
+			this.latency = latency;
+		}
+
+		/**
+		 * @return Jobs per second when busy.
+		 */
+		public double getThroughput() {
+			return this.cost == 0 ? 0 : 1000000000.0 / this.cost;
+		}
+
+		public String toString() {
+			return String.format(
+				"DeviceStats<%s, in flight: %d (max %d), submitted: %d, completed: %d, failed: %d, throughput: %.1f/s, share: %.1f%%>",
+				this.name,
+				this.inFlight,
+				this.maxInFlight,
+				this.submitted,
+				this.completed,
+				this.failed,
+				this.getThroughput(),
+				this.share * 100
+			);
+		}
+	}
+
+	/**
+	 * One GPU and what we know about it.
+	 */
+	public static class Device<C> {
+		protected int index;
+		protected LogicalDevice logicalDevice;
+		protected C context;
+
+		protected AtomicInteger inFlight = new AtomicInteger();
+		protected AtomicInteger maxInFlight = new AtomicInteger();
+		protected AtomicLong submitted = new AtomicLong();
+		protected AtomicLong completed = new AtomicLong();
+		protected AtomicLong failed = new AtomicLong();
+		protected LatencyHistogram latency = new LatencyHistogram();
+
+		/**
+		 * Guarded by this.
+		 */
+		protected double cost;
+
+		protected Device(int index, LogicalDevice logicalDevice, C context) {
+			this.index = index;
+			this.logicalDevice = logicalDevice;
+			this.context = context;
+		}
+
+		public int getIndex() {
+			return this.index;
+		}
+
+		public LogicalDevice getLogicalDevice() {
+			return this.logicalDevice;
+		}
+
+		public C getContext() {
+			return this.context;
+		}
+
+		public int getInFlight() {
+			return this.inFlight.get();
+		}
+
+		public synchronized double getCost() {
+			return this.cost;
+		}
+
+		protected synchronized void sample(double cost, double smoothing) {
+			this.cost = this.cost == 0 ? cost : this.cost + (cost - this.cost) * smoothing;
+		}
+
+		/**
+		 * @param unmeasuredCost What to assume if we haven't measured this
+		 *        device yet.
+		 * @return When we'd expect one more job to finish, in the same units
+		 *         as cost.
+		 */
+		protected double expectedFinish(double unmeasuredCost) {
+			double cost = this.getCost();
+			return (this.inFlight.get() + 1) * (cost == 0 ? unmeasuredCost : cost);
+		}
+
+		public String toString() {
+			return "Device<" + this.index + ", " + this.logicalDevice.getPhysicalDevice() + ">";
+		}
+	}
+
+	protected ArrayList<Device<C>> devices = new ArrayList<Device<C>>();
+	protected Consumer<C> contextDisposer;
+	protected double smoothing = MultiDeviceScheduler.DEFAULT_SMOOTHING;
+
+	/**
+	 * One LogicalDevice with default queues and features per eligible device.
+	 */
+	public MultiDeviceScheduler(VkInstance instance, DeviceScorer scorer, Function<LogicalDevice, C> contextFactory, Consumer<C> contextDisposer) {
+		this(instance, scorer, LogicalDevice::new, contextFactory, contextDisposer);
+	}
+
+	/**
+	 * @param deviceFactory Makes the LogicalDevice for each eligible
+	 *        PhysicalDevice, for jobs that need extensions or features.
+	 * @param contextFactory Makes whatever the jobs run against on a device.
+	 * @param contextDisposer Called on each context on dispose, before its
+	 *        device goes away. May be null.
+	 * @throws AssertionError if no device is eligible.
+	 */
+	public MultiDeviceScheduler(VkInstance instance, DeviceScorer scorer, Function<PhysicalDevice, LogicalDevice> deviceFactory, Function<LogicalDevice, C> contextFactory, Consumer<C> contextDisposer) {
+		List<PhysicalDevice> physicalDevices = instance.getEligible(scorer);
+		if (physicalDevices.isEmpty()) {
+			throw new AssertionError("No physical device meets the requirements: " + instance.rankPhysicalDevices(scorer));
+		}
+
+		this.contextDisposer = contextDisposer;
+		this.addDevices(physicalDevices, deviceFactory, contextFactory);
+	}
+
+	/**
+	 * No devices until addDevices(), for subclasses and tests.
+	 */
+	protected MultiDeviceScheduler(Consumer<C> contextDisposer) {
+		this.contextDisposer = contextDisposer;
+	}
+
+	/**
+	 * Makes a device and context for each of physicalDevices. If any factory
+	 * throws, everything made so far is disposed before the error goes on,
+	 * so a half-built scheduler doesn't leak the devices that did work.
+	 */
+	protected void addDevices(List<PhysicalDevice> physicalDevices, Function<PhysicalDevice, LogicalDevice> deviceFactory, Function<LogicalDevice, C> contextFactory) {
+		try {
+			for (PhysicalDevice physicalDevice: physicalDevices) {
+				LogicalDevice logicalDevice = deviceFactory.apply(physicalDevice);
+				C context;
+				try {
+					context = contextFactory.apply(logicalDevice);
+				} catch (Throwable t) {
+					logicalDevice.dispose();
+					throw t;
+				}
+				this.devices.add(new Device<C>(this.devices.size(), logicalDevice, context));
+			}
+		} catch (Throwable t) {
+			try {
+				this.dispose();
+			} catch (Throwable e) {
+				t.addSuppressed(e);
+			}
+			throw t;
+		}
+	}
+
+	/**
+	 * @param smoothing Between 0 and 1. Higher reacts faster to a device
+	 *        slowing down (thermals, another process), lower is steadier.
+	 */
+	public void setSmoothing(double smoothing) {
+		this.smoothing = Math.max(0.001, Math.min(1, smoothing));
+	}
+
+	/**
+	 * Runs the job on whichever device should finish it first.
+	 * <p>
+	 * Choosing and counting the job against the chosen device happen under
+	 * one lock, so threads submitting at the same time each see the others'
+	 * jobs, rather than all picking the same idle device.
+	 */
+	public <R> CompletableFuture<R> submit(Function<C, CompletableFuture<R>> job) {
+		Device<C> device;
+		int depth;
+		synchronized (this) {
+			device = this.choose();
+			depth = device.inFlight.incrementAndGet();
+		}
+		return this.run(device, depth, job);
+	}
+
+	/**
+	 * Runs the job on a particular device, for work that has to be where
+	 * its data is. Still counted towards that device's numbers.
+	 */
+	public <R> CompletableFuture<R> submit(Device<C> device, Function<C, CompletableFuture<R>> job) {
+		return this.run(device, device.inFlight.incrementAndGet(), job);
+	}
+
+	/**
+	 * @param depth Jobs in flight on device, this one included, already
+	 *        counted.
+	 */
+	protected <R> CompletableFuture<R> run(Device<C> device, int depth, Function<C, CompletableFuture<R>> job) {
+		device.maxInFlight.accumulateAndGet(depth, Math::max);
+		device.submitted.incrementAndGet();
+		long start = System.nanoTime();
+
+		CompletableFuture<R> future;
+		try {
+			future = job.apply(device.context);
+		} catch (Throwable e) {
+			device.inFlight.decrementAndGet();
+			device.failed.incrementAndGet();
+			throw e;
+		}
+
+		return future.whenComplete((result, error) -> {
+			long elapsed = System.nanoTime() - start;
+			device.inFlight.decrementAndGet();
+			if (error != null) {
+				device.failed.incrementAndGet();
+				return;
+			}
+			device.completed.incrementAndGet();
+			device.latency.record(elapsed);
+			device.sample((double)elapsed / depth, this.smoothing);
+		});
+	}
+
+	/**
+	 * The device with the lowest expected finish. Ties, including the start
+	 * when nothing's measured, go to the emptiest queue and then to the
+	 * scorer's order.
+	 */
+	public Device<C> choose() {
+		double fastest = 0;
+		for (Device<C> device: this.devices) {
+			double cost = device.getCost();
+			if (cost != 0 && (fastest == 0 || cost < fastest)) fastest = cost;
+		}
+
+		Device<C> ret = null;
+		double retFinish = 0;
+		for (Device<C> device: this.devices) {
+			double finish = device.expectedFinish(fastest);
+			if (ret == null || finish < retFinish || (finish == retFinish && device.getInFlight() < ret.getInFlight())) {
+				ret = device;
+				retFinish = finish;
+			}
+		}
+		return ret;
+	}
+
+	public List<Device<C>> getDevices() {
+		return Collections.unmodifiableList(this.devices);
+	}
+
+	public int getDeviceCount() {
+		return this.devices.size();
+	}
+
+	/**
+	 * @return Jobs in flight across every device.
+	 */
+	public int getInFlight() {
+		int ret = 0;
+		for (Device<C> device: this.devices) {
+			ret += device.getInFlight();
+		}
+		return ret;
+	}
+
+	public List<DeviceStats> getStats() {
+		long total = 0;
+		for (Device<C> device: this.devices) {
+			total += device.submitted.get();
+		}
+
+		ArrayList<DeviceStats> ret = new ArrayList<DeviceStats>(this.devices.size());
+		for (Device<C> device: this.devices) {
+			long submitted = device.submitted.get();
+			ret.add(new DeviceStats(
+				device.logicalDevice.getPhysicalDevice().getDeviceName(),
+				device.inFlight.get(),
+				device.maxInFlight.get(),
+				submitted,
+				device.completed.get(),
+				device.failed.get(),
+				device.getCost(),
+				total == 0 ? 0 : (double)submitted / total,
+				device.latency.snapshot()
+			));
+		}
+		return ret;
+	}
+
+	public String toString() {
+		return "MultiDeviceScheduler<devices: " + this.devices.size() + ", in flight: " + this.getInFlight() + ">";
+	}
+
+	/**
+	 * Disposes every context and then every device. Wait for outstanding
+	 * futures first; we don't.
+	 */
+	public void dispose() {
+		for (Device<C> device: this.devices) {
+			device.logicalDevice.waitIdle();
+			if (this.contextDisposer != null) this.contextDisposer.accept(device.context);
+			device.logicalDevice.dispose();
+		}
+		this.devices.clear();
+	}
+}
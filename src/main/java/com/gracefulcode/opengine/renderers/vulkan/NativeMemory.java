@@ -0,0 +1,134 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.lwjgl.system.Configuration;
+import org.lwjgl.system.MemoryUtil.MemoryAllocationReport;
+
+/**
+ * How the renderer deals with memory outside the Java heap.
+ * <p>
+ * The rule is: anything that only lives for the length of a call (create
+ * infos, handle out-parameters, strings handed to Vulkan) comes from the
+ * thread's MemoryStack in a try-with-resources block, so it can't leak and
+ * never calls malloc. Only things that outlive the call, like a
+ * configuration's cached name list, use memAlloc, and whoever holds them
+ * frees them in dispose().
+ * <p>
+ * Setting -Dopengine.vulkan.debugMemory=true turns on lwjgl's debug
+ * allocator and stack checks. Those have to be set before lwjgl allocates
+ * anything. Vulkan and VkInstance configure() this class when they load,
+ * which is early enough unless something else (a windowing library, say)
+ * has already been using lwjgl; in that case call enableDebug() first thing
+ * in main(), or set -Dorg.lwjgl.util.DebugAllocator=true instead. After
+ * that, getLeaks() and reportLeaks() tell you which call sites still own
+ * native memory.
+ */
+public class NativeMemory {
+	public static final String DEBUG_PROPERTY = "opengine.vulkan.debugMemory";
+
+	protected static boolean isConfigured;
+
+	static {
+		NativeMemory.configure();
+	}
+
+	private NativeMemory() {
+	}
+
+	/**
+	 * Reads DEBUG_PROPERTY, once. Calling this is how other classes make
+	 * sure that happens before they allocate anything.
+	 */
+	public static synchronized void configure() {
+		if (NativeMemory.isConfigured) return;
+		NativeMemory.isConfigured = true;
+
+		if (Boolean.getBoolean(NativeMemory.DEBUG_PROPERTY)) {
+			NativeMemory.enableDebug();
+		}
+	}
+
+	/**
+	 * Turns on allocation tracking. Does nothing useful if lwjgl has already
+	 * allocated memory.
+	 */
+	public static synchronized void enableDebug() {
+		Configuration.DEBUG_MEMORY_ALLOCATOR.set(Boolean.TRUE);
+		Configuration.DEBUG_STACK.set(Boolean.TRUE);
+	}
+
+	/**
+	 * @return Whether allocations are being tracked. That's false if
+	 *         debugging was turned on after lwjgl had started allocating, so
+	 *         this is the thing to check, not the property.
+	 */
+	public static boolean isDebug() {
+		return getAllocator(true) != getAllocator(false);
+	}
+
+	/**
+	 * @return Bytes still allocated, keyed by the method that allocated them.
+	 *         Empty if debugging isn't on.
+	 */
+	public static Map<String, Long> getLeaks() {
+		if (!NativeMemory.isDebug()) return Collections.emptyMap();
+
+		TreeMap<String, Long> ret = new TreeMap<String, Long>();
+		memReport(new MemoryAllocationReport() {
+			public void invoke(long address, long memory, long threadId, String threadName, StackTraceElement... stacktrace) {
+				String site = NativeMemory.callSite(stacktrace);
+				Long previous = ret.get(site);
+				ret.put(site, Long.valueOf(memory + (previous == null ? 0 : previous.longValue())));
+			}
+		}, MemoryAllocationReport.Aggregate.GROUP_BY_METHOD, false);
+		return ret;
+	}
+
+	/**
+	 * @return The total of getLeaks().
+	 */
+	public static long getLeakedBytes() {
+		long ret = 0;
+		for (Long bytes: NativeMemory.getLeaks().values()) {
+			ret += bytes.longValue();
+		}
+		return ret;
+	}
+
+	/**
+	 * @return getLeaks() as one line per call site, biggest first, for
+	 *         whatever log you keep.
+	 */
+	public static String reportLeaks() {
+		return NativeMemory.report(NativeMemory.getLeaks());
+	}
+
+	protected static String report(Map<String, Long> leaks) {
+		if (leaks.isEmpty()) return "No native memory outstanding.";
+
+		return leaks.entrySet().stream()
+			.sorted((a, b) -> Long.compare(b.getValue(), a.getValue()))
+			.map(e -> e.getValue() + " bytes: " + e.getKey())
+			.collect(Collectors.joining("\n"));
+	}
+
+	/**
+	 * lwjgl's own frames are at the top of the stack trace. What we want is
+	 * the first frame that isn't lwjgl.
+	 */
+	protected static String callSite(StackTraceElement[] stacktrace) {
+		if (stacktrace == null || stacktrace.length == 0) return "<unknown>";
+		for (StackTraceElement element: stacktrace) {
+			if (!element.getClassName().startsWith("org.lwjgl.")) {
+				return element.toString();
+			}
+		}
+		return stacktrace[0].toString();
+	}
+}
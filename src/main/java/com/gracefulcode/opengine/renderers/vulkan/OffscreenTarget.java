@@ -0,0 +1,249 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.LongBuffer;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkAttachmentDescription;
+import org.lwjgl.vulkan.VkAttachmentReference;
+import org.lwjgl.vulkan.VkBufferImageCopy;
+import org.lwjgl.vulkan.VkBufferMemoryBarrier;
+import org.lwjgl.vulkan.VkClearValue;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkFramebufferCreateInfo;
+import org.lwjgl.vulkan.VkRenderPassBeginInfo;
+import org.lwjgl.vulkan.VkRenderPassCreateInfo;
+import org.lwjgl.vulkan.VkSubpassDependency;
+import org.lwjgl.vulkan.VkSubpassDescription;
+
+/**
+ * Something to render into that isn't a swapchain: a device-local color
+ * image, optionally a depth image, and a render pass and framebuffer over
+ * them.
+ * <p>
+ * The render pass clears everything on the way in and leaves the color image
+ * in TRANSFER_SRC_OPTIMAL on the way out, so copyTo() can be recorded right
+ * after endRenderPass() with no barrier of its own.
+ */
+public class OffscreenTarget {
+	protected LogicalDevice logicalDevice;
+	protected int width;
+	protected int height;
+	protected Image color;
+	protected Image depth;
+	protected long renderPass;
+	protected long framebuffer;
+
+	public OffscreenTarget(LogicalDevice logicalDevice, int width, int height, int colorFormat) {
+		this(logicalDevice, width, height, colorFormat, VK_FORMAT_UNDEFINED);
+	}
+
+	/**
+	 * @param colorFormat The VK_FORMAT_* of the color image.
+	 * @param depthFormat The VK_FORMAT_* of the depth image, or
+	 *        VK_FORMAT_UNDEFINED for none.
+	 */
+	public OffscreenTarget(LogicalDevice logicalDevice, int width, int height, int colorFormat, int depthFormat) {
+		this.logicalDevice = logicalDevice;
+		this.width = width;
+		this.height = height;
+
+		this.color = new Image(logicalDevice, width, height, colorFormat, VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT | VK_IMAGE_USAGE_TRANSFER_SRC_BIT, VK_IMAGE_ASPECT_COLOR_BIT);
+		if (depthFormat != VK_FORMAT_UNDEFINED) {
+			this.depth = new Image(logicalDevice, width, height, depthFormat, VK_IMAGE_USAGE_DEPTH_STENCIL_ATTACHMENT_BIT, VK_IMAGE_ASPECT_DEPTH_BIT);
+		}
+
+		try (MemoryStack stack = stackPush()) {
+			int attachmentCount = this.depth == null ? 1 : 2;
+
+			VkAttachmentDescription.Buffer attachments = VkAttachmentDescription.callocStack(attachmentCount, stack);
+			attachments.get(0)
+				.format(colorFormat)
+				.samples(VK_SAMPLE_COUNT_1_BIT)
+				.loadOp(VK_ATTACHMENT_LOAD_OP_CLEAR)
+				.storeOp(VK_ATTACHMENT_STORE_OP_STORE)
+				.stencilLoadOp(VK_ATTACHMENT_LOAD_OP_DONT_CARE)
+				.stencilStoreOp(VK_ATTACHMENT_STORE_OP_DONT_CARE)
+				.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED)
+				.finalLayout(VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL);
+
+			VkAttachmentReference.Buffer colorReference = VkAttachmentReference.callocStack(1, stack);
+			colorReference.get(0)
+				.attachment(0)
+				.layout(VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL);
+
+			VkSubpassDescription.Buffer subpass = VkSubpassDescription.callocStack(1, stack);
+			subpass.get(0)
+				.pipelineBindPoint(VK_PIPELINE_BIND_POINT_GRAPHICS)
+				.colorAttachmentCount(1)
+				.pColorAttachments(colorReference);
+
+			if (this.depth != null) {
+				attachments.get(1)
+					.format(depthFormat)
+					.samples(VK_SAMPLE_COUNT_1_BIT)
+					.loadOp(VK_ATTACHMENT_LOAD_OP_CLEAR)
+					.storeOp(VK_ATTACHMENT_STORE_OP_DONT_CARE)
+					.stencilLoadOp(VK_ATTACHMENT_LOAD_OP_DONT_CARE)
+					.stencilStoreOp(VK_ATTACHMENT_STORE_OP_DONT_CARE)
+					.initialLayout(VK_IMAGE_LAYOUT_UNDEFINED)
+					.finalLayout(VK_IMAGE_LAYOUT_DEPTH_STENCIL_ATTACHMENT_OPTIMAL);
+
+				VkAttachmentReference depthReference = VkAttachmentReference.callocStack(stack);
+				depthReference
+					.attachment(1)
+					.layout(VK_IMAGE_LAYOUT_DEPTH_STENCIL_ATTACHMENT_OPTIMAL);
+				subpass.get(0).pDepthStencilAttachment(depthReference);
+			}
+
+			/**
+			 * The copy after the render pass has to wait for the color writes.
+			 */
+			VkSubpassDependency.Buffer dependency = VkSubpassDependency.callocStack(1, stack);
+			dependency.get(0)
+				.srcSubpass(0)
+				.dstSubpass(VK_SUBPASS_EXTERNAL)
+				.srcStageMask(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT)
+				.dstStageMask(VK_PIPELINE_STAGE_TRANSFER_BIT)
+				.srcAccessMask(VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT)
+				.dstAccessMask(VK_ACCESS_TRANSFER_READ_BIT);
+
+			VkRenderPassCreateInfo renderPassInfo = VkRenderPassCreateInfo.callocStack(stack);
+			renderPassInfo.sType(VK_STRUCTURE_TYPE_RENDER_PASS_CREATE_INFO);
+			renderPassInfo.pAttachments(attachments);
+			renderPassInfo.pSubpasses(subpass);
+			renderPassInfo.pDependencies(dependency);
+
+			LongBuffer pHandle = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_RENDER_PASS.invoke(() -> vkCreateRenderPass(logicalDevice.getDevice(), renderPassInfo, null, pHandle));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create render pass: " + Vulkan.translateVulkanResult(err));
+			}
+			this.renderPass = pHandle.get(0);
+
+			LongBuffer views = this.depth == null ? stack.longs(this.color.getImageView()) : stack.longs(this.color.getImageView(), this.depth.getImageView());
+
+			VkFramebufferCreateInfo framebufferInfo = VkFramebufferCreateInfo.callocStack(stack);
+			framebufferInfo.sType(VK_STRUCTURE_TYPE_FRAMEBUFFER_CREATE_INFO);
+			framebufferInfo.renderPass(this.renderPass);
+			framebufferInfo.pAttachments(views);
+			framebufferInfo.width(width);
+			framebufferInfo.height(height);
+			framebufferInfo.layers(1);
+
+			err = VulkanCall.CREATE_FRAMEBUFFER.invoke(() -> vkCreateFramebuffer(logicalDevice.getDevice(), framebufferInfo, null, pHandle));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create framebuffer: " + Vulkan.translateVulkanResult(err));
+			}
+			this.framebuffer = pHandle.get(0);
+		}
+	}
+
+	/**
+	 * Begins the render pass, clearing color to the given value and depth to
+	 * 1.
+	 */
+	public void beginRenderPass(VkCommandBuffer commandBuffer, float red, float green, float blue, float alpha) {
+		try (MemoryStack stack = stackPush()) {
+			VkClearValue.Buffer clearValues = VkClearValue.callocStack(this.depth == null ? 1 : 2, stack);
+			clearValues.get(0).color()
+				.float32(0, red)
+				.float32(1, green)
+				.float32(2, blue)
+				.float32(3, alpha);
+			if (this.depth != null) {
+				clearValues.get(1).depthStencil().depth(1.0f);
+			}
+
+			VkRenderPassBeginInfo beginInfo = VkRenderPassBeginInfo.callocStack(stack);
+			beginInfo.sType(VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO);
+			beginInfo.renderPass(this.renderPass);
+			beginInfo.framebuffer(this.framebuffer);
+			beginInfo.renderArea().extent().set(this.width, this.height);
+			beginInfo.pClearValues(clearValues);
+
+			vkCmdBeginRenderPass(commandBuffer, beginInfo, VK_SUBPASS_CONTENTS_INLINE);
+		}
+	}
+
+	public void endRenderPass(VkCommandBuffer commandBuffer) {
+		vkCmdEndRenderPass(commandBuffer);
+	}
+
+	/**
+	 * Copies the color image, tightly packed, into destination and makes it
+	 * visible to the host. Record this after endRenderPass().
+	 */
+	public void copyTo(VkCommandBuffer commandBuffer, DeviceBuffer destination, long destinationOffset) {
+		try (MemoryStack stack = stackPush()) {
+			VkBufferImageCopy.Buffer region = VkBufferImageCopy.callocStack(1, stack);
+			region.get(0)
+				.bufferOffset(destinationOffset)
+				.bufferRowLength(0)
+				.bufferImageHeight(0);
+			region.get(0).imageSubresource()
+				.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT)
+				.mipLevel(0)
+				.baseArrayLayer(0)
+				.layerCount(1);
+			region.get(0).imageExtent().set(this.width, this.height, 1);
+
+			vkCmdCopyImageToBuffer(commandBuffer, this.color.getImage(), VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL, destination.getBuffer(), region);
+
+			VkBufferMemoryBarrier.Buffer barrier = VkBufferMemoryBarrier.callocStack(1, stack);
+			barrier.get(0)
+				.sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER)
+				.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+				.dstAccessMask(VK_ACCESS_HOST_READ_BIT)
+				.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+				.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+				.buffer(destination.getBuffer())
+				.offset(destinationOffset)
+				.size(this.color.getByteSize());
+
+			vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_HOST_BIT, 0, null, barrier, null);
+		}
+	}
+
+	public int getWidth() {
+		return this.width;
+	}
+
+	public int getHeight() {
+		return this.height;
+	}
+
+	public Image getColor() {
+		return this.color;
+	}
+
+	/**
+	 * @return The depth image, or null if there isn't one.
+	 */
+	public Image getDepth() {
+		return this.depth;
+	}
+
+	public long getRenderPass() {
+		return this.renderPass;
+	}
+
+	public long getFramebuffer() {
+		return this.framebuffer;
+	}
+
+	public String toString() {
+		return "OffscreenTarget<" + this.width + "x" + this.height + ", format: " + this.color.getFormat() + ", depth: " + (this.depth != null) + ">";
+	}
+
+	public void dispose() {
+		VulkanCall.DESTROY_FRAMEBUFFER.run(() -> vkDestroyFramebuffer(this.logicalDevice.getDevice(), this.framebuffer, null));
+		VulkanCall.DESTROY_RENDER_PASS.run(() -> vkDestroyRenderPass(this.logicalDevice.getDevice(), this.renderPass, null));
+		if (this.depth != null) {
+			this.depth.dispose();
+		}
+		this.color.dispose();
+	}
+}
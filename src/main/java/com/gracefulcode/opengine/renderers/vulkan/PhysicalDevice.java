@@ -1,14 +1,27 @@
 package com.gracefulcode.opengine.renderers.vulkan;
 
+import static org.lwjgl.system.MemoryStack.*;
 import static org.lwjgl.system.MemoryUtil.*;
 import static org.lwjgl.vulkan.VK11.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
-
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.EXTDescriptorIndexing;
+import org.lwjgl.vulkan.KHRGetPhysicalDeviceProperties2;
+import org.lwjgl.vulkan.VKCapabilitiesInstance;
+import org.lwjgl.vulkan.VkExtensionProperties;
 import org.lwjgl.vulkan.VkPhysicalDevice;
-import org.lwjgl.vulkan.VkPhysicalDeviceFeatures;
-import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+import org.lwjgl.vulkan.VkPhysicalDeviceDescriptorIndexingFeaturesEXT;
+import org.lwjgl.vulkan.VkPhysicalDeviceDescriptorIndexingPropertiesEXT;
+import org.lwjgl.vulkan.VkPhysicalDeviceFeatures2;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties2;
 import org.lwjgl.vulkan.VkQueueFamilyProperties;
 
 /**
@@ -21,445 +34,355 @@ import org.lwjgl.vulkan.VkQueueFamilyProperties;
  * capabilities are of our various GPUs and decide among them.
  * <p>
  * This class is responsible for laying out all of the capabilities of a GPU.
- * <p>
- * NOTE: Right now, we are collecting a lot of fields in this class, marked as
- * public. These ALL will be moving at some point. We're taking the agile
- * approach and moving them only when needed.
+ * The capabilities are split into groups (properties and limits, features,
+ * queue families, memory) that mirror the Vulkan structs. Each group is only
+ * asked for the first time somebody needs it, and is immutable after that,
+ * so a PhysicalDevice can be shared between threads freely. A device that
+ * loses out in device selection never pays for the groups nobody looked at.
  *
  * @author Daniel Grace <dgrace@gracefulcode.com>
  * @version 0.1
  */
 public class PhysicalDevice {
+	/**
+	 * Bumped whenever the layout of writeCapabilities() changes.
+	 */
+	protected static final int CAPABILITIES_VERSION = 1;
+
+	/**
+	 * Way more than any real device has, so a corrupt count can't have us
+	 * allocating gigabytes.
+	 */
+	protected static final int MAX_CACHED_QUEUES = 256;
+
 	protected long id;
 	protected VkPhysicalDevice vkPhysicalDevice;
-	protected ArrayList<Queue> queues = new ArrayList<Queue>();
-
-	// Base
-	public int apiVersion;
-	public int deviceId;
-	public String deviceName;
-	protected int deviceType;
-	public int driverVersion;
-	public int vendorId;
-
-	// Limits
-	public long bufferImageGranularity;
-	public int discreteQueuePriorities;
-	public int framebufferColorSampleCounts;
-	public int framebufferDepthSampleCounts;
-	public int framebufferNoAttachmentsSampleCounts;
-	public int framebufferStencilSampleCounts;
-	public float lineWidthGranularity;
-	public float lineWidthMin;
-	public float lineWidthMax;
-	public int maxBoundDescriptorSets;
-	public int maxClipDistances;
-	public int maxColorAttachments;
-	public int maxCombinedClipAndCullDistances;
-	public int maxComputeSharedMemorySize;
-	public int maxComputeWorkGroupCountX;
-	public int maxComputeWorkGroupCountY;
-	public int maxComputeWorkGroupCountZ;
-	public int maxComputeWorkGroupInvocations;
-	public int maxComputeWorkGroupSizeX;
-	public int maxComputeWorkGroupSizeY;
-	public int maxComputeWorkGroupSizeZ;
-	public int maxCullDistances;
-	public int maxDescriptorSetInputAttachments;
-	public int maxDescriptorSetSampledImages;
-	public int maxDescriptorSetSamplers;
-	public int maxDescriptorSetStorageBuffers;
-	public int maxDescriptorSetStorageBuffersDynamic;
-	public int maxDescriptorSetStorageImages;
-	public int maxDescriptorSetUniformBuffers;
-	public int maxDescriptorSetUniformBuffersDynamic;
-	public int maxDrawIndexedIndexValue;
-	public int maxDrawIndirectCount;
-	public int maxFragmentCombinedOutputResources;
-	public int maxFragmentDualSrcAttachments;
-	public int maxFragmentInputComponents;
-	public int maxFragmentOutputAttachments;
-	public int maxFramebufferHeight;
-	public int maxFramebufferLayers;
-	public int maxFramebufferWidth;
-	public int maxGeometryInputComponents;
-	public int maxGeometryOutputComponents;
-	public int maxGeometryOutputVertices;
-	public int maxGeometryShaderInvocations;
-	public int maxGeometryTotalOutputComponents;
-	public int maxImageArrayLayers;
-	public int maxImageDimension1D;
-	public int maxImageDimension2D;
-	public int maxImageDimension3D;
-	public int maxImageDimensionCube;
-	public float maxInterpolationOffset;
-	public int maxMemoryAllocationCount;
-	public int maxPerStageDescriptorInputAttachments;
-	public int maxPerStageDescriptorSampledImages;
-	public int maxPerStageDescriptorSamplers;
-	public int maxPerStageDescriptorStorageBuffers;
-	public int maxPerStageDescriptorStorageImages;
-	public int maxPerStageDescriptorUniformBuffers;
-	public int maxPerStageResources;
-	public int maxPushConstantsSize;
-	public int maxSampleMaskWords;
-	public int maxSamplerAllocationCount;
-	public float maxSamplerAnisotropy;
-	public float maxSamplerLodBias;
-	public int maxStorageBufferRange;
-	public int maxTessellationControlPerPatchOutputComponents;
-	public int maxTessellationControlPerVertexInputComponents;
-	public int maxTessellationControlPerVertexOutputComponents;
-	public int maxTessellationControlTotalOutputComponents;
-	public int maxTessellationEvaluationInputComponents;
-	public int maxTessellationEvaluationOutputComponents;
-	public int maxTessellationGenerationLevel;
-	public int maxTessellationPatchSize;
-	public int maxTexelBufferElements;
-	public int maxTexelGatherOffset;
-	public int maxTexelOffset;
-	public int maxUniformBufferRange;
-	public int maxVertexInputAttributeOffset;
-	public int maxVertexInputAttributes;
-	public int maxVertexInputBindings;
-	public int maxVertexInputBindingStride;
-	public int maxVertexOutputComponents;
-	public int maxViewportX;
-	public int maxViewportY;
-	public int maxViewports;
-	public float minInterpolationOffset;
-	public long minMemoryMapAlignment;
-	public long minStorageBufferOffsetAlignment;
-	public long minTexelBufferOffsetAlignment;
-	public int minTexelGatherOffset;
-	public int minTexelOffset;
-	public long minUniformBufferOffsetAlignment;
-	public int mipmapPrecisionBits;
-	public long nonCoherentAtomSize;
-	public long optimalBufferCopyOffsetAlignment;
-	public long optimalBufferCopyRowPitchAlignment;
-	public float pointSizeGranularity;
-	public float pointSizeMin;
-	public float pointSizeMax;
-	public int sampledImageColorSampleCounts;
-	public int sampledImageDepthSampleCounts;
-	public int sampledImageIntegerSampleCounts;
-	public int sampledImageStencilSampleCounts;
-	public long sparseAddressSpaceSize;
-	public boolean standardSampleLocations;
-	public int storageImageSampleCounts;
-	public boolean strictLines;
-	public int subPixelInterpolationOffsetBits;
-	public int subPixelPrecisionBits;
-	public int subTexelPrecisionBits;
-	public boolean timestampComputeAndGraphics;
-	public float timestampPeriod;
-	public float viewportBoundsMin;
-	public float viewportBoundsMax;
-	public int viewportSubPixelBits;
-
-	// Sparse Properties
-	public boolean residencyAlignedMipSize;
-	public boolean residencyNonResidentStrict;
-	public boolean residencyStandard2DBlockShape;
-	public boolean residencyStandard2DMultisampleBlockShape;
-	public boolean residencyStandard3DBlockShape;
-
-	// Features
-	public boolean alphaToOne;
-	public boolean depthBiasClamp;
-	public boolean depthBounds;
-	public boolean depthClamp;
-	public boolean drawIndirectFirstInstance;
-	public boolean dualSrcBlend;
-	public boolean fillModeNonSolid;
-	public boolean fragmentStoresAndAtomics;
-	public boolean fullDrawIndexUint32;
-	public boolean geometryShader;
-	public boolean imageCubeArray;
-	public boolean independentBlend;
-	public boolean inheritedQueries;
-	public boolean largePoints;
-	public boolean logicOp;
-	public boolean multiDrawIndirect;
-	public boolean multiViewport;
-	public boolean occlusionQueryPrecise;
-	public boolean pipelineStatisticsQuery;
-	public boolean robustBufferAccess;
-	public boolean samplerAnisotropy;
-	public boolean sampleRateShading;
-	public boolean shaderClipDistance;
-	public boolean shaderCullDistance;
-	public boolean shaderFloat64;
-	public boolean shaderImageGatherExtended;
-	public boolean shaderInt16;
-	public boolean shaderInt64;
-	public boolean shaderResourceMinLod;
-	public boolean shaderResourceResidency;
-	public boolean shaderSampledImageArrayDynamicIndexing;
-	public boolean shaderStorageBufferArrayDynamicIndexing;
-	public boolean shaderStorageImageArrayDynamicIndexing;
-	public boolean shaderStorageImageExtendedFormats;
-	public boolean shaderStorageImageMultisample;
-	public boolean shaderStorageImageReadWithoutFormat;
-	public boolean shaderStorageImageWriteWithoutFormat;
-	public boolean shaderTessellationAndGeometryPointSize;
-	public boolean shaderUniformBufferArrayDynamicIndexing;
-	public boolean sparseBinding;
-	public boolean sparseResidency16Samples;
-	public boolean sparseResidency2Samples;
-	public boolean sparseResidency4Samples;
-	public boolean sparseResidency8Samples;
-	public boolean sparseResidencyAliased;
-	public boolean sparseResidencyBuffer;
-	public boolean sparseResidencyImage2D;
-	public boolean sparseResidencyImage3D;
-	public boolean tessellationShader;
-	public boolean textureCompressionASTC_LDR;
-	public boolean textureCompressionBC;
-	public boolean textureCompressionETC2;
-	public boolean variableMultisampleRate;
-	public boolean vertexPipelineStoresAndAtomics;
-	public boolean wideLines;
+
+	protected volatile PhysicalDeviceProperties properties;
+	protected volatile PhysicalDeviceFeatures features;
+	protected volatile List<Queue> queues;
+	protected volatile PhysicalDeviceMemoryProperties memoryProperties;
+	protected volatile DescriptorIndexingSupport descriptorIndexing;
+
+	/**
+	 * CapabilityNames IDs of every device extension. Never modified once set.
+	 */
+	protected volatile BitSet extensions;
+
+	/**
+	 * A device with no Vulkan handle behind it, for subclasses that stand in
+	 * for real hardware. Anything that asks the driver will fail.
+	 */
+	protected PhysicalDevice(long id) {
+		this.id = id;
+	}
 
 	public PhysicalDevice(org.lwjgl.vulkan.VkInstance vkInstance, long id) {
+		this(vkInstance, id, null);
+	}
+
+	/**
+	 * @param vkInstance The lwjgl instance that owns this device.
+	 * @param id The VkPhysicalDevice handle.
+	 * @param cache If not null, features, queues and memory are read from
+	 *        here when we've seen this device and driver before, and written
+	 *        here when we haven't. An entry that doesn't read back cleanly
+	 *        is replaced with a fresh one.
+	 */
+	public PhysicalDevice(org.lwjgl.vulkan.VkInstance vkInstance, long id, PhysicalDeviceCache cache) {
 		this.id = id;
 		this.vkPhysicalDevice = new VkPhysicalDevice(id, vkInstance);
 
-		this.setupProperties();
-		this.setupFeatures();
-		this.setupQueues();
+		if (cache != null) this.loadCapabilities(cache);
+	}
+
+	/**
+	 * The cache key comes from the properties, so with a cache we can't be
+	 * lazy about those. Everything else either comes out of the cache or
+	 * gets asked for now so it can go into the cache.
+	 */
+	protected void loadCapabilities(PhysicalDeviceCache cache) {
+		ByteBuffer cached = cache.get(this.getCacheKey());
+		if (cached == null || !this.readCapabilities(cached)) {
+			cache.put(this.getCacheKey(), this.writeCapabilities());
+		}
 	}
 
 	public String toString() {
-		return this.deviceName;
+		return this.getDeviceName();
 	}
 
 	public VkPhysicalDevice getPhysicalDevice() {
 		return this.vkPhysicalDevice;
 	}
 
+	public PhysicalDeviceProperties getProperties() {
+		PhysicalDeviceProperties ret = this.properties;
+		if (ret == null) {
+			synchronized (this) {
+				ret = this.properties;
+				if (ret == null) {
+					ret = this.queryProperties();
+					this.properties = ret;
+				}
+			}
+		}
+		return ret;
+	}
+
+	public PhysicalDeviceLimits getLimits() {
+		return this.getProperties().limits;
+	}
+
+	public PhysicalDeviceSparseProperties getSparseProperties() {
+		return this.getProperties().sparseProperties;
+	}
+
+	public PhysicalDeviceFeatures getFeatures() {
+		PhysicalDeviceFeatures ret = this.features;
+		if (ret == null) {
+			synchronized (this) {
+				ret = this.features;
+				if (ret == null) {
+					ret = this.queryFeatures();
+					this.features = ret;
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The queue families, in family index order.
+	 */
+	public List<Queue> getQueues() {
+		List<Queue> ret = this.queues;
+		if (ret == null) {
+			synchronized (this) {
+				ret = this.queues;
+				if (ret == null) {
+					ret = this.queryQueues();
+					this.queues = ret;
+				}
+			}
+		}
+		return ret;
+	}
+
+	public PhysicalDeviceMemoryProperties getMemoryProperties() {
+		PhysicalDeviceMemoryProperties ret = this.memoryProperties;
+		if (ret == null) {
+			synchronized (this) {
+				ret = this.memoryProperties;
+				if (ret == null) {
+					ret = this.queryMemoryProperties();
+					this.memoryProperties = ret;
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return What VK_EXT_descriptor_indexing offers, or
+	 *         DescriptorIndexingSupport.NONE if the device doesn't have it.
+	 *         Asking needs either a Vulkan 1.1 instance or
+	 *         VK_KHR_get_physical_device_properties2 turned on for the
+	 *         instance; without one of those this is NONE too.
+	 */
+	public DescriptorIndexingSupport getDescriptorIndexingSupport() {
+		DescriptorIndexingSupport ret = this.descriptorIndexing;
+		if (ret == null) {
+			synchronized (this) {
+				ret = this.descriptorIndexing;
+				if (ret == null) {
+					ret = this.queryDescriptorIndexing();
+					this.descriptorIndexing = ret;
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Asks for every group now rather than on first use.
+	 */
+	public void prefetch() {
+		this.getProperties();
+		this.getFeatures();
+		this.getQueues();
+		this.getMemoryProperties();
+		this.getExtensionIds();
+		this.getDescriptorIndexingSupport();
+	}
+
+	/**
+	 * @return The CapabilityNames IDs of every extension this device
+	 *         supports. This is the device's own copy, so don't change it.
+	 */
+	protected BitSet getExtensionIds() {
+		BitSet ret = this.extensions;
+		if (ret == null) {
+			synchronized (this) {
+				ret = this.extensions;
+				if (ret == null) {
+					ret = this.queryExtensions();
+					this.extensions = ret;
+				}
+			}
+		}
+		return ret;
+	}
+
+	public boolean hasExtension(String extensionName) {
+		int id = CapabilityNames.find(extensionName);
+		return id >= 0 && this.getExtensionIds().get(id);
+	}
+
+	public List<String> getExtensionNames() {
+		BitSet ids = this.getExtensionIds();
+		ArrayList<String> ret = new ArrayList<String>();
+		for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+			ret.add(CapabilityNames.name(id));
+		}
+		return Collections.unmodifiableList(ret);
+	}
+
+	/**
+	 * @return A fresh, locked configuration holding every extension this
+	 *         device supports, all UNKNOWN. Set what you need on it and hand
+	 *         it to LogicalDevice.
+	 */
+	public ExtensionConfiguration newExtensionConfiguration() {
+		ExtensionConfiguration ret = new ExtensionConfiguration();
+		ret.addSupported(this.getExtensionIds());
+		ret.lock();
+		return ret;
+	}
+
+	public String getDeviceName() {
+		return this.getProperties().deviceName;
+	}
+
+	public int getVendorId() {
+		return this.getProperties().vendorId;
+	}
+
+	public int getDeviceId() {
+		return this.getProperties().deviceId;
+	}
+
+	public int getDriverVersion() {
+		return this.getProperties().driverVersion;
+	}
+
+	public int getApiVersion() {
+		return this.getProperties().apiVersion;
+	}
+
 	public boolean isDiscreteGpu() {
-		return this.deviceType == VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU;
-	}
-
-	protected void setupProperties() {
-		VkPhysicalDeviceProperties properties = VkPhysicalDeviceProperties.calloc();
-
-		vkGetPhysicalDeviceProperties(this.vkPhysicalDevice, properties);
-
-		this.apiVersion = properties.apiVersion();
-		this.deviceId = properties.deviceID();
-		this.deviceName = properties.deviceNameString();
-		this.deviceType = properties.deviceType();
-		this.driverVersion = properties.driverVersion();
-		this.vendorId = properties.vendorID();
-
-		this.bufferImageGranularity = properties.limits().bufferImageGranularity();
-		this.discreteQueuePriorities = properties.limits().discreteQueuePriorities();
-		this.framebufferColorSampleCounts = properties.limits().framebufferColorSampleCounts();
-		this.framebufferDepthSampleCounts = properties.limits().framebufferDepthSampleCounts();
-		this.framebufferNoAttachmentsSampleCounts = properties.limits().framebufferNoAttachmentsSampleCounts();
-		this.framebufferStencilSampleCounts = properties.limits().framebufferStencilSampleCounts();
-		this.lineWidthGranularity = properties.limits().lineWidthGranularity();
-		this.lineWidthMin = properties.limits().lineWidthRange(0);
-		this.lineWidthMax = properties.limits().lineWidthRange(1);
-		this.maxBoundDescriptorSets = properties.limits().maxBoundDescriptorSets();
-		this.maxClipDistances = properties.limits().maxClipDistances();
-		this.maxColorAttachments = properties.limits().maxColorAttachments();
-		this.maxCombinedClipAndCullDistances = properties.limits().maxCombinedClipAndCullDistances();
-		this.maxComputeSharedMemorySize = properties.limits().maxComputeSharedMemorySize();
-		this.maxComputeWorkGroupCountX = properties.limits().maxComputeWorkGroupCount(0);
-		this.maxComputeWorkGroupCountY = properties.limits().maxComputeWorkGroupCount(1);
-		this.maxComputeWorkGroupCountZ = properties.limits().maxComputeWorkGroupCount(2);
-		this.maxComputeWorkGroupInvocations = properties.limits().maxComputeWorkGroupInvocations();
-		this.maxComputeWorkGroupSizeX = properties.limits().maxComputeWorkGroupSize(0);
-		this.maxComputeWorkGroupSizeY = properties.limits().maxComputeWorkGroupSize(1);
-		this.maxComputeWorkGroupSizeZ = properties.limits().maxComputeWorkGroupSize(2);
-		this.maxCullDistances = properties.limits().maxCullDistances();
-		this.maxDescriptorSetInputAttachments = properties.limits().maxDescriptorSetInputAttachments();
-		this.maxDescriptorSetSampledImages = properties.limits().maxDescriptorSetSampledImages();
-		this.maxDescriptorSetSamplers = properties.limits().maxDescriptorSetSamplers();
-		this.maxDescriptorSetStorageBuffers = properties.limits().maxDescriptorSetStorageBuffers();
-		this.maxDescriptorSetStorageBuffersDynamic = properties.limits().maxDescriptorSetStorageBuffersDynamic();
-		this.maxDescriptorSetStorageImages = properties.limits().maxDescriptorSetSampledImages();
-		this.maxDescriptorSetUniformBuffers = properties.limits().maxDescriptorSetUniformBuffers();
-		this.maxDescriptorSetUniformBuffersDynamic = properties.limits().maxDescriptorSetUniformBuffersDynamic();
-		this.maxDrawIndexedIndexValue = properties.limits().maxDrawIndexedIndexValue();
-		this.maxDrawIndirectCount = properties.limits().maxDrawIndirectCount();
-		this.maxFragmentCombinedOutputResources = properties.limits().maxFragmentCombinedOutputResources();
-		this.maxFragmentDualSrcAttachments = properties.limits().maxFragmentDualSrcAttachments();
-		this.maxFragmentInputComponents = properties.limits().maxFragmentInputComponents();
-		this.maxFragmentOutputAttachments = properties.limits().maxFragmentOutputAttachments();
-		this.maxFramebufferHeight = properties.limits().maxFramebufferHeight();
-		this.maxFramebufferLayers = properties.limits().maxFramebufferLayers();
-		this.maxFramebufferWidth = properties.limits().maxFramebufferWidth();
-		this.maxGeometryInputComponents = properties.limits().maxGeometryInputComponents();
-		this.maxGeometryOutputComponents = properties.limits().maxGeometryOutputComponents();
-		this.maxGeometryOutputVertices = properties.limits().maxGeometryOutputVertices();
-		this.maxGeometryShaderInvocations = properties.limits().maxGeometryShaderInvocations();
-		this.maxGeometryTotalOutputComponents = properties.limits().maxGeometryTotalOutputComponents();
-		this.maxImageArrayLayers = properties.limits().maxImageArrayLayers();
-		this.maxImageDimension1D = properties.limits().maxImageDimension1D();
-		this.maxImageDimension2D = properties.limits().maxImageDimension2D();
-		this.maxImageDimension3D = properties.limits().maxImageDimension3D();
-		this.maxImageDimensionCube = properties.limits().maxImageDimensionCube();
-		this.maxInterpolationOffset = properties.limits().maxInterpolationOffset();
-		this.maxMemoryAllocationCount = properties.limits().maxMemoryAllocationCount();
-		this.maxPerStageDescriptorInputAttachments = properties.limits().maxPerStageDescriptorInputAttachments();
-		this.maxPerStageDescriptorSampledImages = properties.limits().maxPerStageDescriptorSampledImages();
-		this.maxPerStageDescriptorSamplers = properties.limits().maxPerStageDescriptorSamplers();
-		this.maxPerStageDescriptorStorageBuffers = properties.limits().maxPerStageDescriptorStorageBuffers();
-		this.maxPerStageDescriptorStorageImages = properties.limits().maxPerStageDescriptorStorageImages();
-		this.maxPerStageDescriptorUniformBuffers = properties.limits().maxPerStageDescriptorUniformBuffers();
-		this.maxPerStageResources = properties.limits().maxPerStageResources();
-		this.maxPushConstantsSize = properties.limits().maxPushConstantsSize();
-		this.maxSampleMaskWords = properties.limits().maxSampleMaskWords();
-		this.maxSamplerAllocationCount = properties.limits().maxSamplerAllocationCount();
-		this.maxSamplerAnisotropy = properties.limits().maxSamplerAnisotropy();
-		this.maxSamplerLodBias = properties.limits().maxSamplerLodBias();
-		this.maxStorageBufferRange = properties.limits().maxStorageBufferRange();
-		this.maxTessellationControlPerPatchOutputComponents = properties.limits().maxTessellationControlPerPatchOutputComponents();
-		this.maxTessellationControlPerVertexInputComponents = properties.limits().maxTessellationControlPerVertexInputComponents();
-		this.maxTessellationControlPerVertexOutputComponents = properties.limits().maxTessellationControlPerVertexOutputComponents();
-		this.maxTessellationControlTotalOutputComponents = properties.limits().maxTessellationControlTotalOutputComponents();
-		this.maxTessellationEvaluationInputComponents = properties.limits().maxTessellationEvaluationInputComponents();
-		this.maxTessellationEvaluationOutputComponents = properties.limits().maxTessellationEvaluationOutputComponents();
-		this.maxTessellationGenerationLevel = properties.limits().maxTessellationGenerationLevel();
-		this.maxTessellationPatchSize = properties.limits().maxTessellationPatchSize();
-		this.maxTexelBufferElements = properties.limits().maxTexelBufferElements();
-		this.maxTexelGatherOffset = properties.limits().maxTexelGatherOffset();
-		this.maxTexelOffset = properties.limits().maxTexelOffset();
-		this.maxUniformBufferRange = properties.limits().maxUniformBufferRange();
-		this.maxVertexInputAttributeOffset = properties.limits().maxVertexInputAttributeOffset();
-		this.maxVertexInputAttributes = properties.limits().maxVertexInputAttributes();
-		this.maxVertexInputBindings = properties.limits().maxVertexInputBindings();
-		this.maxVertexInputBindingStride = properties.limits().maxVertexInputBindingStride();
-		this.maxVertexOutputComponents = properties.limits().maxVertexOutputComponents();
-		this.maxViewportX = properties.limits().maxViewportDimensions(0);
-		this.maxViewportY = properties.limits().maxViewportDimensions(1);
-		this.maxViewports = properties.limits().maxViewports();
-		this.minInterpolationOffset = properties.limits().minInterpolationOffset();
-		this.minMemoryMapAlignment = properties.limits().minMemoryMapAlignment();
-		this.minStorageBufferOffsetAlignment = properties.limits().minStorageBufferOffsetAlignment();
-		this.minTexelBufferOffsetAlignment = properties.limits().minTexelBufferOffsetAlignment();
-		this.minTexelGatherOffset = properties.limits().minTexelGatherOffset();
-		this.minTexelOffset = properties.limits().minTexelOffset();
-		this.minUniformBufferOffsetAlignment = properties.limits().minUniformBufferOffsetAlignment();
-		this.mipmapPrecisionBits = properties.limits().mipmapPrecisionBits();
-		this.nonCoherentAtomSize = properties.limits().nonCoherentAtomSize();
-		this.optimalBufferCopyOffsetAlignment = properties.limits().optimalBufferCopyOffsetAlignment();
-		this.optimalBufferCopyRowPitchAlignment = properties.limits().optimalBufferCopyRowPitchAlignment();
-		this.pointSizeGranularity = properties.limits().pointSizeGranularity();
-		this.pointSizeMin = properties.limits().pointSizeRange(0);
-		this.pointSizeMax = properties.limits().pointSizeRange(1);
-		this.sampledImageColorSampleCounts = properties.limits().sampledImageColorSampleCounts();
-		this.sampledImageDepthSampleCounts = properties.limits().sampledImageDepthSampleCounts();
-		this.sampledImageIntegerSampleCounts = properties.limits().sampledImageIntegerSampleCounts();
-		this.sampledImageStencilSampleCounts = properties.limits().sampledImageStencilSampleCounts();
-		this.sparseAddressSpaceSize = properties.limits().sparseAddressSpaceSize();
-		this.standardSampleLocations = properties.limits().standardSampleLocations();
-		this.storageImageSampleCounts = properties.limits().storageImageSampleCounts();
-		this.strictLines = properties.limits().strictLines();
-		this.subPixelInterpolationOffsetBits = properties.limits().subPixelInterpolationOffsetBits();
-		this.subPixelPrecisionBits = properties.limits().subPixelPrecisionBits();
-		this.subTexelPrecisionBits = properties.limits().subTexelPrecisionBits();
-		this.timestampComputeAndGraphics = properties.limits().timestampComputeAndGraphics();
-		this.timestampPeriod = properties.limits().timestampPeriod();
-		this.viewportBoundsMin = properties.limits().viewportBoundsRange(0);
-		this.viewportBoundsMax = properties.limits().viewportBoundsRange(1);
-		this.viewportSubPixelBits = properties.limits().viewportSubPixelBits();
-
-		this.residencyAlignedMipSize = properties.sparseProperties().residencyAlignedMipSize();
-		this.residencyNonResidentStrict = properties.sparseProperties().residencyNonResidentStrict();
-		this.residencyStandard2DBlockShape = properties.sparseProperties().residencyStandard2DBlockShape();
-		this.residencyStandard2DMultisampleBlockShape = properties.sparseProperties().residencyStandard2DMultisampleBlockShape();
-		this.residencyStandard3DBlockShape = properties.sparseProperties().residencyStandard3DBlockShape();
-
-		properties.free();
-	}
-
-	protected void setupFeatures() {
-		VkPhysicalDeviceFeatures features = VkPhysicalDeviceFeatures.calloc();
-
-		vkGetPhysicalDeviceFeatures(this.vkPhysicalDevice, features);
-
-		this.alphaToOne = features.alphaToOne();
-		this.depthBiasClamp = features.depthBiasClamp();
-		this.depthBounds = features.depthBounds();
-		this.depthClamp = features.depthClamp();
-		this.drawIndirectFirstInstance = features.drawIndirectFirstInstance();
-		this.dualSrcBlend = features.dualSrcBlend();
-		this.fillModeNonSolid = features.fillModeNonSolid();
-		this.fragmentStoresAndAtomics = features.fragmentStoresAndAtomics();
-		this.fullDrawIndexUint32 = features.fullDrawIndexUint32();
-		this.geometryShader = features.geometryShader();
-		this.imageCubeArray = features.imageCubeArray();
-		this.independentBlend = features.independentBlend();
-		this.inheritedQueries = features.inheritedQueries();
-		this.largePoints = features.largePoints();
-		this.logicOp = features.logicOp();
-		this.multiDrawIndirect = features.multiDrawIndirect();
-		this.multiViewport = features.multiViewport();
-		this.occlusionQueryPrecise = features.occlusionQueryPrecise();
-		this.pipelineStatisticsQuery = features.pipelineStatisticsQuery();
-		this.robustBufferAccess = features.robustBufferAccess();
-		this.samplerAnisotropy = features.samplerAnisotropy();
-		this.sampleRateShading = features.sampleRateShading();
-		this.shaderClipDistance = features.shaderClipDistance();
-		this.shaderCullDistance = features.shaderCullDistance();
-		this.shaderFloat64 = features.shaderFloat64();
-		this.shaderImageGatherExtended = features.shaderImageGatherExtended();
-		this.shaderInt16 = features.shaderInt16();
-		this.shaderInt64 = features.shaderInt64();
-		this.shaderResourceMinLod = features.shaderResourceMinLod();
-		this.shaderResourceResidency = features.shaderResourceResidency();
-		this.shaderSampledImageArrayDynamicIndexing = features.shaderSampledImageArrayDynamicIndexing();
-		this.shaderStorageBufferArrayDynamicIndexing = features.shaderStorageBufferArrayDynamicIndexing();
-		this.shaderStorageImageArrayDynamicIndexing = features.shaderStorageImageArrayDynamicIndexing();
-		this.shaderStorageImageExtendedFormats = features.shaderStorageImageExtendedFormats();
-		this.shaderStorageImageMultisample = features.shaderStorageImageMultisample();
-		this.shaderStorageImageReadWithoutFormat = features.shaderStorageImageReadWithoutFormat();
-		this.shaderStorageImageWriteWithoutFormat = features.shaderStorageImageWriteWithoutFormat();
-		this.shaderTessellationAndGeometryPointSize = features.shaderTessellationAndGeometryPointSize();
-		this.shaderUniformBufferArrayDynamicIndexing = features.shaderUniformBufferArrayDynamicIndexing();
-		this.sparseBinding = features.sparseBinding();
-		this.sparseResidency16Samples = features.sparseResidency16Samples();
-		this.sparseResidency2Samples = features.sparseResidency2Samples();
-		this.sparseResidency4Samples = features.sparseResidency4Samples();
-		this.sparseResidency8Samples = features.sparseResidency8Samples();
-		this.sparseResidencyAliased = features.sparseResidencyAliased();
-		this.sparseResidencyBuffer = features.sparseResidencyBuffer();
-		this.sparseResidencyImage2D = features.sparseResidencyImage2D();
-		this.sparseResidencyImage3D = features.sparseResidencyImage3D();
-		this.tessellationShader = features.tessellationShader();
-		this.textureCompressionASTC_LDR = features.textureCompressionASTC_LDR();
-		this.textureCompressionBC = features.textureCompressionBC();
-		this.textureCompressionETC2 = features.textureCompressionETC2();
-		this.variableMultisampleRate = features.variableMultisampleRate();
-		this.vertexPipelineStoresAndAtomics = features.vertexPipelineStoresAndAtomics();
-		this.wideLines = features.wideLines();
-
-		features.free();
+		return this.getProperties().isDiscreteGpu();
 	}
 
+	/**
+	 * @return True for software implementations like lavapipe.
+	 */
+	public boolean isCpu() {
+		return this.getProperties().isCpu();
+	}
+
+	/**
+	 * @param queueFlags VK_QUEUE_*_BIT flags.
+	 * @return True if some queue family has all of them.
+	 */
+	public boolean hasQueue(int queueFlags) {
+		for (Queue queue: this.getQueues()) {
+			if ((queue.flags & queueFlags) == queueFlags) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @see PhysicalDeviceMemoryProperties#findMemoryType
+	 */
+	public int findMemoryType(int memoryTypeBits, int requiredFlags, int preferredFlags) {
+		return this.getMemoryProperties().findMemoryType(memoryTypeBits, requiredFlags, preferredFlags);
+	}
+
+	protected PhysicalDeviceProperties queryProperties() {
+		try (MemoryStack stack = stackPush()) {
+			org.lwjgl.vulkan.VkPhysicalDeviceProperties properties = org.lwjgl.vulkan.VkPhysicalDeviceProperties.mallocStack(stack);
+			VulkanCall.GET_PHYSICAL_DEVICE_PROPERTIES.run(() -> vkGetPhysicalDeviceProperties(this.vkPhysicalDevice, properties));
+			return new PhysicalDeviceProperties(properties);
+		}
+	}
+
+	protected DescriptorIndexingSupport queryDescriptorIndexing() {
+		if (!this.hasExtension(EXTDescriptorIndexing.VK_EXT_DESCRIPTOR_INDEXING_EXTENSION_NAME)) {
+			return DescriptorIndexingSupport.NONE;
+		}
+
+		VKCapabilitiesInstance capabilities = this.vkPhysicalDevice.getCapabilities();
+		boolean isCore = capabilities.vkGetPhysicalDeviceFeatures2 != NULL && this.getApiVersion() >= VK_API_VERSION_1_1;
+		if (!isCore && capabilities.vkGetPhysicalDeviceFeatures2KHR == NULL) {
+			return DescriptorIndexingSupport.NONE;
+		}
+
+		try (MemoryStack stack = stackPush()) {
+			VkPhysicalDeviceDescriptorIndexingFeaturesEXT indexingFeatures = VkPhysicalDeviceDescriptorIndexingFeaturesEXT.callocStack(stack);
+			indexingFeatures.sType(EXTDescriptorIndexing.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_DESCRIPTOR_INDEXING_FEATURES_EXT);
+			VkPhysicalDeviceFeatures2 features = VkPhysicalDeviceFeatures2.callocStack(stack);
+			features.sType(VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_FEATURES_2);
+			features.pNext(indexingFeatures.address());
+
+			VkPhysicalDeviceDescriptorIndexingPropertiesEXT indexingProperties = VkPhysicalDeviceDescriptorIndexingPropertiesEXT.callocStack(stack);
+			indexingProperties.sType(EXTDescriptorIndexing.VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_DESCRIPTOR_INDEXING_PROPERTIES_EXT);
+			VkPhysicalDeviceProperties2 properties = VkPhysicalDeviceProperties2.callocStack(stack);
+			properties.sType(VK_STRUCTURE_TYPE_PHYSICAL_DEVICE_PROPERTIES_2);
+			properties.pNext(indexingProperties.address());
+
+			if (isCore) {
+				VulkanCall.GET_PHYSICAL_DEVICE_FEATURES_2.run(() -> vkGetPhysicalDeviceFeatures2(this.vkPhysicalDevice, features));
+				VulkanCall.GET_PHYSICAL_DEVICE_PROPERTIES_2.run(() -> vkGetPhysicalDeviceProperties2(this.vkPhysicalDevice, properties));
+			} else {
+				VulkanCall.GET_PHYSICAL_DEVICE_FEATURES_2.run(() -> KHRGetPhysicalDeviceProperties2.vkGetPhysicalDeviceFeatures2KHR(this.vkPhysicalDevice, features));
+				VulkanCall.GET_PHYSICAL_DEVICE_PROPERTIES_2.run(() -> KHRGetPhysicalDeviceProperties2.vkGetPhysicalDeviceProperties2KHR(this.vkPhysicalDevice, properties));
+			}
+
+			return new DescriptorIndexingSupport(indexingFeatures, indexingProperties);
+		}
+	}
+
+	protected PhysicalDeviceFeatures queryFeatures() {
+		try (MemoryStack stack = stackPush()) {
+			org.lwjgl.vulkan.VkPhysicalDeviceFeatures features = org.lwjgl.vulkan.VkPhysicalDeviceFeatures.mallocStack(stack);
+			VulkanCall.GET_PHYSICAL_DEVICE_FEATURES.run(() -> vkGetPhysicalDeviceFeatures(this.vkPhysicalDevice, features));
+			return new PhysicalDeviceFeatures(features);
+		}
+	}
+
+	/**
+	 * A queue family, and what the queues in it can do. Immutable.
+	 */
 	public static class Queue {
-		protected int index;
-		protected int count;
-		protected int timestampValidBits;
-		protected int depth;
-		protected int width;
-		protected int height;
-
-		protected boolean graphics;
-		protected boolean compute;
-		protected boolean transfer;
-		protected boolean sparse;
-		protected boolean prot;
-
-		private Queue(int index, int count, int flags, int timestampValidBits, int depth, int width, int height) {
+		protected final int index;
+		protected final int count;
+		protected final int flags;
+		protected final int timestampValidBits;
+		protected final int depth;
+		protected final int width;
+		protected final int height;
+
+		protected final boolean graphics;
+		protected final boolean compute;
+		protected final boolean transfer;
+		protected final boolean sparse;
+		protected final boolean prot;
+
+		protected Queue(int index, int count, int flags, int timestampValidBits, int depth, int width, int height) {
 			this.index = index;
 			this.count = count;
+			this.flags = flags;
 			this.timestampValidBits = timestampValidBits;
 			this.depth = depth;
 			this.width = width;
@@ -472,30 +395,223 @@ public class PhysicalDevice {
 			this.prot = (flags & VK_QUEUE_PROTECTED_BIT) != 0;
 		}
 
+		/**
+		 * @return The queue family index.
+		 */
+		public int getIndex() {
+			return this.index;
+		}
+
+		/**
+		 * @return How many queues this family has.
+		 */
+		public int getCount() {
+			return this.count;
+		}
+
+		public int getFlags() {
+			return this.flags;
+		}
+
+		public int getTimestampValidBits() {
+			return this.timestampValidBits;
+		}
+
+		public int getMinImageTransferGranularityWidth() {
+			return this.width;
+		}
+
+		public int getMinImageTransferGranularityHeight() {
+			return this.height;
+		}
+
+		public int getMinImageTransferGranularityDepth() {
+			return this.depth;
+		}
+
+		public boolean isGraphics() {
+			return this.graphics;
+		}
+
+		public boolean isCompute() {
+			return this.compute;
+		}
+
+		/**
+		 * Graphics and compute queues can always do transfers even when they
+		 * don't advertise it, so this is true for those too.
+		 */
+		public boolean isTransfer() {
+			return this.transfer || this.graphics || this.compute;
+		}
+
+		public boolean isSparse() {
+			return this.sparse;
+		}
+
+		public boolean isProtected() {
+			return this.prot;
+		}
+
 		public String toString() {
 			return "Queue<index: " + this.index + ", count:" + this.count + ", transfer:<" + this.depth + ", " + this.width + ", " + this.height + ">, graphics: " + this.graphics + ", compute: " + this.compute + ", transfer: " + this.transfer + ", sparse: " + this.sparse + ", protected: " + this.prot + ">";
 		}
 	}
 
-	protected void setupQueues() {
-		IntBuffer numQueues = memAllocInt(1);
+	protected List<Queue> queryQueues() {
+		ArrayList<Queue> ret = new ArrayList<Queue>();
+		try (MemoryStack stack = stackPush()) {
+			IntBuffer numQueues = stack.mallocInt(1);
+
+			VulkanCall.GET_PHYSICAL_DEVICE_QUEUE_FAMILY_PROPERTIES.run(() -> vkGetPhysicalDeviceQueueFamilyProperties(this.vkPhysicalDevice, numQueues, null));
+			VkQueueFamilyProperties.Buffer queueProps = VkQueueFamilyProperties.mallocStack(numQueues.get(0), stack);
+			VulkanCall.GET_PHYSICAL_DEVICE_QUEUE_FAMILY_PROPERTIES.run(() -> vkGetPhysicalDeviceQueueFamilyProperties(this.vkPhysicalDevice, numQueues, queueProps));
+
+			for (int index = 0; index < numQueues.get(0); index++) {
+				VkQueueFamilyProperties props = queueProps.get(index);
+
+				Queue queue = new Queue(index, props.queueCount(), props.queueFlags(), props.timestampValidBits(), props.minImageTransferGranularity().depth(), props.minImageTransferGranularity().width(), props.minImageTransferGranularity().height());
+				ret.add(queue);
+			}
+		}
+
+		return Collections.unmodifiableList(ret);
+	}
+
+	protected BitSet queryExtensions() {
+		BitSet ret = new BitSet();
+		try (MemoryStack stack = stackPush()) {
+			IntBuffer numExtensions = stack.mallocInt(1);
+			int err = VulkanCall.ENUMERATE_DEVICE_EXTENSION_PROPERTIES.invoke(() -> vkEnumerateDeviceExtensionProperties(this.vkPhysicalDevice, (CharSequence)null, numExtensions, null));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Could not enumerate device extensions: " + Vulkan.translateVulkanResult(err));
+			}
+
+			/**
+			 * Drivers list a couple of hundred of these, which is too much for
+			 * the stack.
+			 */
+			VkExtensionProperties.Buffer extensionProperties = VkExtensionProperties.malloc(numExtensions.get(0));
+			try {
+				err = VulkanCall.ENUMERATE_DEVICE_EXTENSION_PROPERTIES.invoke(() -> vkEnumerateDeviceExtensionProperties(this.vkPhysicalDevice, (CharSequence)null, numExtensions, extensionProperties));
+				if (err != VK_SUCCESS && err != VK_INCOMPLETE) {
+					throw new AssertionError("Could not enumerate device extensions: " + Vulkan.translateVulkanResult(err));
+				}
+				for (int i = 0; i < numExtensions.get(0); i++) {
+					ret.set(CapabilityNames.intern(extensionProperties.get(i).extensionNameString()));
+				}
+			} finally {
+				extensionProperties.free();
+			}
+		}
+		return ret;
+	}
+
+	protected PhysicalDeviceMemoryProperties queryMemoryProperties() {
+		try (MemoryStack stack = stackPush()) {
+			org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties memoryProperties = org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties.mallocStack(stack);
+			VulkanCall.GET_PHYSICAL_DEVICE_MEMORY_PROPERTIES.run(() -> vkGetPhysicalDeviceMemoryProperties(this.vkPhysicalDevice, memoryProperties));
+			return new PhysicalDeviceMemoryProperties(memoryProperties);
+		}
+	}
+
+	public PhysicalDeviceCache.Key getCacheKey() {
+		PhysicalDeviceProperties properties = this.getProperties();
+		return new PhysicalDeviceCache.Key(properties.vendorId, properties.deviceId, properties.driverVersion, properties.apiVersion);
+	}
+
+	/**
+	 * Serializes everything that PhysicalDeviceCache stands in for: the
+	 * feature mask, the queue families and the memory heaps and types.
+	 */
+	protected ByteBuffer writeCapabilities() {
+		PhysicalDeviceFeatures features = this.getFeatures();
+		List<Queue> queues = this.getQueues();
+		PhysicalDeviceMemoryProperties memoryProperties = this.getMemoryProperties();
+
+		int size = 4 + 8 + 4 + queues.size() * 24 + 4 + memoryProperties.memoryHeaps.size() * 12 + 4 + memoryProperties.memoryTypes.size() * 8;
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+
+		buffer.putInt(PhysicalDevice.CAPABILITIES_VERSION);
+		buffer.putLong(features.getMask());
+
+		buffer.putInt(queues.size());
+		for (Queue queue: queues) {
+			buffer.putInt(queue.count);
+			buffer.putInt(queue.flags);
+			buffer.putInt(queue.timestampValidBits);
+			buffer.putInt(queue.depth);
+			buffer.putInt(queue.width);
+			buffer.putInt(queue.height);
+		}
 
-		vkGetPhysicalDeviceQueueFamilyProperties(this.vkPhysicalDevice, numQueues, null);
-		VkQueueFamilyProperties.Buffer queueProps = VkQueueFamilyProperties.calloc(numQueues.get(0));
-		vkGetPhysicalDeviceQueueFamilyProperties(this.vkPhysicalDevice, numQueues, queueProps);
+		buffer.putInt(memoryProperties.memoryHeaps.size());
+		for (PhysicalDeviceMemoryProperties.MemoryHeap memoryHeap: memoryProperties.memoryHeaps) {
+			buffer.putLong(memoryHeap.size);
+			buffer.putInt(memoryHeap.flags);
+		}
 
-		for (int index = 0; index < numQueues.get(0); index++) {
-			VkQueueFamilyProperties props = queueProps.get(index);
+		buffer.putInt(memoryProperties.memoryTypes.size());
+		for (PhysicalDeviceMemoryProperties.MemoryType memoryType: memoryProperties.memoryTypes) {
+			buffer.putInt(memoryType.heapIndex);
+			buffer.putInt(memoryType.propertyFlags);
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Reads what writeCapabilities() wrote. Nothing is set unless the whole
+	 * payload checks out, so on false the device is still as lazy as if we
+	 * had no cache, and the caller should write a fresh entry.
+	 *
+	 * @return False if the payload is from another version, truncated or
+	 *         otherwise doesn't make sense.
+	 */
+	protected boolean readCapabilities(ByteBuffer payload) {
+		ByteBuffer buffer = payload.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+		if (buffer.remaining() < 4 + 8 + 4) return false;
+		if (buffer.getInt() != PhysicalDevice.CAPABILITIES_VERSION) return false;
+		long featureMask = buffer.getLong();
+
+		int numQueues = buffer.getInt();
+		if (numQueues < 0 || numQueues > PhysicalDevice.MAX_CACHED_QUEUES || buffer.remaining() < numQueues * 24 + 4) return false;
+		ArrayList<Queue> queues = new ArrayList<Queue>();
+		for (int index = 0; index < numQueues; index++) {
+			int count = buffer.getInt();
+			int flags = buffer.getInt();
+			int timestampValidBits = buffer.getInt();
+			int depth = buffer.getInt();
+			int width = buffer.getInt();
+			int height = buffer.getInt();
+			queues.add(new Queue(index, count, flags, timestampValidBits, depth, width, height));
+		}
+
+		int numHeaps = buffer.getInt();
+		if (numHeaps < 0 || numHeaps > VK_MAX_MEMORY_HEAPS || buffer.remaining() < numHeaps * 12 + 4) return false;
+		ArrayList<PhysicalDeviceMemoryProperties.MemoryHeap> memoryHeaps = new ArrayList<PhysicalDeviceMemoryProperties.MemoryHeap>();
+		for (int index = 0; index < numHeaps; index++) {
+			long size = buffer.getLong();
+			memoryHeaps.add(new PhysicalDeviceMemoryProperties.MemoryHeap(index, size, buffer.getInt()));
+		}
 
-			Queue queue = new Queue(index, props.queueCount(), props.queueFlags(), props.timestampValidBits(), props.minImageTransferGranularity().depth(), props.minImageTransferGranularity().width(), props.minImageTransferGranularity().height());
-			this.queues.add(queue);
+		int numTypes = buffer.getInt();
+		if (numTypes < 0 || numTypes > VK_MAX_MEMORY_TYPES || buffer.remaining() != numTypes * 8) return false;
+		ArrayList<PhysicalDeviceMemoryProperties.MemoryType> memoryTypes = new ArrayList<PhysicalDeviceMemoryProperties.MemoryType>();
+		for (int index = 0; index < numTypes; index++) {
+			int heapIndex = buffer.getInt();
+			if (heapIndex < 0 || heapIndex >= numHeaps) return false;
+			memoryTypes.add(new PhysicalDeviceMemoryProperties.MemoryType(index, heapIndex, buffer.getInt()));
 		}
-		System.out.println(this.queues);
 
-		memFree(numQueues);
-		queueProps.free();
+		this.features = new PhysicalDeviceFeatures(featureMask);
+		this.queues = Collections.unmodifiableList(queues);
+		this.memoryProperties = new PhysicalDeviceMemoryProperties(memoryHeaps, memoryTypes);
+		return true;
 	}
 
 	protected void dispose() {
 	}
-}
\ No newline at end of file
+}
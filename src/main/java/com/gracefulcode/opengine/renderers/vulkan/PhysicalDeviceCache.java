@@ -0,0 +1,182 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small on-disk snapshot of what each GPU we've seen can do.
+ * <p>
+ * Asking the driver about features, queue families and memory is slow on
+ * some drivers, and the answers never change until the driver does. So we
+ * write them out once and on later launches memory-map the file and read
+ * them back instead.
+ * <p>
+ * Records are keyed by vendorId, deviceId, driverVersion and apiVersion.
+ * All four come from vkGetPhysicalDeviceProperties, which we still have to
+ * call every launch, but that one call is cheap. A driver update changes
+ * the key, which is what makes us ask the driver again.
+ * <p>
+ * The file is a header (magic, version, record count) followed by records
+ * of four key ints, a length, and that many payload bytes. The payload
+ * format belongs to PhysicalDevice.
+ */
+public class PhysicalDeviceCache {
+	protected static final int MAGIC = 0x4f504443; // OPDC
+	protected static final int VERSION = 1;
+
+	public static class Key {
+		protected int vendorId;
+		protected int deviceId;
+		protected int driverVersion;
+		protected int apiVersion;
+
+		public Key(int vendorId, int deviceId, int driverVersion, int apiVersion) {
+			this.vendorId = vendorId;
+			this.deviceId = deviceId;
+			this.driverVersion = driverVersion;
+			this.apiVersion = apiVersion;
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) return false;
+			Key key = (Key)other;
+			return this.vendorId == key.vendorId && this.deviceId == key.deviceId && this.driverVersion == key.driverVersion && this.apiVersion == key.apiVersion;
+		}
+
+		public int hashCode() {
+			int ret = this.vendorId;
+			ret = ret * 31 + this.deviceId;
+			ret = ret * 31 + this.driverVersion;
+			ret = ret * 31 + this.apiVersion;
+			return ret;
+		}
+
+		public String toString() {
+			return "Key<vendor: " + this.vendorId + ", device: " + this.deviceId + ", driver: " + this.driverVersion + ", api: " + this.apiVersion + ">";
+		}
+	}
+
+	protected Path path;
+
+	/**
+	 * Payloads are slices of the mapped file for anything we loaded, and heap
+	 * buffers for anything written this run.
+	 */
+	protected LinkedHashMap<Key, ByteBuffer> records = new LinkedHashMap<Key, ByteBuffer>();
+	protected boolean isDirty = false;
+
+	/**
+	 * Opens the cache at path. A missing, unreadable or corrupt file just
+	 * gives us an empty cache; it'll be rewritten on save.
+	 */
+	public PhysicalDeviceCache(Path path) {
+		this.path = path;
+
+		if (!Files.isRegularFile(path)) return;
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			this.read(mapped.order(ByteOrder.LITTLE_ENDIAN));
+		} catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+			this.records.clear();
+			this.isDirty = true;
+		}
+	}
+
+	protected void read(ByteBuffer buffer) {
+		if (buffer.getInt() != PhysicalDeviceCache.MAGIC || buffer.getInt() != PhysicalDeviceCache.VERSION) {
+			this.isDirty = true;
+			return;
+		}
+
+		int numRecords = buffer.getInt();
+		for (int i = 0; i < numRecords; i++) {
+			Key key = new Key(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+			int length = buffer.getInt();
+
+			ByteBuffer payload = buffer.slice();
+			payload.limit(length);
+			buffer.position(buffer.position() + length);
+
+			this.records.put(key, payload.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN));
+		}
+	}
+
+	/**
+	 * @return The payload for this key, positioned at its start, or null if
+	 *         we've never seen this device/driver pair.
+	 */
+	public synchronized ByteBuffer get(Key key) {
+		ByteBuffer payload = this.records.get(key);
+		if (payload == null) return null;
+
+		return payload.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @param key The device/driver pair.
+	 * @param payload The bytes between position and limit are copied.
+	 */
+	public synchronized void put(Key key, ByteBuffer payload) {
+		ByteBuffer copy = ByteBuffer.allocate(payload.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+		copy.put(payload.duplicate());
+		copy.flip();
+
+		this.records.put(key, copy);
+		this.isDirty = true;
+	}
+
+	public synchronized boolean isDirty() {
+		return this.isDirty;
+	}
+
+	/**
+	 * Writes the cache back out if anything changed. We write to a temporary
+	 * file and move it over the old one so a crash never leaves a half
+	 * written cache behind.
+	 */
+	public synchronized void save() throws IOException {
+		if (!this.isDirty) return;
+
+		int size = 12;
+		for (ByteBuffer payload: this.records.values()) {
+			size += 20 + payload.remaining();
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(PhysicalDeviceCache.MAGIC);
+		buffer.putInt(PhysicalDeviceCache.VERSION);
+		buffer.putInt(this.records.size());
+		for (Map.Entry<Key, ByteBuffer> entry: this.records.entrySet()) {
+			Key key = entry.getKey();
+			buffer.putInt(key.vendorId);
+			buffer.putInt(key.deviceId);
+			buffer.putInt(key.driverVersion);
+			buffer.putInt(key.apiVersion);
+			buffer.putInt(entry.getValue().remaining());
+			buffer.put(entry.getValue().duplicate());
+		}
+		buffer.flip();
+
+		Path parent = this.path.toAbsolutePath().getParent();
+		if (parent != null) Files.createDirectories(parent);
+
+		Path temp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining()) channel.write(buffer);
+		}
+		Files.move(temp, this.path, StandardCopyOption.REPLACE_EXISTING);
+
+		this.isDirty = false;
+	}
+}
@@ -0,0 +1,389 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lwjgl.vulkan.VkPhysicalDeviceFeatures;
+
+/**
+ * Everything from VkPhysicalDeviceFeatures. Immutable.
+ * <p>
+ * Features can also be packed into a single long, one bit each, which is
+ * how PhysicalDeviceCache stores them.
+ */
+public class PhysicalDeviceFeatures {
+	/**
+	 * The name of each feature, indexed by its bit in getMask().
+	 */
+	protected static final String[] NAMES = {
+		"alphaToOne",
+		"depthBiasClamp",
+		"depthBounds",
+		"depthClamp",
+		"drawIndirectFirstInstance",
+		"dualSrcBlend",
+		"fillModeNonSolid",
+		"fragmentStoresAndAtomics",
+		"fullDrawIndexUint32",
+		"geometryShader",
+		"imageCubeArray",
+		"independentBlend",
+		"inheritedQueries",
+		"largePoints",
+		"logicOp",
+		"multiDrawIndirect",
+		"multiViewport",
+		"occlusionQueryPrecise",
+		"pipelineStatisticsQuery",
+		"robustBufferAccess",
+		"samplerAnisotropy",
+		"sampleRateShading",
+		"shaderClipDistance",
+		"shaderCullDistance",
+		"shaderFloat64",
+		"shaderImageGatherExtended",
+		"shaderInt16",
+		"shaderInt64",
+		"shaderResourceMinLod",
+		"shaderResourceResidency",
+		"shaderSampledImageArrayDynamicIndexing",
+		"shaderStorageBufferArrayDynamicIndexing",
+		"shaderStorageImageArrayDynamicIndexing",
+		"shaderStorageImageExtendedFormats",
+		"shaderStorageImageMultisample",
+		"shaderStorageImageReadWithoutFormat",
+		"shaderStorageImageWriteWithoutFormat",
+		"shaderTessellationAndGeometryPointSize",
+		"shaderUniformBufferArrayDynamicIndexing",
+		"sparseBinding",
+		"sparseResidency16Samples",
+		"sparseResidency2Samples",
+		"sparseResidency4Samples",
+		"sparseResidency8Samples",
+		"sparseResidencyAliased",
+		"sparseResidencyBuffer",
+		"sparseResidencyImage2D",
+		"sparseResidencyImage3D",
+		"tessellationShader",
+		"textureCompressionASTC_LDR",
+		"textureCompressionBC",
+		"textureCompressionETC2",
+		"variableMultisampleRate",
+		"vertexPipelineStoresAndAtomics",
+		"wideLines"
+	};
+
+	public final boolean alphaToOne;
+	public final boolean depthBiasClamp;
+	public final boolean depthBounds;
+	public final boolean depthClamp;
+	public final boolean drawIndirectFirstInstance;
+	public final boolean dualSrcBlend;
+	public final boolean fillModeNonSolid;
+	public final boolean fragmentStoresAndAtomics;
+	public final boolean fullDrawIndexUint32;
+	public final boolean geometryShader;
+	public final boolean imageCubeArray;
+	public final boolean independentBlend;
+	public final boolean inheritedQueries;
+	public final boolean largePoints;
+	public final boolean logicOp;
+	public final boolean multiDrawIndirect;
+	public final boolean multiViewport;
+	public final boolean occlusionQueryPrecise;
+	public final boolean pipelineStatisticsQuery;
+	public final boolean robustBufferAccess;
+	public final boolean samplerAnisotropy;
+	public final boolean sampleRateShading;
+	public final boolean shaderClipDistance;
+	public final boolean shaderCullDistance;
+	public final boolean shaderFloat64;
+	public final boolean shaderImageGatherExtended;
+	public final boolean shaderInt16;
+	public final boolean shaderInt64;
+	public final boolean shaderResourceMinLod;
+	public final boolean shaderResourceResidency;
+	public final boolean shaderSampledImageArrayDynamicIndexing;
+	public final boolean shaderStorageBufferArrayDynamicIndexing;
+	public final boolean shaderStorageImageArrayDynamicIndexing;
+	public final boolean shaderStorageImageExtendedFormats;
+	public final boolean shaderStorageImageMultisample;
+	public final boolean shaderStorageImageReadWithoutFormat;
+	public final boolean shaderStorageImageWriteWithoutFormat;
+	public final boolean shaderTessellationAndGeometryPointSize;
+	public final boolean shaderUniformBufferArrayDynamicIndexing;
+	public final boolean sparseBinding;
+	public final boolean sparseResidency16Samples;
+	public final boolean sparseResidency2Samples;
+	public final boolean sparseResidency4Samples;
+	public final boolean sparseResidency8Samples;
+	public final boolean sparseResidencyAliased;
+	public final boolean sparseResidencyBuffer;
+	public final boolean sparseResidencyImage2D;
+	public final boolean sparseResidencyImage3D;
+	public final boolean tessellationShader;
+	public final boolean textureCompressionASTC_LDR;
+	public final boolean textureCompressionBC;
+	public final boolean textureCompressionETC2;
+	public final boolean variableMultisampleRate;
+	public final boolean vertexPipelineStoresAndAtomics;
+	public final boolean wideLines;
+
+	public PhysicalDeviceFeatures(VkPhysicalDeviceFeatures features) {
+		this.alphaToOne = features.alphaToOne();
+		this.depthBiasClamp = features.depthBiasClamp();
+		this.depthBounds = features.depthBounds();
+		this.depthClamp = features.depthClamp();
+		this.drawIndirectFirstInstance = features.drawIndirectFirstInstance();
+		this.dualSrcBlend = features.dualSrcBlend();
+		this.fillModeNonSolid = features.fillModeNonSolid();
+		this.fragmentStoresAndAtomics = features.fragmentStoresAndAtomics();
+		this.fullDrawIndexUint32 = features.fullDrawIndexUint32();
+		this.geometryShader = features.geometryShader();
+		this.imageCubeArray = features.imageCubeArray();
+		this.independentBlend = features.independentBlend();
+		this.inheritedQueries = features.inheritedQueries();
+		this.largePoints = features.largePoints();
+		this.logicOp = features.logicOp();
+		this.multiDrawIndirect = features.multiDrawIndirect();
+		this.multiViewport = features.multiViewport();
+		this.occlusionQueryPrecise = features.occlusionQueryPrecise();
+		this.pipelineStatisticsQuery = features.pipelineStatisticsQuery();
+		this.robustBufferAccess = features.robustBufferAccess();
+		this.samplerAnisotropy = features.samplerAnisotropy();
+		this.sampleRateShading = features.sampleRateShading();
+		this.shaderClipDistance = features.shaderClipDistance();
+		this.shaderCullDistance = features.shaderCullDistance();
+		this.shaderFloat64 = features.shaderFloat64();
+		this.shaderImageGatherExtended = features.shaderImageGatherExtended();
+		this.shaderInt16 = features.shaderInt16();
+		this.shaderInt64 = features.shaderInt64();
+		this.shaderResourceMinLod = features.shaderResourceMinLod();
+		this.shaderResourceResidency = features.shaderResourceResidency();
+		this.shaderSampledImageArrayDynamicIndexing = features.shaderSampledImageArrayDynamicIndexing();
+		this.shaderStorageBufferArrayDynamicIndexing = features.shaderStorageBufferArrayDynamicIndexing();
+		this.shaderStorageImageArrayDynamicIndexing = features.shaderStorageImageArrayDynamicIndexing();
+		this.shaderStorageImageExtendedFormats = features.shaderStorageImageExtendedFormats();
+		this.shaderStorageImageMultisample = features.shaderStorageImageMultisample();
+		this.shaderStorageImageReadWithoutFormat = features.shaderStorageImageReadWithoutFormat();
+		this.shaderStorageImageWriteWithoutFormat = features.shaderStorageImageWriteWithoutFormat();
+		this.shaderTessellationAndGeometryPointSize = features.shaderTessellationAndGeometryPointSize();
+		this.shaderUniformBufferArrayDynamicIndexing = features.shaderUniformBufferArrayDynamicIndexing();
+		this.sparseBinding = features.sparseBinding();
+		this.sparseResidency16Samples = features.sparseResidency16Samples();
+		this.sparseResidency2Samples = features.sparseResidency2Samples();
+		this.sparseResidency4Samples = features.sparseResidency4Samples();
+		this.sparseResidency8Samples = features.sparseResidency8Samples();
+		this.sparseResidencyAliased = features.sparseResidencyAliased();
+		this.sparseResidencyBuffer = features.sparseResidencyBuffer();
+		this.sparseResidencyImage2D = features.sparseResidencyImage2D();
+		this.sparseResidencyImage3D = features.sparseResidencyImage3D();
+		this.tessellationShader = features.tessellationShader();
+		this.textureCompressionASTC_LDR = features.textureCompressionASTC_LDR();
+		this.textureCompressionBC = features.textureCompressionBC();
+		this.textureCompressionETC2 = features.textureCompressionETC2();
+		this.variableMultisampleRate = features.variableMultisampleRate();
+		this.vertexPipelineStoresAndAtomics = features.vertexPipelineStoresAndAtomics();
+		this.wideLines = features.wideLines();
+	}
+
+	/**
+	 * @param mask A mask from getMask().
+	 */
+	public PhysicalDeviceFeatures(long mask) {
+		this.alphaToOne = (mask & (1L << 0)) != 0;
+		this.depthBiasClamp = (mask & (1L << 1)) != 0;
+		this.depthBounds = (mask & (1L << 2)) != 0;
+		this.depthClamp = (mask & (1L << 3)) != 0;
+		this.drawIndirectFirstInstance = (mask & (1L << 4)) != 0;
+		this.dualSrcBlend = (mask & (1L << 5)) != 0;
+		this.fillModeNonSolid = (mask & (1L << 6)) != 0;
+		this.fragmentStoresAndAtomics = (mask & (1L << 7)) != 0;
+		this.fullDrawIndexUint32 = (mask & (1L << 8)) != 0;
+		this.geometryShader = (mask & (1L << 9)) != 0;
+		this.imageCubeArray = (mask & (1L << 10)) != 0;
+		this.independentBlend = (mask & (1L << 11)) != 0;
+		this.inheritedQueries = (mask & (1L << 12)) != 0;
+		this.largePoints = (mask & (1L << 13)) != 0;
+		this.logicOp = (mask & (1L << 14)) != 0;
+		this.multiDrawIndirect = (mask & (1L << 15)) != 0;
+		this.multiViewport = (mask & (1L << 16)) != 0;
+		this.occlusionQueryPrecise = (mask & (1L << 17)) != 0;
+		this.pipelineStatisticsQuery = (mask & (1L << 18)) != 0;
+		this.robustBufferAccess = (mask & (1L << 19)) != 0;
+		this.samplerAnisotropy = (mask & (1L << 20)) != 0;
+		this.sampleRateShading = (mask & (1L << 21)) != 0;
+		this.shaderClipDistance = (mask & (1L << 22)) != 0;
+		this.shaderCullDistance = (mask & (1L << 23)) != 0;
+		this.shaderFloat64 = (mask & (1L << 24)) != 0;
+		this.shaderImageGatherExtended = (mask & (1L << 25)) != 0;
+		this.shaderInt16 = (mask & (1L << 26)) != 0;
+		this.shaderInt64 = (mask & (1L << 27)) != 0;
+		this.shaderResourceMinLod = (mask & (1L << 28)) != 0;
+		this.shaderResourceResidency = (mask & (1L << 29)) != 0;
+		this.shaderSampledImageArrayDynamicIndexing = (mask & (1L << 30)) != 0;
+		this.shaderStorageBufferArrayDynamicIndexing = (mask & (1L << 31)) != 0;
+		this.shaderStorageImageArrayDynamicIndexing = (mask & (1L << 32)) != 0;
+		this.shaderStorageImageExtendedFormats = (mask & (1L << 33)) != 0;
+		this.shaderStorageImageMultisample = (mask & (1L << 34)) != 0;
+		this.shaderStorageImageReadWithoutFormat = (mask & (1L << 35)) != 0;
+		this.shaderStorageImageWriteWithoutFormat = (mask & (1L << 36)) != 0;
+		this.shaderTessellationAndGeometryPointSize = (mask & (1L << 37)) != 0;
+		this.shaderUniformBufferArrayDynamicIndexing = (mask & (1L << 38)) != 0;
+		this.sparseBinding = (mask & (1L << 39)) != 0;
+		this.sparseResidency16Samples = (mask & (1L << 40)) != 0;
+		this.sparseResidency2Samples = (mask & (1L << 41)) != 0;
+		this.sparseResidency4Samples = (mask & (1L << 42)) != 0;
+		this.sparseResidency8Samples = (mask & (1L << 43)) != 0;
+		this.sparseResidencyAliased = (mask & (1L << 44)) != 0;
+		this.sparseResidencyBuffer = (mask & (1L << 45)) != 0;
+		this.sparseResidencyImage2D = (mask & (1L << 46)) != 0;
+		this.sparseResidencyImage3D = (mask & (1L << 47)) != 0;
+		this.tessellationShader = (mask & (1L << 48)) != 0;
+		this.textureCompressionASTC_LDR = (mask & (1L << 49)) != 0;
+		this.textureCompressionBC = (mask & (1L << 50)) != 0;
+		this.textureCompressionETC2 = (mask & (1L << 51)) != 0;
+		this.variableMultisampleRate = (mask & (1L << 52)) != 0;
+		this.vertexPipelineStoresAndAtomics = (mask & (1L << 53)) != 0;
+		this.wideLines = (mask & (1L << 54)) != 0;
+	}
+
+	/**
+	 * Packs every feature into one long, one bit each. The bit order is part
+	 * of the PhysicalDeviceCache format, so only ever add to the end.
+	 */
+	public long getMask() {
+		long ret = 0;
+		if (this.alphaToOne) ret |= 1L << 0;
+		if (this.depthBiasClamp) ret |= 1L << 1;
+		if (this.depthBounds) ret |= 1L << 2;
+		if (this.depthClamp) ret |= 1L << 3;
+		if (this.drawIndirectFirstInstance) ret |= 1L << 4;
+		if (this.dualSrcBlend) ret |= 1L << 5;
+		if (this.fillModeNonSolid) ret |= 1L << 6;
+		if (this.fragmentStoresAndAtomics) ret |= 1L << 7;
+		if (this.fullDrawIndexUint32) ret |= 1L << 8;
+		if (this.geometryShader) ret |= 1L << 9;
+		if (this.imageCubeArray) ret |= 1L << 10;
+		if (this.independentBlend) ret |= 1L << 11;
+		if (this.inheritedQueries) ret |= 1L << 12;
+		if (this.largePoints) ret |= 1L << 13;
+		if (this.logicOp) ret |= 1L << 14;
+		if (this.multiDrawIndirect) ret |= 1L << 15;
+		if (this.multiViewport) ret |= 1L << 16;
+		if (this.occlusionQueryPrecise) ret |= 1L << 17;
+		if (this.pipelineStatisticsQuery) ret |= 1L << 18;
+		if (this.robustBufferAccess) ret |= 1L << 19;
+		if (this.samplerAnisotropy) ret |= 1L << 20;
+		if (this.sampleRateShading) ret |= 1L << 21;
+		if (this.shaderClipDistance) ret |= 1L << 22;
+		if (this.shaderCullDistance) ret |= 1L << 23;
+		if (this.shaderFloat64) ret |= 1L << 24;
+		if (this.shaderImageGatherExtended) ret |= 1L << 25;
+		if (this.shaderInt16) ret |= 1L << 26;
+		if (this.shaderInt64) ret |= 1L << 27;
+		if (this.shaderResourceMinLod) ret |= 1L << 28;
+		if (this.shaderResourceResidency) ret |= 1L << 29;
+		if (this.shaderSampledImageArrayDynamicIndexing) ret |= 1L << 30;
+		if (this.shaderStorageBufferArrayDynamicIndexing) ret |= 1L << 31;
+		if (this.shaderStorageImageArrayDynamicIndexing) ret |= 1L << 32;
+		if (this.shaderStorageImageExtendedFormats) ret |= 1L << 33;
+		if (this.shaderStorageImageMultisample) ret |= 1L << 34;
+		if (this.shaderStorageImageReadWithoutFormat) ret |= 1L << 35;
+		if (this.shaderStorageImageWriteWithoutFormat) ret |= 1L << 36;
+		if (this.shaderTessellationAndGeometryPointSize) ret |= 1L << 37;
+		if (this.shaderUniformBufferArrayDynamicIndexing) ret |= 1L << 38;
+		if (this.sparseBinding) ret |= 1L << 39;
+		if (this.sparseResidency16Samples) ret |= 1L << 40;
+		if (this.sparseResidency2Samples) ret |= 1L << 41;
+		if (this.sparseResidency4Samples) ret |= 1L << 42;
+		if (this.sparseResidency8Samples) ret |= 1L << 43;
+		if (this.sparseResidencyAliased) ret |= 1L << 44;
+		if (this.sparseResidencyBuffer) ret |= 1L << 45;
+		if (this.sparseResidencyImage2D) ret |= 1L << 46;
+		if (this.sparseResidencyImage3D) ret |= 1L << 47;
+		if (this.tessellationShader) ret |= 1L << 48;
+		if (this.textureCompressionASTC_LDR) ret |= 1L << 49;
+		if (this.textureCompressionBC) ret |= 1L << 50;
+		if (this.textureCompressionETC2) ret |= 1L << 51;
+		if (this.variableMultisampleRate) ret |= 1L << 52;
+		if (this.vertexPipelineStoresAndAtomics) ret |= 1L << 53;
+		if (this.wideLines) ret |= 1L << 54;
+		return ret;
+	}
+
+	/**
+	 * @return The names of every feature that is turned on, for messages
+	 *         about what a device is missing.
+	 */
+	public List<String> getNames() {
+		long mask = this.getMask();
+		ArrayList<String> ret = new ArrayList<String>();
+		for (int bit = 0; bit < PhysicalDeviceFeatures.NAMES.length; bit++) {
+			if ((mask & (1L << bit)) != 0) ret.add(PhysicalDeviceFeatures.NAMES[bit]);
+		}
+		return ret;
+	}
+
+	/**
+	 * Copies these features into a Vulkan struct, for enabling them when we
+	 * create a logical device.
+	 */
+	public void writeTo(VkPhysicalDeviceFeatures features) {
+		features.alphaToOne(this.alphaToOne);
+		features.depthBiasClamp(this.depthBiasClamp);
+		features.depthBounds(this.depthBounds);
+		features.depthClamp(this.depthClamp);
+		features.drawIndirectFirstInstance(this.drawIndirectFirstInstance);
+		features.dualSrcBlend(this.dualSrcBlend);
+		features.fillModeNonSolid(this.fillModeNonSolid);
+		features.fragmentStoresAndAtomics(this.fragmentStoresAndAtomics);
+		features.fullDrawIndexUint32(this.fullDrawIndexUint32);
+		features.geometryShader(this.geometryShader);
+		features.imageCubeArray(this.imageCubeArray);
+		features.independentBlend(this.independentBlend);
+		features.inheritedQueries(this.inheritedQueries);
+		features.largePoints(this.largePoints);
+		features.logicOp(this.logicOp);
+		features.multiDrawIndirect(this.multiDrawIndirect);
+		features.multiViewport(this.multiViewport);
+		features.occlusionQueryPrecise(this.occlusionQueryPrecise);
+		features.pipelineStatisticsQuery(this.pipelineStatisticsQuery);
+		features.robustBufferAccess(this.robustBufferAccess);
+		features.samplerAnisotropy(this.samplerAnisotropy);
+		features.sampleRateShading(this.sampleRateShading);
+		features.shaderClipDistance(this.shaderClipDistance);
+		features.shaderCullDistance(this.shaderCullDistance);
+		features.shaderFloat64(this.shaderFloat64);
+		features.shaderImageGatherExtended(this.shaderImageGatherExtended);
+		features.shaderInt16(this.shaderInt16);
+		features.shaderInt64(this.shaderInt64);
+		features.shaderResourceMinLod(this.shaderResourceMinLod);
+		features.shaderResourceResidency(this.shaderResourceResidency);
+		features.shaderSampledImageArrayDynamicIndexing(this.shaderSampledImageArrayDynamicIndexing);
+		features.shaderStorageBufferArrayDynamicIndexing(this.shaderStorageBufferArrayDynamicIndexing);
+		features.shaderStorageImageArrayDynamicIndexing(this.shaderStorageImageArrayDynamicIndexing);
+		features.shaderStorageImageExtendedFormats(this.shaderStorageImageExtendedFormats);
+		features.shaderStorageImageMultisample(this.shaderStorageImageMultisample);
+		features.shaderStorageImageReadWithoutFormat(this.shaderStorageImageReadWithoutFormat);
+		features.shaderStorageImageWriteWithoutFormat(this.shaderStorageImageWriteWithoutFormat);
+		features.shaderTessellationAndGeometryPointSize(this.shaderTessellationAndGeometryPointSize);
+		features.shaderUniformBufferArrayDynamicIndexing(this.shaderUniformBufferArrayDynamicIndexing);
+		features.sparseBinding(this.sparseBinding);
+		features.sparseResidency16Samples(this.sparseResidency16Samples);
+		features.sparseResidency2Samples(this.sparseResidency2Samples);
+		features.sparseResidency4Samples(this.sparseResidency4Samples);
+		features.sparseResidency8Samples(this.sparseResidency8Samples);
+		features.sparseResidencyAliased(this.sparseResidencyAliased);
+		features.sparseResidencyBuffer(this.sparseResidencyBuffer);
+		features.sparseResidencyImage2D(this.sparseResidencyImage2D);
+		features.sparseResidencyImage3D(this.sparseResidencyImage3D);
+		features.tessellationShader(this.tessellationShader);
+		features.textureCompressionASTC_LDR(this.textureCompressionASTC_LDR);
+		features.textureCompressionBC(this.textureCompressionBC);
+		features.textureCompressionETC2(this.textureCompressionETC2);
+		features.variableMultisampleRate(this.variableMultisampleRate);
+		features.vertexPipelineStoresAndAtomics(this.vertexPipelineStoresAndAtomics);
+		features.wideLines(this.wideLines);
+	}
+}
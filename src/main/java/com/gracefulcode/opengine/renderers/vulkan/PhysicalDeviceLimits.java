@@ -0,0 +1,244 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.lwjgl.vulkan.VkPhysicalDeviceLimits;
+
+/**
+ * Everything from VkPhysicalDeviceLimits, copied out once.
+ * <p>
+ * This is immutable, so it can be handed to any number of render threads
+ * without copying or locking. Ranges and arrays are flattened into Min/Max
+ * and X/Y/Z fields.
+ */
+public class PhysicalDeviceLimits {
+	public final long bufferImageGranularity;
+	public final int discreteQueuePriorities;
+	public final int framebufferColorSampleCounts;
+	public final int framebufferDepthSampleCounts;
+	public final int framebufferNoAttachmentsSampleCounts;
+	public final int framebufferStencilSampleCounts;
+	public final float lineWidthGranularity;
+	public final float lineWidthMin;
+	public final float lineWidthMax;
+	public final int maxBoundDescriptorSets;
+	public final int maxClipDistances;
+	public final int maxColorAttachments;
+	public final int maxCombinedClipAndCullDistances;
+	public final int maxComputeSharedMemorySize;
+	public final int maxComputeWorkGroupCountX;
+	public final int maxComputeWorkGroupCountY;
+	public final int maxComputeWorkGroupCountZ;
+	public final int maxComputeWorkGroupInvocations;
+	public final int maxComputeWorkGroupSizeX;
+	public final int maxComputeWorkGroupSizeY;
+	public final int maxComputeWorkGroupSizeZ;
+	public final int maxCullDistances;
+	public final int maxDescriptorSetInputAttachments;
+	public final int maxDescriptorSetSampledImages;
+	public final int maxDescriptorSetSamplers;
+	public final int maxDescriptorSetStorageBuffers;
+	public final int maxDescriptorSetStorageBuffersDynamic;
+	public final int maxDescriptorSetStorageImages;
+	public final int maxDescriptorSetUniformBuffers;
+	public final int maxDescriptorSetUniformBuffersDynamic;
+	public final int maxDrawIndexedIndexValue;
+	public final int maxDrawIndirectCount;
+	public final int maxFragmentCombinedOutputResources;
+	public final int maxFragmentDualSrcAttachments;
+	public final int maxFragmentInputComponents;
+	public final int maxFragmentOutputAttachments;
+	public final int maxFramebufferHeight;
+	public final int maxFramebufferLayers;
+	public final int maxFramebufferWidth;
+	public final int maxGeometryInputComponents;
+	public final int maxGeometryOutputComponents;
+	public final int maxGeometryOutputVertices;
+	public final int maxGeometryShaderInvocations;
+	public final int maxGeometryTotalOutputComponents;
+	public final int maxImageArrayLayers;
+	public final int maxImageDimension1D;
+	public final int maxImageDimension2D;
+	public final int maxImageDimension3D;
+	public final int maxImageDimensionCube;
+	public final float maxInterpolationOffset;
+	public final int maxMemoryAllocationCount;
+	public final int maxPerStageDescriptorInputAttachments;
+	public final int maxPerStageDescriptorSampledImages;
+	public final int maxPerStageDescriptorSamplers;
+	public final int maxPerStageDescriptorStorageBuffers;
+	public final int maxPerStageDescriptorStorageImages;
+	public final int maxPerStageDescriptorUniformBuffers;
+	public final int maxPerStageResources;
+	public final int maxPushConstantsSize;
+	public final int maxSampleMaskWords;
+	public final int maxSamplerAllocationCount;
+	public final float maxSamplerAnisotropy;
+	public final float maxSamplerLodBias;
+	public final int maxStorageBufferRange;
+	public final int maxTessellationControlPerPatchOutputComponents;
+	public final int maxTessellationControlPerVertexInputComponents;
+	public final int maxTessellationControlPerVertexOutputComponents;
+	public final int maxTessellationControlTotalOutputComponents;
+	public final int maxTessellationEvaluationInputComponents;
+	public final int maxTessellationEvaluationOutputComponents;
+	public final int maxTessellationGenerationLevel;
+	public final int maxTessellationPatchSize;
+	public final int maxTexelBufferElements;
+	public final int maxTexelGatherOffset;
+	public final int maxTexelOffset;
+	public final int maxUniformBufferRange;
+	public final int maxVertexInputAttributeOffset;
+	public final int maxVertexInputAttributes;
+	public final int maxVertexInputBindings;
+	public final int maxVertexInputBindingStride;
+	public final int maxVertexOutputComponents;
+	public final int maxViewportX;
+	public final int maxViewportY;
+	public final int maxViewports;
+	public final float minInterpolationOffset;
+	public final long minMemoryMapAlignment;
+	public final long minStorageBufferOffsetAlignment;
+	public final long minTexelBufferOffsetAlignment;
+	public final int minTexelGatherOffset;
+	public final int minTexelOffset;
+	public final long minUniformBufferOffsetAlignment;
+	public final int mipmapPrecisionBits;
+	public final long nonCoherentAtomSize;
+	public final long optimalBufferCopyOffsetAlignment;
+	public final long optimalBufferCopyRowPitchAlignment;
+	public final float pointSizeGranularity;
+	public final float pointSizeMin;
+	public final float pointSizeMax;
+	public final int sampledImageColorSampleCounts;
+	public final int sampledImageDepthSampleCounts;
+	public final int sampledImageIntegerSampleCounts;
+	public final int sampledImageStencilSampleCounts;
+	public final long sparseAddressSpaceSize;
+	public final boolean standardSampleLocations;
+	public final int storageImageSampleCounts;
+	public final boolean strictLines;
+	public final int subPixelInterpolationOffsetBits;
+	public final int subPixelPrecisionBits;
+	public final int subTexelPrecisionBits;
+	public final boolean timestampComputeAndGraphics;
+	public final float timestampPeriod;
+	public final float viewportBoundsMin;
+	public final float viewportBoundsMax;
+	public final int viewportSubPixelBits;
+
+	public PhysicalDeviceLimits(VkPhysicalDeviceLimits limits) {
+		this.bufferImageGranularity = limits.bufferImageGranularity();
+		this.discreteQueuePriorities = limits.discreteQueuePriorities();
+		this.framebufferColorSampleCounts = limits.framebufferColorSampleCounts();
+		this.framebufferDepthSampleCounts = limits.framebufferDepthSampleCounts();
+		this.framebufferNoAttachmentsSampleCounts = limits.framebufferNoAttachmentsSampleCounts();
+		this.framebufferStencilSampleCounts = limits.framebufferStencilSampleCounts();
+		this.lineWidthGranularity = limits.lineWidthGranularity();
+		this.lineWidthMin = limits.lineWidthRange(0);
+		this.lineWidthMax = limits.lineWidthRange(1);
+		this.maxBoundDescriptorSets = limits.maxBoundDescriptorSets();
+		this.maxClipDistances = limits.maxClipDistances();
+		this.maxColorAttachments = limits.maxColorAttachments();
+		this.maxCombinedClipAndCullDistances = limits.maxCombinedClipAndCullDistances();
+		this.maxComputeSharedMemorySize = limits.maxComputeSharedMemorySize();
+		this.maxComputeWorkGroupCountX = limits.maxComputeWorkGroupCount(0);
+		this.maxComputeWorkGroupCountY = limits.maxComputeWorkGroupCount(1);
+		this.maxComputeWorkGroupCountZ = limits.maxComputeWorkGroupCount(2);
+		this.maxComputeWorkGroupInvocations = limits.maxComputeWorkGroupInvocations();
+		this.maxComputeWorkGroupSizeX = limits.maxComputeWorkGroupSize(0);
+		this.maxComputeWorkGroupSizeY = limits.maxComputeWorkGroupSize(1);
+		this.maxComputeWorkGroupSizeZ = limits.maxComputeWorkGroupSize(2);
+		this.maxCullDistances = limits.maxCullDistances();
+		this.maxDescriptorSetInputAttachments = limits.maxDescriptorSetInputAttachments();
+		this.maxDescriptorSetSampledImages = limits.maxDescriptorSetSampledImages();
+		this.maxDescriptorSetSamplers = limits.maxDescriptorSetSamplers();
+		this.maxDescriptorSetStorageBuffers = limits.maxDescriptorSetStorageBuffers();
+		this.maxDescriptorSetStorageBuffersDynamic = limits.maxDescriptorSetStorageBuffersDynamic();
+		this.maxDescriptorSetStorageImages = limits.maxDescriptorSetStorageImages();
+		this.maxDescriptorSetUniformBuffers = limits.maxDescriptorSetUniformBuffers();
+		this.maxDescriptorSetUniformBuffersDynamic = limits.maxDescriptorSetUniformBuffersDynamic();
+		this.maxDrawIndexedIndexValue = limits.maxDrawIndexedIndexValue();
+		this.maxDrawIndirectCount = limits.maxDrawIndirectCount();
+		this.maxFragmentCombinedOutputResources = limits.maxFragmentCombinedOutputResources();
+		this.maxFragmentDualSrcAttachments = limits.maxFragmentDualSrcAttachments();
+		this.maxFragmentInputComponents = limits.maxFragmentInputComponents();
+		this.maxFragmentOutputAttachments = limits.maxFragmentOutputAttachments();
+		this.maxFramebufferHeight = limits.maxFramebufferHeight();
+		this.maxFramebufferLayers = limits.maxFramebufferLayers();
+		this.maxFramebufferWidth = limits.maxFramebufferWidth();
+		this.maxGeometryInputComponents = limits.maxGeometryInputComponents();
+		this.maxGeometryOutputComponents = limits.maxGeometryOutputComponents();
+		this.maxGeometryOutputVertices = limits.maxGeometryOutputVertices();
+		this.maxGeometryShaderInvocations = limits.maxGeometryShaderInvocations();
+		this.maxGeometryTotalOutputComponents = limits.maxGeometryTotalOutputComponents();
+		this.maxImageArrayLayers = limits.maxImageArrayLayers();
+		this.maxImageDimension1D = limits.maxImageDimension1D();
+		this.maxImageDimension2D = limits.maxImageDimension2D();
+		this.maxImageDimension3D = limits.maxImageDimension3D();
+		this.maxImageDimensionCube = limits.maxImageDimensionCube();
+		this.maxInterpolationOffset = limits.maxInterpolationOffset();
+		this.maxMemoryAllocationCount = limits.maxMemoryAllocationCount();
+		this.maxPerStageDescriptorInputAttachments = limits.maxPerStageDescriptorInputAttachments();
+		this.maxPerStageDescriptorSampledImages = limits.maxPerStageDescriptorSampledImages();
+		this.maxPerStageDescriptorSamplers = limits.maxPerStageDescriptorSamplers();
+		this.maxPerStageDescriptorStorageBuffers = limits.maxPerStageDescriptorStorageBuffers();
+		this.maxPerStageDescriptorStorageImages = limits.maxPerStageDescriptorStorageImages();
+		this.maxPerStageDescriptorUniformBuffers = limits.maxPerStageDescriptorUniformBuffers();
+		this.maxPerStageResources = limits.maxPerStageResources();
+		this.maxPushConstantsSize = limits.maxPushConstantsSize();
+		this.maxSampleMaskWords = limits.maxSampleMaskWords();
+		this.maxSamplerAllocationCount = limits.maxSamplerAllocationCount();
+		this.maxSamplerAnisotropy = limits.maxSamplerAnisotropy();
+		this.maxSamplerLodBias = limits.maxSamplerLodBias();
+		this.maxStorageBufferRange = limits.maxStorageBufferRange();
+		this.maxTessellationControlPerPatchOutputComponents = limits.maxTessellationControlPerPatchOutputComponents();
+		this.maxTessellationControlPerVertexInputComponents = limits.maxTessellationControlPerVertexInputComponents();
+		this.maxTessellationControlPerVertexOutputComponents = limits.maxTessellationControlPerVertexOutputComponents();
+		this.maxTessellationControlTotalOutputComponents = limits.maxTessellationControlTotalOutputComponents();
+		this.maxTessellationEvaluationInputComponents = limits.maxTessellationEvaluationInputComponents();
+		this.maxTessellationEvaluationOutputComponents = limits.maxTessellationEvaluationOutputComponents();
+		this.maxTessellationGenerationLevel = limits.maxTessellationGenerationLevel();
+		this.maxTessellationPatchSize = limits.maxTessellationPatchSize();
+		this.maxTexelBufferElements = limits.maxTexelBufferElements();
+		this.maxTexelGatherOffset = limits.maxTexelGatherOffset();
+		this.maxTexelOffset = limits.maxTexelOffset();
+		this.maxUniformBufferRange = limits.maxUniformBufferRange();
+		this.maxVertexInputAttributeOffset = limits.maxVertexInputAttributeOffset();
+		this.maxVertexInputAttributes = limits.maxVertexInputAttributes();
+		this.maxVertexInputBindings = limits.maxVertexInputBindings();
+		this.maxVertexInputBindingStride = limits.maxVertexInputBindingStride();
+		this.maxVertexOutputComponents = limits.maxVertexOutputComponents();
+		this.maxViewportX = limits.maxViewportDimensions(0);
+		this.maxViewportY = limits.maxViewportDimensions(1);
+		this.maxViewports = limits.maxViewports();
+		this.minInterpolationOffset = limits.minInterpolationOffset();
+		this.minMemoryMapAlignment = limits.minMemoryMapAlignment();
+		this.minStorageBufferOffsetAlignment = limits.minStorageBufferOffsetAlignment();
+		this.minTexelBufferOffsetAlignment = limits.minTexelBufferOffsetAlignment();
+		this.minTexelGatherOffset = limits.minTexelGatherOffset();
+		this.minTexelOffset = limits.minTexelOffset();
+		this.minUniformBufferOffsetAlignment = limits.minUniformBufferOffsetAlignment();
+		this.mipmapPrecisionBits = limits.mipmapPrecisionBits();
+		this.nonCoherentAtomSize = limits.nonCoherentAtomSize();
+		this.optimalBufferCopyOffsetAlignment = limits.optimalBufferCopyOffsetAlignment();
+		this.optimalBufferCopyRowPitchAlignment = limits.optimalBufferCopyRowPitchAlignment();
+		this.pointSizeGranularity = limits.pointSizeGranularity();
+		this.pointSizeMin = limits.pointSizeRange(0);
+		this.pointSizeMax = limits.pointSizeRange(1);
+		this.sampledImageColorSampleCounts = limits.sampledImageColorSampleCounts();
+		this.sampledImageDepthSampleCounts = limits.sampledImageDepthSampleCounts();
+		this.sampledImageIntegerSampleCounts = limits.sampledImageIntegerSampleCounts();
+		this.sampledImageStencilSampleCounts = limits.sampledImageStencilSampleCounts();
+		this.sparseAddressSpaceSize = limits.sparseAddressSpaceSize();
+		this.standardSampleLocations = limits.standardSampleLocations();
+		this.storageImageSampleCounts = limits.storageImageSampleCounts();
+		this.strictLines = limits.strictLines();
+		this.subPixelInterpolationOffsetBits = limits.subPixelInterpolationOffsetBits();
+		this.subPixelPrecisionBits = limits.subPixelPrecisionBits();
+		this.subTexelPrecisionBits = limits.subTexelPrecisionBits();
+		this.timestampComputeAndGraphics = limits.timestampComputeAndGraphics();
+		this.timestampPeriod = limits.timestampPeriod();
+		this.viewportBoundsMin = limits.viewportBoundsRange(0);
+		this.viewportBoundsMax = limits.viewportBoundsRange(1);
+		this.viewportSubPixelBits = limits.viewportSubPixelBits();
+	}
+}
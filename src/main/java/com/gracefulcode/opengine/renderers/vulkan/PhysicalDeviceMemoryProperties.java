@@ -0,0 +1,152 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
+
+/**
+ * The memory heaps and memory types of a GPU. Immutable.
+ */
+public class PhysicalDeviceMemoryProperties {
+	/**
+	 * A memory heap is a physical pool of memory, such as the VRAM on a
+	 * discrete card or the system RAM that the GPU can see.
+	 */
+	public static class MemoryHeap {
+		protected final int index;
+		protected final long size;
+		protected final int flags;
+
+		protected MemoryHeap(int index, long size, int flags) {
+			this.index = index;
+			this.size = size;
+			this.flags = flags;
+		}
+
+		public int getIndex() {
+			return this.index;
+		}
+
+		public long getSize() {
+			return this.size;
+		}
+
+		public int getFlags() {
+			return this.flags;
+		}
+
+		public boolean isDeviceLocal() {
+			return (this.flags & VK_MEMORY_HEAP_DEVICE_LOCAL_BIT) != 0;
+		}
+
+		public String toString() {
+			return "MemoryHeap<index: " + this.index + ", size: " + this.size + ", deviceLocal: " + this.isDeviceLocal() + ">";
+		}
+	}
+
+	/**
+	 * A memory type is a way of accessing one of the heaps. The same heap can
+	 * show up more than once with different property flags (host visible,
+	 * cached, etc.).
+	 */
+	public static class MemoryType {
+		protected final int index;
+		protected final int heapIndex;
+		protected final int propertyFlags;
+
+		protected MemoryType(int index, int heapIndex, int propertyFlags) {
+			this.index = index;
+			this.heapIndex = heapIndex;
+			this.propertyFlags = propertyFlags;
+		}
+
+		public int getIndex() {
+			return this.index;
+		}
+
+		public int getHeapIndex() {
+			return this.heapIndex;
+		}
+
+		public int getPropertyFlags() {
+			return this.propertyFlags;
+		}
+
+		public boolean hasProperties(int flags) {
+			return (this.propertyFlags & flags) == flags;
+		}
+
+		public String toString() {
+			return "MemoryType<index: " + this.index + ", heap: " + this.heapIndex + ", flags: " + this.propertyFlags + ">";
+		}
+	}
+
+	protected final List<MemoryHeap> memoryHeaps;
+	protected final List<MemoryType> memoryTypes;
+
+	public PhysicalDeviceMemoryProperties(VkPhysicalDeviceMemoryProperties memoryProperties) {
+		ArrayList<MemoryHeap> heaps = new ArrayList<MemoryHeap>();
+		for (int index = 0; index < memoryProperties.memoryHeapCount(); index++) {
+			heaps.add(new MemoryHeap(index, memoryProperties.memoryHeaps(index).size(), memoryProperties.memoryHeaps(index).flags()));
+		}
+
+		ArrayList<MemoryType> types = new ArrayList<MemoryType>();
+		for (int index = 0; index < memoryProperties.memoryTypeCount(); index++) {
+			types.add(new MemoryType(index, memoryProperties.memoryTypes(index).heapIndex(), memoryProperties.memoryTypes(index).propertyFlags()));
+		}
+
+		this.memoryHeaps = Collections.unmodifiableList(heaps);
+		this.memoryTypes = Collections.unmodifiableList(types);
+	}
+
+	protected PhysicalDeviceMemoryProperties(List<MemoryHeap> memoryHeaps, List<MemoryType> memoryTypes) {
+		this.memoryHeaps = Collections.unmodifiableList(memoryHeaps);
+		this.memoryTypes = Collections.unmodifiableList(memoryTypes);
+	}
+
+	public List<MemoryHeap> getMemoryHeaps() {
+		return this.memoryHeaps;
+	}
+
+	public List<MemoryType> getMemoryTypes() {
+		return this.memoryTypes;
+	}
+
+	public MemoryHeap getMemoryHeap(int index) {
+		return this.memoryHeaps.get(index);
+	}
+
+	public MemoryType getMemoryType(int index) {
+		return this.memoryTypes.get(index);
+	}
+
+	/**
+	 * Finds the memory type that a resource should live in.
+	 * <p>
+	 * Vulkan orders memory types so that the first match is the one it
+	 * thinks is best, so we take the first type that has everything we
+	 * require and all of what we would prefer, and fall back to the first
+	 * type that has only what we require.
+	 *
+	 * @param memoryTypeBits The memoryTypeBits from VkMemoryRequirements.
+	 * @param requiredFlags Property flags the type must have.
+	 * @param preferredFlags Property flags we would like, but can live
+	 *        without.
+	 * @return The index of the memory type, or -1 if nothing fits.
+	 */
+	public int findMemoryType(int memoryTypeBits, int requiredFlags, int preferredFlags) {
+		int fallback = -1;
+		for (MemoryType memoryType: this.memoryTypes) {
+			if ((memoryTypeBits & (1 << memoryType.index)) == 0) continue;
+			if (!memoryType.hasProperties(requiredFlags)) continue;
+
+			if (memoryType.hasProperties(requiredFlags | preferredFlags)) return memoryType.index;
+			if (fallback == -1) fallback = memoryType.index;
+		}
+		return fallback;
+	}
+}
@@ -0,0 +1,51 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+
+/**
+ * Everything from VkPhysicalDeviceProperties. Immutable.
+ * <p>
+ * Like the Vulkan struct, this holds the limits and sparse properties too,
+ * since one driver call gets us all three.
+ */
+public class PhysicalDeviceProperties {
+	public final int apiVersion;
+	public final int deviceId;
+	public final String deviceName;
+	public final int deviceType;
+	public final int driverVersion;
+	public final int vendorId;
+
+	public final PhysicalDeviceLimits limits;
+	public final PhysicalDeviceSparseProperties sparseProperties;
+
+	public PhysicalDeviceProperties(VkPhysicalDeviceProperties properties) {
+		this.apiVersion = properties.apiVersion();
+		this.deviceId = properties.deviceID();
+		this.deviceName = properties.deviceNameString();
+		this.deviceType = properties.deviceType();
+		this.driverVersion = properties.driverVersion();
+		this.vendorId = properties.vendorID();
+
+		this.limits = new PhysicalDeviceLimits(properties.limits());
+		this.sparseProperties = new PhysicalDeviceSparseProperties(properties.sparseProperties());
+	}
+
+	public boolean isDiscreteGpu() {
+		return this.deviceType == VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU;
+	}
+
+	public boolean isIntegratedGpu() {
+		return this.deviceType == VK_PHYSICAL_DEVICE_TYPE_INTEGRATED_GPU;
+	}
+
+	/**
+	 * @return True for software implementations like lavapipe or
+	 *         SwiftShader.
+	 */
+	public boolean isCpu() {
+		return this.deviceType == VK_PHYSICAL_DEVICE_TYPE_CPU;
+	}
+}
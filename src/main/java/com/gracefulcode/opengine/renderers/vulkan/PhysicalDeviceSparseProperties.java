@@ -0,0 +1,22 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.lwjgl.vulkan.VkPhysicalDeviceSparseProperties;
+
+/**
+ * Everything from VkPhysicalDeviceSparseProperties. Immutable.
+ */
+public class PhysicalDeviceSparseProperties {
+	public final boolean residencyAlignedMipSize;
+	public final boolean residencyNonResidentStrict;
+	public final boolean residencyStandard2DBlockShape;
+	public final boolean residencyStandard2DMultisampleBlockShape;
+	public final boolean residencyStandard3DBlockShape;
+
+	public PhysicalDeviceSparseProperties(VkPhysicalDeviceSparseProperties sparseProperties) {
+		this.residencyAlignedMipSize = sparseProperties.residencyAlignedMipSize();
+		this.residencyNonResidentStrict = sparseProperties.residencyNonResidentStrict();
+		this.residencyStandard2DBlockShape = sparseProperties.residencyStandard2DBlockShape();
+		this.residencyStandard2DMultisampleBlockShape = sparseProperties.residencyStandard2DMultisampleBlockShape();
+		this.residencyStandard3DBlockShape = sparseProperties.residencyStandard3DBlockShape();
+	}
+}
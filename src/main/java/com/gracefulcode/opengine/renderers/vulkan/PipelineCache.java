@@ -0,0 +1,214 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkPipelineCacheCreateInfo;
+
+/**
+ * A VkPipelineCache that survives between runs.
+ * <p>
+ * Building a pipeline means the driver compiling SPIR-V down to machine
+ * code, which can take tens of milliseconds each. The driver keeps the
+ * results in the pipeline cache, and we write its blob to disk on dispose
+ * and hand it back on the next launch, so only the first run pays.
+ * <p>
+ * Each device/driver pair gets its own file, named after vendorId, deviceId
+ * and driverVersion, inside the directory given. The file has a small header
+ * of our own (magic, version, those three ids, and the blob length) before
+ * the driver's blob. A driver update changes the name, so the stale blob is
+ * simply never read. If the header doesn't match, or the file is missing or
+ * short, we start with an empty cache; the driver also checks its own header
+ * and throws away anything it doesn't like.
+ * <p>
+ * vkCreate*Pipelines may be called with the same cache from many threads at
+ * once, so PipelineCompiler's workers all share one.
+ */
+public class PipelineCache {
+	protected static final int MAGIC = 0x4f505043; // OPPC
+	protected static final int VERSION = 1;
+	protected static final int HEADER_SIZE = 24;
+
+	protected LogicalDevice logicalDevice;
+	protected int vendorId;
+	protected int deviceId;
+	protected int driverVersion;
+	protected Path path;
+	protected long pipelineCache;
+	protected int loadedSize;
+
+	/**
+	 * @param directory Where cache files live. Created on save if missing.
+	 */
+	public PipelineCache(LogicalDevice logicalDevice, Path directory) {
+		this(
+			directory,
+			logicalDevice.getPhysicalDevice().getVendorId(),
+			logicalDevice.getPhysicalDevice().getDeviceId(),
+			logicalDevice.getPhysicalDevice().getDriverVersion()
+		);
+		this.logicalDevice = logicalDevice;
+
+		ByteBuffer initialData = this.load();
+		try (MemoryStack stack = stackPush()) {
+			VkPipelineCacheCreateInfo createInfo = VkPipelineCacheCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_CACHE_CREATE_INFO);
+			if (initialData != null) createInfo.pInitialData(initialData);
+
+			LongBuffer pPipelineCache = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_PIPELINE_CACHE.invoke(() -> vkCreatePipelineCache(logicalDevice.getDevice(), createInfo, null, pPipelineCache));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create pipeline cache: " + Vulkan.translateVulkanResult(err));
+			}
+			this.pipelineCache = pPipelineCache.get(0);
+		} finally {
+			if (initialData != null) memFree(initialData);
+		}
+	}
+
+	/**
+	 * Only works out which file is ours, with no VkPipelineCache.
+	 */
+	protected PipelineCache(Path directory, int vendorId, int deviceId, int driverVersion) {
+		this.vendorId = vendorId;
+		this.deviceId = deviceId;
+		this.driverVersion = driverVersion;
+		this.path = directory.resolve(String.format("pipelines-%04x-%04x-%08x.bin", vendorId, deviceId, driverVersion));
+	}
+
+	/**
+	 * @return The blob from disk in a malloc'd buffer the caller frees, or
+	 *         null if there's nothing usable.
+	 */
+	protected ByteBuffer load() {
+		if (!Files.isRegularFile(this.path)) return null;
+
+		ByteBuffer blob = null;
+		try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(PipelineCache.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0) return null;
+			}
+			header.flip();
+
+			if (header.getInt() != PipelineCache.MAGIC || header.getInt() != PipelineCache.VERSION) return null;
+			if (header.getInt() != this.vendorId || header.getInt() != this.deviceId || header.getInt() != this.driverVersion) return null;
+
+			int length = header.getInt();
+			if (length <= 0 || length > channel.size() - PipelineCache.HEADER_SIZE) return null;
+
+			blob = memAlloc(length);
+			while (blob.hasRemaining()) {
+				if (channel.read(blob) < 0) {
+					memFree(blob);
+					return null;
+				}
+			}
+			blob.flip();
+			this.loadedSize = length;
+			return blob;
+		} catch (IOException | BufferUnderflowException e) {
+			if (blob != null) memFree(blob);
+			return null;
+		}
+	}
+
+	public long getPipelineCache() {
+		return this.pipelineCache;
+	}
+
+	public Path getPath() {
+		return this.path;
+	}
+
+	/**
+	 * @return How many bytes of blob we started with, 0 on a cold start.
+	 */
+	public int getLoadedSize() {
+		return this.loadedSize;
+	}
+
+	/**
+	 * Writes the current blob out, through a temporary file so a crash never
+	 * leaves a half written cache behind. Can be called at any time, not just
+	 * on dispose, but it can't overlap with pipeline creation on this cache.
+	 */
+	public void save() throws IOException {
+		ByteBuffer blob;
+		try (MemoryStack stack = stackPush()) {
+			PointerBuffer pDataSize = stack.mallocPointer(1);
+			int err = VulkanCall.GET_PIPELINE_CACHE_DATA.invoke(() -> vkGetPipelineCacheData(this.logicalDevice.getDevice(), this.pipelineCache, pDataSize, null));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to get pipeline cache size: " + Vulkan.translateVulkanResult(err));
+			}
+
+			int length = (int)pDataSize.get(0);
+			if (length == 0) return;
+
+			blob = ByteBuffer.allocateDirect(PipelineCache.HEADER_SIZE + length).order(ByteOrder.LITTLE_ENDIAN);
+			blob.position(PipelineCache.HEADER_SIZE);
+			ByteBuffer data = blob.slice();
+
+			err = VulkanCall.GET_PIPELINE_CACHE_DATA.invoke(() -> vkGetPipelineCacheData(this.logicalDevice.getDevice(), this.pipelineCache, pDataSize, data));
+			if (err != VK_SUCCESS && err != VK_INCOMPLETE) {
+				throw new AssertionError("Failed to get pipeline cache data: " + Vulkan.translateVulkanResult(err));
+			}
+			length = (int)pDataSize.get(0);
+
+			blob.position(0);
+			this.putHeader(blob, length);
+			blob.position(0);
+			blob.limit(PipelineCache.HEADER_SIZE + length);
+		}
+		this.write(blob);
+	}
+
+	/**
+	 * Our header, at the buffer's position. The buffer has to be little
+	 * endian.
+	 */
+	protected void putHeader(ByteBuffer buffer, int length) {
+		buffer.putInt(PipelineCache.MAGIC);
+		buffer.putInt(PipelineCache.VERSION);
+		buffer.putInt(this.vendorId);
+		buffer.putInt(this.deviceId);
+		buffer.putInt(this.driverVersion);
+		buffer.putInt(length);
+	}
+
+	/**
+	 * Replaces the file with the header and blob between position and limit.
+	 */
+	protected void write(ByteBuffer blob) throws IOException {
+		Path parent = this.path.toAbsolutePath().getParent();
+		if (parent != null) Files.createDirectories(parent);
+
+		Path temp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (blob.hasRemaining()) channel.write(blob);
+		}
+		Files.move(temp, this.path, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	public String toString() {
+		return "PipelineCache<" + this.path + ", loaded: " + this.loadedSize + ">";
+	}
+
+	public void dispose() {
+		VulkanCall.DESTROY_PIPELINE_CACHE.run(() -> vkDestroyPipelineCache(this.logicalDevice.getDevice(), this.pipelineCache, null));
+	}
+}
@@ -0,0 +1,251 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds pipelines on background threads so the render thread never stalls
+ * waiting on the driver's shader compiler.
+ * <p>
+ * Every PipelineDescription is built at most once: descriptions that are
+ * equal (same shaders by content, same state) share one pipeline, however
+ * many times and from however many threads they're asked for. The render
+ * thread asks with get(), which never blocks. It gets VK_NULL_HANDLE while
+ * the pipeline is still being built, and can either skip the draw for this
+ * frame or use getOrFallback() to draw with something simpler meanwhile.
+ * Loading screens can prewarm() everything they know they'll need.
+ * <p>
+ * All the workers share one PipelineCache, which is saved on dispose so the
+ * next launch mostly hits it.
+ */
+public class PipelineCompiler {
+	public static class Stats {
+		public final int pipelines;
+		public final int pending;
+		public final long requests;
+		public final long notReady;
+		public final long fallbacks;
+		public final LatencyHistogram.Snapshot compileTimes;
+
+		protected Stats(int pipelines, int pending, long requests, long notReady, long fallbacks, LatencyHistogram.Snapshot compileTimes) {
+			this.pipelines = pipelines;
+			this.pending = pending;
+			this.requests = requests;
+			this.notReady = notReady;
+			this.fallbacks = fallbacks;
+			this.compileTimes = compileTimes;
+		}
+
+		public String toString() {
+			return String.format(
+				"PipelineCompiler.Stats<pipelines: %d, pending: %d, requests: %d, not ready: %d, fallbacks: %d, compile p50: %.2fms, p99: %.2fms>",
+				this.pipelines,
+				this.pending,
+				this.requests,
+				this.notReady,
+				this.fallbacks,
+				this.compileTimes.getPercentile(50) / 1000000.0,
+				this.compileTimes.getPercentile(99) / 1000000.0
+			);
+		}
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected PipelineCache pipelineCache;
+	protected ExecutorService executor;
+
+	protected ConcurrentHashMap<PipelineDescription, CompletableFuture<Long>> pipelines = new ConcurrentHashMap<PipelineDescription, CompletableFuture<Long>>();
+	protected AtomicInteger pending = new AtomicInteger();
+	protected AtomicLong requests = new AtomicLong();
+	protected AtomicLong notReady = new AtomicLong();
+	protected AtomicLong fallbacks = new AtomicLong();
+	protected LatencyHistogram compileTimes = new LatencyHistogram();
+
+	/**
+	 * @param pipelineCache Shared by all the workers, and saved on dispose.
+	 *        May be null to build without a cache.
+	 * @param numThreads How many pipelines to build at once. Drivers mostly
+	 *        compile single threaded, so this is roughly how many cores to
+	 *        give up to it.
+	 */
+	public PipelineCompiler(LogicalDevice logicalDevice, PipelineCache pipelineCache, int numThreads) {
+		this.logicalDevice = logicalDevice;
+		this.pipelineCache = pipelineCache;
+
+		AtomicInteger threadNumber = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(Math.max(1, numThreads), runnable -> {
+			Thread thread = new Thread(runnable, "PipelineCompiler-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Makes sure the pipeline is built or being built, without waiting.
+	 * Freezes the description.
+	 */
+	public CompletableFuture<Long> request(PipelineDescription description) {
+		this.requests.incrementAndGet();
+		description.freeze();
+
+		CompletableFuture<Long> future = this.pipelines.get(description);
+		if (future != null) return future;
+
+		return this.pipelines.computeIfAbsent(description, d -> {
+			this.pending.incrementAndGet();
+			return CompletableFuture.supplyAsync(() -> this.compile(d), this.executor);
+		});
+	}
+
+	protected long compile(PipelineDescription description) {
+		try {
+			long start = System.nanoTime();
+			long pipeline = description.create(
+				this.logicalDevice,
+				this.pipelineCache == null ? VK_NULL_HANDLE : this.pipelineCache.getPipelineCache()
+			);
+			this.compileTimes.record(System.nanoTime() - start);
+			return pipeline;
+		} finally {
+			this.pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Never blocks. A pipeline that failed to build throws here, wrapped in a
+	 * CompletionException, every time it's asked for.
+	 *
+	 * @return The pipeline, or VK_NULL_HANDLE if it isn't built yet.
+	 */
+	public long get(PipelineDescription description) {
+		long pipeline = this.request(description).getNow(VK_NULL_HANDLE);
+		if (pipeline == VK_NULL_HANDLE) this.notReady.incrementAndGet();
+		return pipeline;
+	}
+
+	/**
+	 * The pipeline if it's ready, otherwise the fallback's. The fallback
+	 * should be something cheap that was prewarmed; if it isn't built yet
+	 * either, this waits for it.
+	 */
+	public long getOrFallback(PipelineDescription description, PipelineDescription fallback) {
+		long pipeline = this.get(description);
+		if (pipeline != VK_NULL_HANDLE) return pipeline;
+
+		this.fallbacks.incrementAndGet();
+		return this.getBlocking(fallback);
+	}
+
+	/**
+	 * Waits for the pipeline. For loading, not for the middle of a frame.
+	 */
+	public long getBlocking(PipelineDescription description) {
+		return this.request(description).join();
+	}
+
+	public boolean isReady(PipelineDescription description) {
+		description.freeze();
+		CompletableFuture<Long> future = this.pipelines.get(description);
+		return future != null && future.isDone() && !future.isCompletedExceptionally();
+	}
+
+	/**
+	 * Never blocks.
+	 *
+	 * @return Why the pipeline failed to build, or null if it's built, still
+	 *         being built or was never asked for.
+	 */
+	public Throwable getError(PipelineDescription description) {
+		description.freeze();
+		CompletableFuture<Long> future = this.pipelines.get(description);
+		if (future == null || !future.isCompletedExceptionally()) return null;
+
+		try {
+			future.join();
+			return null;
+		} catch (CompletionException e) {
+			return e.getCause() == null ? e : e.getCause();
+		} catch (CancellationException e) {
+			return e;
+		}
+	}
+
+	/**
+	 * Starts building all of these.
+	 *
+	 * @return Completes once they're all built.
+	 */
+	public CompletableFuture<Void> prewarm(Collection<PipelineDescription> descriptions) {
+		ArrayList<CompletableFuture<Long>> futures = new ArrayList<CompletableFuture<Long>>(descriptions.size());
+		for (PipelineDescription description: descriptions) {
+			futures.add(this.request(description));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+	}
+
+	public int getPendingCount() {
+		return this.pending.get();
+	}
+
+	public Stats getStats() {
+		return new Stats(
+			this.pipelines.size(),
+			this.pending.get(),
+			this.requests.get(),
+			this.notReady.get(),
+			this.fallbacks.get(),
+			this.compileTimes.snapshot()
+		);
+	}
+
+	public String toString() {
+		return "PipelineCompiler<pipelines: " + this.pipelines.size() + ", pending: " + this.pending.get() + ">";
+	}
+
+	/**
+	 * Lets any builds in progress finish, destroys every pipeline and saves
+	 * the cache. The device has to be idle. The cache itself still belongs to
+	 * the caller.
+	 *
+	 * @throws UncheckedIOException If the cache couldn't be written. Everything
+	 *         else has been cleaned up by then.
+	 */
+	public void dispose() {
+		this.executor.shutdown();
+		try {
+			while (!this.executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// Drivers can take a while on big shaders.
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		for (CompletableFuture<Long> future: this.pipelines.values()) {
+			if (!future.isDone() || future.isCompletedExceptionally()) continue;
+
+			VulkanCall.DESTROY_PIPELINE.run(() -> vkDestroyPipeline(this.logicalDevice.getDevice(), future.join(), null));
+		}
+		this.pipelines.clear();
+
+		if (this.pipelineCache != null) {
+			try {
+				this.pipelineCache.save();
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not write pipeline cache " + this.pipelineCache.getPath(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,459 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkComputePipelineCreateInfo;
+import org.lwjgl.vulkan.VkGraphicsPipelineCreateInfo;
+import org.lwjgl.vulkan.VkPipelineColorBlendAttachmentState;
+import org.lwjgl.vulkan.VkPipelineColorBlendStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineDepthStencilStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineDynamicStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineInputAssemblyStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineMultisampleStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineRasterizationStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineShaderStageCreateInfo;
+import org.lwjgl.vulkan.VkPipelineVertexInputStateCreateInfo;
+import org.lwjgl.vulkan.VkPipelineViewportStateCreateInfo;
+import org.lwjgl.vulkan.VkSpecializationInfo;
+import org.lwjgl.vulkan.VkSpecializationMapEntry;
+import org.lwjgl.vulkan.VkVertexInputAttributeDescription;
+import org.lwjgl.vulkan.VkVertexInputBindingDescription;
+
+/**
+ * Everything that goes into a graphics or compute pipeline, as plain values
+ * that can be hashed and compared.
+ * <p>
+ * Two descriptions that would build the same pipeline are equal, so
+ * PipelineCompiler only ever builds each pipeline once. Shaders hash by the
+ * hash of their SPIR-V and compare by the SPIR-V itself, everything else by
+ * value. Viewport and scissor
+ * are always dynamic, so they aren't part of it.
+ * <p>
+ * Set a description up with the fluent setters, then hand it over. Once
+ * PipelineCompiler has it, it's frozen and the setters throw.
+ */
+public class PipelineDescription {
+	public static final int BLEND_NONE = 0;
+	public static final int BLEND_ALPHA = 1;
+	public static final int BLEND_PREMULTIPLIED = 2;
+	public static final int BLEND_ADDITIVE = 3;
+
+	protected static class Stage {
+		protected int stage;
+		protected ShaderModule module;
+		protected String entryPoint;
+
+		protected Stage(int stage, ShaderModule module, String entryPoint) {
+			this.stage = stage;
+			this.module = module;
+			this.entryPoint = entryPoint;
+		}
+	}
+
+	protected String name;
+	protected boolean isCompute;
+	protected PipelineLayout layout;
+	protected ArrayList<Stage> stages = new ArrayList<Stage>();
+
+	/**
+	 * Binding, stride, input rate for each vertex binding, then location,
+	 * binding, format, offset for each attribute.
+	 */
+	protected int[] vertexBindings = new int[0];
+	protected int[] vertexAttributes = new int[0];
+
+	/**
+	 * Constant id, value pairs, given to every stage.
+	 */
+	protected int[] specializations = new int[0];
+
+	protected int topology = VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST;
+	protected boolean primitiveRestart;
+	protected int polygonMode = VK_POLYGON_MODE_FILL;
+	protected int cullMode = VK_CULL_MODE_BACK_BIT;
+	protected int frontFace = VK_FRONT_FACE_COUNTER_CLOCKWISE;
+	protected boolean depthTest = true;
+	protected boolean depthWrite = true;
+	protected int depthCompareOp = VK_COMPARE_OP_LESS_OR_EQUAL;
+	protected int samples = VK_SAMPLE_COUNT_1_BIT;
+
+	/**
+	 * One blend mode per color attachment.
+	 */
+	protected int[] blendModes = new int[] { PipelineDescription.BLEND_NONE };
+
+	protected long renderPass;
+	protected int subpass;
+
+	protected boolean isFrozen;
+	protected int hash;
+
+	/**
+	 * @param name Only for logging and profiling.
+	 */
+	public PipelineDescription(String name, PipelineLayout layout) {
+		this.name = name;
+		this.layout = layout;
+	}
+
+	/**
+	 * A compute pipeline running module's entryPoint.
+	 */
+	public static PipelineDescription compute(String name, PipelineLayout layout, ShaderModule module, String entryPoint) {
+		PipelineDescription ret = new PipelineDescription(name, layout);
+		ret.isCompute = true;
+		ret.stages.add(new Stage(VK_SHADER_STAGE_COMPUTE_BIT, module, entryPoint));
+		return ret;
+	}
+
+	/**
+	 * @param stage One VK_SHADER_STAGE_*_BIT.
+	 */
+	public PipelineDescription stage(int stage, ShaderModule module, String entryPoint) {
+		this.mutable();
+		this.stages.add(new Stage(stage, module, entryPoint));
+		return this;
+	}
+
+	public PipelineDescription vertexBinding(int binding, int stride, int inputRate) {
+		this.mutable();
+		this.vertexBindings = PipelineDescription.append(this.vertexBindings, binding, stride, inputRate);
+		return this;
+	}
+
+	public PipelineDescription vertexAttribute(int location, int binding, int format, int offset) {
+		this.mutable();
+		this.vertexAttributes = PipelineDescription.append(this.vertexAttributes, location, binding, format, offset);
+		return this;
+	}
+
+	/**
+	 * Sets a 32-bit specialization constant. Every stage gets the same set;
+	 * a stage that doesn't declare an id just ignores it.
+	 */
+	public PipelineDescription specialize(int constantId, int value) {
+		this.mutable();
+		this.specializations = PipelineDescription.append(this.specializations, constantId, value);
+		return this;
+	}
+
+	public PipelineDescription topology(int topology, boolean primitiveRestart) {
+		this.mutable();
+		this.topology = topology;
+		this.primitiveRestart = primitiveRestart;
+		return this;
+	}
+
+	public PipelineDescription rasterization(int polygonMode, int cullMode, int frontFace) {
+		this.mutable();
+		this.polygonMode = polygonMode;
+		this.cullMode = cullMode;
+		this.frontFace = frontFace;
+		return this;
+	}
+
+	public PipelineDescription depth(boolean test, boolean write, int compareOp) {
+		this.mutable();
+		this.depthTest = test;
+		this.depthWrite = write;
+		this.depthCompareOp = compareOp;
+		return this;
+	}
+
+	public PipelineDescription samples(int samples) {
+		this.mutable();
+		this.samples = samples;
+		return this;
+	}
+
+	/**
+	 * @param blendModes A BLEND_* per color attachment.
+	 */
+	public PipelineDescription blend(int... blendModes) {
+		this.mutable();
+		this.blendModes = blendModes.clone();
+		return this;
+	}
+
+	public PipelineDescription renderPass(long renderPass, int subpass) {
+		this.mutable();
+		this.renderPass = renderPass;
+		this.subpass = subpass;
+		return this;
+	}
+
+	protected static int[] append(int[] array, int... values) {
+		int[] ret = Arrays.copyOf(array, array.length + values.length);
+		System.arraycopy(values, 0, ret, array.length, values.length);
+		return ret;
+	}
+
+	protected void mutable() {
+		if (this.isFrozen) {
+			throw new AssertionError("Pipeline description " + this.name + " has already been handed to the compiler.");
+		}
+	}
+
+	/**
+	 * Stops any more changes and works out the hash.
+	 */
+	protected void freeze() {
+		if (this.isFrozen) return;
+
+		int ret = this.isCompute ? 1 : 0;
+		ret = ret * 31 + System.identityHashCode(this.layout);
+		for (Stage stage: this.stages) {
+			ret = ret * 31 + stage.stage;
+			ret = ret * 31 + Long.hashCode(stage.module.getContentHash());
+			ret = ret * 31 + stage.entryPoint.hashCode();
+		}
+		ret = ret * 31 + Arrays.hashCode(this.vertexBindings);
+		ret = ret * 31 + Arrays.hashCode(this.vertexAttributes);
+		ret = ret * 31 + Arrays.hashCode(this.specializations);
+		ret = ret * 31 + this.topology;
+		ret = ret * 31 + (this.primitiveRestart ? 1 : 0);
+		ret = ret * 31 + this.polygonMode;
+		ret = ret * 31 + this.cullMode;
+		ret = ret * 31 + this.frontFace;
+		ret = ret * 31 + (this.depthTest ? 1 : 0);
+		ret = ret * 31 + (this.depthWrite ? 1 : 0);
+		ret = ret * 31 + this.depthCompareOp;
+		ret = ret * 31 + this.samples;
+		ret = ret * 31 + Arrays.hashCode(this.blendModes);
+		ret = ret * 31 + Long.hashCode(this.renderPass);
+		ret = ret * 31 + this.subpass;
+
+		this.hash = ret;
+		this.isFrozen = true;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public boolean isCompute() {
+		return this.isCompute;
+	}
+
+	public PipelineLayout getLayout() {
+		return this.layout;
+	}
+
+	/**
+	 * Only meaningful between frozen descriptions, which is all that
+	 * PipelineCompiler ever compares.
+	 */
+	public boolean equals(Object o) {
+		if (!(o instanceof PipelineDescription)) return false;
+		PipelineDescription other = (PipelineDescription)o;
+		if (this.hash != other.hash || this.isCompute != other.isCompute || this.layout != other.layout) return false;
+		if (this.stages.size() != other.stages.size()) return false;
+		for (int i = 0; i < this.stages.size(); i++) {
+			Stage a = this.stages.get(i);
+			Stage b = other.stages.get(i);
+			if (a.stage != b.stage || !a.module.hasSameCode(b.module) || !a.entryPoint.equals(b.entryPoint)) return false;
+		}
+		return Arrays.equals(this.vertexBindings, other.vertexBindings)
+			&& Arrays.equals(this.vertexAttributes, other.vertexAttributes)
+			&& Arrays.equals(this.specializations, other.specializations)
+			&& this.topology == other.topology
+			&& this.primitiveRestart == other.primitiveRestart
+			&& this.polygonMode == other.polygonMode
+			&& this.cullMode == other.cullMode
+			&& this.frontFace == other.frontFace
+			&& this.depthTest == other.depthTest
+			&& this.depthWrite == other.depthWrite
+			&& this.depthCompareOp == other.depthCompareOp
+			&& this.samples == other.samples
+			&& Arrays.equals(this.blendModes, other.blendModes)
+			&& this.renderPass == other.renderPass
+			&& this.subpass == other.subpass;
+	}
+
+	public int hashCode() {
+		return this.hash;
+	}
+
+	/**
+	 * Builds the pipeline. Safe to call from any thread.
+	 *
+	 * @param pipelineCache A VkPipelineCache, or VK_NULL_HANDLE.
+	 * @return The VkPipeline handle.
+	 */
+	public long create(LogicalDevice logicalDevice, long pipelineCache) {
+		try (MemoryStack stack = stackPush()) {
+			VkSpecializationInfo specialization = null;
+			if (this.specializations.length > 0) {
+				int count = this.specializations.length / 2;
+				VkSpecializationMapEntry.Buffer entries = VkSpecializationMapEntry.callocStack(count, stack);
+				ByteBuffer data = stack.malloc(count * 4);
+				for (int i = 0; i < count; i++) {
+					entries.get(i)
+						.constantID(this.specializations[i * 2])
+						.offset(i * 4)
+						.size(4);
+					data.putInt(i * 4, this.specializations[i * 2 + 1]);
+				}
+				specialization = VkSpecializationInfo.callocStack(stack);
+				specialization.pMapEntries(entries);
+				specialization.pData(data);
+			}
+
+			VkPipelineShaderStageCreateInfo.Buffer stages = VkPipelineShaderStageCreateInfo.callocStack(this.stages.size(), stack);
+			for (int i = 0; i < this.stages.size(); i++) {
+				Stage stage = this.stages.get(i);
+				if (stage.module.getShaderModule() == VK_NULL_HANDLE) {
+					throw new AssertionError("A shader module of " + this.name + " was disposed before its pipeline was built.");
+				}
+				stages.get(i)
+					.sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO)
+					.stage(stage.stage)
+					.module(stage.module.getShaderModule())
+					.pName(stack.UTF8(stage.entryPoint))
+					.pSpecializationInfo(specialization);
+			}
+
+			LongBuffer pPipeline = stack.mallocLong(1);
+			if (this.isCompute) {
+				VkComputePipelineCreateInfo.Buffer createInfo = VkComputePipelineCreateInfo.callocStack(1, stack);
+				createInfo.get(0)
+					.sType(VK_STRUCTURE_TYPE_COMPUTE_PIPELINE_CREATE_INFO)
+					.stage(stages.get(0))
+					.layout(this.layout.getPipelineLayout());
+
+				int err = VulkanCall.CREATE_COMPUTE_PIPELINES.invoke(() -> vkCreateComputePipelines(logicalDevice.getDevice(), pipelineCache, createInfo, null, pPipeline));
+				if (err != VK_SUCCESS) {
+					throw new AssertionError("Failed to create compute pipeline " + this.name + ": " + Vulkan.translateVulkanResult(err));
+				}
+				return pPipeline.get(0);
+			}
+
+			VkPipelineVertexInputStateCreateInfo vertexInput = VkPipelineVertexInputStateCreateInfo.callocStack(stack);
+			vertexInput.sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO);
+			if (this.vertexBindings.length > 0) {
+				VkVertexInputBindingDescription.Buffer bindings = VkVertexInputBindingDescription.callocStack(this.vertexBindings.length / 3, stack);
+				for (int i = 0; i < bindings.capacity(); i++) {
+					bindings.get(i)
+						.binding(this.vertexBindings[i * 3])
+						.stride(this.vertexBindings[i * 3 + 1])
+						.inputRate(this.vertexBindings[i * 3 + 2]);
+				}
+				vertexInput.pVertexBindingDescriptions(bindings);
+			}
+			if (this.vertexAttributes.length > 0) {
+				VkVertexInputAttributeDescription.Buffer attributes = VkVertexInputAttributeDescription.callocStack(this.vertexAttributes.length / 4, stack);
+				for (int i = 0; i < attributes.capacity(); i++) {
+					attributes.get(i)
+						.location(this.vertexAttributes[i * 4])
+						.binding(this.vertexAttributes[i * 4 + 1])
+						.format(this.vertexAttributes[i * 4 + 2])
+						.offset(this.vertexAttributes[i * 4 + 3]);
+				}
+				vertexInput.pVertexAttributeDescriptions(attributes);
+			}
+
+			VkPipelineInputAssemblyStateCreateInfo inputAssembly = VkPipelineInputAssemblyStateCreateInfo.callocStack(stack);
+			inputAssembly.sType(VK_STRUCTURE_TYPE_PIPELINE_INPUT_ASSEMBLY_STATE_CREATE_INFO);
+			inputAssembly.topology(this.topology);
+			inputAssembly.primitiveRestartEnable(this.primitiveRestart);
+
+			VkPipelineViewportStateCreateInfo viewport = VkPipelineViewportStateCreateInfo.callocStack(stack);
+			viewport.sType(VK_STRUCTURE_TYPE_PIPELINE_VIEWPORT_STATE_CREATE_INFO);
+			viewport.viewportCount(1);
+			viewport.scissorCount(1);
+
+			VkPipelineRasterizationStateCreateInfo rasterization = VkPipelineRasterizationStateCreateInfo.callocStack(stack);
+			rasterization.sType(VK_STRUCTURE_TYPE_PIPELINE_RASTERIZATION_STATE_CREATE_INFO);
+			rasterization.polygonMode(this.polygonMode);
+			rasterization.cullMode(this.cullMode);
+			rasterization.frontFace(this.frontFace);
+			rasterization.lineWidth(1.0f);
+
+			VkPipelineMultisampleStateCreateInfo multisample = VkPipelineMultisampleStateCreateInfo.callocStack(stack);
+			multisample.sType(VK_STRUCTURE_TYPE_PIPELINE_MULTISAMPLE_STATE_CREATE_INFO);
+			multisample.rasterizationSamples(this.samples);
+
+			VkPipelineDepthStencilStateCreateInfo depthStencil = VkPipelineDepthStencilStateCreateInfo.callocStack(stack);
+			depthStencil.sType(VK_STRUCTURE_TYPE_PIPELINE_DEPTH_STENCIL_STATE_CREATE_INFO);
+			depthStencil.depthTestEnable(this.depthTest);
+			depthStencil.depthWriteEnable(this.depthWrite);
+			depthStencil.depthCompareOp(this.depthCompareOp);
+
+			VkPipelineColorBlendAttachmentState.Buffer attachments = VkPipelineColorBlendAttachmentState.callocStack(this.blendModes.length, stack);
+			for (int i = 0; i < this.blendModes.length; i++) {
+				PipelineDescription.writeBlend(attachments.get(i), this.blendModes[i]);
+			}
+			VkPipelineColorBlendStateCreateInfo colorBlend = VkPipelineColorBlendStateCreateInfo.callocStack(stack);
+			colorBlend.sType(VK_STRUCTURE_TYPE_PIPELINE_COLOR_BLEND_STATE_CREATE_INFO);
+			colorBlend.pAttachments(attachments);
+
+			VkPipelineDynamicStateCreateInfo dynamicState = VkPipelineDynamicStateCreateInfo.callocStack(stack);
+			dynamicState.sType(VK_STRUCTURE_TYPE_PIPELINE_DYNAMIC_STATE_CREATE_INFO);
+			dynamicState.pDynamicStates(stack.ints(VK_DYNAMIC_STATE_VIEWPORT, VK_DYNAMIC_STATE_SCISSOR));
+
+			VkGraphicsPipelineCreateInfo.Buffer createInfo = VkGraphicsPipelineCreateInfo.callocStack(1, stack);
+			createInfo.get(0)
+				.sType(VK_STRUCTURE_TYPE_GRAPHICS_PIPELINE_CREATE_INFO)
+				.pStages(stages)
+				.pVertexInputState(vertexInput)
+				.pInputAssemblyState(inputAssembly)
+				.pViewportState(viewport)
+				.pRasterizationState(rasterization)
+				.pMultisampleState(multisample)
+				.pDepthStencilState(depthStencil)
+				.pColorBlendState(colorBlend)
+				.pDynamicState(dynamicState)
+				.layout(this.layout.getPipelineLayout())
+				.renderPass(this.renderPass)
+				.subpass(this.subpass);
+
+			int err = VulkanCall.CREATE_GRAPHICS_PIPELINES.invoke(() -> vkCreateGraphicsPipelines(logicalDevice.getDevice(), pipelineCache, createInfo, null, pPipeline));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create graphics pipeline " + this.name + ": " + Vulkan.translateVulkanResult(err));
+			}
+			return pPipeline.get(0);
+		}
+	}
+
+	protected static void writeBlend(VkPipelineColorBlendAttachmentState state, int blendMode) {
+		state.colorWriteMask(VK_COLOR_COMPONENT_R_BIT | VK_COLOR_COMPONENT_G_BIT | VK_COLOR_COMPONENT_B_BIT | VK_COLOR_COMPONENT_A_BIT);
+		if (blendMode == PipelineDescription.BLEND_NONE) return;
+
+		state.blendEnable(true);
+		state.colorBlendOp(VK_BLEND_OP_ADD);
+		state.alphaBlendOp(VK_BLEND_OP_ADD);
+		switch (blendMode) {
+			case PipelineDescription.BLEND_ALPHA:
+				state.srcColorBlendFactor(VK_BLEND_FACTOR_SRC_ALPHA);
+				state.dstColorBlendFactor(VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA);
+				state.srcAlphaBlendFactor(VK_BLEND_FACTOR_ONE);
+				state.dstAlphaBlendFactor(VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA);
+				break;
+			case PipelineDescription.BLEND_PREMULTIPLIED:
+				state.srcColorBlendFactor(VK_BLEND_FACTOR_ONE);
+				state.dstColorBlendFactor(VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA);
+				state.srcAlphaBlendFactor(VK_BLEND_FACTOR_ONE);
+				state.dstAlphaBlendFactor(VK_BLEND_FACTOR_ONE_MINUS_SRC_ALPHA);
+				break;
+			case PipelineDescription.BLEND_ADDITIVE:
+				state.srcColorBlendFactor(VK_BLEND_FACTOR_ONE);
+				state.dstColorBlendFactor(VK_BLEND_FACTOR_ONE);
+				state.srcAlphaBlendFactor(VK_BLEND_FACTOR_ONE);
+				state.dstAlphaBlendFactor(VK_BLEND_FACTOR_ONE);
+				break;
+			default:
+				throw new AssertionError("Unknown blend mode " + blendMode);
+		}
+	}
+
+	public String toString() {
+		return "PipelineDescription<" + this.name + (this.isCompute ? ", compute" : "") + ", stages: " + this.stages.size() + ">";
+	}
+}
@@ -0,0 +1,107 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.LongBuffer;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkPipelineLayoutCreateInfo;
+import org.lwjgl.vulkan.VkPushConstantRange;
+
+/**
+ * A VkPipelineLayout: the descriptor set layouts a pipeline uses, in set
+ * order, and at most one push constant range.
+ * <p>
+ * The sets are checked together against the device's descriptor limits
+ * (see DescriptorSetLayout.validate()), and the push constant range against
+ * maxPushConstantsSize.
+ */
+public class PipelineLayout {
+	protected LogicalDevice logicalDevice;
+	protected long pipelineLayout;
+	protected DescriptorSetLayout[] setLayouts;
+	protected int pushConstantStages;
+	protected int pushConstantSize;
+
+	public PipelineLayout(LogicalDevice logicalDevice, DescriptorSetLayout... setLayouts) {
+		this(logicalDevice, 0, 0, setLayouts);
+	}
+
+	/**
+	 * @param pushConstantStages VK_SHADER_STAGE_* flags that see the push
+	 *        constants, or 0 for none.
+	 * @param pushConstantSize How many bytes of push constants, starting at
+	 *        offset 0.
+	 */
+	public PipelineLayout(LogicalDevice logicalDevice, int pushConstantStages, int pushConstantSize, DescriptorSetLayout... setLayouts) {
+		PhysicalDeviceLimits limits = logicalDevice.getPhysicalDevice().getLimits();
+		DescriptorSetLayout.validate(limits, setLayouts);
+		if (pushConstantSize % 4 != 0) {
+			throw new AssertionError("Push constants come in multiples of 4 bytes, got " + pushConstantSize);
+		}
+		if (pushConstantSize > limits.maxPushConstantsSize) {
+			throw new AssertionError(pushConstantSize + " bytes of push constants, maxPushConstantsSize is " + limits.maxPushConstantsSize);
+		}
+
+		this.logicalDevice = logicalDevice;
+		this.setLayouts = setLayouts.clone();
+		this.pushConstantStages = pushConstantStages;
+		this.pushConstantSize = pushConstantSize;
+
+		try (MemoryStack stack = stackPush()) {
+			LongBuffer pSetLayouts = stack.mallocLong(setLayouts.length);
+			for (int i = 0; i < setLayouts.length; i++) {
+				pSetLayouts.put(i, setLayouts[i].getLayout());
+			}
+
+			VkPipelineLayoutCreateInfo createInfo = VkPipelineLayoutCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO);
+			createInfo.pSetLayouts(pSetLayouts);
+
+			if (pushConstantStages != 0 && pushConstantSize > 0) {
+				VkPushConstantRange.Buffer ranges = VkPushConstantRange.callocStack(1, stack);
+				ranges.get(0)
+					.stageFlags(pushConstantStages)
+					.offset(0)
+					.size(pushConstantSize);
+				createInfo.pPushConstantRanges(ranges);
+			}
+
+			LongBuffer pPipelineLayout = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_PIPELINE_LAYOUT.invoke(() -> vkCreatePipelineLayout(logicalDevice.getDevice(), createInfo, null, pPipelineLayout));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create pipeline layout: " + Vulkan.translateVulkanResult(err));
+			}
+			this.pipelineLayout = pPipelineLayout.get(0);
+		}
+	}
+
+	public long getPipelineLayout() {
+		return this.pipelineLayout;
+	}
+
+	public DescriptorSetLayout getSetLayout(int set) {
+		return this.setLayouts[set];
+	}
+
+	public int getSetCount() {
+		return this.setLayouts.length;
+	}
+
+	public int getPushConstantStages() {
+		return this.pushConstantStages;
+	}
+
+	public int getPushConstantSize() {
+		return this.pushConstantSize;
+	}
+
+	public String toString() {
+		return "PipelineLayout<sets: " + this.setLayouts.length + ", push constants: " + this.pushConstantSize + ">";
+	}
+
+	public void dispose() {
+		VulkanCall.DESTROY_PIPELINE_LAYOUT.run(() -> vkDestroyPipelineLayout(this.logicalDevice.getDevice(), this.pipelineLayout, null));
+	}
+}
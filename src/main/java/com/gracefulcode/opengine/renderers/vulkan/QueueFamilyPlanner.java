@@ -0,0 +1,202 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Works out which queues to ask for when we create a logical device.
+ * <p>
+ * We want up to three queues: graphics, compute and transfer. Many GPUs have
+ * families that only do compute or only do transfers, and work submitted to
+ * those runs alongside rendering instead of waiting behind it. So we prefer
+ * those dedicated families, then fall back to extra queues in a shared
+ * family, then fall back to sharing a single queue.
+ * <p>
+ * This only looks at the PhysicalDevice.Queue records; it doesn't talk to
+ * Vulkan at all.
+ */
+public class QueueFamilyPlanner {
+	public static final float GRAPHICS_PRIORITY = 1.0f;
+	public static final float COMPUTE_PRIORITY = 0.75f;
+	public static final float TRANSFER_PRIORITY = 0.5f;
+
+	/**
+	 * Where one role ended up.
+	 */
+	public static class Assignment {
+		protected DeviceQueue.Role role;
+		protected PhysicalDevice.Queue family;
+		protected int queueIndex;
+
+		protected Assignment(DeviceQueue.Role role, PhysicalDevice.Queue family, int queueIndex) {
+			this.role = role;
+			this.family = family;
+			this.queueIndex = queueIndex;
+		}
+
+		public DeviceQueue.Role getRole() {
+			return this.role;
+		}
+
+		public PhysicalDevice.Queue getFamily() {
+			return this.family;
+		}
+
+		public int getQueueIndex() {
+			return this.queueIndex;
+		}
+
+		public String toString() {
+			return this.role + "<family: " + this.family.getIndex() + ", queue: " + this.queueIndex + ">";
+		}
+	}
+
+	/**
+	 * The result: an assignment per role (or null if the device can't do
+	 * that at all), and the queue counts and priorities to ask for per
+	 * family.
+	 */
+	public static class Plan {
+		protected Assignment[] assignments = new Assignment[DeviceQueue.Role.values().length];
+		protected float[][] priorities;
+
+		public Assignment getAssignment(DeviceQueue.Role role) {
+			return this.assignments[role.ordinal()];
+		}
+
+		/**
+		 * @return Priorities for each queue we're asking for from the family,
+		 *         or null if we aren't using it.
+		 */
+		public float[] getPriorities(int familyIndex) {
+			return this.priorities[familyIndex];
+		}
+
+		public int getFamilyCount() {
+			return this.priorities.length;
+		}
+
+		public String toString() {
+			return Arrays.toString(this.assignments);
+		}
+	}
+
+	protected List<PhysicalDevice.Queue> families;
+	protected int discreteQueuePriorities;
+
+	public QueueFamilyPlanner(PhysicalDevice physicalDevice) {
+		this(physicalDevice.getQueues(), physicalDevice.getLimits().discreteQueuePriorities);
+	}
+
+	public QueueFamilyPlanner(List<PhysicalDevice.Queue> families, int discreteQueuePriorities) {
+		this.families = families;
+		this.discreteQueuePriorities = discreteQueuePriorities;
+	}
+
+	public Plan plan() {
+		Plan plan = new Plan();
+		int[] used = new int[this.families.size()];
+		ArrayList<ArrayList<Float>> priorities = new ArrayList<ArrayList<Float>>();
+		for (int i = 0; i < this.families.size(); i++) {
+			priorities.add(new ArrayList<Float>());
+		}
+
+		PhysicalDevice.Queue graphics = this.pickGraphics();
+		PhysicalDevice.Queue compute = this.pickCompute();
+		PhysicalDevice.Queue transfer = this.pickTransfer(compute);
+
+		this.assign(plan, DeviceQueue.Role.GRAPHICS, graphics, QueueFamilyPlanner.GRAPHICS_PRIORITY, used, priorities);
+		this.assign(plan, DeviceQueue.Role.COMPUTE, compute, QueueFamilyPlanner.COMPUTE_PRIORITY, used, priorities);
+		this.assign(plan, DeviceQueue.Role.TRANSFER, transfer, QueueFamilyPlanner.TRANSFER_PRIORITY, used, priorities);
+
+		plan.priorities = new float[this.families.size()][];
+		for (int i = 0; i < this.families.size(); i++) {
+			if (priorities.get(i).isEmpty()) continue;
+
+			plan.priorities[i] = new float[priorities.get(i).size()];
+			for (int j = 0; j < plan.priorities[i].length; j++) {
+				plan.priorities[i][j] = this.quantize(priorities.get(i).get(j).floatValue());
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Takes the next unused queue in the family if there is one, otherwise
+	 * shares the last queue we took from it.
+	 */
+	protected void assign(Plan plan, DeviceQueue.Role role, PhysicalDevice.Queue family, float priority, int[] used, ArrayList<ArrayList<Float>> priorities) {
+		if (family == null) return;
+
+		int familyIndex = family.getIndex();
+		int queueIndex;
+		if (used[familyIndex] < family.getCount()) {
+			queueIndex = used[familyIndex]++;
+			priorities.get(familyIndex).add(Float.valueOf(priority));
+		} else {
+			queueIndex = used[familyIndex] - 1;
+			float existing = priorities.get(familyIndex).get(queueIndex).floatValue();
+			priorities.get(familyIndex).set(queueIndex, Float.valueOf(Math.max(existing, priority)));
+		}
+		plan.assignments[role.ordinal()] = new Assignment(role, family, queueIndex);
+	}
+
+	/**
+	 * A graphics family that can also do compute, if there is one. The spec
+	 * promises there will be on any device that does graphics at all.
+	 */
+	protected PhysicalDevice.Queue pickGraphics() {
+		PhysicalDevice.Queue ret = null;
+		for (PhysicalDevice.Queue family: this.families) {
+			if (!family.isGraphics()) continue;
+			if (family.isCompute()) return family;
+			if (ret == null) ret = family;
+		}
+		return ret;
+	}
+
+	/**
+	 * A compute family without graphics (async compute), otherwise the first
+	 * compute family.
+	 */
+	protected PhysicalDevice.Queue pickCompute() {
+		PhysicalDevice.Queue ret = null;
+		for (PhysicalDevice.Queue family: this.families) {
+			if (!family.isCompute()) continue;
+			if (!family.isGraphics()) return family;
+			if (ret == null) ret = family;
+		}
+		return ret;
+	}
+
+	/**
+	 * A transfer-only family (usually backed by a DMA engine), otherwise a
+	 * family without graphics, otherwise wherever compute went, otherwise
+	 * anything that can transfer.
+	 */
+	protected PhysicalDevice.Queue pickTransfer(PhysicalDevice.Queue compute) {
+		PhysicalDevice.Queue nonGraphics = null;
+		PhysicalDevice.Queue any = null;
+		for (PhysicalDevice.Queue family: this.families) {
+			if (!family.isTransfer()) continue;
+			if (!family.isGraphics() && !family.isCompute()) return family;
+			if (!family.isGraphics() && nonGraphics == null) nonGraphics = family;
+			if (any == null) any = family;
+		}
+		if (nonGraphics != null) return nonGraphics;
+		if (compute != null) return compute;
+		return any;
+	}
+
+	/**
+	 * Devices only have discreteQueuePriorities distinct priority levels
+	 * (as few as two), so we snap to the ones that really exist.
+	 */
+	protected float quantize(float priority) {
+		if (this.discreteQueuePriorities < 2) return priority;
+
+		int levels = this.discreteQueuePriorities - 1;
+		return Math.round(priority * levels) / (float)levels;
+	}
+}
@@ -0,0 +1,92 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Host-visible buffers for copying things off the GPU into, kept around and
+ * reused by size.
+ * <p>
+ * Batch jobs tend to come in a handful of sizes, so buffers are pooled by
+ * exact size. Memory is host cached where the device has it, since the CPU
+ * is going to read every byte.
+ */
+public class ReadbackPool {
+	protected LogicalDevice logicalDevice;
+	protected HashMap<Long, ArrayDeque<DeviceBuffer>> free = new HashMap<Long, ArrayDeque<DeviceBuffer>>();
+	protected int created;
+	protected long obtained;
+	protected int outstanding;
+
+	public ReadbackPool(LogicalDevice logicalDevice) {
+		this.logicalDevice = logicalDevice;
+	}
+
+	/**
+	 * @return A mapped buffer of exactly size bytes. Give it back with
+	 *         release().
+	 */
+	public synchronized DeviceBuffer obtain(long size) {
+		this.obtained++;
+		this.outstanding++;
+
+		ArrayDeque<DeviceBuffer> buffers = this.free.get(size);
+		if (buffers != null && !buffers.isEmpty()) {
+			return buffers.poll();
+		}
+
+		DeviceBuffer ret = new DeviceBuffer(
+			this.logicalDevice,
+			size,
+			VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+			VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT,
+			VK_MEMORY_PROPERTY_HOST_CACHED_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT
+		);
+		ret.map();
+		this.created++;
+		return ret;
+	}
+
+	public synchronized void release(DeviceBuffer buffer) {
+		this.outstanding--;
+		this.free.computeIfAbsent(buffer.getSize(), k -> new ArrayDeque<DeviceBuffer>()).add(buffer);
+	}
+
+	/**
+	 * @return How many buffers have ever been created.
+	 */
+	public synchronized int getCreatedCount() {
+		return this.created;
+	}
+
+	/**
+	 * @return How many times obtain() has been called. Compare against
+	 *         getCreatedCount() to see how often buffers are reused.
+	 */
+	public synchronized long getObtainCount() {
+		return this.obtained;
+	}
+
+	public synchronized int getOutstandingCount() {
+		return this.outstanding;
+	}
+
+	public synchronized String toString() {
+		return "ReadbackPool<created: " + this.created + ", obtained: " + this.obtained + ", outstanding: " + this.outstanding + ">";
+	}
+
+	/**
+	 * Destroys every buffer that has been released. Buffers still out are
+	 * the caller's problem.
+	 */
+	public synchronized void dispose() {
+		for (ArrayDeque<DeviceBuffer> buffers: this.free.values()) {
+			for (DeviceBuffer buffer: buffers) {
+				buffer.dispose();
+			}
+		}
+		this.free.clear();
+	}
+}
@@ -0,0 +1,440 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkBufferCopy;
+import org.lwjgl.vulkan.VkBufferImageCopy;
+import org.lwjgl.vulkan.VkBufferMemoryBarrier;
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+/**
+ * Continuous GPU to CPU copies (captures, screenshots, headless output)
+ * without ever waiting on the GPU.
+ * <p>
+ * One host-visible buffer is split into a ring of equal slots and mapped for
+ * good. It's host cached if the device has such a memory type, since the CPU
+ * reads every byte and uncached reads are painfully slow; if that memory
+ * isn't coherent we invalidate each slot before handing it out. Usage:
+ * <pre>
+ * Readback readback = ring.begin(size);
+ * if (readback != null) {
+ *     readback.copyImage(commandBuffer, image, VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL);
+ *     ...submit commandBuffer with fence...
+ *     ring.submitted(readback, fence);
+ * }
+ * ...
+ * ring.poll();
+ * </pre>
+ * begin() returns null when every slot is busy, and the frame is counted as
+ * dropped instead of stalling. poll() checks fences oldest first and never
+ * blocks. A finished readback's future completes with a ByteBuffer straight
+ * over the mapped slot, which can go to FileChannel.write() or any other
+ * WritableByteChannel without passing through the Java heap. release() the
+ * readback once that's done to give the slot back.
+ */
+public class ReadbackRing {
+	/**
+	 * One copy into one slot.
+	 */
+	public class Readback {
+		protected int slot;
+		protected long size;
+		protected long fence;
+		protected long submitTime;
+		protected boolean isRecorded;
+		protected boolean isReleased;
+		protected CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+
+		protected Readback(int slot, long size) {
+			this.slot = slot;
+			this.size = size;
+		}
+
+		/**
+		 * Records a copy of the whole of an image's first mip level and layer
+		 * into this slot, tightly packed.
+		 *
+		 * @param layout The layout the image is in. Has to be
+		 *        TRANSFER_SRC_OPTIMAL or GENERAL.
+		 */
+		public void copyImage(VkCommandBuffer commandBuffer, Image image, int layout) {
+			if (image.getByteSize() > this.size) {
+				throw new AssertionError("Image is " + image.getByteSize() + " bytes, readback is " + this.size);
+			}
+
+			try (MemoryStack stack = stackPush()) {
+				VkBufferImageCopy.Buffer region = VkBufferImageCopy.callocStack(1, stack);
+				region.get(0).bufferOffset(this.getOffset());
+				region.get(0).imageSubresource()
+					.aspectMask(image.getViewAspectMask())
+					.mipLevel(0)
+					.baseArrayLayer(0)
+					.layerCount(1);
+				region.get(0).imageExtent().set(image.getWidth(), image.getHeight(), 1);
+
+				vkCmdCopyImageToBuffer(commandBuffer, image.getImage(), layout, ReadbackRing.this.buffer.getBuffer(), region);
+				this.recordBarrier(stack, commandBuffer);
+			}
+		}
+
+		/**
+		 * Records a copy of size bytes of source, starting at sourceOffset,
+		 * into this slot.
+		 */
+		public void copyBuffer(VkCommandBuffer commandBuffer, DeviceBuffer source, long sourceOffset) {
+			try (MemoryStack stack = stackPush()) {
+				VkBufferCopy.Buffer region = VkBufferCopy.callocStack(1, stack);
+				region.get(0)
+					.srcOffset(sourceOffset)
+					.dstOffset(this.getOffset())
+					.size(this.size);
+
+				vkCmdCopyBuffer(commandBuffer, source.getBuffer(), ReadbackRing.this.buffer.getBuffer(), region);
+				this.recordBarrier(stack, commandBuffer);
+			}
+		}
+
+		/**
+		 * Makes the copy visible to host reads once the fence has signalled.
+		 */
+		protected void recordBarrier(MemoryStack stack, VkCommandBuffer commandBuffer) {
+			VkBufferMemoryBarrier.Buffer barrier = VkBufferMemoryBarrier.callocStack(1, stack);
+			barrier.get(0)
+				.sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER)
+				.srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+				.dstAccessMask(VK_ACCESS_HOST_READ_BIT)
+				.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+				.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+				.buffer(ReadbackRing.this.buffer.getBuffer())
+				.offset(this.getOffset())
+				.size(this.size);
+
+			vkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_HOST_BIT, 0, null, barrier, null);
+			this.isRecorded = true;
+		}
+
+		/**
+		 * @return Where this slot starts in the ring's buffer.
+		 */
+		public long getOffset() {
+			return this.slot * ReadbackRing.this.slotSize;
+		}
+
+		public long getSize() {
+			return this.size;
+		}
+
+		/**
+		 * @return Completes with the data once the GPU is done. The buffer is
+		 *         a view of mapped memory and is only valid until release().
+		 */
+		public CompletableFuture<ByteBuffer> getFuture() {
+			return this.future;
+		}
+
+		/**
+		 * @return True once the data is there.
+		 */
+		public boolean isDone() {
+			return this.future.isDone();
+		}
+
+		/**
+		 * Writes all of the data to channel, straight from mapped memory.
+		 * Only call this once isDone().
+		 *
+		 * @return How many bytes were written.
+		 */
+		public long writeTo(WritableByteChannel channel) throws IOException {
+			/**
+			 * Everyone who asks the future gets the same buffer, so write from a
+			 * copy of its position.
+			 */
+			ByteBuffer data = this.future.join().duplicate();
+			long ret = 0;
+			while (data.hasRemaining()) {
+				ret += channel.write(data);
+			}
+			return ret;
+		}
+
+		/**
+		 * Gives the slot back. Any ByteBuffer from this readback is invalid
+		 * afterwards.
+		 */
+		public void release() {
+			ReadbackRing.this.release(this);
+		}
+
+		public String toString() {
+			return "Readback<slot: " + this.slot + ", size: " + this.size + ", done: " + this.isDone() + ">";
+		}
+	}
+
+	/**
+	 * A copy of the ring's counters at one point in time. Times are in
+	 * nanoseconds.
+	 */
+	public static class Stats {
+		public final long readbacks;
+		public final long bytes;
+		public final long dropped;
+		public final long elapsed;
+
+		/**
+		 * From submitted() to the data being ready.
+		 */
+		public final LatencyHistogram.Snapshot latency;
+
+		protected Stats(long readbacks, long bytes, long dropped, long elapsed, LatencyHistogram.Snapshot latency) {
+			this.readbacks = readbacks;
+			this.bytes = bytes;
+			this.dropped = dropped;
+			this.elapsed = elapsed;
+			this.latency = latency;
+		}
+
+		/**
+		 * @return Bytes read back per second since the ring was created.
+		 */
+		public double getThroughput() {
+			if (this.elapsed <= 0) return 0;
+			return this.bytes * 1000000000.0 / this.elapsed;
+		}
+
+		public String toString() {
+			return String.format("ReadbackRing.Stats<readbacks: %d, dropped: %d, throughput: %.1fMB/s, latency: %s>", this.readbacks, this.dropped, this.getThroughput() / (1024 * 1024), this.latency);
+		}
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected DeviceBuffer buffer;
+	protected long address;
+	protected int slots;
+	protected long slotSize;
+
+	/**
+	 * Index of the oldest slot in use, and how many are in use. Slots are
+	 * handed out and given back in ring order.
+	 */
+	protected int tail;
+	protected int used;
+	protected Readback[] inUse;
+
+	/**
+	 * Submitted but not yet done, oldest first.
+	 */
+	protected ArrayDeque<Readback> pending = new ArrayDeque<Readback>();
+
+	protected long createTime = System.nanoTime();
+	protected long readbacks;
+	protected long bytes;
+	protected long dropped;
+	protected LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * @param slots How many readbacks can be in flight or unreleased at
+	 *        once. Three covers two frames in flight plus one being written
+	 *        out.
+	 * @param slotSize The most one readback can hold.
+	 */
+	public ReadbackRing(LogicalDevice logicalDevice, int slots, long slotSize) {
+		if (slots < 1) {
+			throw new AssertionError("Need at least one slot, got " + slots);
+		}
+
+		this.logicalDevice = logicalDevice;
+		this.slots = slots;
+
+		/**
+		 * Every slot starts on a boundary that copies and invalidates are both
+		 * happy with.
+		 */
+		PhysicalDeviceLimits limits = logicalDevice.getPhysicalDevice().getLimits();
+		long alignment = Math.max(16, Math.max(limits.nonCoherentAtomSize, limits.optimalBufferCopyOffsetAlignment));
+		this.slotSize = SubAllocator.alignUp(slotSize, alignment);
+
+		this.buffer = new DeviceBuffer(
+			logicalDevice,
+			this.slotSize * slots,
+			VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+			VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT,
+			VK_MEMORY_PROPERTY_HOST_CACHED_BIT
+		);
+		this.address = this.buffer.map();
+		this.inUse = new Readback[slots];
+	}
+
+	/**
+	 * @param size How many bytes will be copied. At most getSlotSize().
+	 * @return The next slot, or null if they're all busy.
+	 */
+	public synchronized Readback begin(long size) {
+		if (size > this.slotSize) {
+			throw new AssertionError("Readback of " + size + " bytes doesn't fit in slots of " + this.slotSize);
+		}
+		if (this.used == this.slots) {
+			this.dropped++;
+			return null;
+		}
+
+		int slot = (this.tail + this.used) % this.slots;
+		Readback ret = new Readback(slot, size);
+		this.inUse[slot] = ret;
+		this.used++;
+		return ret;
+	}
+
+	/**
+	 * Tells the ring that the command buffer with readback's copy has been
+	 * submitted with fence. poll() watches the fence from now on.
+	 */
+	public synchronized void submitted(Readback readback, long fence) {
+		if (!readback.isRecorded) {
+			throw new AssertionError("Readback was submitted without a copy being recorded.");
+		}
+		readback.fence = fence;
+		readback.submitTime = System.nanoTime();
+		this.pending.add(readback);
+	}
+
+	/**
+	 * For copies that went through a SubmissionBatcher or anything else that
+	 * says when it's done with a future rather than a fence.
+	 */
+	public void submitted(Readback readback, CompletableFuture<?> done) {
+		if (!readback.isRecorded) {
+			throw new AssertionError("Readback was submitted without a copy being recorded.");
+		}
+		readback.submitTime = System.nanoTime();
+		done.whenComplete((ignored, t) -> {
+			if (t != null) {
+				readback.future.completeExceptionally(t);
+				return;
+			}
+			ByteBuffer data;
+			synchronized (this) {
+				data = this.finish(readback);
+			}
+			readback.future.complete(data);
+		});
+	}
+
+	/**
+	 * Completes every readback whose fence has signalled. Never blocks.
+	 *
+	 * If a fence can't be read, the device is most likely lost and nothing
+	 * pending is ever going to finish, so every pending readback fails with
+	 * the error. Their slots still need release().
+	 */
+	public void poll() {
+		ArrayList<Readback> failed;
+		int status;
+		while (true) {
+			Readback readback;
+			ByteBuffer data;
+			synchronized (this) {
+				readback = this.pending.peek();
+				if (readback == null) return;
+
+				status = VulkanCall.GET_FENCE_STATUS.invoke(() -> vkGetFenceStatus(this.logicalDevice.getDevice(), readback.fence));
+				if (status == VK_NOT_READY) return;
+				if (status != VK_SUCCESS) {
+					failed = new ArrayList<Readback>(this.pending);
+					this.pending.clear();
+					break;
+				}
+
+				this.pending.poll();
+				data = this.finish(readback);
+			}
+			readback.future.complete(data);
+		}
+
+		AssertionError error = new AssertionError("Failed to get readback fence status: " + Vulkan.translateVulkanResult(status));
+		for (Readback readback: failed) {
+			readback.future.completeExceptionally(error);
+		}
+	}
+
+	/**
+	 * Must be called with the lock held. The caller completes the future
+	 * once it has let go of the lock, so callbacks can use the ring.
+	 *
+	 * @return The view of readback's slot.
+	 */
+	protected ByteBuffer finish(Readback readback) {
+		this.buffer.invalidate(readback.getOffset(), readback.size);
+
+		this.readbacks++;
+		this.bytes += readback.size;
+		this.latency.record(System.nanoTime() - readback.submitTime);
+
+		return memByteBuffer(this.address + readback.getOffset(), (int)readback.size);
+	}
+
+	protected synchronized void release(Readback readback) {
+		if (readback.isReleased) return;
+		readback.isReleased = true;
+
+		/**
+		 * Out of order releases just mark the slot. The tail moves past every
+		 * released slot in a row once the oldest one goes.
+		 */
+		while (this.used > 0 && this.inUse[this.tail].isReleased) {
+			this.inUse[this.tail] = null;
+			this.tail = (this.tail + 1) % this.slots;
+			this.used--;
+		}
+	}
+
+	public long getSlotSize() {
+		return this.slotSize;
+	}
+
+	public int getSlotCount() {
+		return this.slots;
+	}
+
+	/**
+	 * @return Slots that are recorded, in flight, or done but not released.
+	 */
+	public synchronized int getUsedCount() {
+		return this.used;
+	}
+
+	/**
+	 * @return Whether the buffer ended up in host cached memory.
+	 */
+	public boolean isCached() {
+		int memoryTypeIndex = this.buffer.getAllocation().getMemoryTypeIndex();
+		return this.logicalDevice.getPhysicalDevice().getMemoryProperties().getMemoryType(memoryTypeIndex).hasProperties(VK_MEMORY_PROPERTY_HOST_CACHED_BIT);
+	}
+
+	public synchronized Stats getStats() {
+		return new Stats(this.readbacks, this.bytes, this.dropped, System.nanoTime() - this.createTime, this.latency.snapshot());
+	}
+
+	public synchronized String toString() {
+		return "ReadbackRing<slots: " + this.slots + ", slot size: " + this.slotSize + ", used: " + this.used + ", cached: " + this.isCached() + ">";
+	}
+
+	/**
+	 * Destroys the buffer. Only call this once nothing is in flight and every
+	 * ByteBuffer handed out is done with.
+	 */
+	public synchronized void dispose() {
+		this.pending.clear();
+		this.buffer.dispose();
+	}
+}
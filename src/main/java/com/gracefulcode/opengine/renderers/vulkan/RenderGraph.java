@@ -0,0 +1,987 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkBufferMemoryBarrier;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkImageMemoryBarrier;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+
+/**
+ * A frame described as passes that read and write resources, instead of
+ * hand-written barriers.
+ * <p>
+ * Declare resources (transient ones the graph creates, or imported ones
+ * that live elsewhere), then add passes and say what each one reads and
+ * writes and how. compile() then:
+ * <ul>
+ * <li>culls passes whose results nobody uses. A pass is kept if it has side
+ * effects, writes an imported or output resource, or writes something a
+ * kept pass reads.</li>
+ * <li>orders the rest. Dependencies come from declaration order per
+ * resource (read after write, write after read, write after write), and
+ * ties go to whichever pass was added first.</li>
+ * <li>works out every layout transition and memory dependency and puts all
+ * of a pass's barriers into one vkCmdPipelineBarrier right before it.
+ * Reads that are already visible don't get a barrier at all.</li>
+ * <li>creates transient images, and lets images whose lifetimes don't
+ * overlap share one piece of device memory.</li>
+ * </ul>
+ * Compile once and execute() every frame. Imported resources can be
+ * swapped between executes (a new swapchain image, say) as long as they
+ * start in the layout they were declared with.
+ * <p>
+ * Barriers wrap around: the first use of a resource waits for its last use
+ * in the graph, or for the last use of whatever had its memory before it,
+ * so the next execute() on the same queue can't start writing something
+ * the previous one is still using. That covers frames in flight sharing
+ * transient memory. Imported images with a final layout are the
+ * exception. Whoever takes them over (a present, usually) has to hand them
+ * back with a semaphore, same as it has to hand them back in their initial
+ * layout.
+ * <p>
+ * A write is assumed to overwrite. If a pass needs what was there before
+ * (a LOAD_OP_LOAD attachment, a read-modify-write storage image) declare a
+ * read as well, so the pass that wrote it isn't culled.
+ */
+public class RenderGraph {
+	/**
+	 * Records a pass.
+	 */
+	public interface Executor {
+		public void execute(VkCommandBuffer commandBuffer, RenderGraph graph);
+	}
+
+	/**
+	 * An image or buffer that passes use.
+	 */
+	public static class Resource {
+		protected int id;
+		protected String name;
+		protected boolean isImage;
+		protected boolean isImported;
+		protected boolean isOutput;
+
+		protected int width;
+		protected int height;
+		protected int format;
+		protected int usage;
+		protected long size;
+
+		protected int initialLayout = VK_IMAGE_LAYOUT_UNDEFINED;
+		protected int finalLayout = VK_IMAGE_LAYOUT_UNDEFINED;
+
+		protected Image image;
+		protected DeviceBuffer buffer;
+
+		/**
+		 * Execution indices of the first and last kept pass that uses this,
+		 * or -1.
+		 */
+		protected int firstUse = -1;
+		protected int lastUse = -1;
+
+		/**
+		 * The transient image that used this one's memory before it, if any.
+		 */
+		protected Resource aliasOf;
+		protected long memorySize;
+		protected long memoryAlignment;
+		protected int memoryTypeBits;
+
+		protected Resource(int id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public boolean isImage() {
+			return this.isImage;
+		}
+
+		public boolean isImported() {
+			return this.isImported;
+		}
+
+		public String toString() {
+			return "Resource<" + this.name + (this.isImported ? ", imported" : "") + (this.aliasOf != null ? ", aliases " + this.aliasOf.name : "") + ">";
+		}
+	}
+
+	/**
+	 * How a pass touches a resource.
+	 */
+	protected static class Access {
+		protected Resource resource;
+		protected int stageMask;
+		protected int accessMask;
+		protected int layout;
+		protected boolean isRead;
+		protected boolean isWrite;
+
+		protected Access(Resource resource, int stageMask, int accessMask, int layout, boolean isWrite) {
+			this.resource = resource;
+			this.stageMask = stageMask;
+			this.accessMask = accessMask;
+			this.layout = layout;
+			this.isRead = !isWrite;
+			this.isWrite = isWrite;
+		}
+	}
+
+	public static class Pass {
+		protected int index;
+		protected String name;
+		protected Executor executor;
+		protected boolean hasSideEffects;
+		protected ArrayList<Access> accesses = new ArrayList<Access>();
+
+		protected ArrayList<Pass> dependencies = new ArrayList<Pass>();
+		protected ArrayList<Pass> dependents = new ArrayList<Pass>();
+
+		/**
+		 * Passes this one reads from. Only these keep each other alive.
+		 */
+		protected ArrayList<Pass> producers = new ArrayList<Pass>();
+		protected boolean isKept;
+
+		protected Pass(int index, String name, Executor executor) {
+			this.index = index;
+			this.name = name;
+			this.executor = executor;
+		}
+
+		public Pass read(Resource resource, int stageMask, int accessMask, int layout) {
+			return this.access(resource, stageMask, accessMask, layout, false);
+		}
+
+		public Pass write(Resource resource, int stageMask, int accessMask, int layout) {
+			return this.access(resource, stageMask, accessMask, layout, true);
+		}
+
+		public Pass readBuffer(Resource resource, int stageMask, int accessMask) {
+			return this.read(resource, stageMask, accessMask, VK_IMAGE_LAYOUT_UNDEFINED);
+		}
+
+		public Pass writeBuffer(Resource resource, int stageMask, int accessMask) {
+			return this.write(resource, stageMask, accessMask, VK_IMAGE_LAYOUT_UNDEFINED);
+		}
+
+		/**
+		 * Sampled in a fragment shader.
+		 */
+		public Pass readTexture(Resource resource) {
+			return this.read(resource, VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT, VK_ACCESS_SHADER_READ_BIT, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+		}
+
+		public Pass writeColor(Resource resource) {
+			return this.write(resource, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT, VK_ACCESS_COLOR_ATTACHMENT_READ_BIT | VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT, VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL);
+		}
+
+		public Pass writeDepth(Resource resource) {
+			return this.write(resource, VK_PIPELINE_STAGE_EARLY_FRAGMENT_TESTS_BIT | VK_PIPELINE_STAGE_LATE_FRAGMENT_TESTS_BIT, VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_READ_BIT | VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_WRITE_BIT, VK_IMAGE_LAYOUT_DEPTH_STENCIL_ATTACHMENT_OPTIMAL);
+		}
+
+		/**
+		 * Depth testing without writing.
+		 */
+		public Pass readDepth(Resource resource) {
+			return this.read(resource, VK_PIPELINE_STAGE_EARLY_FRAGMENT_TESTS_BIT | VK_PIPELINE_STAGE_LATE_FRAGMENT_TESTS_BIT, VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_READ_BIT, VK_IMAGE_LAYOUT_DEPTH_STENCIL_READ_ONLY_OPTIMAL);
+		}
+
+		/**
+		 * Keeps the pass even if nothing reads what it writes (a readback, a
+		 * query, a pass that presents).
+		 */
+		public Pass sideEffects() {
+			this.hasSideEffects = true;
+			return this;
+		}
+
+		/**
+		 * Reading and writing the same resource in one pass becomes a single
+		 * write that waits for whatever came before.
+		 */
+		protected Pass access(Resource resource, int stageMask, int accessMask, int layout, boolean isWrite) {
+			if (!resource.isImage) layout = VK_IMAGE_LAYOUT_UNDEFINED;
+
+			for (Access access: this.accesses) {
+				if (access.resource != resource) continue;
+				if (access.layout != layout) {
+					throw new AssertionError("Pass " + this.name + " uses " + resource.name + " in two layouts.");
+				}
+				access.stageMask |= stageMask;
+				access.accessMask |= accessMask;
+				access.isRead |= !isWrite;
+				access.isWrite |= isWrite;
+				return this;
+			}
+			this.accesses.add(new Access(resource, stageMask, accessMask, layout, isWrite));
+			return this;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public String toString() {
+			return "Pass<" + this.name + ">";
+		}
+	}
+
+	/**
+	 * One barrier on one resource, resolved to a handle at execute() time.
+	 */
+	protected static class Barrier {
+		protected Resource resource;
+		protected int srcAccessMask;
+		protected int dstAccessMask;
+		protected int oldLayout;
+		protected int newLayout;
+
+		protected Barrier(Resource resource, int srcAccessMask, int dstAccessMask, int oldLayout, int newLayout) {
+			this.resource = resource;
+			this.srcAccessMask = srcAccessMask;
+			this.dstAccessMask = dstAccessMask;
+			this.oldLayout = oldLayout;
+			this.newLayout = newLayout;
+		}
+	}
+
+	/**
+	 * Everything that goes into the one vkCmdPipelineBarrier before a pass
+	 * (or after the last one, for final layouts).
+	 */
+	protected static class BarrierBatch {
+		protected int srcStageMask;
+		protected int dstStageMask;
+		protected ArrayList<Barrier> imageBarriers = new ArrayList<Barrier>();
+		protected ArrayList<Barrier> bufferBarriers = new ArrayList<Barrier>();
+
+		protected boolean isEmpty() {
+			return this.srcStageMask == 0 && this.dstStageMask == 0 && this.imageBarriers.isEmpty() && this.bufferBarriers.isEmpty();
+		}
+	}
+
+	/**
+	 * What we know about a resource while walking the passes in order.
+	 */
+	protected static class ResourceState {
+		protected int layout;
+		protected boolean hasWrite;
+
+		/**
+		 * The last write (or layout transition), which later accesses have to
+		 * wait for.
+		 */
+		protected int writeStages;
+		protected int writeAccess;
+
+		/**
+		 * Stages and accesses the last write has already been made visible
+		 * to.
+		 */
+		protected int visibleStages;
+		protected int visibleAccess;
+
+		/**
+		 * Stages that have read since the last write. The next write waits for
+		 * them.
+		 */
+		protected int readStages;
+	}
+
+	/**
+	 * A piece of memory that several transient images take turns with.
+	 */
+	protected static class MemorySlot {
+		protected long size;
+		protected long alignment = 1;
+		protected int memoryTypeBits = -1;
+		protected ArrayList<Resource> occupants = new ArrayList<Resource>();
+		protected MemoryAllocation allocation;
+
+		protected boolean fits(Resource resource) {
+			if ((this.memoryTypeBits & resource.memoryTypeBits) == 0) return false;
+			for (Resource occupant: this.occupants) {
+				if (occupant.firstUse <= resource.lastUse && resource.firstUse <= occupant.lastUse) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * What compile() came up with.
+	 */
+	public static class Stats {
+		public final int passes;
+		public final int culledPasses;
+		public final int barrierCalls;
+		public final int imageBarriers;
+		public final int bufferBarriers;
+		public final long transientBytes;
+		public final long allocatedBytes;
+
+		protected Stats(int passes, int culledPasses, int barrierCalls, int imageBarriers, int bufferBarriers, long transientBytes, long allocatedBytes) {
+			this.passes = passes;
+			this.culledPasses = culledPasses;
+			this.barrierCalls = barrierCalls;
+			this.imageBarriers = imageBarriers;
+			this.bufferBarriers = bufferBarriers;
+			this.transientBytes = transientBytes;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public String toString() {
+			return String.format("RenderGraph.Stats<passes: %d, culled: %d, barrier calls: %d, image barriers: %d, buffer barriers: %d, transient: %d bytes in %d>", this.passes, this.culledPasses, this.barrierCalls, this.imageBarriers, this.bufferBarriers, this.transientBytes, this.allocatedBytes);
+		}
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected ArrayList<Resource> resources = new ArrayList<Resource>();
+	protected ArrayList<Pass> passes = new ArrayList<Pass>();
+
+	protected boolean isCompiled;
+	protected ArrayList<Pass> order = new ArrayList<Pass>();
+	protected ArrayList<BarrierBatch> batches = new ArrayList<BarrierBatch>();
+	protected BarrierBatch finalBatch;
+	protected ArrayList<MemorySlot> memorySlots = new ArrayList<MemorySlot>();
+	protected Stats stats;
+
+	public RenderGraph(LogicalDevice logicalDevice) {
+		this.logicalDevice = logicalDevice;
+	}
+
+	/**
+	 * A transient image, created by compile() with whatever usage flags its
+	 * passes need, plus extraUsage.
+	 */
+	public Resource createImage(String name, int width, int height, int format, int extraUsage) {
+		Resource ret = this.addResource(name);
+		ret.isImage = true;
+		ret.width = width;
+		ret.height = height;
+		ret.format = format;
+		ret.usage = extraUsage;
+		return ret;
+	}
+
+	public Resource createImage(String name, int width, int height, int format) {
+		return this.createImage(name, width, height, format, 0);
+	}
+
+	/**
+	 * A transient buffer. Buffers aren't aliased.
+	 */
+	public Resource createBuffer(String name, long size, int extraUsage) {
+		Resource ret = this.addResource(name);
+		ret.size = size;
+		ret.usage = extraUsage;
+		return ret;
+	}
+
+	/**
+	 * An image that lives outside the graph.
+	 *
+	 * @param initialLayout The layout it's in when execute() starts.
+	 * @param finalLayout The layout to leave it in, or VK_IMAGE_LAYOUT_UNDEFINED
+	 *        to leave it in whatever the last pass used.
+	 */
+	public Resource importImage(String name, Image image, int initialLayout, int finalLayout) {
+		Resource ret = this.addResource(name);
+		ret.isImage = true;
+		ret.isImported = true;
+		ret.image = image;
+		ret.width = image.getWidth();
+		ret.height = image.getHeight();
+		ret.format = image.getFormat();
+		ret.initialLayout = initialLayout;
+		ret.finalLayout = finalLayout;
+		return ret;
+	}
+
+	public Resource importBuffer(String name, DeviceBuffer buffer) {
+		Resource ret = this.addResource(name);
+		ret.isImported = true;
+		ret.buffer = buffer;
+		ret.size = buffer.getSize();
+		return ret;
+	}
+
+	/**
+	 * Swaps the image behind an imported resource. It has to be in the same
+	 * initial layout.
+	 */
+	public void setImage(Resource resource, Image image) {
+		if (!resource.isImported || !resource.isImage) {
+			throw new AssertionError(resource.name + " isn't an imported image.");
+		}
+		resource.image = image;
+	}
+
+	public void setBuffer(Resource resource, DeviceBuffer buffer) {
+		if (!resource.isImported || resource.isImage) {
+			throw new AssertionError(resource.name + " isn't an imported buffer.");
+		}
+		resource.buffer = buffer;
+	}
+
+	/**
+	 * Keeps whatever writes resource, even though no pass reads it.
+	 */
+	public void markOutput(Resource resource) {
+		resource.isOutput = true;
+		this.isCompiled = false;
+	}
+
+	public Pass addPass(String name, Executor executor) {
+		if (this.isCompiled) {
+			throw new AssertionError("Can't add passes to a compiled graph.");
+		}
+		Pass ret = new Pass(this.passes.size(), name, executor);
+		this.passes.add(ret);
+		return ret;
+	}
+
+	protected Resource addResource(String name) {
+		if (this.isCompiled) {
+			throw new AssertionError("Can't add resources to a compiled graph.");
+		}
+		Resource ret = new Resource(this.resources.size(), name);
+		this.resources.add(ret);
+		return ret;
+	}
+
+	/**
+	 * @return The image behind resource. Only valid during execute() for
+	 *         transient images.
+	 */
+	public Image getImage(Resource resource) {
+		return resource.image;
+	}
+
+	public DeviceBuffer getBuffer(Resource resource) {
+		return resource.buffer;
+	}
+
+	public void compile() {
+		this.disposeTransients();
+		this.order.clear();
+		this.batches.clear();
+
+		this.buildDependencies();
+		int culled = this.cull();
+		this.sort();
+		this.computeLifetimes();
+		this.createTransients();
+		this.computeBarriers(culled);
+
+		this.isCompiled = true;
+	}
+
+	/**
+	 * Walks passes in declaration order and links each access to the last
+	 * writer and the readers since then.
+	 */
+	protected void buildDependencies() {
+		int count = this.resources.size();
+		Pass[] lastWriter = new Pass[count];
+		ArrayList<ArrayList<Pass>> readers = new ArrayList<ArrayList<Pass>>();
+		for (int i = 0; i < count; i++) {
+			readers.add(new ArrayList<Pass>());
+		}
+
+		for (Pass pass: this.passes) {
+			pass.dependencies.clear();
+			pass.dependents.clear();
+			pass.producers.clear();
+		}
+
+		for (Pass pass: this.passes) {
+			for (Access access: pass.accesses) {
+				int id = access.resource.id;
+				Pass writer = lastWriter[id];
+				if (writer != null && writer != pass) {
+					RenderGraph.link(writer, pass);
+					if (access.isRead) pass.producers.add(writer);
+				}
+
+				if (access.isWrite) {
+					for (Pass reader: readers.get(id)) {
+						if (reader != pass) RenderGraph.link(reader, pass);
+					}
+					readers.get(id).clear();
+					lastWriter[id] = pass;
+				} else {
+					readers.get(id).add(pass);
+				}
+			}
+		}
+	}
+
+	protected static void link(Pass from, Pass to) {
+		if (from.dependents.contains(to)) return;
+		from.dependents.add(to);
+		to.dependencies.add(from);
+	}
+
+	/**
+	 * @return How many passes were culled.
+	 */
+	protected int cull() {
+		ArrayDeque<Pass> work = new ArrayDeque<Pass>();
+		for (Pass pass: this.passes) {
+			pass.isKept = false;
+			boolean isRoot = pass.hasSideEffects;
+			for (Access access: pass.accesses) {
+				if (access.isWrite && (access.resource.isImported || access.resource.isOutput)) isRoot = true;
+			}
+			if (isRoot) {
+				pass.isKept = true;
+				work.add(pass);
+			}
+		}
+
+		while (!work.isEmpty()) {
+			Pass pass = work.poll();
+			for (Pass producer: pass.producers) {
+				if (producer.isKept) continue;
+				producer.isKept = true;
+				work.add(producer);
+			}
+		}
+
+		int ret = 0;
+		for (Pass pass: this.passes) {
+			if (!pass.isKept) ret++;
+		}
+		return ret;
+	}
+
+	/**
+	 * Kahn's algorithm over the kept passes, earliest declared first.
+	 */
+	protected void sort() {
+		int[] remaining = new int[this.passes.size()];
+		PriorityQueue<Pass> ready = new PriorityQueue<Pass>((a, b) -> Integer.compare(a.index, b.index));
+		for (Pass pass: this.passes) {
+			if (!pass.isKept) continue;
+			for (Pass dependency: pass.dependencies) {
+				if (dependency.isKept) remaining[pass.index]++;
+			}
+			if (remaining[pass.index] == 0) ready.add(pass);
+		}
+
+		while (!ready.isEmpty()) {
+			Pass pass = ready.poll();
+			this.order.add(pass);
+			for (Pass dependent: pass.dependents) {
+				if (!dependent.isKept) continue;
+				if (--remaining[dependent.index] == 0) ready.add(dependent);
+			}
+		}
+	}
+
+	protected void computeLifetimes() {
+		for (Resource resource: this.resources) {
+			resource.firstUse = -1;
+			resource.lastUse = -1;
+			resource.aliasOf = null;
+		}
+
+		for (int i = 0; i < this.order.size(); i++) {
+			for (Access access: this.order.get(i).accesses) {
+				Resource resource = access.resource;
+				if (resource.firstUse < 0) resource.firstUse = i;
+				resource.lastUse = i;
+				if (!resource.isImported) resource.usage |= RenderGraph.usageFor(resource, access);
+			}
+		}
+	}
+
+	/**
+	 * Creates the transient resources that are used, and packs transient
+	 * images into as few memory slots as possible, biggest first.
+	 */
+	protected void createTransients() {
+		ArrayList<Resource> images = new ArrayList<Resource>();
+		for (Resource resource: this.resources) {
+			if (resource.isImported || resource.firstUse < 0) continue;
+
+			if (!resource.isImage) {
+				resource.buffer = new DeviceBuffer(this.logicalDevice, resource.size, resource.usage, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, 0);
+				continue;
+			}
+
+			resource.image = Image.createUnbound(this.logicalDevice, resource.width, resource.height, resource.format, resource.usage, Image.aspectMask(resource.format));
+			try (MemoryStack stack = stackPush()) {
+				VkMemoryRequirements memoryRequirements = VkMemoryRequirements.mallocStack(stack);
+				resource.image.getMemoryRequirements(memoryRequirements);
+				resource.memorySize = memoryRequirements.size();
+				resource.memoryAlignment = memoryRequirements.alignment();
+				resource.memoryTypeBits = memoryRequirements.memoryTypeBits();
+			}
+			images.add(resource);
+		}
+		this.packImages(images);
+
+		MemoryAllocator allocator = this.logicalDevice.getMemoryAllocator();
+		for (MemorySlot slot: this.memorySlots) {
+			slot.allocation = allocator.allocate(slot.size, slot.alignment, slot.memoryTypeBits, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, 0, false);
+			for (Resource occupant: slot.occupants) {
+				occupant.image.bind(slot.allocation, 0);
+			}
+		}
+	}
+
+	/**
+	 * Puts images into memory slots, biggest first, and links each one to
+	 * the image that used its memory before it. Only needs the memory
+	 * requirements and lifetimes.
+	 */
+	protected void packImages(ArrayList<Resource> images) {
+		images.sort((a, b) -> Long.compare(b.memorySize, a.memorySize));
+		for (Resource resource: images) {
+			MemorySlot slot = null;
+			for (MemorySlot candidate: this.memorySlots) {
+				if (candidate.fits(resource)) {
+					slot = candidate;
+					break;
+				}
+			}
+			if (slot == null) {
+				slot = new MemorySlot();
+				this.memorySlots.add(slot);
+			}
+
+			slot.size = Math.max(slot.size, resource.memorySize);
+			slot.alignment = Math.max(slot.alignment, resource.memoryAlignment);
+			slot.memoryTypeBits &= resource.memoryTypeBits;
+			slot.occupants.add(resource);
+		}
+
+		for (MemorySlot slot: this.memorySlots) {
+			slot.occupants.sort((a, b) -> Integer.compare(a.firstUse, b.firstUse));
+			Resource previous = null;
+			for (Resource occupant: slot.occupants) {
+				occupant.aliasOf = previous;
+				previous = occupant;
+			}
+		}
+	}
+
+	protected void computeBarriers(int culled) {
+		ResourceState[] states = new ResourceState[this.resources.size()];
+		for (Resource resource: this.resources) {
+			ResourceState state = new ResourceState();
+			state.layout = resource.isImported ? resource.initialLayout : VK_IMAGE_LAYOUT_UNDEFINED;
+			if (!resource.isImported || !resource.isImage || resource.finalLayout == VK_IMAGE_LAYOUT_UNDEFINED) {
+				this.seed(state, resource.aliasOf != null ? resource.aliasOf : resource);
+			}
+			states[resource.id] = state;
+		}
+
+		/**
+		 * The first image in a memory slot follows the last one, from the
+		 * previous execute().
+		 */
+		for (MemorySlot slot: this.memorySlots) {
+			this.seed(states[slot.occupants.get(0).id], slot.occupants.get(slot.occupants.size() - 1));
+		}
+
+		boolean[] isWritten = new boolean[this.resources.size()];
+		int imageBarriers = 0;
+		int bufferBarriers = 0;
+		int barrierCalls = 0;
+		for (Pass pass: this.order) {
+			BarrierBatch batch = new BarrierBatch();
+			for (Access access: pass.accesses) {
+				Resource resource = access.resource;
+				if (!access.isWrite && !resource.isImported && !isWritten[resource.id]) {
+					throw new AssertionError("Pass " + pass.name + " reads " + resource.name + " before anything writes it.");
+				}
+				if (access.isWrite) isWritten[resource.id] = true;
+				this.addBarrier(batch, states[resource.id], access);
+			}
+			if (!batch.isEmpty()) barrierCalls++;
+			imageBarriers += batch.imageBarriers.size();
+			bufferBarriers += batch.bufferBarriers.size();
+			this.batches.add(batch);
+		}
+
+		this.finalBatch = new BarrierBatch();
+		for (Resource resource: this.resources) {
+			if (!resource.isImported || !resource.isImage || resource.finalLayout == VK_IMAGE_LAYOUT_UNDEFINED) continue;
+
+			ResourceState state = states[resource.id];
+			if (state.layout == resource.finalLayout) continue;
+			this.finalBatch.srcStageMask |= state.writeStages | state.readStages;
+			this.finalBatch.dstStageMask |= VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT;
+			this.finalBatch.imageBarriers.add(new Barrier(resource, state.writeAccess, 0, state.layout, resource.finalLayout));
+		}
+		if (!this.finalBatch.isEmpty()) {
+			barrierCalls++;
+			imageBarriers += this.finalBatch.imageBarriers.size();
+		}
+
+		long transientBytes = 0;
+		long allocatedBytes = 0;
+		for (MemorySlot slot: this.memorySlots) {
+			allocatedBytes += slot.size;
+			for (Resource occupant: slot.occupants) {
+				transientBytes += occupant.memorySize;
+			}
+		}
+		this.stats = new Stats(this.order.size(), culled, barrierCalls, imageBarriers, bufferBarriers, transientBytes, allocatedBytes);
+	}
+
+	/**
+	 * Makes the first use of a resource wait for the last use of previous,
+	 * whatever used its memory before it: the image it aliases, or itself in
+	 * the previous execute(). That last use is treated as a write, so even a
+	 * read gets the barrier.
+	 */
+	protected void seed(ResourceState state, Resource previous) {
+		if (previous.lastUse < 0) return;
+
+		for (Access access: this.order.get(previous.lastUse).accesses) {
+			if (access.resource != previous) continue;
+			state.hasWrite = true;
+			state.writeStages = access.stageMask;
+			state.writeAccess = access.isWrite ? access.accessMask : 0;
+		}
+	}
+
+	/**
+	 * Adds whatever access needs to batch, and moves state on past it.
+	 */
+	protected void addBarrier(BarrierBatch batch, ResourceState state, Access access) {
+		Resource resource = access.resource;
+		boolean isLayoutChange = resource.isImage && state.layout != access.layout;
+
+		if (access.isWrite) {
+			if (isLayoutChange || state.hasWrite) {
+				this.addMemoryBarrier(batch, resource, state.writeStages | state.readStages, state.writeAccess, access.stageMask, access.accessMask, state.layout, access.layout);
+			} else if (state.readStages != 0) {
+				/**
+				 * Write after read only needs the reads to have happened. No
+				 * memory has to be made visible.
+				 */
+				batch.srcStageMask |= state.readStages;
+				batch.dstStageMask |= access.stageMask;
+			}
+
+			state.hasWrite = true;
+			state.writeStages = access.stageMask;
+			state.writeAccess = access.accessMask;
+			state.visibleStages = 0;
+			state.visibleAccess = 0;
+			state.readStages = 0;
+			state.layout = access.layout;
+			return;
+		}
+
+		if (isLayoutChange) {
+			this.addMemoryBarrier(batch, resource, state.writeStages | state.readStages, state.writeAccess, access.stageMask, access.accessMask, state.layout, access.layout);
+
+			/**
+			 * The transition counts as a write, made visible to this access
+			 * only.
+			 */
+			state.hasWrite = true;
+			state.writeStages = access.stageMask;
+			state.visibleStages = access.stageMask;
+			state.visibleAccess = access.accessMask;
+			state.readStages = access.stageMask;
+			state.layout = access.layout;
+			return;
+		}
+
+		if (state.hasWrite && ((access.stageMask & ~state.visibleStages) != 0 || (access.accessMask & ~state.visibleAccess) != 0)) {
+			this.addMemoryBarrier(batch, resource, state.writeStages, state.writeAccess, access.stageMask, access.accessMask, state.layout, access.layout);
+			state.visibleStages |= access.stageMask;
+			state.visibleAccess |= access.accessMask;
+		}
+		state.readStages |= access.stageMask;
+	}
+
+	protected void addMemoryBarrier(BarrierBatch batch, Resource resource, int srcStageMask, int srcAccessMask, int dstStageMask, int dstAccessMask, int oldLayout, int newLayout) {
+		batch.srcStageMask |= srcStageMask;
+		batch.dstStageMask |= dstStageMask;
+		Barrier barrier = new Barrier(resource, srcAccessMask, dstAccessMask, oldLayout, newLayout);
+		if (resource.isImage) {
+			batch.imageBarriers.add(barrier);
+		} else {
+			batch.bufferBarriers.add(barrier);
+		}
+	}
+
+	/**
+	 * Records every kept pass, in order, with its barriers.
+	 */
+	public void execute(VkCommandBuffer commandBuffer) {
+		if (!this.isCompiled) {
+			this.compile();
+		}
+
+		for (int i = 0; i < this.order.size(); i++) {
+			this.recordBarriers(commandBuffer, this.batches.get(i));
+			Pass pass = this.order.get(i);
+			pass.executor.execute(commandBuffer, this);
+		}
+		this.recordBarriers(commandBuffer, this.finalBatch);
+	}
+
+	protected void recordBarriers(VkCommandBuffer commandBuffer, BarrierBatch batch) {
+		if (batch.isEmpty()) return;
+
+		try (MemoryStack stack = stackPush()) {
+			VkImageMemoryBarrier.Buffer imageBarriers = null;
+			if (!batch.imageBarriers.isEmpty()) {
+				imageBarriers = VkImageMemoryBarrier.callocStack(batch.imageBarriers.size(), stack);
+				for (int i = 0; i < batch.imageBarriers.size(); i++) {
+					Barrier barrier = batch.imageBarriers.get(i);
+					Image image = barrier.resource.image;
+					VkImageMemoryBarrier imageBarrier = imageBarriers.get(i);
+					imageBarrier
+						.sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER)
+						.srcAccessMask(barrier.srcAccessMask)
+						.dstAccessMask(barrier.dstAccessMask)
+						.oldLayout(barrier.oldLayout)
+						.newLayout(barrier.newLayout)
+						.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+						.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+						.image(image.getImage());
+					imageBarrier.subresourceRange()
+						.aspectMask(image.getAspectMask())
+						.baseMipLevel(0)
+						.levelCount(VK_REMAINING_MIP_LEVELS)
+						.baseArrayLayer(0)
+						.layerCount(VK_REMAINING_ARRAY_LAYERS);
+				}
+			}
+
+			VkBufferMemoryBarrier.Buffer bufferBarriers = null;
+			if (!batch.bufferBarriers.isEmpty()) {
+				bufferBarriers = VkBufferMemoryBarrier.callocStack(batch.bufferBarriers.size(), stack);
+				for (int i = 0; i < batch.bufferBarriers.size(); i++) {
+					Barrier barrier = batch.bufferBarriers.get(i);
+					bufferBarriers.get(i)
+						.sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER)
+						.srcAccessMask(barrier.srcAccessMask)
+						.dstAccessMask(barrier.dstAccessMask)
+						.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+						.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+						.buffer(barrier.resource.buffer.getBuffer())
+						.offset(0)
+						.size(VK_WHOLE_SIZE);
+				}
+			}
+
+			/**
+			 * Only an imported image handed back in its initial layout has
+			 * nothing before it to wait for, which Vulkan spells TOP_OF_PIPE.
+			 */
+			int srcStageMask = batch.srcStageMask != 0 ? batch.srcStageMask : VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT;
+			int dstStageMask = batch.dstStageMask != 0 ? batch.dstStageMask : VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT;
+			vkCmdPipelineBarrier(commandBuffer, srcStageMask, dstStageMask, 0, null, bufferBarriers, imageBarriers);
+		}
+	}
+
+	/**
+	 * Image usage implied by how a pass uses it.
+	 */
+	protected static int usageFor(Resource resource, Access access) {
+		if (!resource.isImage) {
+			int ret = 0;
+			if ((access.accessMask & VK_ACCESS_TRANSFER_READ_BIT) != 0) ret |= VK_BUFFER_USAGE_TRANSFER_SRC_BIT;
+			if ((access.accessMask & VK_ACCESS_TRANSFER_WRITE_BIT) != 0) ret |= VK_BUFFER_USAGE_TRANSFER_DST_BIT;
+			if ((access.accessMask & (VK_ACCESS_SHADER_READ_BIT | VK_ACCESS_SHADER_WRITE_BIT)) != 0) ret |= VK_BUFFER_USAGE_STORAGE_BUFFER_BIT;
+			if ((access.accessMask & VK_ACCESS_INDIRECT_COMMAND_READ_BIT) != 0) ret |= VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT;
+			if ((access.accessMask & VK_ACCESS_UNIFORM_READ_BIT) != 0) ret |= VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT;
+			if ((access.accessMask & VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT) != 0) ret |= VK_BUFFER_USAGE_VERTEX_BUFFER_BIT;
+			if ((access.accessMask & VK_ACCESS_INDEX_READ_BIT) != 0) ret |= VK_BUFFER_USAGE_INDEX_BUFFER_BIT;
+			return ret;
+		}
+
+		switch (access.layout) {
+			case VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL:
+				return VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT;
+			case VK_IMAGE_LAYOUT_DEPTH_STENCIL_ATTACHMENT_OPTIMAL:
+				return VK_IMAGE_USAGE_DEPTH_STENCIL_ATTACHMENT_BIT;
+			case VK_IMAGE_LAYOUT_DEPTH_STENCIL_READ_ONLY_OPTIMAL:
+				int ret = VK_IMAGE_USAGE_DEPTH_STENCIL_ATTACHMENT_BIT;
+				if ((access.accessMask & VK_ACCESS_SHADER_READ_BIT) != 0) ret |= VK_IMAGE_USAGE_SAMPLED_BIT;
+				return ret;
+			case VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL:
+				if ((access.accessMask & VK_ACCESS_INPUT_ATTACHMENT_READ_BIT) != 0) return VK_IMAGE_USAGE_INPUT_ATTACHMENT_BIT;
+				return VK_IMAGE_USAGE_SAMPLED_BIT;
+			case VK_IMAGE_LAYOUT_GENERAL:
+				return VK_IMAGE_USAGE_STORAGE_BIT;
+			case VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL:
+				return VK_IMAGE_USAGE_TRANSFER_SRC_BIT;
+			case VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL:
+				return VK_IMAGE_USAGE_TRANSFER_DST_BIT;
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * @return The kept passes in the order execute() runs them.
+	 */
+	public List<Pass> getExecutionOrder() {
+		return Collections.unmodifiableList(this.order);
+	}
+
+	/**
+	 * @return What the last compile() did, or null before the first.
+	 */
+	public Stats getStats() {
+		return this.stats;
+	}
+
+	public String toString() {
+		return "RenderGraph<passes: " + this.passes.size() + ", resources: " + this.resources.size() + ", compiled: " + this.isCompiled + ">";
+	}
+
+	protected void disposeTransients() {
+		for (Resource resource: this.resources) {
+			if (resource.isImported) continue;
+			if (resource.image != null) {
+				resource.image.dispose();
+				resource.image = null;
+			}
+			if (resource.buffer != null) {
+				resource.buffer.dispose();
+				resource.buffer = null;
+			}
+		}
+
+		MemoryAllocator allocator = this.logicalDevice.getMemoryAllocator();
+		for (MemorySlot slot: this.memorySlots) {
+			if (slot.allocation != null) allocator.free(slot.allocation);
+		}
+		this.memorySlots.clear();
+	}
+
+	/**
+	 * Destroys the transient resources. Only once the GPU is done with the
+	 * last execute().
+	 */
+	public void dispose() {
+		this.disposeTransients();
+		this.isCompiled = false;
+	}
+}
@@ -0,0 +1,104 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+/**
+ * Hands out ranges of a fixed-size region in a circle.
+ * <p>
+ * This is for memory that is written once per frame (or per submission) and
+ * then given back in the same order: staging memory, readback memory,
+ * per-frame uniforms. Allocating is just bumping a counter, and releasing is
+ * just moving the tail up to where an old batch ended.
+ * <p>
+ * Positions are virtual: they only ever go up, and the real offset is the
+ * position modulo the capacity. That way "empty" and "full" never look the
+ * same and nobody has to worry about wrapping when releasing. Alignments
+ * apply to the physical offset and needn't be powers of two, so a 48 byte
+ * alignment for 3 byte texels works just as well as 256.
+ */
+public class RingAllocator {
+	public static final long NO_SPACE = -1;
+
+	protected long capacity;
+	protected long head;
+	protected long tail;
+
+	public RingAllocator(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param size How many bytes are needed.
+	 * @param alignment The physical offset will be a multiple of this.
+	 * @return The virtual position of the range, or NO_SPACE. If the range
+	 *         would have straddled the end, it starts at the beginning
+	 *         instead and the end is skipped.
+	 */
+	public long allocate(long size, long alignment) {
+		if (size > this.capacity) return RingAllocator.NO_SPACE;
+
+		long headOffset = this.head % this.capacity;
+		long offset = RingAllocator.alignUp(headOffset, alignment);
+		long position;
+		if (offset + size > this.capacity) {
+			// Offset 0 is aligned for everything.
+			position = this.head - headOffset + this.capacity;
+
+			// Nothing is in use, so the skipped bytes don't need to count.
+			if (this.head == this.tail) this.tail = position;
+		} else {
+			position = this.head - headOffset + offset;
+		}
+
+		if (position + size - this.tail > this.capacity) return RingAllocator.NO_SPACE;
+
+		this.head = position + size;
+		return position;
+	}
+
+	protected static long alignUp(long value, long alignment) {
+		if (alignment <= 1) return value;
+		return (value + alignment - 1) / alignment * alignment;
+	}
+
+	/**
+	 * Gives back everything before position.
+	 *
+	 * @param position A value previously returned from getHead().
+	 */
+	public void release(long position) {
+		if (position > this.head) {
+			throw new AssertionError("Released " + position + " past the head of the ring at " + this.head);
+		}
+		if (position > this.tail) this.tail = position;
+	}
+
+	/**
+	 * @return The physical offset of a virtual position.
+	 */
+	public long offset(long position) {
+		return position % this.capacity;
+	}
+
+	/**
+	 * @return The virtual position that the next allocation will start at or
+	 *         after. Hold onto it to release a batch later.
+	 */
+	public long getHead() {
+		return this.head;
+	}
+
+	public long getTail() {
+		return this.tail;
+	}
+
+	public long getCapacity() {
+		return this.capacity;
+	}
+
+	public long getUsed() {
+		return this.head - this.tail;
+	}
+
+	public boolean isEmpty() {
+		return this.head == this.tail;
+	}
+}
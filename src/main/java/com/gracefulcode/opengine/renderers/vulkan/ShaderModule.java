@@ -0,0 +1,115 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkShaderModuleCreateInfo;
+
+/**
+ * A VkShaderModule, plus a hash and a copy of the SPIR-V it was made from.
+ * <p>
+ * Pipeline descriptions hash their shaders by content rather than by
+ * handle, so the same SPIR-V loaded twice still ends up as one pipeline.
+ * Two modules are only the same shader if the bytes match too, since two
+ * different shaders can share a 64-bit hash. SPIR-V is small enough that
+ * keeping a copy on the heap costs little.
+ */
+public class ShaderModule {
+	protected LogicalDevice logicalDevice;
+	/**
+	 * VK_NULL_HANDLE once disposed. Volatile, since pipelines are built on
+	 * other threads.
+	 */
+	protected volatile long shaderModule;
+	protected long contentHash;
+	protected int size;
+	protected byte[] code;
+
+	/**
+	 * @param spirv The SPIR-V, from its position to its limit. Must be a
+	 *        direct buffer. Only read during the constructor.
+	 */
+	public ShaderModule(LogicalDevice logicalDevice, ByteBuffer spirv) {
+		this(spirv);
+		this.logicalDevice = logicalDevice;
+
+		try (MemoryStack stack = stackPush()) {
+			VkShaderModuleCreateInfo createInfo = VkShaderModuleCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_SHADER_MODULE_CREATE_INFO);
+			createInfo.pCode(spirv);
+
+			LongBuffer pShaderModule = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_SHADER_MODULE.invoke(() -> vkCreateShaderModule(logicalDevice.getDevice(), createInfo, null, pShaderModule));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create shader module: " + Vulkan.translateVulkanResult(err));
+			}
+			this.shaderModule = pShaderModule.get(0);
+		}
+	}
+
+	/**
+	 * Only the hash and the copy, with no VkShaderModule.
+	 */
+	protected ShaderModule(ByteBuffer spirv) {
+		if (spirv.remaining() % 4 != 0) {
+			throw new AssertionError("SPIR-V has to be a whole number of words, got " + spirv.remaining() + " bytes.");
+		}
+		this.size = spirv.remaining();
+		this.contentHash = ShaderModule.hash(spirv);
+		this.code = new byte[this.size];
+		spirv.duplicate().get(this.code);
+	}
+
+	/**
+	 * 64-bit FNV-1a over the bytes between position and limit.
+	 */
+	public static long hash(ByteBuffer data) {
+		long ret = 0xcbf29ce484222325L;
+		for (int i = data.position(); i < data.limit(); i++) {
+			ret ^= data.get(i) & 0xFF;
+			ret *= 0x100000001b3L;
+		}
+		return ret;
+	}
+
+	public long getShaderModule() {
+		return this.shaderModule;
+	}
+
+	public long getContentHash() {
+		return this.contentHash;
+	}
+
+	public int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return True if other was made from the same SPIR-V. Only compares
+	 *         the bytes when the hashes and sizes match.
+	 */
+	public boolean hasSameCode(ShaderModule other) {
+		if (this == other) return true;
+		return this.contentHash == other.contentHash && this.size == other.size && Arrays.equals(this.code, other.code);
+	}
+
+	public String toString() {
+		return "ShaderModule<" + this.size + " bytes, hash: " + Long.toHexString(this.contentHash) + ">";
+	}
+
+	/**
+	 * Pipelines that have been built don't need the module any more, but
+	 * PipelineCompiler builds in the background: only call this once the
+	 * futures from request() or prewarm() for every description using it
+	 * have completed. A pipeline built after that fails instead.
+	 */
+	public void dispose() {
+		VulkanCall.DESTROY_SHADER_MODULE.run(() -> vkDestroyShaderModule(this.logicalDevice.getDevice(), this.shaderModule, null));
+		this.shaderModule = VK_NULL_HANDLE;
+	}
+}
@@ -0,0 +1,600 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkBufferCopy;
+import org.lwjgl.vulkan.VkBufferImageCopy;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkCommandBufferAllocateInfo;
+import org.lwjgl.vulkan.VkCommandBufferBeginInfo;
+import org.lwjgl.vulkan.VkCommandPoolCreateInfo;
+import org.lwjgl.vulkan.VkFenceCreateInfo;
+import org.lwjgl.vulkan.VkImageMemoryBarrier;
+import org.lwjgl.vulkan.VkSubmitInfo;
+
+/**
+ * Gets data from the CPU into device-local buffers and images without
+ * holding up rendering.
+ * <p>
+ * Uploads are copied into a persistently mapped staging ring right away and
+ * the copy commands are queued up. Once per frame, flush() puts every queued
+ * copy into a single command buffer and submits it to the transfer queue
+ * (which on most discrete GPUs is a separate DMA engine). poll() checks which
+ * submissions have finished, completes their futures and hands their part of
+ * the ring back.
+ * <p>
+ * Copies start at multiples of optimalBufferCopyOffsetAlignment and image
+ * rows are padded out to optimalBufferCopyRowPitchAlignment, which is what
+ * the hardware copies fastest. Image copies have to line up with the
+ * transfer queue's minImageTransferGranularity; we check that rather than
+ * finding out from the validation layers.
+ * <p>
+ * Images are expected in VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, unless the
+ * ImageRegion asks for a transition on the way in and out. Buffers and
+ * images from DeviceBuffer and Image are shared between queue families, so
+ * they can be used on any queue as soon as their future completes.
+ */
+public class StagingUploader {
+	/**
+	 * VkBufferCopy regions are built on the stack, so a run of copies to one
+	 * buffer is split into commands of at most this many.
+	 */
+	protected static final int MAX_REGIONS_PER_COPY = 1024;
+
+	/**
+	 * Describes where in an image an upload goes. The defaults are the
+	 * whole of mip 0, layer 0, color aspect.
+	 */
+	public static class ImageRegion {
+		public long image;
+		public int bytesPerTexel;
+		public int aspectMask = VK_IMAGE_ASPECT_COLOR_BIT;
+		public int mipLevel = 0;
+		public int arrayLayer = 0;
+
+		public int x = 0;
+		public int y = 0;
+		public int z = 0;
+		public int width;
+		public int height;
+		public int depth = 1;
+
+		/**
+		 * The size of the mip level, so we can tell whether a copy reaches
+		 * the edge of the image.
+		 */
+		public int imageWidth;
+		public int imageHeight;
+		public int imageDepth = 1;
+
+		/**
+		 * The layout the image is in before the copy, and the one it's left
+		 * in after. When they aren't TRANSFER_DST_OPTIMAL we add the
+		 * barriers, so a brand new image can go straight from UNDEFINED to
+		 * SHADER_READ_ONLY_OPTIMAL in one upload. Transitions cover the
+		 * region's mip level and layer only.
+		 */
+		public int oldLayout = VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL;
+		public int newLayout = VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL;
+
+		public ImageRegion(long image, int width, int height, int bytesPerTexel) {
+			this.image = image;
+			this.width = width;
+			this.height = height;
+			this.imageWidth = width;
+			this.imageHeight = height;
+			this.bytesPerTexel = bytesPerTexel;
+		}
+	}
+
+	protected static class PendingCopy {
+		protected long stagingOffset;
+		protected long size;
+
+		protected DeviceBuffer destination;
+		protected long destinationOffset;
+
+		protected ImageRegion region;
+		protected int rowLength;
+
+		protected CompletableFuture<Void> future = new CompletableFuture<Void>();
+	}
+
+	protected static class Submission {
+		protected long fence;
+		protected VkCommandBuffer commandBuffer;
+		protected long ringEnd;
+		protected ArrayList<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+	}
+
+	protected LogicalDevice logicalDevice;
+	protected DeviceQueue queue;
+
+	protected DeviceBuffer staging;
+	protected long stagingAddress;
+	protected RingAllocator ring;
+	protected long flushedPosition;
+
+	protected long copyOffsetAlignment;
+	protected long rowPitchAlignment;
+
+	protected long commandPool;
+	protected ArrayList<PendingCopy> pending = new ArrayList<PendingCopy>();
+	protected ArrayDeque<Submission> inFlight = new ArrayDeque<Submission>();
+	protected ArrayDeque<Submission> spare = new ArrayDeque<Submission>();
+
+	protected long uploadCount;
+	protected long uploadBytes;
+	protected long submissionCount;
+
+	/**
+	 * @param logicalDevice The device to upload to.
+	 * @param budget How many bytes of staging memory we may use. Rounded up
+	 *        to a multiple of the copy alignment.
+	 */
+	public StagingUploader(LogicalDevice logicalDevice, long budget) {
+		this.logicalDevice = logicalDevice;
+		this.queue = logicalDevice.getTransferQueue();
+
+		PhysicalDeviceLimits limits = logicalDevice.getPhysicalDevice().getLimits();
+		this.copyOffsetAlignment = Math.max(16, limits.optimalBufferCopyOffsetAlignment);
+		this.rowPitchAlignment = Math.max(1, limits.optimalBufferCopyRowPitchAlignment);
+
+		long atomSize = Math.max(1, limits.nonCoherentAtomSize);
+		long capacity = SubAllocator.alignUp(budget, Math.max(this.copyOffsetAlignment, atomSize));
+
+		this.staging = new DeviceBuffer(
+			logicalDevice,
+			capacity,
+			VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
+			VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT,
+			VK_MEMORY_PROPERTY_HOST_COHERENT_BIT
+		);
+		this.stagingAddress = this.staging.map();
+		this.ring = new RingAllocator(capacity);
+
+		try (MemoryStack stack = stackPush()) {
+			VkCommandPoolCreateInfo poolInfo = VkCommandPoolCreateInfo.callocStack(stack);
+			poolInfo.sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO);
+			poolInfo.flags(VK_COMMAND_POOL_CREATE_TRANSIENT_BIT | VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT);
+			poolInfo.queueFamilyIndex(this.queue.getFamilyIndex());
+
+			LongBuffer pCommandPool = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_COMMAND_POOL.invoke(() -> vkCreateCommandPool(logicalDevice.getDevice(), poolInfo, null, pCommandPool));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create staging command pool: " + Vulkan.translateVulkanResult(err));
+			}
+			this.commandPool = pCommandPool.get(0);
+		}
+	}
+
+	/**
+	 * Uploads into a buffer.
+	 *
+	 * @param data The bytes between position and limit. Copied before we
+	 *        return, so the caller may reuse it right away. Direct buffers
+	 *        are copied natively, heap buffers through NIO.
+	 * @param destination The buffer to write to. Needs TRANSFER_DST usage.
+	 * @param destinationOffset Where in the buffer to write.
+	 * @return Completes once the data is in the buffer on the GPU.
+	 */
+	public synchronized CompletableFuture<Void> upload(ByteBuffer data, DeviceBuffer destination, long destinationOffset) {
+		long size = data.remaining();
+		long position = this.allocateStaging(size, this.copyOffsetAlignment);
+
+		PendingCopy copy = new PendingCopy();
+		copy.stagingOffset = this.ring.offset(position);
+		copy.size = size;
+		copy.destination = destination;
+		copy.destinationOffset = destinationOffset;
+
+		StagingUploader.copy(data, 0, this.stagingAddress + copy.stagingOffset, size);
+
+		this.pending.add(copy);
+		this.uploadCount++;
+		this.uploadBytes += size;
+		return copy.future;
+	}
+
+	/**
+	 * Uploads into part of an image.
+	 *
+	 * @param data Tightly packed texels, row after row, slice after slice.
+	 * @param region Where the texels go.
+	 * @return Completes once the texels are in the image on the GPU.
+	 */
+	public synchronized CompletableFuture<Void> upload(ByteBuffer data, ImageRegion region) {
+		this.checkGranularity(region);
+
+		long tightPitch = (long)region.width * region.bytesPerTexel;
+		long pitch = SubAllocator.alignUp(tightPitch, this.rowPitchAlignment);
+		if (pitch % region.bytesPerTexel != 0) pitch = tightPitch;
+
+		long rows = (long)region.height * region.depth;
+		if (data.remaining() < tightPitch * rows) {
+			throw new AssertionError("Image upload needs " + (tightPitch * rows) + " bytes but only " + data.remaining() + " were given.");
+		}
+
+		/**
+		 * vkCmdCopyBufferToImage wants the offset to be a multiple of the
+		 * texel size as well, which matters for 3, 6 and 12 byte texels.
+		 */
+		long size = pitch * rows;
+		long position = this.allocateStaging(size, StagingUploader.lcm(this.copyOffsetAlignment, region.bytesPerTexel));
+
+		PendingCopy copy = new PendingCopy();
+		copy.stagingOffset = this.ring.offset(position);
+		copy.size = size;
+		copy.region = region;
+		copy.rowLength = (int)(pitch / region.bytesPerTexel);
+
+		long target = this.stagingAddress + copy.stagingOffset;
+		if (pitch == tightPitch) {
+			StagingUploader.copy(data, 0, target, size);
+		} else {
+			for (long row = 0; row < rows; row++) {
+				StagingUploader.copy(data, row * tightPitch, target + row * pitch, tightPitch);
+			}
+		}
+
+		this.pending.add(copy);
+		this.uploadCount++;
+		this.uploadBytes += size;
+		return copy.future;
+	}
+
+	/**
+	 * Submits everything queued since the last flush as one batch. Call this
+	 * once per frame.
+	 */
+	public synchronized void flush() {
+		this.poll();
+		if (this.pending.isEmpty()) return;
+
+		this.flushStaging();
+
+		Submission submission = this.spare.isEmpty() ? this.createSubmission() : this.spare.poll();
+
+		try (MemoryStack stack = stackPush()) {
+			this.record(stack, submission.commandBuffer);
+
+			VkSubmitInfo submitInfo = VkSubmitInfo.callocStack(stack);
+			submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
+			submitInfo.pCommandBuffers(stack.pointers(submission.commandBuffer));
+
+			int err = VulkanCall.RESET_FENCES.invoke(() -> vkResetFences(this.logicalDevice.getDevice(), submission.fence));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to reset staging fence: " + Vulkan.translateVulkanResult(err));
+			}
+			this.queue.submit(submitInfo, submission.fence);
+		}
+
+		submission.ringEnd = this.ring.getHead();
+		for (PendingCopy copy: this.pending) {
+			submission.futures.add(copy.future);
+		}
+		this.pending.clear();
+
+		this.inFlight.add(submission);
+		this.submissionCount++;
+	}
+
+	/**
+	 * Completes the futures of any finished submissions. Never blocks.
+	 */
+	public synchronized void poll() {
+		while (!this.inFlight.isEmpty()) {
+			Submission submission = this.inFlight.peek();
+			int status = VulkanCall.GET_FENCE_STATUS.invoke(() -> vkGetFenceStatus(this.logicalDevice.getDevice(), submission.fence));
+			if (status == VK_NOT_READY) break;
+			if (status != VK_SUCCESS) {
+				throw new AssertionError("Failed to get staging fence status: " + Vulkan.translateVulkanResult(status));
+			}
+
+			this.retire(this.inFlight.poll());
+		}
+	}
+
+	/**
+	 * Submits anything pending and blocks until all of it is done.
+	 */
+	public synchronized void waitIdle() {
+		this.flush();
+		while (!this.inFlight.isEmpty()) {
+			this.waitForOldest();
+		}
+	}
+
+	protected void retire(Submission submission) {
+		this.ring.release(submission.ringEnd);
+		for (CompletableFuture<Void> future: submission.futures) {
+			future.complete(null);
+		}
+		submission.futures.clear();
+		this.spare.add(submission);
+	}
+
+	protected void waitForOldest() {
+		Submission submission = this.inFlight.poll();
+		int err = VulkanCall.WAIT_FOR_FENCES.invoke(() -> vkWaitForFences(this.logicalDevice.getDevice(), submission.fence, true, -1L));
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to wait for staging fence: " + Vulkan.translateVulkanResult(err));
+		}
+		this.retire(submission);
+	}
+
+	/**
+	 * Finds room in the ring. If there isn't any, we push out what's pending
+	 * and wait for the oldest batch to finish. That only stalls the thread
+	 * doing the upload, never the render thread.
+	 */
+	protected long allocateStaging(long size, long alignment) {
+		if (size > this.ring.getCapacity()) {
+			throw new AssertionError("Upload of " + size + " bytes is bigger than the whole staging budget of " + this.ring.getCapacity());
+		}
+
+		long position = this.ring.allocate(size, alignment);
+		while (position == RingAllocator.NO_SPACE) {
+			if (!this.pending.isEmpty()) {
+				this.flush();
+			} else {
+				this.poll();
+			}
+			if (this.inFlight.isEmpty()) {
+				throw new AssertionError("Staging ring has no room for " + size + " bytes even when idle.");
+			}
+			this.waitForOldest();
+
+			position = this.ring.allocate(size, alignment);
+		}
+		return position;
+	}
+
+	/**
+	 * Copies length bytes, starting offset bytes past data's position, to a
+	 * native address. Heap buffers have no address of their own, so those go
+	 * through a buffer over the target instead.
+	 */
+	protected static void copy(ByteBuffer data, long offset, long target, long length) {
+		if (data.isDirect()) {
+			memCopy(memAddress(data) + offset, target, length);
+			return;
+		}
+
+		ByteBuffer source = data.duplicate();
+		source.position(source.position() + (int)offset);
+		source.limit(source.position() + (int)length);
+		memByteBuffer(target, (int)length).put(source);
+	}
+
+	protected static long lcm(long a, long b) {
+		long x = a;
+		long y = b;
+		while (y != 0) {
+			long t = x % y;
+			x = y;
+			y = t;
+		}
+		return a / x * b;
+	}
+
+	/**
+	 * Flushes what we wrote since the last flush. If it wrapped around the
+	 * end of the ring, that's two ranges.
+	 */
+	protected void flushStaging() {
+		long start = this.flushedPosition;
+		long end = this.ring.getHead();
+		if (end == start) return;
+
+		long startOffset = this.ring.offset(start);
+		long length = end - start;
+		if (startOffset + length > this.ring.getCapacity()) {
+			long firstLength = this.ring.getCapacity() - startOffset;
+			this.staging.flush(startOffset, firstLength);
+			this.staging.flush(0, length - firstLength);
+		} else {
+			this.staging.flush(startOffset, length);
+		}
+		this.flushedPosition = end;
+	}
+
+	protected void record(MemoryStack stack, VkCommandBuffer commandBuffer) {
+		VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack);
+		beginInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+		beginInfo.flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+		int err = VulkanCall.BEGIN_COMMAND_BUFFER.invoke(() -> vkBeginCommandBuffer(commandBuffer, beginInfo));
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to begin staging commands: " + Vulkan.translateVulkanResult(err));
+		}
+
+		int i = 0;
+		while (i < this.pending.size()) {
+			PendingCopy first = this.pending.get(i);
+			if (first.region != null) {
+				this.recordImageCopy(stack, commandBuffer, first);
+				i++;
+				continue;
+			}
+
+			// Copies to the same buffer go in one command, as long as the
+			// regions fit on the stack.
+			int j = i;
+			while (j < this.pending.size() && j - i < StagingUploader.MAX_REGIONS_PER_COPY && this.pending.get(j).destination == first.destination) j++;
+
+			try (MemoryStack frame = stack.push()) {
+				VkBufferCopy.Buffer regions = VkBufferCopy.mallocStack(j - i, frame);
+				for (int k = i; k < j; k++) {
+					PendingCopy copy = this.pending.get(k);
+					regions.get(k - i)
+						.srcOffset(copy.stagingOffset)
+						.dstOffset(copy.destinationOffset)
+						.size(copy.size);
+				}
+				vkCmdCopyBuffer(commandBuffer, this.staging.getBuffer(), first.destination.getBuffer(), regions);
+			}
+			i = j;
+		}
+
+		err = VulkanCall.END_COMMAND_BUFFER.invoke(() -> vkEndCommandBuffer(commandBuffer));
+		if (err != VK_SUCCESS) {
+			throw new AssertionError("Failed to record staging commands: " + Vulkan.translateVulkanResult(err));
+		}
+	}
+
+	protected void recordImageCopy(MemoryStack stack, VkCommandBuffer commandBuffer, PendingCopy copy) {
+		ImageRegion region = copy.region;
+
+		try (MemoryStack frame = stack.push()) {
+			VkBufferImageCopy.Buffer regions = VkBufferImageCopy.callocStack(1, frame);
+			VkBufferImageCopy imageCopy = regions.get(0);
+			imageCopy.bufferOffset(copy.stagingOffset);
+			imageCopy.bufferRowLength(copy.rowLength);
+			imageCopy.bufferImageHeight(region.height);
+			imageCopy.imageSubresource()
+				.aspectMask(region.aspectMask)
+				.mipLevel(region.mipLevel)
+				.baseArrayLayer(region.arrayLayer)
+				.layerCount(1);
+			imageCopy.imageOffset().set(region.x, region.y, region.z);
+			imageCopy.imageExtent().set(region.width, region.height, region.depth);
+
+			if (region.oldLayout != VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL) {
+				this.recordTransition(frame, commandBuffer, region, region.oldLayout, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL);
+			}
+			vkCmdCopyBufferToImage(commandBuffer, this.staging.getBuffer(), region.image, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, regions);
+			if (region.newLayout != VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL) {
+				this.recordTransition(frame, commandBuffer, region, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, region.newLayout);
+			}
+		}
+	}
+
+	/**
+	 * The transfer queue may not know about any shader stages, so the far
+	 * side of each barrier is TOP_OF_PIPE or BOTTOM_OF_PIPE. Whoever uses
+	 * the image waits on the upload's future, which is after our fence.
+	 */
+	protected void recordTransition(MemoryStack stack, VkCommandBuffer commandBuffer, ImageRegion region, int oldLayout, int newLayout) {
+		boolean isBefore = newLayout == VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL;
+
+		VkImageMemoryBarrier.Buffer barrier = VkImageMemoryBarrier.callocStack(1, stack);
+		barrier.sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER);
+		barrier.srcAccessMask(isBefore ? 0 : VK_ACCESS_TRANSFER_WRITE_BIT);
+		barrier.dstAccessMask(isBefore ? VK_ACCESS_TRANSFER_WRITE_BIT : 0);
+		barrier.oldLayout(oldLayout);
+		barrier.newLayout(newLayout);
+		barrier.srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
+		barrier.dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED);
+		barrier.image(region.image);
+		barrier.subresourceRange()
+			.aspectMask(region.aspectMask)
+			.baseMipLevel(region.mipLevel)
+			.levelCount(1)
+			.baseArrayLayer(region.arrayLayer)
+			.layerCount(1);
+
+		vkCmdPipelineBarrier(
+			commandBuffer,
+			isBefore ? VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT : VK_PIPELINE_STAGE_TRANSFER_BIT,
+			isBefore ? VK_PIPELINE_STAGE_TRANSFER_BIT : VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT,
+			0,
+			null,
+			null,
+			barrier
+		);
+	}
+
+	/**
+	 * Offsets have to be a multiple of the queue's granularity, and extents
+	 * too unless they run to the edge of the image. A granularity of zero
+	 * means only whole mip levels can be copied.
+	 */
+	protected void checkGranularity(ImageRegion region) {
+		PhysicalDevice.Queue family = this.queue.getFamily();
+		int width = family.getMinImageTransferGranularityWidth();
+		int height = family.getMinImageTransferGranularityHeight();
+		int depth = family.getMinImageTransferGranularityDepth();
+
+		boolean ok;
+		if (width == 0 && height == 0 && depth == 0) {
+			ok = region.x == 0 && region.y == 0 && region.z == 0
+				&& region.width == region.imageWidth && region.height == region.imageHeight && region.depth == region.imageDepth;
+		} else {
+			ok = StagingUploader.fits(region.x, region.width, region.imageWidth, width)
+				&& StagingUploader.fits(region.y, region.height, region.imageHeight, height)
+				&& StagingUploader.fits(region.z, region.depth, region.imageDepth, depth);
+		}
+
+		if (!ok) {
+			throw new AssertionError("Image upload at (" + region.x + ", " + region.y + ", " + region.z + ") size (" + region.width + ", " + region.height + ", " + region.depth + ") doesn't line up with the transfer queue granularity (" + width + ", " + height + ", " + depth + ").");
+		}
+	}
+
+	protected static boolean fits(int offset, int extent, int imageExtent, int granularity) {
+		if (granularity <= 1) return true;
+		if (offset % granularity != 0) return false;
+		return extent % granularity == 0 || offset + extent == imageExtent;
+	}
+
+	protected Submission createSubmission() {
+		Submission submission = new Submission();
+
+		try (MemoryStack stack = stackPush()) {
+			VkCommandBufferAllocateInfo allocateInfo = VkCommandBufferAllocateInfo.callocStack(stack);
+			allocateInfo.sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO);
+			allocateInfo.commandPool(this.commandPool);
+			allocateInfo.level(VK_COMMAND_BUFFER_LEVEL_PRIMARY);
+			allocateInfo.commandBufferCount(1);
+
+			PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+			int err = VulkanCall.ALLOCATE_COMMAND_BUFFERS.invoke(() -> vkAllocateCommandBuffers(this.logicalDevice.getDevice(), allocateInfo, pCommandBuffer));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to allocate staging command buffer: " + Vulkan.translateVulkanResult(err));
+			}
+			submission.commandBuffer = new VkCommandBuffer(pCommandBuffer.get(0), this.logicalDevice.getDevice());
+
+			VkFenceCreateInfo fenceInfo = VkFenceCreateInfo.callocStack(stack);
+			fenceInfo.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+
+			LongBuffer pFence = stack.mallocLong(1);
+			err = VulkanCall.CREATE_FENCE.invoke(() -> vkCreateFence(this.logicalDevice.getDevice(), fenceInfo, null, pFence));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create staging fence: " + Vulkan.translateVulkanResult(err));
+			}
+			submission.fence = pFence.get(0);
+		}
+		return submission;
+	}
+
+	public synchronized long getUploadCount() {
+		return this.uploadCount;
+	}
+
+	public synchronized long getUploadBytes() {
+		return this.uploadBytes;
+	}
+
+	public synchronized long getSubmissionCount() {
+		return this.submissionCount;
+	}
+
+	public void dispose() {
+		this.waitIdle();
+		for (Submission submission: this.spare) {
+			VulkanCall.DESTROY_FENCE.run(() -> vkDestroyFence(this.logicalDevice.getDevice(), submission.fence, null));
+		}
+		this.spare.clear();
+		VulkanCall.DESTROY_COMMAND_POOL.run(() -> vkDestroyCommandPool(this.logicalDevice.getDevice(), this.commandPool, null));
+		this.staging.dispose();
+	}
+}
@@ -0,0 +1,66 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+/**
+ * A SubAllocator hands out ranges of a larger, already allocated region.
+ * <p>
+ * It only deals in offsets. It never touches Vulkan itself, which means the
+ * same strategies can be used for device memory, for ranges of a buffer, or
+ * for anything else that needs to be chopped up.
+ * <p>
+ * All alignments are expected to be powers of two, which is what Vulkan
+ * always gives us.
+ */
+public abstract class SubAllocator {
+	/**
+	 * Returned from allocate when there is no room.
+	 */
+	public static final long NO_SPACE = -1;
+
+	protected long size;
+	protected long usedSize;
+	protected int allocationCount;
+
+	protected SubAllocator(long size) {
+		this.size = size;
+	}
+
+	/**
+	 * Finds room for a range.
+	 *
+	 * @param size How many bytes are needed.
+	 * @param alignment The offset that we return will be a multiple of this.
+	 * @return The offset of the range, or NO_SPACE.
+	 */
+	public abstract long allocate(long size, long alignment);
+
+	/**
+	 * Gives a range back.
+	 *
+	 * @param offset The offset previously returned from allocate.
+	 */
+	public abstract void free(long offset);
+
+	public long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return How many bytes are handed out, including whatever we had to
+	 *         waste on alignment and rounding.
+	 */
+	public long getUsedSize() {
+		return this.usedSize;
+	}
+
+	public int getAllocationCount() {
+		return this.allocationCount;
+	}
+
+	public boolean isEmpty() {
+		return this.allocationCount == 0;
+	}
+
+	protected static long alignUp(long value, long alignment) {
+		return (value + alignment - 1) & -alignment;
+	}
+}
@@ -0,0 +1,391 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.LongBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkFenceCreateInfo;
+import org.lwjgl.vulkan.VkSubmitInfo;
+
+/**
+ * Merges submissions from many threads into as few vkQueueSubmit calls as
+ * we can get away with.
+ * <p>
+ * vkQueueSubmit is expensive on the driver side, and it's about as
+ * expensive for one command buffer as for fifty. Producers enqueue command
+ * buffers (and any semaphores they wait on or signal) onto a lock-free queue.
+ * A single submit thread drains it whenever flush() is called, or every
+ * flushInterval if nobody calls it, and submits everything it found as one
+ * array of VkSubmitInfo. Each enqueue keeps its own VkSubmitInfo, so
+ * semaphores still apply to exactly the command buffers they were given
+ * with.
+ * <p>
+ * Each enqueue gets a future that completes when its batch has finished on
+ * the GPU. If the batch can't be submitted, or the device is lost while it
+ * runs, the future completes exceptionally instead, so nobody waits
+ * forever.
+ */
+public class SubmissionBatcher {
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000000L;
+
+	/**
+	 * The submit infos are built on the submit thread's stack, so a flush
+	 * with more than this many submissions goes out as several batches.
+	 */
+	public static final int MAX_BATCH_SIZE = 256;
+
+	protected static class Submission {
+		protected VkCommandBuffer[] commandBuffers;
+		protected long[] waitSemaphores;
+		protected int[] waitStages;
+		protected long[] signalSemaphores;
+
+		protected long enqueueTime;
+		protected CompletableFuture<Void> future = new CompletableFuture<Void>();
+	}
+
+	protected static class Batch {
+		protected long fence;
+		protected ArrayList<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+	}
+
+	/**
+	 * A copy of the batcher's numbers at one point in time.
+	 */
+	public static class Stats {
+		public final long batches;
+		public final long submissions;
+		public final long maxBatchSize;
+		public final long totalQueueLatency;
+		public final long maxQueueLatency;
+
+		protected Stats(long batches, long submissions, long maxBatchSize, long totalQueueLatency, long maxQueueLatency) {
+			this.batches = batches;
+			this.submissions = submissions;
+			this.maxBatchSize = maxBatchSize;
+			this.totalQueueLatency = totalQueueLatency;
+			this.maxQueueLatency = maxQueueLatency;
+		}
+
+		public double getAverageBatchSize() {
+			if (this.batches == 0) return 0;
+			return this.submissions / (double)this.batches;
+		}
+
+		/**
+		 * @return How long submissions waited between enqueue and
+		 *         vkQueueSubmit on average, in nanoseconds.
+		 */
+		public double getAverageQueueLatency() {
+			if (this.submissions == 0) return 0;
+			return this.totalQueueLatency / (double)this.submissions;
+		}
+
+		public String toString() {
+			return String.format("SubmissionBatcher.Stats<batches: %d, submissions: %d, avg batch: %.2f, max batch: %d, avg latency: %.0fns, max latency: %dns>", this.batches, this.submissions, this.getAverageBatchSize(), this.maxBatchSize, this.getAverageQueueLatency(), this.maxQueueLatency);
+		}
+	}
+
+	protected DeviceQueue queue;
+	protected long flushInterval;
+
+	protected ConcurrentLinkedQueue<Submission> incoming = new ConcurrentLinkedQueue<Submission>();
+	protected Thread submitThread;
+	protected volatile boolean isRunning = true;
+
+	/**
+	 * Only touched by the submit thread.
+	 */
+	protected ArrayDeque<Batch> inFlight = new ArrayDeque<Batch>();
+	protected ArrayDeque<Long> spareFences = new ArrayDeque<Long>();
+	protected ArrayList<Long> deadFences = new ArrayList<Long>();
+
+	protected AtomicLong batches = new AtomicLong();
+	protected AtomicLong submissions = new AtomicLong();
+	protected AtomicLong maxBatchSize = new AtomicLong();
+	protected AtomicLong totalQueueLatency = new AtomicLong();
+	protected AtomicLong maxQueueLatency = new AtomicLong();
+
+	public SubmissionBatcher(DeviceQueue queue) {
+		this(queue, SubmissionBatcher.DEFAULT_FLUSH_INTERVAL);
+	}
+
+	/**
+	 * @param queue The queue everything goes to.
+	 * @param flushInterval The longest a submission waits for a flush(), in
+	 *        nanoseconds.
+	 */
+	public SubmissionBatcher(DeviceQueue queue, long flushInterval) {
+		this(queue, flushInterval, "SubmissionBatcher-" + queue.getFamilyIndex() + "-" + queue.getQueueIndex());
+	}
+
+	/**
+	 * @param queue Null for subclasses that override every method that
+	 *        talks to the device.
+	 * @param threadName What to call the submit thread.
+	 */
+	protected SubmissionBatcher(DeviceQueue queue, long flushInterval, String threadName) {
+		this.queue = queue;
+		this.flushInterval = flushInterval;
+
+		this.submitThread = new Thread(this::run, threadName);
+		this.submitThread.setDaemon(true);
+		this.submitThread.start();
+	}
+
+	public CompletableFuture<Void> enqueue(VkCommandBuffer commandBuffer) {
+		return this.enqueue(new VkCommandBuffer[] { commandBuffer }, null, null, null);
+	}
+
+	/**
+	 * @param commandBuffers Run in order.
+	 * @param waitSemaphores Semaphores to wait on first, or null.
+	 * @param waitStages The stage for each wait semaphore. Only null if
+	 *        there are none.
+	 * @param signalSemaphores Semaphores to signal when done, or null.
+	 * @return Completes when the batch this ends up in finishes on the GPU.
+	 */
+	public CompletableFuture<Void> enqueue(VkCommandBuffer[] commandBuffers, long[] waitSemaphores, int[] waitStages, long[] signalSemaphores) {
+		if (!this.isRunning) {
+			throw new AssertionError("SubmissionBatcher has been disposed.");
+		}
+		if (commandBuffers == null || commandBuffers.length == 0) {
+			throw new AssertionError("Nothing to submit.");
+		}
+		int waitCount = waitSemaphores == null ? 0 : waitSemaphores.length;
+		int stageCount = waitStages == null ? 0 : waitStages.length;
+		if (waitCount != stageCount) {
+			throw new AssertionError(waitCount + " wait semaphores need as many wait stages, got " + stageCount);
+		}
+
+		Submission submission = new Submission();
+		submission.commandBuffers = commandBuffers;
+		submission.waitSemaphores = waitSemaphores;
+		submission.waitStages = waitStages;
+		submission.signalSemaphores = signalSemaphores;
+		submission.enqueueTime = System.nanoTime();
+
+		this.incoming.add(submission);
+
+		/**
+		 * If dispose() got in between the check above and the add, the submit
+		 * thread may already have drained the queue for the last time. Take
+		 * it back out if it's still there; if it isn't, somebody has it and
+		 * will complete it.
+		 */
+		if (!this.isRunning && this.incoming.remove(submission)) {
+			submission.future.completeExceptionally(new AssertionError("SubmissionBatcher has been disposed."));
+		}
+		return submission.future;
+	}
+
+	/**
+	 * Asks the submit thread to submit what's queued now rather than at the
+	 * next interval.
+	 */
+	public void flush() {
+		LockSupport.unpark(this.submitThread);
+	}
+
+	public Stats getStats() {
+		return new Stats(this.batches.get(), this.submissions.get(), this.maxBatchSize.get(), this.totalQueueLatency.get(), this.maxQueueLatency.get());
+	}
+
+	protected void run() {
+		ArrayList<Submission> drained = new ArrayList<Submission>();
+		while (this.isRunning || !this.incoming.isEmpty()) {
+			this.retireFinished();
+
+			if (this.incoming.isEmpty()) {
+				LockSupport.parkNanos(this, this.inFlight.isEmpty() ? this.flushInterval : Math.min(this.flushInterval, 100000L));
+				continue;
+			}
+
+			Submission submission;
+			while (drained.size() < SubmissionBatcher.MAX_BATCH_SIZE && (submission = this.incoming.poll()) != null) {
+				drained.add(submission);
+			}
+
+			try {
+				this.submit(drained);
+			} catch (Throwable t) {
+				for (Submission failed: drained) {
+					failed.future.completeExceptionally(t);
+				}
+			}
+			drained.clear();
+		}
+
+		while (!this.inFlight.isEmpty()) {
+			int err = this.waitForFence(this.inFlight.peek().fence);
+			if (err != VK_SUCCESS) {
+				this.failInFlight(new AssertionError("Failed to wait for submission fence: " + Vulkan.translateVulkanResult(err)));
+				break;
+			}
+			this.complete(this.inFlight.poll());
+		}
+	}
+
+	protected void submit(ArrayList<Submission> drained) {
+		long now = System.nanoTime();
+		Batch batch = new Batch();
+		batch.fence = this.obtainFence();
+		try {
+			this.queueSubmit(drained, batch.fence);
+		} catch (Throwable t) {
+			this.spareFences.add(Long.valueOf(batch.fence));
+			throw t;
+		}
+
+		long maxLatency = 0;
+		long totalLatency = 0;
+		for (Submission submission: drained) {
+			long latency = now - submission.enqueueTime;
+			totalLatency += latency;
+			maxLatency = Math.max(maxLatency, latency);
+			batch.futures.add(submission.future);
+		}
+		this.inFlight.add(batch);
+
+		this.batches.incrementAndGet();
+		this.submissions.addAndGet(drained.size());
+		this.totalQueueLatency.addAndGet(totalLatency);
+		SubmissionBatcher.max(this.maxBatchSize, drained.size());
+		SubmissionBatcher.max(this.maxQueueLatency, maxLatency);
+	}
+
+	/**
+	 * One VkSubmitInfo per submission, all in one vkQueueSubmit.
+	 */
+	protected void queueSubmit(ArrayList<Submission> drained, long fence) {
+		try (MemoryStack stack = stackPush()) {
+			VkSubmitInfo.Buffer submitInfos = VkSubmitInfo.callocStack(drained.size(), stack);
+			for (int i = 0; i < drained.size(); i++) {
+				Submission submission = drained.get(i);
+				VkSubmitInfo submitInfo = submitInfos.get(i);
+				submitInfo.sType(VK_STRUCTURE_TYPE_SUBMIT_INFO);
+				submitInfo.pCommandBuffers(stack.pointers(submission.commandBuffers));
+
+				if (submission.waitSemaphores != null && submission.waitSemaphores.length > 0) {
+					submitInfo.waitSemaphoreCount(submission.waitSemaphores.length);
+					submitInfo.pWaitSemaphores(stack.longs(submission.waitSemaphores));
+					submitInfo.pWaitDstStageMask(stack.ints(submission.waitStages));
+				}
+
+				if (submission.signalSemaphores != null && submission.signalSemaphores.length > 0) {
+					submitInfo.pSignalSemaphores(stack.longs(submission.signalSemaphores));
+				}
+			}
+
+			this.queue.submit(submitInfos, fence);
+		}
+	}
+
+	protected void retireFinished() {
+		while (!this.inFlight.isEmpty()) {
+			int status = this.getFenceStatus(this.inFlight.peek().fence);
+			if (status == VK_NOT_READY) break;
+			if (status != VK_SUCCESS) {
+				this.failInFlight(new AssertionError("Failed to get submission fence status: " + Vulkan.translateVulkanResult(status)));
+				break;
+			}
+			this.complete(this.inFlight.poll());
+		}
+	}
+
+	/**
+	 * Something like VK_ERROR_DEVICE_LOST means none of these will ever
+	 * signal, so fail them all rather than leaving their futures hanging.
+	 * The fences are kept only to be destroyed.
+	 */
+	protected void failInFlight(Throwable error) {
+		while (!this.inFlight.isEmpty()) {
+			Batch batch = this.inFlight.poll();
+			this.deadFences.add(Long.valueOf(batch.fence));
+			for (CompletableFuture<Void> future: batch.futures) {
+				future.completeExceptionally(error);
+			}
+		}
+	}
+
+	protected void complete(Batch batch) {
+		this.resetFence(batch.fence);
+		this.spareFences.add(Long.valueOf(batch.fence));
+		for (CompletableFuture<Void> future: batch.futures) {
+			future.complete(null);
+		}
+	}
+
+	protected long obtainFence() {
+		Long spare = this.spareFences.poll();
+		if (spare != null) return spare.longValue();
+		return this.createFence();
+	}
+
+	protected long createFence() {
+		try (MemoryStack stack = stackPush()) {
+			VkFenceCreateInfo fenceInfo = VkFenceCreateInfo.callocStack(stack);
+			fenceInfo.sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+
+			LongBuffer pFence = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_FENCE.invoke(() -> vkCreateFence(this.queue.getLogicalDevice().getDevice(), fenceInfo, null, pFence));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create submission fence: " + Vulkan.translateVulkanResult(err));
+			}
+			return pFence.get(0);
+		}
+	}
+
+	protected int getFenceStatus(long fence) {
+		return VulkanCall.GET_FENCE_STATUS.invoke(() -> vkGetFenceStatus(this.queue.getLogicalDevice().getDevice(), fence));
+	}
+
+	protected int waitForFence(long fence) {
+		return VulkanCall.WAIT_FOR_FENCES.invoke(() -> vkWaitForFences(this.queue.getLogicalDevice().getDevice(), fence, true, -1L));
+	}
+
+	protected void resetFence(long fence) {
+		VulkanCall.RESET_FENCES.invoke(() -> vkResetFences(this.queue.getLogicalDevice().getDevice(), fence));
+	}
+
+	protected void destroyFence(long fence) {
+		VulkanCall.DESTROY_FENCE.run(() -> vkDestroyFence(this.queue.getLogicalDevice().getDevice(), fence, null));
+	}
+
+	protected static void max(AtomicLong target, long value) {
+		long current;
+		while (value > (current = target.get())) {
+			if (target.compareAndSet(current, value)) return;
+		}
+	}
+
+	/**
+	 * Submits anything still queued, waits for all of it to finish, and
+	 * stops the submit thread. Enqueues from here on throw.
+	 */
+	public void dispose() {
+		this.isRunning = false;
+		LockSupport.unpark(this.submitThread);
+		try {
+			this.submitThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		this.spareFences.addAll(this.deadFences);
+		this.deadFences.clear();
+		for (Long fence: this.spareFences) {
+			this.destroyFence(fence.longValue());
+		}
+		this.spareFences.clear();
+	}
+}
@@ -0,0 +1,233 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import java.util.HashMap;
+
+/**
+ * Two-level segregated fit allocation.
+ * <p>
+ * Free ranges are bucketed by a coarse power of two (the first level) and
+ * then by sixteen linear steps within that power of two (the second level).
+ * A pair of bitmaps tells us which buckets have anything in them, so both
+ * allocate and free are constant time no matter how fragmented we get. It
+ * wastes far less than the buddy allocator on odd sizes, which makes it the
+ * better default for device memory.
+ * <p>
+ * Since the bookkeeping lives on the Java side rather than inside the memory
+ * itself, there are no headers and a range can be as small as
+ * MIN_BLOCK_SIZE.
+ */
+public class TlsfSubAllocator extends SubAllocator {
+	public static final long MIN_BLOCK_SIZE = 16;
+
+	protected static final int SL_INDEX_COUNT_LOG2 = 4;
+	protected static final int SL_INDEX_COUNT = 1 << TlsfSubAllocator.SL_INDEX_COUNT_LOG2;
+	protected static final int FL_INDEX_SHIFT = TlsfSubAllocator.SL_INDEX_COUNT_LOG2 + 4;
+	protected static final int FL_INDEX_COUNT = 64 - TlsfSubAllocator.FL_INDEX_SHIFT + 1;
+	protected static final long SMALL_BLOCK_SIZE = 1L << TlsfSubAllocator.FL_INDEX_SHIFT;
+
+	/**
+	 * A contiguous range, either free or handed out. Blocks know their
+	 * physical neighbours so that we can merge on free, and free blocks also
+	 * know their neighbours in their bucket.
+	 */
+	protected static class Block {
+		protected long offset;
+		protected long size;
+		protected boolean isFree;
+
+		protected Block prevPhysical;
+		protected Block nextPhysical;
+
+		protected Block prevFree;
+		protected Block nextFree;
+
+		protected Block(long offset, long size) {
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+
+	protected long flBitmap;
+	protected int[] slBitmap = new int[TlsfSubAllocator.FL_INDEX_COUNT];
+	protected Block[][] freeHeads = new Block[TlsfSubAllocator.FL_INDEX_COUNT][TlsfSubAllocator.SL_INDEX_COUNT];
+
+	protected HashMap<Long, Block> allocated = new HashMap<Long, Block>();
+
+	/**
+	 * These are written by mapping() so that we don't need to allocate a pair
+	 * every time. Anything calling into us is already synchronized.
+	 */
+	protected int mappedFl;
+	protected int mappedSl;
+
+	public TlsfSubAllocator(long size) {
+		super(size & -TlsfSubAllocator.MIN_BLOCK_SIZE);
+		if (this.size < TlsfSubAllocator.MIN_BLOCK_SIZE) {
+			throw new AssertionError("Region of " + size + " bytes is too small for a TLSF allocator.");
+		}
+
+		Block block = new Block(0, this.size);
+		this.insertFree(block);
+	}
+
+	public long allocate(long size, long alignment) {
+		if (size <= 0) size = 1;
+		alignment = Math.max(alignment, TlsfSubAllocator.MIN_BLOCK_SIZE);
+		size = SubAllocator.alignUp(size, TlsfSubAllocator.MIN_BLOCK_SIZE);
+
+		/**
+		 * Anything more aligned than our minimum might have to throw away up
+		 * to alignment bytes at the front, so we search for a block that is
+		 * big enough to survive that.
+		 */
+		long searchSize = size;
+		if (alignment > TlsfSubAllocator.MIN_BLOCK_SIZE) searchSize += alignment - TlsfSubAllocator.MIN_BLOCK_SIZE;
+		if (searchSize > this.size) return SubAllocator.NO_SPACE;
+
+		Block block = this.findFree(searchSize);
+		if (block == null) return SubAllocator.NO_SPACE;
+		this.removeFree(block);
+
+		long alignedOffset = SubAllocator.alignUp(block.offset, alignment);
+		long padding = alignedOffset - block.offset;
+		if (padding > 0) {
+			Block front = new Block(block.offset, padding);
+			front.prevPhysical = block.prevPhysical;
+			if (front.prevPhysical != null) front.prevPhysical.nextPhysical = front;
+			front.nextPhysical = block;
+			block.prevPhysical = front;
+
+			block.offset = alignedOffset;
+			block.size -= padding;
+			this.insertFreeMerging(front);
+		}
+
+		if (block.size - size >= TlsfSubAllocator.MIN_BLOCK_SIZE) {
+			Block tail = new Block(block.offset + size, block.size - size);
+			tail.nextPhysical = block.nextPhysical;
+			if (tail.nextPhysical != null) tail.nextPhysical.prevPhysical = tail;
+			tail.prevPhysical = block;
+			block.nextPhysical = tail;
+
+			block.size = size;
+			this.insertFreeMerging(tail);
+		}
+
+		this.allocated.put(Long.valueOf(block.offset), block);
+		this.usedSize += block.size;
+		this.allocationCount++;
+		return block.offset;
+	}
+
+	public void free(long offset) {
+		Block block = this.allocated.remove(Long.valueOf(offset));
+		if (block == null) {
+			throw new AssertionError("Offset " + offset + " was not allocated from this TLSF allocator.");
+		}
+
+		this.usedSize -= block.size;
+		this.allocationCount--;
+		this.insertFreeMerging(block);
+	}
+
+	/**
+	 * Merges a block with any free physical neighbours and puts the result in
+	 * its bucket.
+	 */
+	protected void insertFreeMerging(Block block) {
+		Block prev = block.prevPhysical;
+		if (prev != null && prev.isFree) {
+			this.removeFree(prev);
+			prev.size += block.size;
+			prev.nextPhysical = block.nextPhysical;
+			if (prev.nextPhysical != null) prev.nextPhysical.prevPhysical = prev;
+			block = prev;
+		}
+
+		Block next = block.nextPhysical;
+		if (next != null && next.isFree) {
+			this.removeFree(next);
+			block.size += next.size;
+			block.nextPhysical = next.nextPhysical;
+			if (block.nextPhysical != null) block.nextPhysical.prevPhysical = block;
+		}
+
+		this.insertFree(block);
+	}
+
+	protected void insertFree(Block block) {
+		this.mapping(block.size);
+		int fl = this.mappedFl;
+		int sl = this.mappedSl;
+
+		Block head = this.freeHeads[fl][sl];
+		block.isFree = true;
+		block.prevFree = null;
+		block.nextFree = head;
+		if (head != null) head.prevFree = block;
+		this.freeHeads[fl][sl] = block;
+
+		this.flBitmap |= 1L << fl;
+		this.slBitmap[fl] |= 1 << sl;
+	}
+
+	protected void removeFree(Block block) {
+		this.mapping(block.size);
+		int fl = this.mappedFl;
+		int sl = this.mappedSl;
+
+		if (block.prevFree != null) block.prevFree.nextFree = block.nextFree;
+		if (block.nextFree != null) block.nextFree.prevFree = block.prevFree;
+		if (this.freeHeads[fl][sl] == block) {
+			this.freeHeads[fl][sl] = block.nextFree;
+			if (block.nextFree == null) {
+				this.slBitmap[fl] &= ~(1 << sl);
+				if (this.slBitmap[fl] == 0) this.flBitmap &= ~(1L << fl);
+			}
+		}
+
+		block.isFree = false;
+		block.prevFree = null;
+		block.nextFree = null;
+	}
+
+	/**
+	 * Finds a free block at least size bytes long. We round the size up to
+	 * the start of the next bucket first, so that anything we find in a
+	 * bucket is guaranteed to be big enough.
+	 */
+	protected Block findFree(long size) {
+		if (size >= TlsfSubAllocator.SMALL_BLOCK_SIZE) {
+			long round = (1L << (63 - Long.numberOfLeadingZeros(size) - TlsfSubAllocator.SL_INDEX_COUNT_LOG2)) - 1;
+			size += round;
+		}
+		this.mapping(size);
+		int fl = this.mappedFl;
+		int sl = this.mappedSl;
+		if (fl >= TlsfSubAllocator.FL_INDEX_COUNT) return null;
+
+		int slMap = this.slBitmap[fl] & (~0 << sl);
+		if (slMap == 0) {
+			if (fl + 1 >= TlsfSubAllocator.FL_INDEX_COUNT) return null;
+			long flMap = this.flBitmap & (~0L << (fl + 1));
+			if (flMap == 0) return null;
+
+			fl = Long.numberOfTrailingZeros(flMap);
+			slMap = this.slBitmap[fl];
+		}
+		sl = Integer.numberOfTrailingZeros(slMap);
+
+		return this.freeHeads[fl][sl];
+	}
+
+	protected void mapping(long size) {
+		if (size < TlsfSubAllocator.SMALL_BLOCK_SIZE) {
+			this.mappedFl = 0;
+			this.mappedSl = (int)(size / (TlsfSubAllocator.SMALL_BLOCK_SIZE / TlsfSubAllocator.SL_INDEX_COUNT));
+		} else {
+			int fls = 63 - Long.numberOfLeadingZeros(size);
+			this.mappedSl = (int)(size >>> (fls - TlsfSubAllocator.SL_INDEX_COUNT_LOG2)) ^ TlsfSubAllocator.SL_INDEX_COUNT;
+			this.mappedFl = fls - (TlsfSubAllocator.FL_INDEX_SHIFT - 1);
+		}
+	}
+}
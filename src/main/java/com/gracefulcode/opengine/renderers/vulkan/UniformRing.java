@@ -0,0 +1,301 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkDescriptorBufferInfo;
+import org.lwjgl.vulkan.VkDescriptorPoolCreateInfo;
+import org.lwjgl.vulkan.VkDescriptorPoolSize;
+import org.lwjgl.vulkan.VkDescriptorSetAllocateInfo;
+import org.lwjgl.vulkan.VkWriteDescriptorSet;
+
+/**
+ * Per-draw constants, either pushed straight into the command buffer or
+ * copied into a ring of uniform memory and bound with a dynamic offset.
+ * <p>
+ * The ring is one persistently mapped, host-coherent uniform buffer (device
+ * local too, where the device has such memory) carved up with a
+ * RingAllocator. Every allocation starts on a multiple of
+ * minUniformBufferOffsetAlignment. Where each frame stopped is noted when
+ * it ends, and its allocations are given back when the FrameScheduler
+ * recycles that frame's slot, so the ring only has to hold framesInFlight
+ * frames' worth. Allocations between frames count towards the next one.
+ * <p>
+ * A single descriptor set, with one UNIFORM_BUFFER_DYNAMIC binding covering
+ * bindingRange bytes, serves every draw. Only the dynamic offset changes.
+ * <p>
+ * push() picks the path by size. Anything up to getPushConstantLimit() bytes
+ * goes in as push constants, and anything bigger goes through the ring. The
+ * choice only depends on the size, so pipelines can be built to match with
+ * usesPushConstants(). Neither path allocates on the Java heap.
+ */
+public class UniformRing implements FrameScheduler.Recycler {
+	public static final long DEFAULT_BYTES_PER_FRAME = 4L * 1024 * 1024;
+	public static final int DEFAULT_BINDING_RANGE = 16384;
+
+	/**
+	 * Returned by push() when the data went in as push constants.
+	 */
+	public static final long PUSHED = -1;
+
+	protected LogicalDevice logicalDevice;
+	protected FrameScheduler frameScheduler;
+
+	protected DeviceBuffer buffer;
+	protected long address;
+	protected RingAllocator ring;
+	protected long alignment;
+	protected int bindingRange;
+	protected int pushConstantLimit;
+
+	/**
+	 * The head of the ring when each slot's last frame ended. Indexed by
+	 * frame slot.
+	 */
+	protected long[] frameEnds;
+
+	protected DescriptorSetLayout layout;
+	protected long descriptorPool;
+	protected long descriptorSet;
+
+	protected AtomicLong pushes = new AtomicLong();
+	protected long uploads;
+	protected long uploadedBytes;
+
+	public UniformRing(LogicalDevice logicalDevice, FrameScheduler frameScheduler) {
+		this(logicalDevice, frameScheduler, UniformRing.DEFAULT_BYTES_PER_FRAME, UniformRing.DEFAULT_BINDING_RANGE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Registers itself with frameScheduler.
+	 *
+	 * @param bytesPerFrame How much ring memory one frame can use.
+	 * @param bindingRange The largest block a shader reads through the ring.
+	 *        Capped at maxUniformBufferRange.
+	 * @param pushConstantLimit The largest block to push rather than put in
+	 *        the ring. Capped at maxPushConstantsSize and rounded down to a
+	 *        multiple of 4.
+	 */
+	public UniformRing(LogicalDevice logicalDevice, FrameScheduler frameScheduler, long bytesPerFrame, int bindingRange, int pushConstantLimit) {
+		PhysicalDeviceLimits limits = logicalDevice.getPhysicalDevice().getLimits();
+
+		this.logicalDevice = logicalDevice;
+		this.frameScheduler = frameScheduler;
+		this.alignment = Math.max(16, limits.minUniformBufferOffsetAlignment);
+		this.bindingRange = Math.min(bindingRange, limits.maxUniformBufferRange);
+		this.pushConstantLimit = Math.min(pushConstantLimit, limits.maxPushConstantsSize) & ~3;
+		this.frameEnds = new long[frameScheduler.getFramesInFlight()];
+
+		/**
+		 * The capacity has to be a multiple of the alignment for the
+		 * RingAllocator. The buffer gets an extra bindingRange on the end, so
+		 * a dynamic offset anywhere in the ring plus the binding's range never
+		 * runs off the end of the buffer.
+		 */
+		long capacity = SubAllocator.alignUp(bytesPerFrame * frameScheduler.getFramesInFlight(), this.alignment);
+		this.ring = new RingAllocator(capacity);
+		this.buffer = new DeviceBuffer(
+			logicalDevice,
+			capacity + this.bindingRange,
+			VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT,
+			VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+			VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT
+		);
+		this.address = this.buffer.map();
+
+		this.layout = new DescriptorSetLayout(logicalDevice, new DescriptorSetLayout.Binding(0, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC, VK_SHADER_STAGE_ALL));
+		this.createDescriptorSet();
+
+		frameScheduler.addRecycler(this);
+	}
+
+	protected void createDescriptorSet() {
+		try (MemoryStack stack = stackPush()) {
+			VkDescriptorPoolSize.Buffer poolSizes = VkDescriptorPoolSize.callocStack(1, stack);
+			poolSizes.get(0).type(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC).descriptorCount(1);
+
+			VkDescriptorPoolCreateInfo createInfo = VkDescriptorPoolCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO);
+			createInfo.maxSets(1);
+			createInfo.pPoolSizes(poolSizes);
+
+			LongBuffer pHandle = stack.mallocLong(1);
+			int err = VulkanCall.CREATE_DESCRIPTOR_POOL.invoke(() -> vkCreateDescriptorPool(this.logicalDevice.getDevice(), createInfo, null, pHandle));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create uniform ring descriptor pool: " + Vulkan.translateVulkanResult(err));
+			}
+			this.descriptorPool = pHandle.get(0);
+
+			VkDescriptorSetAllocateInfo allocateInfo = VkDescriptorSetAllocateInfo.callocStack(stack);
+			allocateInfo.sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO);
+			allocateInfo.descriptorPool(this.descriptorPool);
+			allocateInfo.pSetLayouts(stack.longs(this.layout.getLayout()));
+
+			err = VulkanCall.ALLOCATE_DESCRIPTOR_SETS.invoke(() -> vkAllocateDescriptorSets(this.logicalDevice.getDevice(), allocateInfo, pHandle));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to allocate uniform ring descriptor set: " + Vulkan.translateVulkanResult(err));
+			}
+			this.descriptorSet = pHandle.get(0);
+
+			VkDescriptorBufferInfo.Buffer bufferInfo = VkDescriptorBufferInfo.callocStack(1, stack);
+			bufferInfo.get(0)
+				.buffer(this.buffer.getBuffer())
+				.offset(0)
+				.range(this.bindingRange);
+
+			VkWriteDescriptorSet.Buffer write = VkWriteDescriptorSet.callocStack(1, stack);
+			write.get(0)
+				.sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+				.dstSet(this.descriptorSet)
+				.dstBinding(0)
+				.descriptorType(VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC)
+				.pBufferInfo(bufferInfo);
+
+			VulkanCall.UPDATE_DESCRIPTOR_SETS.run(() -> vkUpdateDescriptorSets(this.logicalDevice.getDevice(), write, null));
+		}
+	}
+
+	/**
+	 * @return True if push() sends size bytes as push constants.
+	 */
+	public boolean usesPushConstants(int size) {
+		return size <= this.pushConstantLimit;
+	}
+
+	/**
+	 * Makes data (from its position to its limit) available to the next
+	 * draws, without moving its position.
+	 * <p>
+	 * Small data is pushed at offset 0 for stageFlags, so pipelineLayout needs
+	 * a push constant range covering it. Push constants come in whole 4 byte
+	 * words, so its size has to be a multiple of 4. Bigger data is copied
+	 * into the ring and the ring's set is bound at set with the new dynamic
+	 * offset. data has to be direct.
+	 *
+	 * @param bindPoint A VK_PIPELINE_BIND_POINT_*.
+	 * @param stageFlags The VK_SHADER_STAGE_* flags of the push constant
+	 *        range.
+	 * @return PUSHED, or the offset in the ring the data went to.
+	 */
+	public long push(VkCommandBuffer commandBuffer, int bindPoint, long pipelineLayout, int set, int stageFlags, ByteBuffer data) {
+		if (!data.isDirect()) {
+			throw new AssertionError("Uniform data has to be in a direct buffer.");
+		}
+		int size = data.remaining();
+		if (this.usesPushConstants(size)) {
+			if (size % 4 != 0) {
+				throw new AssertionError("Push constants come in multiples of 4 bytes, got " + size);
+			}
+			vkCmdPushConstants(commandBuffer, pipelineLayout, stageFlags, 0, data);
+			this.pushes.incrementAndGet();
+			return UniformRing.PUSHED;
+		}
+
+		long offset = this.allocate(size);
+		memCopy(memAddress(data), this.address + offset, size);
+		this.bind(commandBuffer, bindPoint, pipelineLayout, set, offset);
+		return offset;
+	}
+
+	/**
+	 * Reserves size bytes of ring for this frame, for writing into directly
+	 * through getAddress(). Bind it with bind().
+	 *
+	 * @return The offset of the reserved bytes, a multiple of
+	 *         minUniformBufferOffsetAlignment.
+	 */
+	public synchronized long allocate(int size) {
+		if (size > this.bindingRange) {
+			throw new AssertionError(size + " bytes of uniforms won't fit in a binding of " + this.bindingRange);
+		}
+
+		long position = this.ring.allocate(size, this.alignment);
+		if (position == RingAllocator.NO_SPACE) {
+			throw new AssertionError("Uniform ring is full: " + this.ring.getUsed() + " of " + this.ring.getCapacity() + " bytes in use.");
+		}
+		this.uploads++;
+		this.uploadedBytes += size;
+		return this.ring.offset(position);
+	}
+
+	/**
+	 * Binds the ring's set at set, reading from offset.
+	 */
+	public void bind(VkCommandBuffer commandBuffer, int bindPoint, long pipelineLayout, int set, long offset) {
+		try (MemoryStack stack = stackPush()) {
+			vkCmdBindDescriptorSets(commandBuffer, bindPoint, pipelineLayout, set, stack.longs(this.descriptorSet), stack.ints((int)offset));
+		}
+	}
+
+	/**
+	 * Gives back what the slot's last frame used.
+	 */
+	public synchronized void recycle(FrameScheduler.Frame frame) {
+		this.ring.release(this.frameEnds[frame.getSlot()]);
+	}
+
+	/**
+	 * Everything up to the head as of now belongs to frame or one before it.
+	 */
+	public synchronized void frameEnded(FrameScheduler.Frame frame) {
+		this.frameEnds[frame.getSlot()] = this.ring.getHead();
+	}
+
+	/**
+	 * @return The address the ring's buffer is mapped at. Add an offset from
+	 *         allocate() to get somewhere to write.
+	 */
+	public long getAddress() {
+		return this.address;
+	}
+
+	public DescriptorSetLayout getLayout() {
+		return this.layout;
+	}
+
+	public long getDescriptorSet() {
+		return this.descriptorSet;
+	}
+
+	public int getPushConstantLimit() {
+		return this.pushConstantLimit;
+	}
+
+	public int getBindingRange() {
+		return this.bindingRange;
+	}
+
+	public long getPushCount() {
+		return this.pushes.get();
+	}
+
+	public synchronized long getUploadCount() {
+		return this.uploads;
+	}
+
+	public synchronized long getUploadedBytes() {
+		return this.uploadedBytes;
+	}
+
+	public synchronized String toString() {
+		return "UniformRing<used: " + this.ring.getUsed() + "/" + this.ring.getCapacity() + ", pushes: " + this.pushes.get() + ", uploads: " + this.uploads + ">";
+	}
+
+	/**
+	 * Only once the GPU is idle.
+	 */
+	public void dispose() {
+		this.frameScheduler.removeRecycler(this);
+
+		VulkanCall.DESTROY_DESCRIPTOR_POOL.run(() -> vkDestroyDescriptorPool(this.logicalDevice.getDevice(), this.descriptorPool, null));
+		this.layout.dispose();
+		this.buffer.dispose();
+	}
+}
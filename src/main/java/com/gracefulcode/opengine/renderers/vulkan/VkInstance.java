@@ -1,5 +1,6 @@
 package com.gracefulcode.opengine.renderers.vulkan;
 
+import static org.lwjgl.system.MemoryStack.*;
 import static org.lwjgl.system.MemoryUtil.*;
 import static org.lwjgl.vulkan.VK10.*;
 
@@ -8,9 +9,14 @@ import com.gracefulcode.opengine.core.Ternary;
 
 import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.VkApplicationInfo;
 import org.lwjgl.vulkan.VkExtensionProperties;
 import org.lwjgl.vulkan.VkInstanceCreateInfo;
@@ -26,6 +32,14 @@ import org.lwjgl.vulkan.VkInstanceCreateInfo;
  * @since 0.1
  */
 public class VkInstance {
+	/**
+	 * Before we allocate anything, so -Dopengine.vulkan.debugMemory can
+	 * still turn on tracking.
+	 */
+	static {
+		NativeMemory.configure();
+	}
+
 	/**
 	 * Vulkan long identifying this instance.
 	 */
@@ -75,94 +89,189 @@ public class VkInstance {
 	 *        its requirements.
 	 */
 	public VkInstance(String applicationName, int majorVersion, int minorVersion, int patchVersion, Platform<Vulkan> platform) {
+		this(applicationName, majorVersion, minorVersion, patchVersion, platform, null);
+	}
+
+	/**
+	 * Initialize a VkInstance, reading physical device capabilities from a
+	 * cache where we can.
+	 *
+	 * @param applicationName The name of your application.
+	 * @param majorVersion The major version of your application.
+	 * @param minorVersion The minor version of your application.
+	 * @param patchVersion The patch version of your application.
+	 * @param platform The platform that this VkInstance is being created for.
+	 * @param physicalDeviceCache Where to read and write physical device
+	 *        capabilities. Null means always ask the driver. The cache
+	 *        belongs to the caller, who should save() it afterwards if it
+	 *        isDirty(), and decide what a failed save means for them.
+	 */
+	public VkInstance(String applicationName, int majorVersion, int minorVersion, int patchVersion, Platform<Vulkan> platform, PhysicalDeviceCache physicalDeviceCache) {
 		this.extensionConfiguration = new ExtensionConfiguration();
 		this.layerConfiguration = new LayerConfiguration();
 
 		/**
-		 * appInfo is basic information about the application itself. There
-		 * isn't anything super important here, though we do let Vulkan know
-		 * about both the engine and the particular game so that it can change
-		 * its behavior if there's a particular popular engine/game.
+		 * Everything here only has to live until vkCreateInstance returns (and
+		 * lwjgl's VkInstance has read createInfo), so it all goes on the
+		 * stack. The extension list is the exception: there can be hundreds of
+		 * them, which doesn't fit, and this only happens once anyway.
 		 */
-		VkApplicationInfo appInfo = VkApplicationInfo.calloc();
-		appInfo.sType(VK_STRUCTURE_TYPE_APPLICATION_INFO);
-		appInfo.pApplicationName(memUTF8(applicationName));
-		appInfo.applicationVersion(VK_MAKE_VERSION(majorVersion, minorVersion, patchVersion));
-		appInfo.pEngineName(memUTF8("Opengine"));
-		appInfo.engineVersion(1);
-		appInfo.apiVersion(VK_MAKE_VERSION(1, 0, 2));
+		try (MemoryStack stack = stackPush()) {
+			/**
+			 * appInfo is basic information about the application itself. There
+			 * isn't anything super important here, though we do let Vulkan know
+			 * about both the engine and the particular game so that it can
+			 * change its behavior if there's a particular popular engine/game.
+			 */
+			VkApplicationInfo appInfo = VkApplicationInfo.callocStack(stack);
+			appInfo.sType(VK_STRUCTURE_TYPE_APPLICATION_INFO);
+			appInfo.pApplicationName(stack.UTF8(applicationName));
+			appInfo.applicationVersion(VK_MAKE_VERSION(majorVersion, minorVersion, patchVersion));
+			appInfo.pEngineName(stack.UTF8("Opengine"));
+			appInfo.engineVersion(1);
+			appInfo.apiVersion(VK_MAKE_VERSION(1, 0, 2));
 
-		/**
-		 * Create info is pretty basic right now.
-		 */
-		VkInstanceCreateInfo createInfo = VkInstanceCreateInfo.calloc();
-		createInfo.sType(VK_STRUCTURE_TYPE_INSTANCE_CREATE_INFO);
-		createInfo.pApplicationInfo(appInfo);
-		createInfo.pNext(NULL);
+			/**
+			 * Create info is pretty basic right now.
+			 */
+			VkInstanceCreateInfo createInfo = VkInstanceCreateInfo.callocStack(stack);
+			createInfo.sType(VK_STRUCTURE_TYPE_INSTANCE_CREATE_INFO);
+			createInfo.pApplicationInfo(appInfo);
+			createInfo.pNext(NULL);
 
-		/**
-		 * Configure the extensions that we need to handle.
-		 */
-		IntBuffer ib = memAllocInt(1);
-		vkEnumerateInstanceExtensionProperties((CharSequence)null, ib, null);
-		VkExtensionProperties.Buffer extensionProperties = VkExtensionProperties.calloc(ib.get(0));
-		vkEnumerateInstanceExtensionProperties((CharSequence)null, ib, extensionProperties);
-		for (int i = 0; i < extensionProperties.limit(); i++) {
-			extensionProperties.position(i);
-			this.extensionConfiguration.setExtension(
-				extensionProperties.extensionNameString(),
-				Ternary.UNKNOWN
-			);
-		}
-		this.extensionConfiguration.lock();
+			/**
+			 * Configure the extensions that we need to handle.
+			 */
+			IntBuffer ib = stack.mallocInt(1);
+			VulkanCall.ENUMERATE_INSTANCE_EXTENSION_PROPERTIES.invoke(() -> vkEnumerateInstanceExtensionProperties((CharSequence)null, ib, null));
+			VkExtensionProperties.Buffer extensionProperties = VkExtensionProperties.malloc(ib.get(0));
+			try {
+				VulkanCall.ENUMERATE_INSTANCE_EXTENSION_PROPERTIES.invoke(() -> vkEnumerateInstanceExtensionProperties((CharSequence)null, ib, extensionProperties));
+				for (int i = 0; i < extensionProperties.limit(); i++) {
+					extensionProperties.position(i);
+					this.extensionConfiguration.setExtension(
+						extensionProperties.extensionNameString(),
+						Ternary.UNKNOWN
+					);
+				}
+			} finally {
+				extensionProperties.free();
+			}
+			this.extensionConfiguration.lock();
 
-		platform.configureRendererExtensions(this.extensionConfiguration);
+			platform.configureRendererExtensions(this.extensionConfiguration);
 
-		PointerBuffer configuredExtensions = this.extensionConfiguration.getConfiguredExtensions();
-		createInfo.ppEnabledExtensionNames(configuredExtensions);
+			createInfo.ppEnabledExtensionNames(this.extensionConfiguration.getConfiguredExtensions(stack));
+			createInfo.ppEnabledLayerNames(this.layerConfiguration.getConfiguredLayers(stack));
 
-		PointerBuffer configuredLayers = this.layerConfiguration.getConfiguredLayers();
-		createInfo.ppEnabledLayerNames(configuredLayers);
+			PointerBuffer pInstance = stack.mallocPointer(1);
+			int err = VulkanCall.CREATE_INSTANCE.invoke(() -> vkCreateInstance(createInfo, null, pInstance));
+			this.id = pInstance.get(0);
 
-		PointerBuffer pInstance = memAllocPointer(1);
-		int err = vkCreateInstance(createInfo, null, pInstance);
-		this.id = pInstance.get(0);
-		memFree(pInstance);
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Failed to create VkInstance: " + Vulkan.translateVulkanResult(err));
+			}
 
-		if (err != VK_SUCCESS) {
-			throw new AssertionError("Failed to create VkInstance: " + Vulkan.translateVulkanResult(err));
-		}
+			this.vkInstance = new org.lwjgl.vulkan.VkInstance(this.id, createInfo);
 
-		this.vkInstance = new org.lwjgl.vulkan.VkInstance(this.id, createInfo);
+			err = VulkanCall.ENUMERATE_PHYSICAL_DEVICES.invoke(() -> vkEnumeratePhysicalDevices(this.vkInstance, ib, null));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Could not enumerate physical devices: " + Vulkan.translateVulkanResult(err));
+			}
 
-		err = vkEnumeratePhysicalDevices(this.vkInstance, ib, null);
-		if (err != VK_SUCCESS) {
-			throw new AssertionError("Could not enumerate physical devices: " + Vulkan.translateVulkanResult(err));
-		}
+			int numPhysicalDevices = ib.get(0);
 
-		int numPhysicalDevices = ib.get(0);
-		System.out.println("Num physical devices: " + numPhysicalDevices);
+			PointerBuffer pPhysicalDevices = stack.mallocPointer(numPhysicalDevices);
+			err = VulkanCall.ENUMERATE_PHYSICAL_DEVICES.invoke(() -> vkEnumeratePhysicalDevices(this.vkInstance, ib, pPhysicalDevices));
+			if (err != VK_SUCCESS) {
+				throw new AssertionError("Could not enumerate physical devices: " + Vulkan.translateVulkanResult(err));
+			}
 
-		PointerBuffer pPhysicalDevices = memAllocPointer(numPhysicalDevices);
-		err = vkEnumeratePhysicalDevices(this.vkInstance, ib, pPhysicalDevices);
-		memFree(ib);
-		if (err != VK_SUCCESS) {
-			throw new AssertionError("Could not enumerate physical devices: " + Vulkan.translateVulkanResult(err));
+			this.createPhysicalDevices(pPhysicalDevices, physicalDeviceCache);
 		}
+	}
 
+	/**
+	 * Creates our PhysicalDevice wrappers.
+	 * <p>
+	 * Most of what a PhysicalDevice knows is fetched lazily, but with a cache
+	 * we have to talk to the driver up front. On a machine with several GPUs
+	 * we do that for all of them at once instead of one after the other.
+	 */
+	protected void createPhysicalDevices(PointerBuffer pPhysicalDevices, PhysicalDeviceCache physicalDeviceCache) {
+		int numPhysicalDevices = pPhysicalDevices.remaining();
+		if (numPhysicalDevices == 1) {
+			this.physicalDevices.add(new PhysicalDevice(this.vkInstance, pPhysicalDevices.get(0), physicalDeviceCache));
+			return;
+		}
+
+		ArrayList<CompletableFuture<PhysicalDevice>> futures = new ArrayList<CompletableFuture<PhysicalDevice>>();
 		for (int i = 0; i < numPhysicalDevices; i++) {
 			long physicalDeviceId = pPhysicalDevices.get(i);
-			PhysicalDevice physicalDevice = new PhysicalDevice(this.vkInstance, physicalDeviceId);
+			futures.add(CompletableFuture.supplyAsync(() -> {
+				PhysicalDevice physicalDevice = new PhysicalDevice(this.vkInstance, physicalDeviceId, physicalDeviceCache);
+				physicalDevice.getProperties();
+				return physicalDevice;
+			}));
+		}
 
-			this.physicalDevices.add(physicalDevice);
+		for (CompletableFuture<PhysicalDevice> future: futures) {
+			try {
+				this.physicalDevices.add(future.join());
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof Error) throw (Error)e.getCause();
+				throw e;
+			}
 		}
-		memFree(pPhysicalDevices);
 	}
 
 	public org.lwjgl.vulkan.VkInstance getInstance() {
 		return this.vkInstance;
 	}
 
+	/**
+	 * @return Every GPU this instance can see, in the order Vulkan gave them
+	 *         to us.
+	 */
+	public List<PhysicalDevice> getPhysicalDevices() {
+		return Collections.unmodifiableList(this.physicalDevices);
+	}
+
+	/**
+	 * @return Every device, scored and sorted best first.
+	 */
+	public List<DeviceScorer.Score> rankPhysicalDevices(DeviceScorer scorer) {
+		return scorer.rank(this.physicalDevices);
+	}
+
+	/**
+	 * @return The best device according to scorer.
+	 * @throws AssertionError if no device meets the scorer's requirements.
+	 */
+	public PhysicalDevice getBest(DeviceScorer scorer) {
+		PhysicalDevice ret = scorer.best(this.physicalDevices);
+		if (ret == null) {
+			throw new AssertionError("No physical device meets the requirements: " + scorer.rank(this.physicalDevices));
+		}
+		return ret;
+	}
+
+	/**
+	 * @return Every device that meets the scorer's requirements, best first.
+	 *         Empty if none do.
+	 */
+	public List<PhysicalDevice> getEligible(DeviceScorer scorer) {
+		ArrayList<PhysicalDevice> ret = new ArrayList<PhysicalDevice>();
+		for (DeviceScorer.Score score: scorer.rank(this.physicalDevices)) {
+			if (score.isEligible()) ret.add(score.getPhysicalDevice());
+		}
+		return ret;
+	}
+
+	/**
+	 * @deprecated Use getBest(DeviceScorer), which explains its choice.
+	 */
+	@Deprecated
 	public PhysicalDevice getFirst(Comparator<PhysicalDevice> comparator) {
 		PhysicalDevice ret = this.physicalDevices.get(0);
 		for (int i = 0; i < this.physicalDevices.size(); i++) {
@@ -175,6 +284,8 @@ public class VkInstance {
 	}
 
 	public void dispose() {
-		vkDestroyInstance(this.vkInstance, null);
+		VulkanCall.DESTROY_INSTANCE.run(() -> vkDestroyInstance(this.vkInstance, null));
+		this.extensionConfiguration.dispose();
+		this.layerConfiguration.dispose();
 	}
 }
\ No newline at end of file
@@ -26,6 +26,14 @@ import org.lwjgl.vulkan.VkInstanceCreateInfo;
  * @author Daniel Grace <dgrace@gracefulcode.com>
  */
 public class Vulkan implements Renderer {
+	/**
+	 * Before we allocate anything, so -Dopengine.vulkan.debugMemory can
+	 * still turn on tracking.
+	 */
+	static {
+		NativeMemory.configure();
+	}
+
 	protected VkInstance vkInstance;
 
 	/**
@@ -33,7 +41,16 @@ public class Vulkan implements Renderer {
 	 * supported.
 	 */
 	public Vulkan(VulkanPlatform platform, String applicationName, int majorVersion, int minorVersion, int patchVersion) {
-		this.vkInstance = new VkInstance(applicationName, majorVersion, minorVersion, patchVersion, platform);
+		this(platform, applicationName, majorVersion, minorVersion, patchVersion, null);
+	}
+
+	/**
+	 * Initializes Vulkan, reading physical device capabilities from a cache
+	 * where possible to speed up startup. Anything new goes into the cache,
+	 * but saving it is up to you.
+	 */
+	public Vulkan(VulkanPlatform platform, String applicationName, int majorVersion, int minorVersion, int patchVersion, PhysicalDeviceCache physicalDeviceCache) {
+		this.vkInstance = new VkInstance(applicationName, majorVersion, minorVersion, patchVersion, platform, physicalDeviceCache);
 		platform.setInstance(this.vkInstance);
 		this.enumeratePhysicalDevices();
 	}
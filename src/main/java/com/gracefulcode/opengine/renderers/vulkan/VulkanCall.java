@@ -0,0 +1,120 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Every Vulkan function the renderer calls, for Instrumentation.
+ * <p>
+ * Every call goes through its constant, so there's one place that counts
+ * and times them:
+ * <pre>
+ * int err = VulkanCall.QUEUE_SUBMIT.invoke(() -> vkQueueSubmit(...));
+ * VulkanCall.DESTROY_FENCE.run(() -> vkDestroyFence(...));
+ * </pre>
+ * vkCmd* functions only write into a command buffer and cost next to
+ * nothing, so they aren't here. Their real cost shows up on the GPU.
+ */
+public enum VulkanCall {
+	CREATE_INSTANCE("vkCreateInstance"),
+	DESTROY_INSTANCE("vkDestroyInstance"),
+	ENUMERATE_INSTANCE_EXTENSION_PROPERTIES("vkEnumerateInstanceExtensionProperties"),
+	ENUMERATE_PHYSICAL_DEVICES("vkEnumeratePhysicalDevices"),
+	GET_PHYSICAL_DEVICE_PROPERTIES("vkGetPhysicalDeviceProperties"),
+	GET_PHYSICAL_DEVICE_FEATURES("vkGetPhysicalDeviceFeatures"),
+	GET_PHYSICAL_DEVICE_PROPERTIES_2("vkGetPhysicalDeviceProperties2"),
+	GET_PHYSICAL_DEVICE_FEATURES_2("vkGetPhysicalDeviceFeatures2"),
+	GET_PHYSICAL_DEVICE_QUEUE_FAMILY_PROPERTIES("vkGetPhysicalDeviceQueueFamilyProperties"),
+	GET_PHYSICAL_DEVICE_MEMORY_PROPERTIES("vkGetPhysicalDeviceMemoryProperties"),
+	ENUMERATE_DEVICE_EXTENSION_PROPERTIES("vkEnumerateDeviceExtensionProperties"),
+	CREATE_DEVICE("vkCreateDevice"),
+	DESTROY_DEVICE("vkDestroyDevice"),
+	DEVICE_WAIT_IDLE("vkDeviceWaitIdle"),
+	GET_DEVICE_QUEUE("vkGetDeviceQueue"),
+	QUEUE_SUBMIT("vkQueueSubmit"),
+	QUEUE_WAIT_IDLE("vkQueueWaitIdle"),
+	ALLOCATE_MEMORY("vkAllocateMemory"),
+	FREE_MEMORY("vkFreeMemory"),
+	MAP_MEMORY("vkMapMemory"),
+	FLUSH_MAPPED_MEMORY_RANGES("vkFlushMappedMemoryRanges"),
+	INVALIDATE_MAPPED_MEMORY_RANGES("vkInvalidateMappedMemoryRanges"),
+	CREATE_BUFFER("vkCreateBuffer"),
+	DESTROY_BUFFER("vkDestroyBuffer"),
+	GET_BUFFER_MEMORY_REQUIREMENTS("vkGetBufferMemoryRequirements"),
+	BIND_BUFFER_MEMORY("vkBindBufferMemory"),
+	CREATE_COMMAND_POOL("vkCreateCommandPool"),
+	DESTROY_COMMAND_POOL("vkDestroyCommandPool"),
+	RESET_COMMAND_POOL("vkResetCommandPool"),
+	ALLOCATE_COMMAND_BUFFERS("vkAllocateCommandBuffers"),
+	BEGIN_COMMAND_BUFFER("vkBeginCommandBuffer"),
+	END_COMMAND_BUFFER("vkEndCommandBuffer"),
+	CREATE_FENCE("vkCreateFence"),
+	DESTROY_FENCE("vkDestroyFence"),
+	RESET_FENCES("vkResetFences"),
+	GET_FENCE_STATUS("vkGetFenceStatus"),
+	WAIT_FOR_FENCES("vkWaitForFences"),
+	CREATE_SEMAPHORE("vkCreateSemaphore"),
+	DESTROY_SEMAPHORE("vkDestroySemaphore"),
+	CREATE_QUERY_POOL("vkCreateQueryPool"),
+	DESTROY_QUERY_POOL("vkDestroyQueryPool"),
+	GET_QUERY_POOL_RESULTS("vkGetQueryPoolResults"),
+	CREATE_IMAGE("vkCreateImage"),
+	DESTROY_IMAGE("vkDestroyImage"),
+	GET_IMAGE_MEMORY_REQUIREMENTS("vkGetImageMemoryRequirements"),
+	BIND_IMAGE_MEMORY("vkBindImageMemory"),
+	CREATE_IMAGE_VIEW("vkCreateImageView"),
+	DESTROY_IMAGE_VIEW("vkDestroyImageView"),
+	CREATE_RENDER_PASS("vkCreateRenderPass"),
+	DESTROY_RENDER_PASS("vkDestroyRenderPass"),
+	CREATE_FRAMEBUFFER("vkCreateFramebuffer"),
+	DESTROY_FRAMEBUFFER("vkDestroyFramebuffer"),
+	CREATE_DESCRIPTOR_SET_LAYOUT("vkCreateDescriptorSetLayout"),
+	DESTROY_DESCRIPTOR_SET_LAYOUT("vkDestroyDescriptorSetLayout"),
+	CREATE_DESCRIPTOR_POOL("vkCreateDescriptorPool"),
+	DESTROY_DESCRIPTOR_POOL("vkDestroyDescriptorPool"),
+	RESET_DESCRIPTOR_POOL("vkResetDescriptorPool"),
+	ALLOCATE_DESCRIPTOR_SETS("vkAllocateDescriptorSets"),
+	UPDATE_DESCRIPTOR_SETS("vkUpdateDescriptorSets"),
+	CREATE_SHADER_MODULE("vkCreateShaderModule"),
+	DESTROY_SHADER_MODULE("vkDestroyShaderModule"),
+	CREATE_PIPELINE_LAYOUT("vkCreatePipelineLayout"),
+	DESTROY_PIPELINE_LAYOUT("vkDestroyPipelineLayout"),
+	CREATE_PIPELINE_CACHE("vkCreatePipelineCache"),
+	DESTROY_PIPELINE_CACHE("vkDestroyPipelineCache"),
+	GET_PIPELINE_CACHE_DATA("vkGetPipelineCacheData"),
+	CREATE_GRAPHICS_PIPELINES("vkCreateGraphicsPipelines"),
+	CREATE_COMPUTE_PIPELINES("vkCreateComputePipelines"),
+	DESTROY_PIPELINE("vkDestroyPipeline");
+
+	protected final String functionName;
+
+	VulkanCall(String functionName) {
+		this.functionName = functionName;
+	}
+
+	public String getFunctionName() {
+		return this.functionName;
+	}
+
+	/**
+	 * For functions that return a VkResult. The lambda is small enough to be
+	 * inlined along with this, so with Instrumentation off it costs the same
+	 * as calling the function directly.
+	 *
+	 * @return Whatever the function returned.
+	 */
+	public int invoke(IntSupplier function) {
+		long start = Instrumentation.begin();
+		int ret = function.getAsInt();
+		Instrumentation.end(this, start, ret);
+		return ret;
+	}
+
+	/**
+	 * For functions that don't return a VkResult.
+	 */
+	public void run(Runnable function) {
+		long start = Instrumentation.begin();
+		function.run();
+		Instrumentation.end(this, start);
+	}
+}
@@ -0,0 +1,31 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A JFR event for one Vulkan call. Only emitted when Instrumentation is on
+ * and a recording has this event enabled.
+ */
+@Name("com.gracefulcode.opengine.vulkan.Call")
+@Label("Vulkan Call")
+@Category({ "Opengine", "Vulkan" })
+@Description("A call into the Vulkan driver")
+@StackTrace(false)
+public class VulkanCallEvent extends Event {
+	@Label("Function")
+	public String function;
+
+	@Label("Result")
+	@Description("The VkResult, or 0 for functions that don't return one")
+	public int result;
+
+	@Label("Latency")
+	@Timespan(Timespan.NANOSECONDS)
+	public long latency;
+}
@@ -0,0 +1,132 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks workgroup shapes for compute kernels.
+ * <p>
+ * A shape is legal if each side fits maxComputeWorkGroupSize, the product
+ * fits maxComputeWorkGroupInvocations and the kernel's shared memory for
+ * that many invocations fits maxComputeSharedMemorySize. Out of the legal
+ * ones, the default is 64 invocations (8x8 in 2D, 4x4x4 in 3D): two warps
+ * on NVIDIA, one wave on AMD, enough for anything else, and small enough to
+ * leave room for several groups per core. If that doesn't fit, the largest
+ * legal shape that does.
+ * <p>
+ * That default is rarely the fastest, so ComputeDispatcher.benchmark() tries
+ * every candidate and tells us the winner, which we use from then on. Tuned
+ * shapes are only good for the device they were measured on.
+ */
+public class WorkgroupTuner {
+	protected static final int[][] CANDIDATES_1D = {
+		{ 32, 1, 1 }, { 64, 1, 1 }, { 128, 1, 1 }, { 256, 1, 1 }, { 512, 1, 1 }, { 1024, 1, 1 }
+	};
+	protected static final int[][] CANDIDATES_2D = {
+		{ 8, 4, 1 }, { 8, 8, 1 }, { 16, 8, 1 }, { 32, 4, 1 }, { 16, 16, 1 }, { 32, 8, 1 }, { 32, 16, 1 }, { 32, 32, 1 }
+	};
+	protected static final int[][] CANDIDATES_3D = {
+		{ 4, 4, 2 }, { 4, 4, 4 }, { 8, 4, 4 }, { 8, 8, 4 }, { 8, 8, 8 }, { 16, 8, 8 }
+	};
+	protected static final int DEFAULT_INVOCATIONS = 64;
+
+	protected PhysicalDeviceLimits limits;
+
+	/**
+	 * Keyed by ComputeKernel.getKey().
+	 */
+	protected ConcurrentHashMap<String, int[]> tuned = new ConcurrentHashMap<String, int[]>();
+	protected ConcurrentHashMap<String, int[]> defaults = new ConcurrentHashMap<String, int[]>();
+
+	public WorkgroupTuner(PhysicalDeviceLimits limits) {
+		this.limits = limits;
+	}
+
+	/**
+	 * @param dimensions 1, 2 or 3.
+	 * @param sharedBytesPerInvocation Shared memory that scales with the
+	 *        workgroup size.
+	 * @param sharedBytesFixed Shared memory the kernel needs regardless.
+	 * @return Every legal candidate, smallest first. Never empty; a device
+	 *         has to allow at least 128 invocations.
+	 */
+	public int[][] getCandidates(int dimensions, int sharedBytesPerInvocation, int sharedBytesFixed) {
+		int[][] candidates;
+		switch (dimensions) {
+			case 1: candidates = WorkgroupTuner.CANDIDATES_1D; break;
+			case 2: candidates = WorkgroupTuner.CANDIDATES_2D; break;
+			case 3: candidates = WorkgroupTuner.CANDIDATES_3D; break;
+			default: throw new AssertionError("Kernels have 1 to 3 dimensions, not " + dimensions);
+		}
+
+		ArrayList<int[]> ret = new ArrayList<int[]>();
+		for (int[] candidate: candidates) {
+			if (this.isLegal(candidate, sharedBytesPerInvocation, sharedBytesFixed)) ret.add(candidate.clone());
+		}
+		if (ret.isEmpty()) {
+			/**
+			 * Only possible if the kernel's shared memory is huge. One
+			 * invocation per group is legal everywhere and at least runs.
+			 */
+			int[] single = new int[] { 1, 1, 1 };
+			if (!this.isLegal(single, sharedBytesPerInvocation, sharedBytesFixed)) {
+				throw new AssertionError("Kernel needs more shared memory than maxComputeSharedMemorySize (" + this.limits.maxComputeSharedMemorySize + ")");
+			}
+			ret.add(single);
+		}
+		return ret.toArray(new int[ret.size()][]);
+	}
+
+	public boolean isLegal(int[] shape, int sharedBytesPerInvocation, int sharedBytesFixed) {
+		if (shape[0] > this.limits.maxComputeWorkGroupSizeX) return false;
+		if (shape[1] > this.limits.maxComputeWorkGroupSizeY) return false;
+		if (shape[2] > this.limits.maxComputeWorkGroupSizeZ) return false;
+
+		long invocations = (long)shape[0] * shape[1] * shape[2];
+		if (invocations > this.limits.maxComputeWorkGroupInvocations) return false;
+		return invocations * sharedBytesPerInvocation + sharedBytesFixed <= this.limits.maxComputeSharedMemorySize;
+	}
+
+	/**
+	 * @return The tuned shape if the kernel has been benchmarked, otherwise
+	 *         the default. Don't modify it.
+	 */
+	public int[] getShape(ComputeKernel kernel) {
+		int[] shape = this.tuned.get(kernel.getKey());
+		if (shape != null) return shape;
+
+		return this.defaults.computeIfAbsent(kernel.getKey(), k -> this.getDefaultShape(kernel));
+	}
+
+	public boolean isTuned(ComputeKernel kernel) {
+		return this.tuned.containsKey(kernel.getKey());
+	}
+
+	protected int[] getDefaultShape(ComputeKernel kernel) {
+		return this.getDefaultShape(kernel.getDimensions(), kernel.getSharedBytesPerInvocation(), kernel.getSharedBytesFixed());
+	}
+
+	protected int[] getDefaultShape(int dimensions, int sharedBytesPerInvocation, int sharedBytesFixed) {
+		int[][] candidates = this.getCandidates(dimensions, sharedBytesPerInvocation, sharedBytesFixed);
+		int[] ret = candidates[candidates.length - 1];
+		for (int[] candidate: candidates) {
+			if (candidate[0] * candidate[1] * candidate[2] == WorkgroupTuner.DEFAULT_INVOCATIONS) return candidate;
+		}
+		return ret;
+	}
+
+	/**
+	 * Use this shape for the kernel from now on.
+	 */
+	public void setShape(ComputeKernel kernel, int[] shape) {
+		if (!this.isLegal(shape, kernel.getSharedBytesPerInvocation(), kernel.getSharedBytesFixed())) {
+			throw new AssertionError("Workgroup shape " + Arrays.toString(shape) + " isn't legal for " + kernel);
+		}
+		this.tuned.put(kernel.getKey(), shape.clone());
+	}
+
+	public String toString() {
+		return "WorkgroupTuner<kernels: " + this.tuned.size() + ">";
+	}
+}
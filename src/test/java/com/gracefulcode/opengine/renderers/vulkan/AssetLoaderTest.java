@@ -0,0 +1,190 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class AssetLoaderTest {
+	/**
+	 * Hands every upload it starts to the test, which completes it.
+	 */
+	protected static class HeldDecoder implements AssetLoader.Decoder<String> {
+		protected LinkedBlockingQueue<CompletableFuture<String>> uploads = new LinkedBlockingQueue<CompletableFuture<String>>();
+
+		public CompletableFuture<String> decode(AssetLoader.Request<String> request, ByteBuffer data) {
+			CompletableFuture<String> upload = new CompletableFuture<String>();
+			this.uploads.add(upload);
+			return upload;
+		}
+
+		protected CompletableFuture<String> next() throws InterruptedException {
+			CompletableFuture<String> ret = this.uploads.poll(10, TimeUnit.SECONDS);
+			assertNotNull("Nothing started loading.", ret);
+			return ret;
+		}
+	}
+
+	protected Path directory;
+	protected AssetLoader loader;
+
+	@Before public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("AssetLoaderTest");
+		this.loader = new AssetLoader(null, null, null, 100);
+	}
+
+	@After public void tearDown() throws IOException {
+		this.loader.dispose();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+			for (Path path: files) {
+				Files.delete(path);
+			}
+		}
+		Files.delete(this.directory);
+	}
+
+	protected Path file(String name, int size) throws IOException {
+		return Files.write(this.directory.resolve(name), new byte[size]);
+	}
+
+	protected static Throwable cause(CompletableFuture<?> future) throws InterruptedException {
+		try {
+			future.get(10, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			return e.getCause();
+		} catch (TimeoutException e) {
+			fail("The future never completed.");
+		}
+		fail("The future didn't fail.");
+		return null;
+	}
+
+	/**
+	 * Every request is finished and every byte given back.
+	 */
+	protected void assertIdle() {
+		AssetLoader.Stats stats = this.loader.getStats();
+		assertEquals(0, stats.loading);
+		assertEquals(0, stats.queued);
+		assertEquals(0, stats.inFlightBytes);
+		synchronized (this.loader) {
+			assertTrue(this.loader.active.isEmpty());
+		}
+	}
+
+	@Test public void loadsWaitForRoomInTheBudget() throws Exception {
+		HeldDecoder decoder = new HeldDecoder();
+		CompletableFuture<String> first = this.loader.request("test:", this.file("a", 60), 0, decoder);
+		CompletableFuture<String> second = this.loader.request("test:", this.file("b", 60), 0, decoder);
+
+		CompletableFuture<String> firstUpload = decoder.next();
+		AssetLoader.Stats stats = this.loader.getStats();
+		assertEquals(1, stats.loading);
+		assertEquals(1, stats.queued);
+		assertEquals(60, stats.inFlightBytes);
+
+		firstUpload.complete("a");
+		assertEquals("a", first.get(10, TimeUnit.SECONDS));
+		decoder.next().complete("b");
+		assertEquals("b", second.get(10, TimeUnit.SECONDS));
+		this.assertIdle();
+	}
+
+	@Test public void oneLoadAlwaysGetsThrough() throws Exception {
+		HeldDecoder decoder = new HeldDecoder();
+		CompletableFuture<String> big = this.loader.request("test:", this.file("big", 500), 0, decoder);
+		decoder.next().complete("big");
+		assertEquals("big", big.get(10, TimeUnit.SECONDS));
+		this.assertIdle();
+	}
+
+	@Test public void decodedBytesCountUntilTheUploadIsDone() throws Exception {
+		LinkedBlockingQueue<CompletableFuture<String>> uploads = new LinkedBlockingQueue<CompletableFuture<String>>();
+		CompletableFuture<String> future = this.loader.request("test:", this.file("a", 10), 0, (request, data) -> {
+			this.loader.charge(request, 40);
+			CompletableFuture<String> upload = new CompletableFuture<String>();
+			uploads.add(upload);
+			return upload;
+		});
+
+		CompletableFuture<String> upload = uploads.poll(10, TimeUnit.SECONDS);
+		assertEquals(50, this.loader.getStats().inFlightBytes);
+		assertEquals(40, this.loader.getStats().decodedBytes);
+
+		upload.complete("a");
+		future.get(10, TimeUnit.SECONDS);
+		this.assertIdle();
+	}
+
+	@Test public void sameFileIsLoadedOnce() throws Exception {
+		HeldDecoder decoder = new HeldDecoder();
+		Path path = this.file("a", 10);
+		CompletableFuture<String> first = this.loader.request("test:", path, 0, decoder);
+		CompletableFuture<String> second = this.loader.request("test:", path.getParent().resolve("./a"), 5, decoder);
+		assertSame(first, second);
+		assertEquals(1, this.loader.getStats().deduplicated);
+
+		decoder.next().complete("a");
+		first.get(10, TimeUnit.SECONDS);
+		this.assertIdle();
+
+		// Once it's done, asking again loads it again.
+		CompletableFuture<String> third = this.loader.request("test:", path, 0, decoder);
+		assertNotSame(first, third);
+		decoder.next().complete("again");
+		assertEquals("again", third.get(10, TimeUnit.SECONDS));
+	}
+
+	@Test public void errorsFromDecodersFailTheRequest() throws Exception {
+		Path path = this.file("a", 10);
+		CompletableFuture<String> future = this.loader.request("test:", path, 0, (request, data) -> {
+			throw new UnsatisfiedLinkError("no stb");
+		});
+
+		assertTrue(AssetLoaderTest.cause(future) instanceof UnsatisfiedLinkError);
+		this.assertIdle();
+		assertEquals(1, this.loader.getStats().failed);
+
+		// Not handed the failed future again.
+		HeldDecoder decoder = new HeldDecoder();
+		CompletableFuture<String> retry = this.loader.request("test:", path, 0, decoder);
+		decoder.next().complete("a");
+		assertEquals("a", retry.get(10, TimeUnit.SECONDS));
+	}
+
+	@Test public void decodersThatReturnNothingFailTheRequest() throws Exception {
+		CompletableFuture<String> future = this.loader.request("test:", this.file("a", 10), 0, (request, data) -> null);
+		assertTrue(AssetLoaderTest.cause(future) instanceof AssertionError);
+		this.assertIdle();
+	}
+
+	@Test public void failedUploadsGiveTheBudgetBack() throws Exception {
+		HeldDecoder decoder = new HeldDecoder();
+		CompletableFuture<String> future = this.loader.request("test:", this.file("a", 10), 0, decoder);
+		decoder.next().completeExceptionally(new AssertionError("upload failed"));
+		assertEquals("upload failed", AssetLoaderTest.cause(future).getMessage());
+		this.assertIdle();
+	}
+
+	@Test public void missingAndEmptyFilesFail() throws Exception {
+		HeldDecoder decoder = new HeldDecoder();
+		CompletableFuture<String> missing = this.loader.request("test:", this.directory.resolve("missing"), 0, decoder);
+		assertTrue(AssetLoaderTest.cause(missing) instanceof IOException);
+
+		CompletableFuture<String> empty = this.loader.request("test:", this.file("empty", 0), 0, decoder);
+		assertTrue(AssetLoaderTest.cause(empty) instanceof IOException);
+		assertTrue(decoder.uploads.isEmpty());
+		this.assertIdle();
+	}
+}
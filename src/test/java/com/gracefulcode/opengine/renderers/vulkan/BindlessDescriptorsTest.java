@@ -0,0 +1,127 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import org.lwjgl.vulkan.VkPhysicalDeviceDescriptorIndexingFeaturesEXT;
+import org.lwjgl.vulkan.VkPhysicalDeviceDescriptorIndexingPropertiesEXT;
+
+public class BindlessDescriptorsTest {
+	protected static BindlessDescriptors classic(FrameScheduler frameScheduler) {
+		return new BindlessDescriptors(frameScheduler, 4, 4, 2, 1);
+	}
+
+	/**
+	 * @param limit Every per-set and per-stage limit.
+	 */
+	protected static DescriptorIndexingSupport support(int limit, int perStageResources, int allPools) {
+		VkPhysicalDeviceDescriptorIndexingFeaturesEXT features = VkPhysicalDeviceDescriptorIndexingFeaturesEXT.calloc();
+		VkPhysicalDeviceDescriptorIndexingPropertiesEXT properties = VkPhysicalDeviceDescriptorIndexingPropertiesEXT.calloc();
+		try {
+			long address = properties.address();
+			memPutInt(address + VkPhysicalDeviceDescriptorIndexingPropertiesEXT.MAXUPDATEAFTERBINDDESCRIPTORSINALLPOOLS, allPools);
+			memPutInt(address + VkPhysicalDeviceDescriptorIndexingPropertiesEXT.MAXDESCRIPTORSETUPDATEAFTERBINDSAMPLEDIMAGES, limit);
+			memPutInt(address + VkPhysicalDeviceDescriptorIndexingPropertiesEXT.MAXDESCRIPTORSETUPDATEAFTERBINDSAMPLERS, limit);
+			memPutInt(address + VkPhysicalDeviceDescriptorIndexingPropertiesEXT.MAXDESCRIPTORSETUPDATEAFTERBINDSTORAGEBUFFERS, limit);
+			memPutInt(address + VkPhysicalDeviceDescriptorIndexingPropertiesEXT.MAXPERSTAGEDESCRIPTORUPDATEAFTERBINDSAMPLEDIMAGES, limit);
+			memPutInt(address + VkPhysicalDeviceDescriptorIndexingPropertiesEXT.MAXPERSTAGEDESCRIPTORUPDATEAFTERBINDSAMPLERS, limit);
+			memPutInt(address + VkPhysicalDeviceDescriptorIndexingPropertiesEXT.MAXPERSTAGEDESCRIPTORUPDATEAFTERBINDSTORAGEBUFFERS, limit);
+			memPutInt(address + VkPhysicalDeviceDescriptorIndexingPropertiesEXT.MAXPERSTAGEUPDATEAFTERBINDRESOURCES, perStageResources);
+			return new DescriptorIndexingSupport(features, properties);
+		} finally {
+			features.free();
+			properties.free();
+		}
+	}
+
+	@Test public void removedHandlesWaitForTheirFrame() {
+		FrameSchedulerTest.FakeScheduler scheduler = new FrameSchedulerTest.FakeScheduler(2);
+		BindlessDescriptors descriptors = BindlessDescriptorsTest.classic(scheduler);
+
+		scheduler.beginFrame();
+		int texture = descriptors.addTexture(10, 20, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+		int buffer = descriptors.addBuffer(30, 0, VK_WHOLE_SIZE);
+		descriptors.removeTexture(texture);
+		descriptors.removeBuffer(buffer);
+		assertNotEquals(texture, descriptors.addTexture(11, 21, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL));
+		assertNotEquals(buffer, descriptors.addBuffer(31, 0, VK_WHOLE_SIZE));
+		scheduler.endFrame();
+
+		// The other slot's frame doesn't free them.
+		scheduler.beginFrame();
+		assertEquals(2, descriptors.getTextureCount());
+		assertEquals(2, descriptors.getBufferCount());
+		scheduler.endFrame();
+
+		// Coming back around to the slot they were removed in does.
+		scheduler.beginFrame();
+		assertEquals(1, descriptors.getTextureCount());
+		assertEquals(1, descriptors.getBufferCount());
+		assertEquals(texture, descriptors.addTexture(12, 22, VK_IMAGE_LAYOUT_GENERAL));
+		assertEquals(buffer, descriptors.addBuffer(32, 64, 128));
+		scheduler.endFrame();
+	}
+
+	@Test public void reusedHandlesPointAtTheNewResource() {
+		FrameSchedulerTest.FakeScheduler scheduler = new FrameSchedulerTest.FakeScheduler(1);
+		BindlessDescriptors descriptors = BindlessDescriptorsTest.classic(scheduler);
+
+		scheduler.beginFrame();
+		int old = descriptors.addTexture(10, 20, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+		descriptors.removeTexture(old);
+		scheduler.endFrame();
+
+		scheduler.beginFrame();
+		int texture = descriptors.addTexture(11, 21, VK_IMAGE_LAYOUT_GENERAL);
+		int other = descriptors.addTexture(12, 22, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+		int buffer = descriptors.addBuffer(30, 64, 128);
+		assertEquals(old, texture);
+
+		DescriptorSetCache.Bindings expected = new DescriptorSetCache.Bindings(descriptors.getLayout())
+			.image(BindlessDescriptors.TEXTURE_BINDING, 0, 12, 22, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL)
+			.image(BindlessDescriptors.TEXTURE_BINDING, 1, 11, 21, VK_IMAGE_LAYOUT_GENERAL)
+			.buffer(BindlessDescriptors.BUFFER_BINDING, 0, 30, 64, 128);
+		assertEquals(expected, descriptors.getBindings(new int[] { other, texture }, new int[] { buffer }));
+		scheduler.endFrame();
+	}
+
+	@Test(expected = AssertionError.class)
+	public void classicSetsHaveAFixedSize() {
+		BindlessDescriptors descriptors = BindlessDescriptorsTest.classic(new FrameSchedulerTest.FakeScheduler(1));
+		int texture = descriptors.addTexture(10, 20, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+		descriptors.getBindings(new int[] { texture }, new int[0]);
+	}
+
+	@Test public void classicLayoutOnlyHasWhatIsAskedFor() {
+		DescriptorSetLayout.Binding[] bindings = BindlessDescriptors.getClassicBindings(0, 3);
+		assertEquals(1, bindings.length);
+		assertEquals(BindlessDescriptors.BUFFER_BINDING, bindings[0].binding);
+		assertEquals(VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, bindings[0].descriptorType);
+		assertEquals(3, bindings[0].descriptorCount);
+	}
+
+	@Test(expected = AssertionError.class)
+	public void runningOutOfHandlesFails() {
+		BindlessDescriptors descriptors = BindlessDescriptorsTest.classic(new FrameSchedulerTest.FakeScheduler(1));
+		for (int i = 0; i < 5; i++) {
+			descriptors.addTexture(10 + i, 20, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+		}
+	}
+
+	@Test public void devicesWithoutRoomFallBackToClassic() {
+		assertNull(BindlessDescriptors.getBindlessCapacity(DescriptorIndexingSupport.NONE, 100, 100));
+
+		// Every resource a stage can see is a texture, so none left for buffers.
+		assertNull(BindlessDescriptors.getBindlessCapacity(BindlessDescriptorsTest.support(1000, 100, 1000), 100, 100));
+		assertNull(BindlessDescriptors.getBindlessCapacity(BindlessDescriptorsTest.support(1000, 1000, 100), 100, 100));
+	}
+
+	@Test public void bindlessCapacityIsCutToTheDevice() {
+		assertArrayEquals(new int[] { 100, 50 }, BindlessDescriptors.getBindlessCapacity(BindlessDescriptorsTest.support(1 << 20, 1 << 20, 1 << 20), 100, 50));
+		assertArrayEquals(new int[] { 64, 64 }, BindlessDescriptors.getBindlessCapacity(BindlessDescriptorsTest.support(64, 1 << 20, 1 << 20), 100, 100));
+		assertArrayEquals(new int[] { 64, 36 }, BindlessDescriptors.getBindlessCapacity(BindlessDescriptorsTest.support(64, 100, 1 << 20), 100, 100));
+		assertArrayEquals(new int[] { 64, 16 }, BindlessDescriptors.getBindlessCapacity(BindlessDescriptorsTest.support(64, 1 << 20, 80), 100, 100));
+	}
+}
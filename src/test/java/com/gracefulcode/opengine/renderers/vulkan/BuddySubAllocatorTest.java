@@ -0,0 +1,62 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BuddySubAllocatorTest {
+	@Test public void roundsUpToPowersOfTwo() {
+		BuddySubAllocator allocator = new BuddySubAllocator(1 << 16);
+		allocator.allocate(1000, 1);
+		assertEquals(1024, allocator.getUsedSize());
+
+		allocator.allocate(1, 1);
+		assertEquals(1024 + BuddySubAllocator.MIN_BLOCK_SIZE, allocator.getUsedSize());
+	}
+
+	@Test public void mergesBuddies() {
+		BuddySubAllocator allocator = new BuddySubAllocator(4096);
+		long[] offsets = new long[4];
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = allocator.allocate(1024, 1);
+			assertNotEquals(SubAllocator.NO_SPACE, offsets[i]);
+		}
+		assertEquals(SubAllocator.NO_SPACE, allocator.allocate(1, 1));
+
+		allocator.free(offsets[2]);
+		allocator.free(offsets[0]);
+		assertEquals("Non-buddies shouldn't merge", SubAllocator.NO_SPACE, allocator.allocate(2048, 1));
+
+		allocator.free(offsets[1]);
+		allocator.free(offsets[3]);
+		assertTrue(allocator.isEmpty());
+		assertEquals(0, allocator.allocate(4096, 1));
+	}
+
+	@Test public void alignsToBlockSize() {
+		BuddySubAllocator allocator = new BuddySubAllocator(1 << 20);
+		allocator.allocate(256, 1);
+		for (long alignment = 256; alignment <= 65536; alignment *= 2) {
+			long offset = allocator.allocate(256, alignment);
+			assertNotEquals(SubAllocator.NO_SPACE, offset);
+			assertEquals("Offset " + offset + " for alignment " + alignment, 0, offset % alignment);
+		}
+	}
+
+	@Test public void runsOutOfSpace() {
+		BuddySubAllocator allocator = new BuddySubAllocator(4096);
+		assertEquals(SubAllocator.NO_SPACE, allocator.allocate(8192, 1));
+
+		long offset = allocator.allocate(3000, 1);
+		assertEquals(0, offset);
+		assertEquals(SubAllocator.NO_SPACE, allocator.allocate(1, 1));
+
+		allocator.free(offset);
+		assertNotEquals(SubAllocator.NO_SPACE, allocator.allocate(1, 1));
+	}
+
+	@Test(expected = AssertionError.class)
+	public void rejectsUnknownOffsets() {
+		new BuddySubAllocator(4096).free(256);
+	}
+}
@@ -0,0 +1,156 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryStack.*;
+
+import com.gracefulcode.opengine.core.Ternary;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkPhysicalDeviceFeatures;
+
+public class CapabilityConfigurationTest {
+	protected static final String SUPPORTED = "VK_TEST_capability_supported";
+	protected static final String OTHER = "VK_TEST_capability_other";
+	protected static final String MISSING = "VK_TEST_capability_missing";
+
+	/**
+	 * A device that has exactly the extensions and features it is given.
+	 */
+	protected static class FakeDevice extends PhysicalDevice {
+		protected FakeDevice(PhysicalDeviceFeatures features, String... extensionNames) {
+			super(0);
+			this.features = features;
+			this.extensions = new BitSet();
+			for (String extensionName: extensionNames) {
+				this.extensions.set(CapabilityNames.intern(extensionName));
+			}
+		}
+
+		public String getDeviceName() {
+			return "Fake GPU";
+		}
+	}
+
+	protected static PhysicalDeviceFeatures features(boolean geometryShader, boolean samplerAnisotropy) {
+		try (MemoryStack stack = stackPush()) {
+			VkPhysicalDeviceFeatures features = VkPhysicalDeviceFeatures.callocStack(stack);
+			features.geometryShader(geometryShader);
+			features.samplerAnisotropy(samplerAnisotropy);
+			return new PhysicalDeviceFeatures(features);
+		}
+	}
+
+	/**
+	 * Locked, knowing SUPPORTED and OTHER.
+	 */
+	protected static ExtensionConfiguration configuration() {
+		return new FakeDevice(new PhysicalDeviceFeatures(0), CapabilityConfigurationTest.SUPPORTED, CapabilityConfigurationTest.OTHER).newExtensionConfiguration();
+	}
+
+	@Test public void requiredAndOptionalNamesResolve() {
+		ExtensionConfiguration configuration = CapabilityConfigurationTest.configuration();
+		configuration.setExtension(CapabilityConfigurationTest.SUPPORTED, Ternary.YES);
+		configuration.setExtension(CapabilityConfigurationTest.OTHER, Ternary.NO);
+		// Optional and not there is fine.
+		configuration.setExtension(CapabilityConfigurationTest.MISSING, Ternary.UNKNOWN);
+		configuration.setExtension(CapabilityConfigurationTest.MISSING, Ternary.NO);
+
+		assertEquals(Ternary.YES, configuration.getRequireType(CapabilityConfigurationTest.SUPPORTED));
+		assertEquals(Ternary.NO, configuration.getRequireType(CapabilityConfigurationTest.OTHER));
+		assertEquals(Ternary.NO, configuration.getRequireType(CapabilityConfigurationTest.MISSING));
+		assertFalse(configuration.isSupported(CapabilityConfigurationTest.MISSING));
+		assertEquals(Collections.singletonList(CapabilityConfigurationTest.SUPPORTED), configuration.getEnabledNames());
+		assertEquals(1, configuration.getConfiguredExtensions().remaining());
+		configuration.dispose();
+	}
+
+	@Test public void missingRequiredNamesFail() {
+		ExtensionConfiguration configuration = CapabilityConfigurationTest.configuration();
+		try {
+			configuration.setExtension(CapabilityConfigurationTest.MISSING, Ternary.YES);
+			fail("A missing extension was required.");
+		} catch (AssertionError e) {
+			assertEquals("Extension " + CapabilityConfigurationTest.MISSING + " is being marked as required, but it is not supported.", e.getMessage());
+		}
+		assertTrue(configuration.getEnabledNames().isEmpty());
+	}
+
+	@Test public void conflictingRequirementsFail() {
+		ExtensionConfiguration configuration = CapabilityConfigurationTest.configuration();
+		configuration.setExtension(CapabilityConfigurationTest.SUPPORTED, Ternary.NO);
+		try {
+			configuration.setExtension(CapabilityConfigurationTest.SUPPORTED, Ternary.YES);
+			fail("The conflict was ignored.");
+		} catch (AssertionError e) {
+			assertEquals(CapabilityConfigurationTest.SUPPORTED + " is both required and not desired. Cannot resolve.", e.getMessage());
+		}
+	}
+
+	@Test public void preferredCapabilitiesAreOptional() {
+		DeviceCapabilities capabilities = new DeviceCapabilities()
+			.requireExtension(CapabilityConfigurationTest.SUPPORTED)
+			.preferExtension(CapabilityConfigurationTest.OTHER)
+			.preferExtension(CapabilityConfigurationTest.MISSING)
+			.requireFeatures(CapabilityConfigurationTest.features(true, false))
+			.preferFeatures(CapabilityConfigurationTest.features(false, true));
+		FakeDevice device = new FakeDevice(CapabilityConfigurationTest.features(true, false), CapabilityConfigurationTest.SUPPORTED, CapabilityConfigurationTest.OTHER);
+
+		assertTrue(capabilities.isSatisfiedBy(device));
+		DeviceCapabilities.Negotiation negotiation = capabilities.negotiate(device);
+		assertTrue(negotiation.isSatisfied());
+		assertSame(negotiation, LogicalDevice.checked(negotiation));
+		assertEquals(Arrays.asList(CapabilityConfigurationTest.SUPPORTED, CapabilityConfigurationTest.OTHER), negotiation.getEnabledExtensions());
+		assertEquals(Collections.singletonList("geometryShader"), negotiation.getEnabledFeatures().getNames());
+
+		ExtensionConfiguration configuration = negotiation.getExtensionConfiguration();
+		assertTrue(configuration.shouldHave(CapabilityConfigurationTest.OTHER));
+		assertFalse(configuration.shouldHave(CapabilityConfigurationTest.MISSING));
+	}
+
+	@Test public void rejectedExtensionsStayOff() {
+		DeviceCapabilities capabilities = new DeviceCapabilities()
+			.preferExtension(CapabilityConfigurationTest.OTHER)
+			.rejectExtension(CapabilityConfigurationTest.OTHER);
+		FakeDevice device = new FakeDevice(new PhysicalDeviceFeatures(0), CapabilityConfigurationTest.OTHER);
+		assertTrue(capabilities.negotiate(device).getEnabledExtensions().isEmpty());
+
+		try {
+			capabilities.requireExtension(CapabilityConfigurationTest.OTHER);
+			fail("The conflict was ignored.");
+		} catch (AssertionError e) {
+			assertEquals(CapabilityConfigurationTest.OTHER + " is both required and not desired. Cannot resolve.", e.getMessage());
+		}
+	}
+
+	@Test public void missingRequirementsAreNamed() {
+		DeviceCapabilities capabilities = new DeviceCapabilities()
+			.requireExtension(CapabilityConfigurationTest.SUPPORTED)
+			.requireExtension(CapabilityConfigurationTest.MISSING)
+			.requireFeatures(CapabilityConfigurationTest.features(true, true));
+		FakeDevice device = new FakeDevice(CapabilityConfigurationTest.features(false, true), CapabilityConfigurationTest.SUPPORTED);
+
+		assertFalse(capabilities.isSatisfiedBy(device));
+		DeviceCapabilities.Negotiation negotiation = capabilities.negotiate(device);
+		assertFalse(negotiation.isSatisfied());
+		assertEquals(Collections.singletonList(CapabilityConfigurationTest.MISSING), negotiation.getMissingExtensions());
+		assertTrue(negotiation.getMissingFeatures().geometryShader);
+		assertFalse(negotiation.getMissingFeatures().samplerAnisotropy);
+
+		try {
+			LogicalDevice.checked(negotiation);
+			fail("An unsatisfied negotiation was accepted.");
+		} catch (AssertionError e) {
+			assertEquals("Device does not meet the requirements: Negotiation<Fake GPU, missing extensions: [" + CapabilityConfigurationTest.MISSING + "], missing features: [geometryShader]>", e.getMessage());
+		}
+	}
+
+	@Test public void featureNamesFollowTheMask() {
+		assertEquals(Arrays.asList("alphaToOne", "wideLines"), new PhysicalDeviceFeatures((1L << 0) | (1L << 54)).getNames());
+		assertTrue(new PhysicalDeviceFeatures(0).getNames().isEmpty());
+	}
+}
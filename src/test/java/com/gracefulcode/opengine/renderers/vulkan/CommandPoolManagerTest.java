@@ -0,0 +1,137 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+public class CommandPoolManagerTest {
+	/**
+	 * Counts what it would have asked the driver for.
+	 */
+	protected static class FakePool extends CommandPool {
+		protected int resets;
+		protected int allocations;
+		protected boolean isDisposed;
+
+		protected FakePool(int queueFamilyIndex) {
+			super(queueFamilyIndex);
+		}
+
+		protected void resetPool() {
+			this.resets++;
+		}
+
+		protected VkCommandBuffer allocate(int level) {
+			this.allocations++;
+			return null;
+		}
+
+		public void dispose() {
+			this.isDisposed = true;
+		}
+	}
+
+	protected static class FakeManager extends CommandPoolManager {
+		protected FakeManager(int framesInFlight, int numQueueFamilies) {
+			super(framesInFlight, numQueueFamilies);
+		}
+
+		protected CommandPool createPool(int queueFamilyIndex) {
+			return new FakePool(queueFamilyIndex);
+		}
+	}
+
+	@Test public void onePoolPerFrameSlotAndFamily() {
+		FakeManager manager = new FakeManager(2, 2);
+		manager.beginFrame(0);
+		CommandPool graphics = manager.getPool(0);
+		assertSame(graphics, manager.getPool(0));
+		assertEquals(0, graphics.getQueueFamilyIndex());
+
+		CommandPool compute = manager.getPool(1);
+		assertNotSame(graphics, compute);
+		assertEquals(1, compute.getQueueFamilyIndex());
+
+		manager.beginFrame(1);
+		assertNotSame(graphics, manager.getPool(0));
+
+		manager.beginFrame(2);
+		assertSame(graphics, manager.getPool(0));
+		assertEquals(3, manager.getPoolCount());
+	}
+
+	@Test public void poolsAreResetOncePerLap() {
+		FakeManager manager = new FakeManager(2, 1);
+		manager.beginFrame(0);
+		FakePool pool = (FakePool)manager.getPool(0);
+		assertEquals(0, pool.resets);
+
+		manager.beginFrame(1);
+		manager.getPool(0);
+		assertEquals(0, pool.resets);
+
+		manager.beginFrame(2);
+		assertSame(pool, manager.getPool(0));
+		manager.getPool(0);
+		assertEquals(1, pool.resets);
+
+		// A lap where nobody asks for it doesn't reset it; the next ask does.
+		manager.beginFrame(6);
+		manager.getPool(0);
+		assertEquals(2, pool.resets);
+	}
+
+	@Test public void commandBuffersAreReusedAfterAReset() {
+		FakeManager manager = new FakeManager(1, 1);
+		manager.beginFrame(0);
+		FakePool pool = (FakePool)manager.getPool(0);
+		pool.obtainPrimary();
+		pool.obtainPrimary();
+		pool.obtainSecondary();
+		assertEquals(3, pool.allocations);
+
+		manager.beginFrame(1);
+		manager.getPool(0).obtainPrimary();
+		manager.getPool(0).obtainPrimary();
+		manager.getPool(0).obtainSecondary();
+		assertEquals(3, pool.allocations);
+
+		manager.getPool(0).obtainPrimary();
+		assertEquals(4, pool.allocations);
+	}
+
+	@Test public void threadsDontSharePools() throws Exception {
+		FakeManager manager = new FakeManager(2, 1);
+		manager.beginFrame(0);
+		CommandPool mine = manager.getPool(0);
+
+		AtomicReference<CommandPool> theirs = new AtomicReference<CommandPool>();
+		Thread thread = new Thread(() -> theirs.set(manager.getPool(0)));
+		thread.start();
+		thread.join();
+
+		assertNotNull(theirs.get());
+		assertNotSame(mine, theirs.get());
+		assertSame(mine, manager.getPool(0));
+		assertEquals(2, manager.getPoolCount());
+	}
+
+	@Test public void disposeDisposesEveryThreadsPools() throws Exception {
+		FakeManager manager = new FakeManager(1, 1);
+		manager.beginFrame(0);
+		FakePool mine = (FakePool)manager.getPool(0);
+
+		AtomicReference<CommandPool> theirs = new AtomicReference<CommandPool>();
+		Thread thread = new Thread(() -> theirs.set(manager.getPool(0)));
+		thread.start();
+		thread.join();
+
+		manager.dispose();
+		assertTrue(mine.isDisposed);
+		assertTrue(((FakePool)theirs.get()).isDisposed);
+		assertEquals(0, manager.getPoolCount());
+	}
+}
@@ -0,0 +1,117 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class ComputeDispatcherTest {
+	/**
+	 * Builds nothing; descriptions named "broken" fail.
+	 */
+	protected static class FakeCompiler extends PipelineCompiler {
+		protected FakeCompiler() {
+			super(null, null, 1);
+		}
+
+		protected long compile(PipelineDescription description) {
+			if (description.getName().equals("broken")) throw new AssertionError("Failed to build " + description.getName());
+			return 1;
+		}
+	}
+
+	/**
+	 * Records what would have been submitted and runs it straight away.
+	 */
+	protected static class FakeDispatcher extends ComputeDispatcher {
+		protected ArrayList<String> submitted = new ArrayList<String>();
+
+		protected FakeDispatcher(PipelineCompiler compiler) {
+			super(compiler, null);
+		}
+
+		protected CompletableFuture<Void> queue(String name) {
+			Job job = new Job();
+			job.description = new PipelineDescription(name, null).specialize(0, this.pending.size());
+			job.buffers = new DeviceBuffer[0];
+			this.compiler.request(job.description);
+			this.pending.add(job);
+			return job.future;
+		}
+
+		protected Batch submit(ArrayList<Job> jobs, long queryPool, int firstQuery) {
+			for (Job job: jobs) {
+				this.submitted.add(job.description.getName());
+				job.future.complete(null);
+			}
+			return null;
+		}
+	}
+
+	@Test public void failedPipelinesDontHoldUpTheQueue() throws InterruptedException {
+		FakeCompiler compiler = new FakeCompiler();
+		FakeDispatcher dispatcher = new FakeDispatcher(compiler);
+		CompletableFuture<Void> first = dispatcher.queue("first");
+		CompletableFuture<Void> broken = dispatcher.queue("broken");
+		CompletableFuture<Void> last = dispatcher.queue("last");
+
+		dispatcher.waitIdle();
+
+		assertEquals(Arrays.asList("first", "last"), dispatcher.submitted);
+		assertTrue(dispatcher.pending.isEmpty());
+		assertTrue(first.isDone() && !first.isCompletedExceptionally());
+		assertTrue(last.isDone() && !last.isCompletedExceptionally());
+		try {
+			broken.get();
+			fail("The broken job ran.");
+		} catch (ExecutionException e) {
+			assertEquals("Failed to build broken", e.getCause().getMessage());
+		}
+		compiler.executor.shutdown();
+	}
+
+	@Test public void smallGridsAreOneDispatch() {
+		ArrayList<int[]> chunks = ComputeDispatcher.split(new int[] { 1000, 1, 1 }, new int[] { 64, 1, 1 }, new int[] { 65535, 65535, 65535 });
+		assertEquals(1, chunks.size());
+		assertArrayEquals(new int[] { 0, 0, 0, 16, 1, 1 }, chunks.get(0));
+	}
+
+	@Test public void bigGridsAreSplitOnEverySide() {
+		// 10x5x1 groups, at most 4x2 per dispatch.
+		ArrayList<int[]> chunks = ComputeDispatcher.split(new int[] { 80, 40, 1 }, new int[] { 8, 8, 1 }, new int[] { 4, 2, 1 });
+		assertEquals(3 * 3, chunks.size());
+
+		// x fastest, then y.
+		assertArrayEquals(new int[] { 0, 0, 0, 4, 2, 1 }, chunks.get(0));
+		assertArrayEquals(new int[] { 4, 0, 0, 4, 2, 1 }, chunks.get(1));
+		assertArrayEquals(new int[] { 8, 0, 0, 2, 2, 1 }, chunks.get(2));
+		assertArrayEquals(new int[] { 0, 2, 0, 4, 2, 1 }, chunks.get(3));
+		assertArrayEquals(new int[] { 8, 4, 0, 2, 1, 1 }, chunks.get(8));
+
+		// Every group is covered exactly once.
+		boolean[][] covered = new boolean[10][5];
+		for (int[] chunk: chunks) {
+			for (int x = chunk[0]; x < chunk[0] + chunk[3]; x++) {
+				for (int y = chunk[1]; y < chunk[1] + chunk[4]; y++) {
+					assertFalse(covered[x][y]);
+					covered[x][y] = true;
+				}
+			}
+		}
+		for (boolean[] column: covered) {
+			for (boolean isCovered: column) {
+				assertTrue(isCovered);
+			}
+		}
+	}
+
+	@Test public void partialGroupsRoundUp() {
+		ArrayList<int[]> chunks = ComputeDispatcher.split(new int[] { 65, 9, 3 }, new int[] { 64, 8, 2 }, new int[] { 1, 65535, 1 });
+		assertEquals(2 * 2, chunks.size());
+		assertArrayEquals(new int[] { 0, 0, 0, 1, 2, 1 }, chunks.get(0));
+		assertArrayEquals(new int[] { 1, 0, 1, 1, 2, 1 }, chunks.get(3));
+	}
+}
@@ -0,0 +1,146 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import org.lwjgl.vulkan.EXTDescriptorIndexing;
+import org.lwjgl.vulkan.VkPhysicalDeviceLimits;
+
+public class DescriptorSetLayoutTest {
+	/**
+	 * Layouts that only do the bookkeeping.
+	 */
+	protected static class FakeLayout extends DescriptorSetLayout {
+		public FakeLayout(int flags, Binding... bindings) {
+			super(flags, bindings);
+		}
+
+		public FakeLayout(Binding... bindings) {
+			super(0, bindings);
+		}
+	}
+
+	/**
+	 * Every per set limit is perSet and every per stage limit is perStage.
+	 */
+	protected static PhysicalDeviceLimits limits(int sets, int perSet, int perStage) {
+		long address = nmemCalloc(1, VkPhysicalDeviceLimits.SIZEOF);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXBOUNDDESCRIPTORSETS, sets);
+
+		memPutInt(address + VkPhysicalDeviceLimits.MAXDESCRIPTORSETSAMPLERS, perSet);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXDESCRIPTORSETSAMPLEDIMAGES, perSet);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXDESCRIPTORSETSTORAGEIMAGES, perSet);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXDESCRIPTORSETUNIFORMBUFFERS, perSet);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXDESCRIPTORSETUNIFORMBUFFERSDYNAMIC, perSet);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXDESCRIPTORSETSTORAGEBUFFERS, perSet);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXDESCRIPTORSETSTORAGEBUFFERSDYNAMIC, perSet);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXDESCRIPTORSETINPUTATTACHMENTS, perSet);
+
+		memPutInt(address + VkPhysicalDeviceLimits.MAXPERSTAGEDESCRIPTORSAMPLERS, perStage);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXPERSTAGEDESCRIPTORSAMPLEDIMAGES, perStage);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXPERSTAGEDESCRIPTORSTORAGEIMAGES, perStage);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXPERSTAGEDESCRIPTORUNIFORMBUFFERS, perStage);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXPERSTAGEDESCRIPTORSTORAGEBUFFERS, perStage);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXPERSTAGEDESCRIPTORINPUTATTACHMENTS, perStage);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXPERSTAGERESOURCES, perStage);
+
+		PhysicalDeviceLimits ret = new PhysicalDeviceLimits(VkPhysicalDeviceLimits.create(address));
+		nmemFree(address);
+		return ret;
+	}
+
+	protected static String problems(PhysicalDeviceLimits limits, DescriptorSetLayout... layouts) {
+		try {
+			DescriptorSetLayout.validate(limits, layouts);
+			return null;
+		} catch (AssertionError e) {
+			return e.getMessage();
+		}
+	}
+
+	@Test public void withinLimits() {
+		DescriptorSetLayout layout = new FakeLayout(
+			new DescriptorSetLayout.Binding(0, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, 4, VK_SHADER_STAGE_VERTEX_BIT),
+			new DescriptorSetLayout.Binding(1, VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER, 4, VK_SHADER_STAGE_FRAGMENT_BIT)
+		);
+		assertNull(DescriptorSetLayoutTest.problems(DescriptorSetLayoutTest.limits(4, 4, 4), layout));
+	}
+
+	@Test public void tooManySets() {
+		DescriptorSetLayout layout = new FakeLayout();
+		String problems = DescriptorSetLayoutTest.problems(DescriptorSetLayoutTest.limits(2, 16, 16), layout, layout, layout);
+		assertTrue(problems, problems.contains("maxBoundDescriptorSets"));
+	}
+
+	@Test public void combinedSamplersCountAsBoth() {
+		DescriptorSetLayout layout = new FakeLayout(
+			new DescriptorSetLayout.Binding(0, VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER, 3, VK_SHADER_STAGE_FRAGMENT_BIT),
+			new DescriptorSetLayout.Binding(1, VK_DESCRIPTOR_TYPE_SAMPLER, 2, VK_SHADER_STAGE_FRAGMENT_BIT)
+		);
+		String problems = DescriptorSetLayoutTest.problems(DescriptorSetLayoutTest.limits(4, 4, 16), layout);
+		assertTrue(problems, problems.contains("maxDescriptorSetSamplers"));
+		assertFalse(problems, problems.contains("maxDescriptorSetSampledImages"));
+	}
+
+	@Test public void dynamicBuffersCountAgainstBothLimits() {
+		DescriptorSetLayout layout = new FakeLayout(
+			new DescriptorSetLayout.Binding(0, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, 3, VK_SHADER_STAGE_COMPUTE_BIT),
+			new DescriptorSetLayout.Binding(1, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER_DYNAMIC, 2, VK_SHADER_STAGE_COMPUTE_BIT)
+		);
+		String problems = DescriptorSetLayoutTest.problems(DescriptorSetLayoutTest.limits(4, 4, 16), layout);
+		assertTrue(problems, problems.contains("maxDescriptorSetStorageBuffers"));
+		assertFalse(problems, problems.contains("maxDescriptorSetStorageBuffersDynamic"));
+	}
+
+	@Test public void totalsAddUpAcrossSets() {
+		DescriptorSetLayout first = new FakeLayout(new DescriptorSetLayout.Binding(0, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, 3, VK_SHADER_STAGE_VERTEX_BIT));
+		DescriptorSetLayout second = new FakeLayout(new DescriptorSetLayout.Binding(0, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, 3, VK_SHADER_STAGE_FRAGMENT_BIT));
+		assertNull(DescriptorSetLayoutTest.problems(DescriptorSetLayoutTest.limits(4, 4, 4), first));
+
+		String problems = DescriptorSetLayoutTest.problems(DescriptorSetLayoutTest.limits(4, 4, 4), first, second);
+		assertTrue(problems, problems.contains("maxDescriptorSetUniformBuffers"));
+		assertFalse(problems, problems.contains("maxPerStage"));
+	}
+
+	@Test public void perStageCountsEachStage() {
+		DescriptorSetLayout layout = new FakeLayout(
+			new DescriptorSetLayout.Binding(0, VK_DESCRIPTOR_TYPE_STORAGE_IMAGE, 3, VK_SHADER_STAGE_FRAGMENT_BIT),
+			new DescriptorSetLayout.Binding(1, VK_DESCRIPTOR_TYPE_STORAGE_IMAGE, 3, VK_SHADER_STAGE_VERTEX_BIT | VK_SHADER_STAGE_FRAGMENT_BIT)
+		);
+		String problems = DescriptorSetLayoutTest.problems(DescriptorSetLayoutTest.limits(4, 16, 4), layout);
+		assertTrue(problems, problems.contains("stage " + VK_SHADER_STAGE_FRAGMENT_BIT + ": maxPerStageDescriptorStorageImages"));
+		assertFalse(problems, problems.contains("stage " + VK_SHADER_STAGE_VERTEX_BIT + ":"));
+	}
+
+	@Test public void perStageResourcesAddUpEveryKind() {
+		DescriptorSetLayout layout = new FakeLayout(
+			new DescriptorSetLayout.Binding(0, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, 2, VK_SHADER_STAGE_COMPUTE_BIT),
+			new DescriptorSetLayout.Binding(1, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, 2, VK_SHADER_STAGE_COMPUTE_BIT),
+			new DescriptorSetLayout.Binding(2, VK_DESCRIPTOR_TYPE_STORAGE_IMAGE, 2, VK_SHADER_STAGE_COMPUTE_BIT)
+		);
+		String problems = DescriptorSetLayoutTest.problems(DescriptorSetLayoutTest.limits(4, 16, 4), layout);
+		assertTrue(problems, problems.contains("maxPerStageResources"));
+		assertFalse(problems, problems.contains("maxPerStageDescriptorStorageImages"));
+	}
+
+	@Test public void updateAfterBindOnlyCountsAsASet() {
+		DescriptorSetLayout bindless = new FakeLayout(
+			EXTDescriptorIndexing.VK_DESCRIPTOR_SET_LAYOUT_CREATE_UPDATE_AFTER_BIND_POOL_BIT_EXT,
+			new DescriptorSetLayout.Binding(0, VK_DESCRIPTOR_TYPE_SAMPLED_IMAGE, 1000, VK_SHADER_STAGE_FRAGMENT_BIT)
+		);
+		assertNull(DescriptorSetLayoutTest.problems(DescriptorSetLayoutTest.limits(1, 4, 4), bindless));
+
+		String problems = DescriptorSetLayoutTest.problems(DescriptorSetLayoutTest.limits(1, 4, 4), bindless, new FakeLayout());
+		assertTrue(problems, problems.contains("maxBoundDescriptorSets"));
+	}
+
+	@Test(expected = AssertionError.class)
+	public void duplicateBindings() {
+		new FakeLayout(
+			new DescriptorSetLayout.Binding(0, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, VK_SHADER_STAGE_VERTEX_BIT),
+			new DescriptorSetLayout.Binding(0, VK_DESCRIPTOR_TYPE_SAMPLER, VK_SHADER_STAGE_VERTEX_BIT)
+		);
+	}
+}
@@ -0,0 +1,99 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DeviceScorerTest {
+	/**
+	 * Just enough of a device for the scorer, which only ever looks at it
+	 * through our requirements and preferences.
+	 */
+	protected static class FakeDevice extends PhysicalDevice {
+		protected String name;
+		protected boolean isDiscrete;
+		protected double memory;
+
+		protected FakeDevice(String name, boolean isDiscrete, double memory) {
+			super(0);
+			this.name = name;
+			this.isDiscrete = isDiscrete;
+			this.memory = memory;
+		}
+
+		public String getDeviceName() {
+			return this.name;
+		}
+	}
+
+	protected static final FakeDevice INTEGRATED = new FakeDevice("integrated", false, 2);
+	protected static final FakeDevice DISCRETE = new FakeDevice("discrete", true, 8);
+	protected static final FakeDevice BIG = new FakeDevice("big", true, 16);
+
+	protected static boolean isDiscrete(PhysicalDevice physicalDevice) {
+		return ((FakeDevice)physicalDevice).isDiscrete;
+	}
+
+	protected static double memory(PhysicalDevice physicalDevice) {
+		return ((FakeDevice)physicalDevice).memory;
+	}
+
+	@Test public void requirementsKnockDevicesOut() {
+		DeviceScorer scorer = new DeviceScorer().require("discrete", DeviceScorerTest::isDiscrete);
+		List<DeviceScorer.Score> ranking = scorer.rank(Arrays.<PhysicalDevice>asList(INTEGRATED, DISCRETE));
+
+		assertSame(DISCRETE, ranking.get(0).getPhysicalDevice());
+		assertTrue(ranking.get(0).isEligible());
+		assertFalse(ranking.get(1).isEligible());
+		assertEquals(Arrays.asList("missing requirement: discrete"), ranking.get(1).getExplanation());
+	}
+
+	@Test public void bestIsNullWhenNothingQualifies() {
+		DeviceScorer scorer = new DeviceScorer().require("never", physicalDevice -> false);
+		assertNull(scorer.best(Arrays.<PhysicalDevice>asList(INTEGRATED, DISCRETE)));
+	}
+
+	@Test public void preferencesAreScaledAndWeighted() {
+		DeviceScorer scorer = new DeviceScorer()
+			.prefer("memory", 2, DeviceScorerTest::memory)
+			.preferIf("discrete", 1, DeviceScorerTest::isDiscrete);
+		List<DeviceScorer.Score> ranking = scorer.rank(Arrays.<PhysicalDevice>asList(INTEGRATED, DISCRETE, BIG));
+
+		assertSame(BIG, ranking.get(0).getPhysicalDevice());
+		assertEquals(3.0, ranking.get(0).getTotal(), 1e-9);
+		assertSame(DISCRETE, ranking.get(1).getPhysicalDevice());
+		assertEquals(2.0, ranking.get(1).getTotal(), 1e-9);
+		assertSame(INTEGRATED, ranking.get(2).getPhysicalDevice());
+		assertEquals(0.25, ranking.get(2).getTotal(), 1e-9);
+	}
+
+	@Test public void ineligibleDevicesDontSetTheScale() {
+		DeviceScorer scorer = new DeviceScorer()
+			.require("not big", physicalDevice -> physicalDevice != BIG)
+			.prefer("memory", 1, DeviceScorerTest::memory);
+		List<DeviceScorer.Score> ranking = scorer.rank(Arrays.<PhysicalDevice>asList(INTEGRATED, DISCRETE, BIG));
+
+		assertSame(DISCRETE, ranking.get(0).getPhysicalDevice());
+		assertEquals(1.0, ranking.get(0).getTotal(), 1e-9);
+		assertSame(BIG, ranking.get(2).getPhysicalDevice());
+	}
+
+	@Test public void tiesKeepTheGivenOrder() {
+		DeviceScorer scorer = new DeviceScorer();
+		assertSame(DISCRETE, scorer.best(Arrays.<PhysicalDevice>asList(DISCRETE, INTEGRATED)));
+		assertSame(INTEGRATED, scorer.best(Arrays.<PhysicalDevice>asList(INTEGRATED, DISCRETE)));
+	}
+
+	@Test public void changesInvalidateTheRanking() {
+		DeviceScorer scorer = new DeviceScorer();
+		List<PhysicalDevice> devices = Arrays.<PhysicalDevice>asList(INTEGRATED, DISCRETE);
+		assertSame(INTEGRATED, scorer.best(devices));
+		assertSame(scorer.rank(devices), scorer.rank(devices));
+
+		scorer.preferIf("discrete", 1, DeviceScorerTest::isDiscrete);
+		assertSame(DISCRETE, scorer.best(devices));
+	}
+}
@@ -0,0 +1,177 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FrameSchedulerTest {
+	/**
+	 * Runs the scheduling logic with no device: every fence has already
+	 * signalled by the time anybody waits on it.
+	 */
+	protected static class FakeScheduler extends FrameScheduler {
+		protected ArrayList<String> calls = new ArrayList<String>();
+
+		protected FakeScheduler(int framesInFlight) {
+			super(null, framesInFlight, null, null);
+		}
+
+		protected void createSyncObjects(Frame frame) {
+			frame.fence = frame.slot + 1;
+		}
+
+		protected int waitForFence(Frame frame) {
+			this.calls.add("wait " + frame.slot);
+			return VK_SUCCESS;
+		}
+
+		protected void resetFence(Frame frame) {
+		}
+
+		protected void signalFence(Frame frame) {
+			frame.getFence();
+			this.calls.add("signal " + frame.slot);
+		}
+
+		protected void destroySyncObjects(Frame frame) {
+			this.calls.add("destroy " + frame.slot);
+		}
+	}
+
+	@Test public void slotsGoRoundRobin() {
+		FakeScheduler scheduler = new FakeScheduler(3);
+		for (int i = 0; i < 7; i++) {
+			FrameScheduler.Frame frame = scheduler.beginFrame();
+			assertSame(frame, scheduler.getCurrentFrame());
+			assertEquals(i % 3, frame.getSlot());
+			assertEquals(i, frame.getFrameNumber());
+			assertEquals(i, scheduler.getFrameNumber());
+			scheduler.endFrame();
+			assertNull(scheduler.getCurrentFrame());
+		}
+		assertEquals(7, scheduler.getStats().frames);
+	}
+
+	@Test public void recyclersSeeEachSlotBeforeItIsReused() {
+		FakeScheduler scheduler = new FakeScheduler(2);
+		ArrayList<String> recycled = new ArrayList<String>();
+		scheduler.addRecycler(frame -> recycled.add("a " + frame.getSlot() + "/" + frame.getFrameNumber()));
+		scheduler.addRecycler(frame -> recycled.add("b " + frame.getSlot() + "/" + frame.getFrameNumber()));
+
+		for (int i = 0; i < 4; i++) {
+			scheduler.beginFrame();
+			scheduler.endFrame();
+		}
+
+		// Nothing on the first lap; after that, the frame that last had the
+		// slot, in registration order.
+		assertEquals(Arrays.asList("a 0/0", "b 0/0", "a 1/1", "b 1/1"), recycled);
+	}
+
+	@Test public void everyFrameEndIsSeen() {
+		FakeScheduler scheduler = new FakeScheduler(2);
+		ArrayList<String> calls = new ArrayList<String>();
+		scheduler.addRecycler(new FrameScheduler.Recycler() {
+			public void recycle(FrameScheduler.Frame frame) {
+				calls.add("recycle " + frame.getFrameNumber());
+			}
+
+			public void frameEnded(FrameScheduler.Frame frame) {
+				assertSame(frame, scheduler.getCurrentFrame());
+				calls.add("end " + frame.getFrameNumber());
+			}
+		});
+
+		for (int i = 0; i < 3; i++) {
+			scheduler.beginFrame();
+			scheduler.endFrame();
+		}
+
+		assertEquals(Arrays.asList("end 0", "end 1", "recycle 0", "end 2"), calls);
+	}
+
+	@Test public void removedRecyclersAreNotCalled() {
+		FakeScheduler scheduler = new FakeScheduler(1);
+		ArrayList<Long> recycled = new ArrayList<Long>();
+		FrameScheduler.Recycler recycler = frame -> recycled.add(Long.valueOf(frame.getFrameNumber()));
+		scheduler.addRecycler(recycler);
+
+		scheduler.beginFrame();
+		scheduler.endFrame();
+		scheduler.beginFrame();
+		scheduler.endFrame();
+		scheduler.removeRecycler(recycler);
+		scheduler.beginFrame();
+		scheduler.endFrame();
+
+		assertEquals(Arrays.asList(Long.valueOf(0)), recycled);
+	}
+
+	@Test public void deferredRunsWhenTheSlotComesAround() {
+		FakeScheduler scheduler = new FakeScheduler(2);
+		ArrayList<String> ran = new ArrayList<String>();
+
+		scheduler.beginFrame().defer(() -> ran.add("first"));
+		scheduler.endFrame();
+		scheduler.beginFrame().defer(() -> ran.add("second"));
+		scheduler.endFrame();
+		assertTrue(ran.isEmpty());
+
+		scheduler.beginFrame();
+		assertEquals(Arrays.asList("first"), ran);
+		scheduler.endFrame();
+
+		scheduler.dispose();
+		assertEquals(Arrays.asList("first", "second"), ran);
+	}
+
+	@Test public void deferredRunsBeforeRecyclers() {
+		FakeScheduler scheduler = new FakeScheduler(1);
+		ArrayList<String> ran = new ArrayList<String>();
+		scheduler.addRecycler(frame -> ran.add("recycler"));
+
+		scheduler.beginFrame().defer(() -> ran.add("deferred"));
+		scheduler.endFrame();
+		scheduler.beginFrame();
+
+		assertEquals(Arrays.asList("deferred", "recycler"), ran);
+	}
+
+	@Test public void unusedFencesAreSignalled() {
+		FakeScheduler scheduler = new FakeScheduler(2);
+
+		FrameScheduler.Frame frame = scheduler.beginFrame();
+		assertEquals(1, frame.getFence());
+		scheduler.endFrame();
+		scheduler.beginFrame();
+		scheduler.endFrame();
+
+		assertEquals(Arrays.asList("wait 0", "wait 1", "signal 1"), scheduler.calls);
+	}
+
+	@Test public void disposeWaitsForEveryFrame() {
+		FakeScheduler scheduler = new FakeScheduler(2);
+		scheduler.beginFrame();
+		scheduler.dispose();
+
+		List<String> expected = Arrays.asList("wait 0", "signal 0", "wait 0", "wait 1", "destroy 0", "destroy 1");
+		assertEquals(expected, scheduler.calls);
+	}
+
+	@Test(expected = AssertionError.class)
+	public void beginTwiceFails() {
+		FakeScheduler scheduler = new FakeScheduler(2);
+		scheduler.beginFrame();
+		scheduler.beginFrame();
+	}
+
+	@Test(expected = AssertionError.class)
+	public void endWithoutBeginFails() {
+		new FakeScheduler(2).endFrame();
+	}
+}
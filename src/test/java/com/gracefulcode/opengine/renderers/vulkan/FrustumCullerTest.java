@@ -0,0 +1,73 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+public class FrustumCullerTest {
+	/**
+	 * One float of instance data per object: its name, so moves can be
+	 * followed.
+	 */
+	protected static FrustumCuller culler(int... meshes) {
+		FrustumCuller ret = new FrustumCuller(ForkJoinPool.commonPool(), 1, meshes.length, FrustumCuller.DEFAULT_CHUNK_SIZE);
+		for (int i = 0; i < meshes.length; i++) {
+			ret.add(0, 0, 0, 1, meshes[i], new float[] { i }, 0);
+		}
+		return ret;
+	}
+
+	protected static int[] meshes(FrustumCuller culler) {
+		return Arrays.copyOf(culler.meshes, culler.getCount());
+	}
+
+	@Test public void removeKeepsMeshRuns() {
+		FrustumCuller culler = FrustumCullerTest.culler(0, 0, 0, 1, 1, 2, 2, 2);
+		ArrayList<String> moves = new ArrayList<String>();
+		assertEquals(3, culler.remove(1, (from, to) -> moves.add(from + "->" + to)));
+
+		assertArrayEquals(new int[] { 0, 0, 1, 1, 2, 2, 2 }, FrustumCullerTest.meshes(culler));
+		assertEquals(Arrays.asList("2->1", "4->2", "7->4"), moves);
+		assertEquals(2, culler.instanceData[1], 0);
+		assertEquals(4, culler.instanceData[2], 0);
+		assertEquals(7, culler.instanceData[4], 0);
+	}
+
+	@Test public void removingARunsOnlyObject() {
+		FrustumCuller culler = FrustumCullerTest.culler(0, 1, 2, 2);
+		culler.remove(1);
+		assertArrayEquals(new int[] { 0, 2, 2 }, FrustumCullerTest.meshes(culler));
+		assertEquals(3, culler.instanceData[1], 0);
+		assertEquals(2, culler.instanceData[2], 0);
+	}
+
+	@Test public void removingTheLastObjectMovesNothing() {
+		FrustumCuller culler = FrustumCullerTest.culler(0, 1);
+		assertEquals(0, culler.remove(1));
+		assertArrayEquals(new int[] { 0 }, FrustumCullerTest.meshes(culler));
+	}
+
+	@Test public void visibilityMovesWithObjects() {
+		FrustumCuller culler = FrustumCullerTest.culler(0, 0, 0, 1, 1, 2, 2, 2);
+		boolean[] wasVisible = { false, true, false, false, true, false, true, true };
+		System.arraycopy(wasVisible, 0, culler.visible, 0, wasVisible.length);
+		culler.remove(1);
+
+		/**
+		 * Until the next cull, submit() should see the same objects as
+		 * visible, wherever they ended up.
+		 */
+		for (int i = 0; i < culler.getCount(); i++) {
+			assertEquals(wasVisible[(int)culler.instanceData[i]], culler.visible[i]);
+		}
+		assertFalse(culler.visible[culler.getCount()]);
+	}
+
+	@Test(expected = AssertionError.class)
+	public void removeChecksTheIndex() {
+		FrustumCullerTest.culler(0, 1).remove(2);
+	}
+}
@@ -0,0 +1,189 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+public class GpuProfilerTest {
+	/**
+	 * Timestamps come from a clock the test moves by hand, and are all
+	 * available unless the test takes them away.
+	 */
+	protected static class FakeProfiler extends GpuProfiler {
+		protected long clock;
+		protected HashMap<Integer, Long> timestamps = new HashMap<Integer, Long>();
+
+		/**
+		 * A timestampPeriod of 2, so every tick is 2ns.
+		 */
+		protected FakeProfiler(FrameScheduler frameScheduler, int maxScopes, int graphicsFamily, int... timestampValidBits) {
+			super(frameScheduler, maxScopes, 2.0, graphicsFamily, timestampValidBits);
+			frameScheduler.addRecycler(this);
+		}
+
+		protected void resetQueries(VkCommandBuffer commandBuffer, long queryPool) {
+			this.timestamps.clear();
+		}
+
+		protected void writeTimestamp(VkCommandBuffer commandBuffer, int pipelineStage, long queryPool, int query) {
+			this.timestamps.put(query, this.clock);
+		}
+
+		protected void readResults(long queryPool, int count) {
+			for (int query = 0; query < count; query++) {
+				Long timestamp = this.timestamps.get(query);
+				this.results[query * 2] = timestamp == null ? 0 : timestamp.longValue();
+				this.results[query * 2 + 1] = timestamp == null ? 0 : 1;
+			}
+		}
+	}
+
+	protected FrameSchedulerTest.FakeScheduler scheduler = new FrameSchedulerTest.FakeScheduler(1);
+
+	/**
+	 * Ends the frame and starts the next, which is when the last one's
+	 * timings come in.
+	 */
+	protected GpuProfiler.FrameTimings finish(GpuProfiler profiler) {
+		this.scheduler.endFrame();
+		this.scheduler.beginFrame();
+		return profiler.getLastFrame();
+	}
+
+	@Test public void validBitMasks() {
+		assertEquals(0, GpuProfiler.validBitMask(0));
+		assertEquals(0, GpuProfiler.validBitMask(-1));
+		assertEquals(1, GpuProfiler.validBitMask(1));
+		assertEquals((1L << 36) - 1, GpuProfiler.validBitMask(36));
+		assertEquals(-1L, GpuProfiler.validBitMask(64));
+	}
+
+	@Test public void countersThatWrapStillTime() {
+		FakeProfiler profiler = new FakeProfiler(this.scheduler, 4, 0, 8);
+		this.scheduler.beginFrame();
+		profiler.reset(null);
+
+		profiler.clock = 250;
+		int scope = profiler.begin(null, "wraps");
+		profiler.clock = 10;
+		profiler.end(null, scope);
+
+		assertEquals(32, this.finish(profiler).getRoots().get(0).getDuration());
+	}
+
+	@Test public void nestingBecomesATree() {
+		FakeProfiler profiler = new FakeProfiler(this.scheduler, 8, 0, 64);
+		this.scheduler.beginFrame();
+		profiler.reset(null);
+
+		int a = profiler.begin(null, "a");
+		profiler.clock = 10;
+		int b = profiler.begin(null, "b");
+		profiler.clock = 20;
+		int c = profiler.begin(null, "c");
+		profiler.clock = 30;
+		profiler.end(null, c);
+		profiler.clock = 40;
+		profiler.end(null, b);
+		int d = profiler.begin(null, "d");
+		profiler.clock = 45;
+		profiler.end(null, d);
+		profiler.clock = 50;
+		profiler.end(null, a);
+		int e = profiler.begin(null, "e");
+		profiler.clock = 60;
+		profiler.end(null, e);
+
+		GpuProfiler.FrameTimings timings = this.finish(profiler);
+		assertEquals(0, timings.getFrameNumber());
+		assertEquals(0, timings.getDroppedScopes());
+
+		List<GpuProfiler.Node> roots = timings.getRoots();
+		assertEquals(2, roots.size());
+		GpuProfiler.Node nodeA = roots.get(0);
+		assertEquals("a", nodeA.getName());
+		assertEquals(100, nodeA.getDuration());
+		assertEquals(30, nodeA.getSelfTime());
+		assertEquals("e", roots.get(1).getName());
+		assertEquals(120, timings.getTotal());
+
+		assertEquals(2, nodeA.getChildren().size());
+		GpuProfiler.Node nodeB = nodeA.getChildren().get(0);
+		assertEquals("b", nodeB.getName());
+		assertEquals(60, nodeB.getDuration());
+		assertEquals("c", nodeB.getChildren().get(0).getName());
+		assertEquals(20, nodeB.getChildren().get(0).getDuration());
+		assertEquals("d", nodeA.getChildren().get(1).getName());
+		assertEquals(10, nodeA.getChildren().get(1).getDuration());
+
+		assertEquals(1, profiler.getScopeStats().get("a").count);
+		assertEquals(5, profiler.getScopeStats().size());
+	}
+
+	@Test public void droppedScopesAreCountedAndSkipped() {
+		FakeProfiler profiler = new FakeProfiler(this.scheduler, 3, 0, 64);
+		this.scheduler.beginFrame();
+		profiler.reset(null);
+
+		int a = profiler.begin(null, "a");
+		int b = profiler.begin(null, "b");
+		int c = profiler.begin(null, "c");
+		assertEquals(-1, profiler.begin(null, "no room"));
+		profiler.clock = 10;
+		profiler.end(null, c);
+		profiler.end(null, b);
+		profiler.end(null, a);
+
+		// b's end never made it, so c hangs off a instead.
+		profiler.timestamps.remove(b * 2 + 1);
+
+		GpuProfiler.FrameTimings timings = this.finish(profiler);
+		assertEquals(2, timings.getDroppedScopes());
+		assertEquals(1, timings.getRoots().size());
+		GpuProfiler.Node nodeA = timings.getRoots().get(0);
+		assertEquals(1, nodeA.getChildren().size());
+		assertEquals("c", nodeA.getChildren().get(0).getName());
+		assertNull(profiler.getScopeStats().get("b"));
+
+		// The next frame starts with room again.
+		profiler.reset(null);
+		assertEquals(0, profiler.begin(null, "a"));
+	}
+
+	@Test public void familiesWithoutTimestampsArentTimed() {
+		FakeProfiler profiler = new FakeProfiler(this.scheduler, 4, -1, 64, 0);
+		this.scheduler.beginFrame();
+		profiler.reset(null);
+
+		// No graphics queue at all, like a compute-only device.
+		assertEquals(-1, profiler.begin(null, "graphics"));
+		assertEquals(-1, profiler.begin(null, 1, "no timestamps"));
+		profiler.end(null, -1);
+
+		int scope = profiler.begin(null, 0, "compute");
+		assertEquals(0, scope);
+		profiler.end(null, scope);
+		assertEquals(1, this.finish(profiler).getRoots().size());
+	}
+
+	@Test(expected = AssertionError.class)
+	public void scopesNeedAReset() {
+		FakeProfiler profiler = new FakeProfiler(this.scheduler, 4, 0, 64);
+		this.scheduler.beginFrame();
+		profiler.begin(null, "a");
+	}
+
+	@Test(expected = AssertionError.class)
+	public void scopesEndInnermostFirst() {
+		FakeProfiler profiler = new FakeProfiler(this.scheduler, 4, 0, 64);
+		this.scheduler.beginFrame();
+		profiler.reset(null);
+		int a = profiler.begin(null, "a");
+		profiler.begin(null, "b");
+		profiler.end(null, a);
+	}
+}
@@ -0,0 +1,69 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+/**
+ * Renders through a real device, which can be a CPU implementation like
+ * lavapipe or SwiftShader. Skipped when there is no Vulkan at all.
+ */
+public class HeadlessRendererTest {
+	protected static VkInstance instance;
+	protected static LogicalDevice logicalDevice;
+
+	@BeforeClass
+	public static void createDevice() {
+		List<PhysicalDevice> eligible = null;
+		try {
+			HeadlessRendererTest.instance = new VkInstance("HeadlessRendererTest", 0, 0, 1, new HeadlessPlatform());
+			eligible = HeadlessRendererTest.instance.getEligible(HeadlessPlatform.newDeviceScorer(true));
+		} catch (Throwable t) {
+			Assume.assumeNoException(t);
+		}
+		Assume.assumeFalse(eligible.isEmpty());
+		HeadlessRendererTest.logicalDevice = new LogicalDevice(eligible.get(0));
+	}
+
+	@AfterClass
+	public static void destroyDevice() {
+		if (HeadlessRendererTest.logicalDevice != null) HeadlessRendererTest.logicalDevice.dispose();
+		if (HeadlessRendererTest.instance != null) HeadlessRendererTest.instance.dispose();
+	}
+
+	@Test public void clearsAndReadsBack() throws Exception {
+		HeadlessRenderer renderer = new HeadlessRenderer(HeadlessRendererTest.logicalDevice);
+		try {
+			renderer.setClearColor(1.0f, 0.0f, 0.0f, 1.0f);
+			HeadlessRenderer.Result result = renderer.submit(4, 4, new HeadlessRenderer.Job() {
+				public void record(VkCommandBuffer commandBuffer, OffscreenTarget target) {
+				}
+			}).get(10, TimeUnit.SECONDS);
+
+			assertEquals(4, result.getWidth());
+			assertEquals(4, result.getHeight());
+			ByteBuffer pixels = result.getPixels();
+			assertTrue(pixels.remaining() >= 4 * 4 * 4);
+			for (int i = 0; i < 4 * 4; i++) {
+				assertEquals(0xFF, pixels.get(pixels.position() + i * 4) & 0xFF);
+				assertEquals(0x00, pixels.get(pixels.position() + i * 4 + 1) & 0xFF);
+				assertEquals(0x00, pixels.get(pixels.position() + i * 4 + 2) & 0xFF);
+				assertEquals(0xFF, pixels.get(pixels.position() + i * 4 + 3) & 0xFF);
+			}
+			result.release();
+
+			assertEquals(1, renderer.getCompletedCount());
+			assertEquals(0, renderer.getFailedCount());
+		} finally {
+			renderer.dispose();
+		}
+	}
+}
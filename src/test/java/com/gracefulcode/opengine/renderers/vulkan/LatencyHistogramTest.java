@@ -0,0 +1,80 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	@Test public void emptyIsAllZeroes() {
+		LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+		assertEquals(0, snapshot.count);
+		assertEquals(0, snapshot.getMean(), 0);
+		assertEquals(0, snapshot.getPercentile(50));
+		assertEquals(0, snapshot.getPercentile(99));
+	}
+
+	@Test public void smallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < LatencyHistogram.SUB_BUCKETS; i++) {
+			histogram.record(i);
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		for (int i = 0; i < LatencyHistogram.SUB_BUCKETS; i++) {
+			assertEquals(1, snapshot.getCount(i));
+			assertEquals(i, snapshot.getLowerBound(i));
+		}
+	}
+
+	@Test public void bucketsCoverEveryValueOnce() {
+		for (int bucket = 0; bucket + 1 < LatencyHistogram.BUCKETS; bucket++) {
+			long lower = LatencyHistogram.lowerBound(bucket);
+			long upper = LatencyHistogram.upperBound(bucket);
+			assertEquals(bucket, LatencyHistogram.bucket(lower));
+			assertEquals(bucket, LatencyHistogram.bucket(upper));
+			assertEquals(upper + 1, LatencyHistogram.lowerBound(bucket + 1));
+		}
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.BUCKETS - 1));
+	}
+
+	@Test public void errorIsBoundedBySubBuckets() {
+		for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+			int bucket = LatencyHistogram.bucket(value);
+			long lower = LatencyHistogram.lowerBound(bucket);
+			long upper = LatencyHistogram.upperBound(bucket);
+			assertTrue(lower <= value && value <= upper);
+			assertTrue("Bucket " + lower + ".." + upper + " is too wide", (upper - lower) * LatencyHistogram.SUB_BUCKETS <= Math.max(LatencyHistogram.SUB_BUCKETS, lower));
+		}
+	}
+
+	@Test public void percentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+		assertEquals(1000, snapshot.count);
+		assertEquals(500500, snapshot.getMean(), 0.001);
+		assertEquals(1000000, snapshot.max);
+		assertEquals(500000, snapshot.getPercentile(50), 500000 / LatencyHistogram.SUB_BUCKETS);
+		assertEquals(990000, snapshot.getPercentile(99), 990000 / LatencyHistogram.SUB_BUCKETS);
+		assertEquals(1000000, snapshot.getPercentile(100));
+	}
+
+	@Test public void negativeValuesCountAsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		assertEquals(1, histogram.snapshot().getCount(0));
+	}
+
+	@Test public void resetClearsEverything() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(12345);
+		histogram.reset();
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(0, snapshot.count);
+		assertEquals(0, snapshot.max);
+		assertEquals(0, snapshot.total);
+	}
+}
@@ -0,0 +1,178 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+public class MultiDeviceSchedulerTest {
+	/**
+	 * Remembers whether it was disposed, and never waits on anything.
+	 */
+	protected static class FakeDevice extends LogicalDevice {
+		protected boolean isDisposed;
+
+		protected FakeDevice() {
+			super(new PhysicalDevice(0), null);
+		}
+
+		public void waitIdle() {
+		}
+
+		public void dispose() {
+			this.isDisposed = true;
+		}
+	}
+
+	/**
+	 * @param costs The cost of each device so far, 0 for unmeasured.
+	 */
+	protected static MultiDeviceScheduler<String> scheduler(double... costs) {
+		MultiDeviceScheduler<String> scheduler = new MultiDeviceScheduler<String>(null);
+		for (double cost: costs) {
+			MultiDeviceScheduler.Device<String> device = new MultiDeviceScheduler.Device<String>(scheduler.devices.size(), new FakeDevice(), "device " + scheduler.devices.size());
+			device.cost = cost;
+			scheduler.devices.add(device);
+		}
+		return scheduler;
+	}
+
+	@Test public void costIsAMovingAverage() {
+		MultiDeviceScheduler.Device<String> device = MultiDeviceSchedulerTest.scheduler(0).devices.get(0);
+		device.sample(100, 0.5);
+		assertEquals(100, device.getCost(), 1e-9);
+		device.sample(200, 0.5);
+		assertEquals(150, device.getCost(), 1e-9);
+		device.sample(50, 0.2);
+		assertEquals(130, device.getCost(), 1e-9);
+	}
+
+	@Test public void unmeasuredDevicesTakeTurns() {
+		MultiDeviceScheduler<String> scheduler = MultiDeviceSchedulerTest.scheduler(0, 0, 0);
+		assertSame(scheduler.devices.get(0), scheduler.choose());
+		scheduler.devices.get(0).inFlight.set(1);
+		assertSame(scheduler.devices.get(1), scheduler.choose());
+		scheduler.devices.get(1).inFlight.set(1);
+		assertSame(scheduler.devices.get(2), scheduler.choose());
+	}
+
+	@Test public void fasterDevicesGetMoreJobs() {
+		MultiDeviceScheduler<String> scheduler = MultiDeviceSchedulerTest.scheduler(10, 20);
+		MultiDeviceScheduler.Device<String> fast = scheduler.devices.get(0);
+		MultiDeviceScheduler.Device<String> slow = scheduler.devices.get(1);
+
+		assertSame(fast, scheduler.choose());
+		fast.inFlight.set(1);
+		// 2 * 10 against 1 * 20 is a tie, which goes to the emptier queue.
+		assertSame(slow, scheduler.choose());
+		fast.inFlight.set(2);
+		assertSame(slow, scheduler.choose());
+		slow.inFlight.set(1);
+		assertSame(fast, scheduler.choose());
+	}
+
+	@Test public void unmeasuredDevicesLookAsFastAsTheFastest() {
+		MultiDeviceScheduler<String> scheduler = MultiDeviceSchedulerTest.scheduler(10, 0);
+		scheduler.devices.get(0).inFlight.set(1);
+		assertSame(scheduler.devices.get(1), scheduler.choose());
+		assertEquals(10, scheduler.devices.get(1).expectedFinish(10), 1e-9);
+	}
+
+	@Test public void finishedJobsAreMeasured() throws Exception {
+		MultiDeviceScheduler<String> scheduler = MultiDeviceSchedulerTest.scheduler(0);
+		MultiDeviceScheduler.Device<String> device = scheduler.devices.get(0);
+
+		CompletableFuture<String> job = new CompletableFuture<String>();
+		CompletableFuture<String> future = scheduler.submit(context -> job);
+		assertEquals(1, device.getInFlight());
+
+		Thread.sleep(2);
+		job.complete("done");
+		assertEquals("done", future.get());
+		assertEquals(0, device.getInFlight());
+		assertEquals(1, device.completed.get());
+		assertTrue(device.getCost() > 0);
+
+		scheduler.submit(context -> {
+			CompletableFuture<String> ret = new CompletableFuture<String>();
+			ret.completeExceptionally(new AssertionError("lost"));
+			return ret;
+		});
+		assertEquals(1, device.failed.get());
+		assertEquals(0, device.getInFlight());
+	}
+
+	@Test public void jobsThatThrowAreCounted() {
+		MultiDeviceScheduler<String> scheduler = MultiDeviceSchedulerTest.scheduler(0);
+		try {
+			scheduler.submit(context -> {
+				throw new NoClassDefFoundError("missing");
+			});
+			fail("The error was swallowed.");
+		} catch (NoClassDefFoundError e) {
+		}
+		assertEquals(0, scheduler.getInFlight());
+		assertEquals(1, scheduler.devices.get(0).failed.get());
+	}
+
+	@Test public void simultaneousSubmitsSpreadOut() throws Exception {
+		MultiDeviceScheduler<String> scheduler = MultiDeviceSchedulerTest.scheduler(0, 0);
+		CompletableFuture<String> never = new CompletableFuture<String>();
+		CountDownLatch start = new CountDownLatch(1);
+
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int j = 0; j < 100; j++) {
+					scheduler.submit(context -> never);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread: threads) {
+			thread.join();
+		}
+
+		assertEquals(400, scheduler.devices.get(0).getInFlight());
+		assertEquals(400, scheduler.devices.get(1).getInFlight());
+	}
+
+	@Test public void failedSetupDisposesWhatWasMade() {
+		ArrayList<FakeDevice> made = new ArrayList<FakeDevice>();
+		ArrayList<String> disposedContexts = new ArrayList<String>();
+		MultiDeviceScheduler<String> scheduler = new MultiDeviceScheduler<String>(disposedContexts::add);
+		List<PhysicalDevice> physicalDevices = Arrays.asList(new PhysicalDevice(1), new PhysicalDevice(2), new PhysicalDevice(3));
+
+		try {
+			scheduler.addDevices(physicalDevices, physicalDevice -> {
+				FakeDevice device = new FakeDevice();
+				made.add(device);
+				return device;
+			}, logicalDevice -> {
+				if (made.size() == 3) throw new AssertionError("no context");
+				return "context " + made.size();
+			});
+			fail("The error was swallowed.");
+		} catch (AssertionError e) {
+			assertEquals("no context", e.getMessage());
+		}
+
+		assertEquals(3, made.size());
+		for (FakeDevice device: made) {
+			assertTrue(device.isDisposed);
+		}
+		assertEquals(Arrays.asList("context 1", "context 2"), disposedContexts);
+		assertEquals(0, scheduler.getDeviceCount());
+	}
+}
@@ -0,0 +1,73 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+public class NativeMemoryTest {
+	@Test public void reportIsBiggestFirst() {
+		TreeMap<String, Long> leaks = new TreeMap<String, Long>();
+		leaks.put("a", Long.valueOf(16));
+		leaks.put("b", Long.valueOf(4096));
+		leaks.put("c", Long.valueOf(256));
+		assertEquals("4096 bytes: b\n256 bytes: c\n16 bytes: a", NativeMemory.report(leaks));
+		assertEquals("No native memory outstanding.", NativeMemory.report(Collections.<String, Long>emptyMap()));
+	}
+
+	@Test public void callSiteSkipsLwjgl() {
+		StackTraceElement[] stacktrace = new StackTraceElement[] {
+			new StackTraceElement("org.lwjgl.system.MemoryUtil", "nmemAlloc", "MemoryUtil.java", 1),
+			new StackTraceElement("org.lwjgl.system.MemoryUtil", "memAlloc", "MemoryUtil.java", 2),
+			new StackTraceElement("com.gracefulcode.opengine.renderers.vulkan.Foo", "bar", "Foo.java", 3)
+		};
+		assertEquals("com.gracefulcode.opengine.renderers.vulkan.Foo.bar(Foo.java:3)", NativeMemory.callSite(stacktrace));
+		assertEquals("<unknown>", NativeMemory.callSite(new StackTraceElement[0]));
+	}
+
+	/**
+	 * Creates an instance and a device and throws them away again.
+	 *
+	 * @return False if there's no Vulkan to do it with.
+	 */
+	protected static boolean createAndDispose() {
+		VkInstance instance = new VkInstance("NativeMemoryTest", 0, 0, 1, new HeadlessPlatform());
+		try {
+			List<PhysicalDevice> eligible = instance.getEligible(HeadlessPlatform.newDeviceScorer(true));
+			if (eligible.isEmpty()) return false;
+			new LogicalDevice(eligible.get(0)).dispose();
+			return true;
+		} finally {
+			instance.dispose();
+		}
+	}
+
+	/**
+	 * Needs the debug allocator, which the Gradle build turns on for tests,
+	 * and a Vulkan driver, which can be a CPU one.
+	 */
+	@Test public void repeatedInstancesDontLeak() {
+		Assume.assumeTrue("Native memory isn't being tracked.", NativeMemory.isDebug());
+
+		/**
+		 * The first time around fills some caches that are meant to live
+		 * forever, like CapabilityNames, so that's the baseline.
+		 */
+		boolean hasVulkan = false;
+		try {
+			hasVulkan = NativeMemoryTest.createAndDispose();
+		} catch (Throwable t) {
+			Assume.assumeNoException(t);
+		}
+		Assume.assumeTrue(hasVulkan);
+		long baseline = NativeMemory.getLeakedBytes();
+
+		for (int i = 0; i < 5; i++) {
+			NativeMemoryTest.createAndDispose();
+		}
+		assertEquals(NativeMemory.reportLeaks(), baseline, NativeMemory.getLeakedBytes());
+	}
+}
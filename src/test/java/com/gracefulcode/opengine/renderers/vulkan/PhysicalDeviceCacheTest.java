@@ -0,0 +1,194 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+public class PhysicalDeviceCacheTest {
+	protected static final PhysicalDeviceCache.Key KEY = new PhysicalDeviceCache.Key(0x10de, 0x2204, 1, 4198400);
+
+	/**
+	 * A device whose driver answers are fixed, and which counts how often
+	 * it had to ask.
+	 */
+	protected static class FakeDevice extends PhysicalDevice {
+		protected PhysicalDeviceCache.Key key;
+		protected int queries;
+
+		protected FakeDevice(PhysicalDeviceCache.Key key) {
+			super(0);
+			this.key = key;
+		}
+
+		public PhysicalDeviceCache.Key getCacheKey() {
+			return this.key;
+		}
+
+		protected PhysicalDeviceFeatures queryFeatures() {
+			this.queries++;
+			return new PhysicalDeviceFeatures(0x5L);
+		}
+
+		protected List<Queue> queryQueues() {
+			this.queries++;
+			return Arrays.asList(new Queue(0, 16, 7, 64, 1, 1, 1), new Queue(1, 2, 4, 0, 8, 8, 8));
+		}
+
+		protected PhysicalDeviceMemoryProperties queryMemoryProperties() {
+			this.queries++;
+			return new PhysicalDeviceMemoryProperties(
+				Arrays.asList(new PhysicalDeviceMemoryProperties.MemoryHeap(0, 1L << 33, 1)),
+				Arrays.asList(new PhysicalDeviceMemoryProperties.MemoryType(0, 0, 1), new PhysicalDeviceMemoryProperties.MemoryType(1, 0, 6))
+			);
+		}
+	}
+
+	protected Path directory;
+	protected Path path;
+
+	@Before public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("PhysicalDeviceCacheTest");
+		this.path = this.directory.resolve("devices.bin");
+	}
+
+	@After public void tearDown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+			for (Path path: files) {
+				Files.delete(path);
+			}
+		}
+		Files.delete(this.directory);
+	}
+
+	/**
+	 * Loads a fresh device from a fresh cache at our path, the way a launch
+	 * would, and saves the cache if that changed it.
+	 */
+	protected FakeDevice launch(PhysicalDeviceCache.Key key) throws IOException {
+		PhysicalDeviceCache cache = new PhysicalDeviceCache(this.path);
+		FakeDevice device = new FakeDevice(key);
+		device.loadCapabilities(cache);
+		cache.save();
+		return device;
+	}
+
+	protected static void assertSameCapabilities(PhysicalDevice expected, PhysicalDevice actual) {
+		assertEquals(expected.getFeatures().getMask(), actual.getFeatures().getMask());
+		assertEquals(expected.getQueues().size(), actual.getQueues().size());
+		for (int i = 0; i < expected.getQueues().size(); i++) {
+			PhysicalDevice.Queue a = expected.getQueues().get(i);
+			PhysicalDevice.Queue b = actual.getQueues().get(i);
+			assertEquals(a.getIndex(), b.getIndex());
+			assertEquals(a.getCount(), b.getCount());
+			assertEquals(a.getFlags(), b.getFlags());
+			assertEquals(a.getTimestampValidBits(), b.getTimestampValidBits());
+			assertEquals(a.getMinImageTransferGranularityDepth(), b.getMinImageTransferGranularityDepth());
+		}
+
+		PhysicalDeviceMemoryProperties a = expected.getMemoryProperties();
+		PhysicalDeviceMemoryProperties b = actual.getMemoryProperties();
+		assertEquals(a.getMemoryHeaps().size(), b.getMemoryHeaps().size());
+		assertEquals(a.getMemoryHeap(0).getSize(), b.getMemoryHeap(0).getSize());
+		assertEquals(a.getMemoryTypes().size(), b.getMemoryTypes().size());
+		assertEquals(a.getMemoryType(1).getPropertyFlags(), b.getMemoryType(1).getPropertyFlags());
+	}
+
+	@Test public void payloadsRoundTrip() throws IOException {
+		ByteBuffer payload = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		payload.putLong(42);
+		payload.flip();
+
+		PhysicalDeviceCache cache = new PhysicalDeviceCache(this.path);
+		assertNull(cache.get(PhysicalDeviceCacheTest.KEY));
+		cache.put(PhysicalDeviceCacheTest.KEY, payload);
+		assertTrue(cache.isDirty());
+		cache.save();
+		assertFalse(cache.isDirty());
+
+		PhysicalDeviceCache reopened = new PhysicalDeviceCache(this.path);
+		assertFalse(reopened.isDirty());
+		assertEquals(42, reopened.get(PhysicalDeviceCacheTest.KEY).getLong());
+		// Every get starts from the beginning again.
+		assertEquals(42, reopened.get(PhysicalDeviceCacheTest.KEY).getLong());
+	}
+
+	@Test public void secondLaunchDoesntAskTheDriver() throws IOException {
+		FakeDevice first = this.launch(PhysicalDeviceCacheTest.KEY);
+		assertEquals(3, first.queries);
+
+		FakeDevice second = this.launch(PhysicalDeviceCacheTest.KEY);
+		assertEquals(0, second.queries);
+		PhysicalDeviceCacheTest.assertSameCapabilities(first, second);
+	}
+
+	@Test public void newDriversAskAgain() throws IOException {
+		this.launch(PhysicalDeviceCacheTest.KEY);
+
+		assertEquals(3, this.launch(new PhysicalDeviceCache.Key(0x10de, 0x2204, 2, 4198400)).queries);
+		assertEquals(3, this.launch(new PhysicalDeviceCache.Key(0x10de, 0x2204, 1, 4198401)).queries);
+
+		// The old entry is still there for a downgrade.
+		assertEquals(0, this.launch(PhysicalDeviceCacheTest.KEY).queries);
+	}
+
+	@Test public void truncatedFilesStartOver() throws IOException {
+		this.launch(PhysicalDeviceCacheTest.KEY);
+		byte[] file = Files.readAllBytes(this.path);
+
+		for (int length: new int[] { 0, 3, 11, 20, file.length - 1 }) {
+			Files.write(this.path, Arrays.copyOf(file, length));
+			PhysicalDeviceCache cache = new PhysicalDeviceCache(this.path);
+			assertNull("Truncated to " + length, cache.get(PhysicalDeviceCacheTest.KEY));
+			assertTrue("Truncated to " + length, cache.isDirty());
+		}
+
+		// And the device falls back to asking, which fixes the file.
+		Files.write(this.path, Arrays.copyOf(file, file.length - 1));
+		assertEquals(3, this.launch(PhysicalDeviceCacheTest.KEY).queries);
+		assertEquals(0, this.launch(PhysicalDeviceCacheTest.KEY).queries);
+	}
+
+	@Test public void corruptFilesStartOver() throws IOException {
+		this.launch(PhysicalDeviceCacheTest.KEY);
+		byte[] file = Files.readAllBytes(this.path);
+
+		byte[] badMagic = Arrays.copyOf(file, file.length);
+		badMagic[0] ^= 1;
+		Files.write(this.path, badMagic);
+		assertNull(new PhysicalDeviceCache(this.path).get(PhysicalDeviceCacheTest.KEY));
+
+		// A record length pointing way past the end of the file.
+		ByteBuffer badLength = ByteBuffer.wrap(Arrays.copyOf(file, file.length)).order(ByteOrder.LITTLE_ENDIAN);
+		badLength.putInt(12 + 16, Integer.MAX_VALUE);
+		Files.write(this.path, badLength.array());
+		assertNull(new PhysicalDeviceCache(this.path).get(PhysicalDeviceCacheTest.KEY));
+
+		badLength.putInt(12 + 16, -1);
+		Files.write(this.path, badLength.array());
+		assertNull(new PhysicalDeviceCache(this.path).get(PhysicalDeviceCacheTest.KEY));
+		assertEquals(3, this.launch(PhysicalDeviceCacheTest.KEY).queries);
+	}
+
+	@Test public void unreadablePayloadsAreReplaced() throws IOException {
+		ByteBuffer garbage = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+		garbage.putInt(PhysicalDevice.CAPABILITIES_VERSION + 1);
+		garbage.flip();
+
+		PhysicalDeviceCache cache = new PhysicalDeviceCache(this.path);
+		cache.put(PhysicalDeviceCacheTest.KEY, garbage);
+		cache.save();
+
+		assertEquals(3, this.launch(PhysicalDeviceCacheTest.KEY).queries);
+		assertEquals(0, this.launch(PhysicalDeviceCacheTest.KEY).queries);
+	}
+}
@@ -0,0 +1,120 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+public class PipelineCacheTest {
+	protected Path directory;
+
+	@Before public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("PipelineCacheTest");
+	}
+
+	@After public void tearDown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+			for (Path path: files) {
+				Files.delete(path);
+			}
+		}
+		Files.delete(this.directory);
+	}
+
+	protected PipelineCache cache(int driverVersion) {
+		return new PipelineCache(this.directory, 0x10de, 0x2204, driverVersion);
+	}
+
+	/**
+	 * Writes our header and a blob of length bytes, claiming claimedLength.
+	 */
+	protected static void write(PipelineCache cache, int length, int claimedLength) throws IOException {
+		ByteBuffer blob = ByteBuffer.allocate(PipelineCache.HEADER_SIZE + length).order(ByteOrder.LITTLE_ENDIAN);
+		cache.putHeader(blob, claimedLength);
+		for (int i = 0; i < length; i++) {
+			blob.put((byte)i);
+		}
+		blob.flip();
+		cache.write(blob);
+	}
+
+	/**
+	 * @return What load() found, or null.
+	 */
+	protected static byte[] load(PipelineCache cache) {
+		ByteBuffer blob = cache.load();
+		if (blob == null) return null;
+
+		byte[] ret = new byte[blob.remaining()];
+		blob.get(ret);
+		memFree(blob);
+		return ret;
+	}
+
+	@Test public void eachDriverGetsItsOwnFile() {
+		assertEquals(this.cache(1).getPath(), this.cache(1).getPath());
+		assertNotEquals(this.cache(1).getPath(), this.cache(2).getPath());
+		assertEquals("pipelines-10de-2204-00000001.bin", this.cache(1).getPath().getFileName().toString());
+	}
+
+	@Test public void roundTrip() throws IOException {
+		PipelineCacheTest.write(this.cache(1), 100, 100);
+
+		PipelineCache cache = this.cache(1);
+		byte[] blob = PipelineCacheTest.load(cache);
+		assertNotNull(blob);
+		assertEquals(100, blob.length);
+		assertEquals(99, blob[99]);
+		assertEquals(100, cache.getLoadedSize());
+	}
+
+	@Test public void coldStartWithoutAFile() {
+		PipelineCache cache = this.cache(1);
+		assertNull(PipelineCacheTest.load(cache));
+		assertEquals(0, cache.getLoadedSize());
+	}
+
+	@Test public void staleDriverIsIgnored() throws IOException {
+		PipelineCache old = this.cache(1);
+		PipelineCacheTest.write(old, 100, 100);
+
+		// Even under the new driver's name, the header gives it away.
+		PipelineCache current = this.cache(2);
+		Files.copy(old.getPath(), current.getPath(), StandardCopyOption.REPLACE_EXISTING);
+		assertNull(PipelineCacheTest.load(current));
+	}
+
+	@Test public void truncatedFilesAreIgnored() throws IOException {
+		PipelineCacheTest.write(this.cache(1), 50, 100);
+		assertNull(PipelineCacheTest.load(this.cache(1)));
+
+		Files.write(this.cache(1).getPath(), new byte[PipelineCache.HEADER_SIZE - 1]);
+		assertNull(PipelineCacheTest.load(this.cache(1)));
+	}
+
+	@Test public void corruptHeadersAreIgnored() throws IOException {
+		PipelineCacheTest.write(this.cache(1), 100, 100);
+		byte[] file = Files.readAllBytes(this.cache(1).getPath());
+
+		byte[] badMagic = Arrays.copyOf(file, file.length);
+		badMagic[0] ^= 1;
+		Files.write(this.cache(1).getPath(), badMagic);
+		assertNull(PipelineCacheTest.load(this.cache(1)));
+
+		PipelineCacheTest.write(this.cache(1), 100, 0);
+		assertNull(PipelineCacheTest.load(this.cache(1)));
+
+		PipelineCacheTest.write(this.cache(1), 100, -5);
+		assertNull(PipelineCacheTest.load(this.cache(1)));
+	}
+}
@@ -0,0 +1,116 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PipelineDescriptionTest {
+	/**
+	 * Counts builds instead of doing them.
+	 */
+	protected static class FakeCompiler extends PipelineCompiler {
+		protected AtomicInteger builds = new AtomicInteger();
+
+		protected FakeCompiler() {
+			super(null, null, 1);
+		}
+
+		protected long compile(PipelineDescription description) {
+			return this.builds.incrementAndGet();
+		}
+	}
+
+	protected static ShaderModule module(int... words) {
+		ByteBuffer spirv = ByteBuffer.allocate(words.length * 4);
+		for (int word: words) {
+			spirv.putInt(word);
+		}
+		spirv.flip();
+		return new ShaderModule(spirv);
+	}
+
+	protected static PipelineDescription graphics(String name, ShaderModule vertex, ShaderModule fragment) {
+		return new PipelineDescription(name, null)
+			.stage(VK_SHADER_STAGE_VERTEX_BIT, vertex, "main")
+			.stage(VK_SHADER_STAGE_FRAGMENT_BIT, fragment, "main")
+			.vertexBinding(0, 32, VK_VERTEX_INPUT_RATE_VERTEX)
+			.vertexAttribute(0, 0, VK_FORMAT_R32G32B32_SFLOAT, 0)
+			.blend(PipelineDescription.BLEND_ALPHA);
+	}
+
+	protected static void assertSamePipeline(PipelineDescription a, PipelineDescription b) {
+		a.freeze();
+		b.freeze();
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+	}
+
+	protected static void assertDifferentPipeline(PipelineDescription a, PipelineDescription b) {
+		a.freeze();
+		b.freeze();
+		assertNotEquals(a, b);
+	}
+
+	@Test public void shadersCompareByContent() {
+		PipelineDescription a = PipelineDescriptionTest.graphics("a", PipelineDescriptionTest.module(1, 2), PipelineDescriptionTest.module(3, 4));
+		PipelineDescription b = PipelineDescriptionTest.graphics("b", PipelineDescriptionTest.module(1, 2), PipelineDescriptionTest.module(3, 4));
+		PipelineDescriptionTest.assertSamePipeline(a, b);
+
+		PipelineDescription c = PipelineDescriptionTest.graphics("c", PipelineDescriptionTest.module(1, 2), PipelineDescriptionTest.module(3, 5));
+		PipelineDescriptionTest.assertDifferentPipeline(a, c);
+	}
+
+	@Test public void equalHashesStillCompareTheBytes() {
+		ShaderModule first = PipelineDescriptionTest.module(1, 2);
+		ShaderModule second = PipelineDescriptionTest.module(7, 8);
+		second.contentHash = first.contentHash;
+		assertFalse(first.hasSameCode(second));
+
+		PipelineDescription a = PipelineDescription.compute("a", null, first, "main");
+		PipelineDescription b = PipelineDescription.compute("b", null, second, "main");
+		a.freeze();
+		b.freeze();
+		assertEquals(a.hashCode(), b.hashCode());
+		assertNotEquals(a, b);
+	}
+
+	@Test public void stateIsPartOfThePipeline() {
+		ShaderModule vertex = PipelineDescriptionTest.module(1);
+		ShaderModule fragment = PipelineDescriptionTest.module(2);
+		PipelineDescription base = PipelineDescriptionTest.graphics("base", vertex, fragment);
+
+		PipelineDescriptionTest.assertDifferentPipeline(base, PipelineDescriptionTest.graphics("x", vertex, fragment).specialize(0, 1));
+		PipelineDescriptionTest.assertDifferentPipeline(base, PipelineDescriptionTest.graphics("x", vertex, fragment).depth(false, false, VK_COMPARE_OP_ALWAYS));
+		PipelineDescriptionTest.assertDifferentPipeline(base, PipelineDescriptionTest.graphics("x", vertex, fragment).blend(PipelineDescription.BLEND_ADDITIVE));
+		PipelineDescriptionTest.assertDifferentPipeline(base, PipelineDescriptionTest.graphics("x", vertex, fragment).renderPass(1, 0));
+		PipelineDescriptionTest.assertDifferentPipeline(base, PipelineDescriptionTest.graphics("x", fragment, vertex));
+		PipelineDescriptionTest.assertDifferentPipeline(
+			PipelineDescription.compute("a", null, vertex, "main"),
+			PipelineDescription.compute("b", null, vertex, "other")
+		);
+		PipelineDescriptionTest.assertSamePipeline(base, PipelineDescriptionTest.graphics("x", vertex, fragment));
+	}
+
+	@Test(expected = AssertionError.class)
+	public void frozenDescriptionsCantChange() {
+		PipelineDescription description = PipelineDescription.compute("a", null, PipelineDescriptionTest.module(1), "main");
+		description.freeze();
+		description.specialize(0, 1);
+	}
+
+	@Test public void equalDescriptionsAreBuiltOnce() {
+		FakeCompiler compiler = new FakeCompiler();
+		PipelineDescription a = PipelineDescription.compute("a", null, PipelineDescriptionTest.module(1, 2), "main");
+		PipelineDescription b = PipelineDescription.compute("b", null, PipelineDescriptionTest.module(1, 2), "main");
+		PipelineDescription c = PipelineDescription.compute("c", null, PipelineDescriptionTest.module(1, 3), "main");
+
+		assertSame(compiler.request(a), compiler.request(b));
+		assertEquals(compiler.getBlocking(a), compiler.getBlocking(b));
+		assertNotEquals(compiler.getBlocking(a), compiler.getBlocking(c));
+		assertEquals(2, compiler.builds.get());
+		compiler.executor.shutdown();
+	}
+}
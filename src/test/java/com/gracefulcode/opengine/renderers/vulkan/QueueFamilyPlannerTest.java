@@ -0,0 +1,85 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.junit.Assert.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class QueueFamilyPlannerTest {
+	protected static PhysicalDevice.Queue family(int index, int count, int flags) {
+		return new PhysicalDevice.Queue(index, count, flags, 64, 1, 1, 1);
+	}
+
+	protected static final int ALL = VK_QUEUE_GRAPHICS_BIT | VK_QUEUE_COMPUTE_BIT | VK_QUEUE_TRANSFER_BIT;
+
+	@Test public void prefersDedicatedFamilies() {
+		QueueFamilyPlanner.Plan plan = new QueueFamilyPlanner(Arrays.asList(
+			QueueFamilyPlannerTest.family(0, 16, QueueFamilyPlannerTest.ALL),
+			QueueFamilyPlannerTest.family(1, 2, VK_QUEUE_TRANSFER_BIT),
+			QueueFamilyPlannerTest.family(2, 8, VK_QUEUE_COMPUTE_BIT | VK_QUEUE_TRANSFER_BIT)
+		), 2).plan();
+
+		assertEquals(0, plan.getAssignment(DeviceQueue.Role.GRAPHICS).getFamily().getIndex());
+		assertEquals(2, plan.getAssignment(DeviceQueue.Role.COMPUTE).getFamily().getIndex());
+		assertEquals(1, plan.getAssignment(DeviceQueue.Role.TRANSFER).getFamily().getIndex());
+		assertEquals(1, plan.getPriorities(0).length);
+		assertEquals(1, plan.getPriorities(1).length);
+		assertEquals(1, plan.getPriorities(2).length);
+	}
+
+	@Test public void takesExtraQueuesFromASharedFamily() {
+		QueueFamilyPlanner.Plan plan = new QueueFamilyPlanner(Arrays.asList(
+			QueueFamilyPlannerTest.family(0, 4, QueueFamilyPlannerTest.ALL)
+		), 0).plan();
+
+		assertEquals(0, plan.getAssignment(DeviceQueue.Role.GRAPHICS).getQueueIndex());
+		assertEquals(1, plan.getAssignment(DeviceQueue.Role.COMPUTE).getQueueIndex());
+		assertEquals(2, plan.getAssignment(DeviceQueue.Role.TRANSFER).getQueueIndex());
+		assertArrayEquals(new float[] {
+			QueueFamilyPlanner.GRAPHICS_PRIORITY,
+			QueueFamilyPlanner.COMPUTE_PRIORITY,
+			QueueFamilyPlanner.TRANSFER_PRIORITY
+		}, plan.getPriorities(0), 0);
+	}
+
+	@Test public void sharesOneQueueWhenThatsAllThereIs() {
+		QueueFamilyPlanner.Plan plan = new QueueFamilyPlanner(Arrays.asList(
+			QueueFamilyPlannerTest.family(0, 1, QueueFamilyPlannerTest.ALL)
+		), 2).plan();
+
+		for (DeviceQueue.Role role: DeviceQueue.Role.values()) {
+			assertEquals(0, plan.getAssignment(role).getQueueIndex());
+		}
+		assertArrayEquals(new float[] { 1.0f }, plan.getPriorities(0), 0);
+	}
+
+	@Test public void quantizesPriorities() {
+		QueueFamilyPlanner.Plan plan = new QueueFamilyPlanner(Arrays.asList(
+			QueueFamilyPlannerTest.family(0, 3, QueueFamilyPlannerTest.ALL)
+		), 2).plan();
+
+		assertArrayEquals(new float[] { 1.0f, 1.0f, 1.0f }, plan.getPriorities(0), 0);
+	}
+
+	@Test public void computeOnlyDevicesHaveNoGraphics() {
+		QueueFamilyPlanner.Plan plan = new QueueFamilyPlanner(Arrays.asList(
+			QueueFamilyPlannerTest.family(0, 2, VK_QUEUE_COMPUTE_BIT | VK_QUEUE_TRANSFER_BIT)
+		), 2).plan();
+
+		assertNull(plan.getAssignment(DeviceQueue.Role.GRAPHICS));
+		assertEquals(0, plan.getAssignment(DeviceQueue.Role.COMPUTE).getQueueIndex());
+		assertEquals(1, plan.getAssignment(DeviceQueue.Role.TRANSFER).getQueueIndex());
+	}
+
+	@Test public void unusedFamiliesGetNoQueues() {
+		QueueFamilyPlanner.Plan plan = new QueueFamilyPlanner(Arrays.asList(
+			QueueFamilyPlannerTest.family(0, 1, QueueFamilyPlannerTest.ALL),
+			QueueFamilyPlannerTest.family(1, 1, VK_QUEUE_SPARSE_BINDING_BIT)
+		), 2).plan();
+
+		assertEquals(2, plan.getFamilyCount());
+		assertNull(plan.getPriorities(1));
+	}
+}
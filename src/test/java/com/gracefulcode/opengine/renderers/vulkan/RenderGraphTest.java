@@ -0,0 +1,241 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RenderGraphTest {
+	/**
+	 * Compiles without a device. Transient images get made-up memory
+	 * requirements and nothing is created.
+	 */
+	protected static class FakeGraph extends RenderGraph {
+		public FakeGraph() {
+			super(null);
+		}
+
+		public Resource importFakeBuffer(String name) {
+			Resource ret = this.addResource(name);
+			ret.isImported = true;
+			return ret;
+		}
+
+		protected void createTransients() {
+			ArrayList<Resource> images = new ArrayList<Resource>();
+			for (Resource resource: this.resources) {
+				if (resource.isImported || !resource.isImage || resource.firstUse < 0) continue;
+				resource.memorySize = resource.width * resource.height * 4;
+				resource.memoryAlignment = 1;
+				resource.memoryTypeBits = -1;
+				images.add(resource);
+			}
+			this.packImages(images);
+		}
+
+		protected void disposeTransients() {
+			this.memorySlots.clear();
+		}
+	}
+
+	protected static final RenderGraph.Executor NOTHING = (commandBuffer, graph) -> {};
+
+	protected static List<String> names(List<RenderGraph.Pass> passes) {
+		ArrayList<String> ret = new ArrayList<String>();
+		for (RenderGraph.Pass pass: passes) {
+			ret.add(pass.getName());
+		}
+		return ret;
+	}
+
+	@Test public void firstUseWaitsForLastUse() {
+		FakeGraph graph = new FakeGraph();
+		RenderGraph.Resource scratch = graph.createBuffer("scratch", 256, 0);
+		RenderGraph.Resource output = graph.importFakeBuffer("output");
+		graph.addPass("fill", RenderGraphTest.NOTHING)
+			.writeBuffer(scratch, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_ACCESS_SHADER_WRITE_BIT);
+		graph.addPass("copy", RenderGraphTest.NOTHING)
+			.readBuffer(scratch, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_ACCESS_SHADER_READ_BIT)
+			.writeBuffer(output, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_ACCESS_TRANSFER_WRITE_BIT);
+		graph.compile();
+
+		/**
+		 * The fill has to wait for the previous execute's read of scratch.
+		 */
+		RenderGraph.BarrierBatch fill = graph.batches.get(0);
+		assertEquals(VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, fill.srcStageMask);
+		assertEquals(VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, fill.dstStageMask);
+		assertEquals(1, fill.bufferBarriers.size());
+		assertSame(scratch, fill.bufferBarriers.get(0).resource);
+		assertEquals(0, fill.bufferBarriers.get(0).srcAccessMask);
+		assertEquals(VK_ACCESS_SHADER_WRITE_BIT, fill.bufferBarriers.get(0).dstAccessMask);
+
+		/**
+		 * The imported buffer's first write waits for its last write, from
+		 * the previous execute.
+		 */
+		RenderGraph.BarrierBatch copy = graph.batches.get(1);
+		assertEquals(VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT | VK_PIPELINE_STAGE_TRANSFER_BIT, copy.srcStageMask);
+		assertEquals(VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT | VK_PIPELINE_STAGE_TRANSFER_BIT, copy.dstStageMask);
+		assertEquals(2, copy.bufferBarriers.size());
+		assertSame(scratch, copy.bufferBarriers.get(0).resource);
+		assertEquals(VK_ACCESS_SHADER_WRITE_BIT, copy.bufferBarriers.get(0).srcAccessMask);
+		assertEquals(VK_ACCESS_SHADER_READ_BIT, copy.bufferBarriers.get(0).dstAccessMask);
+		assertSame(output, copy.bufferBarriers.get(1).resource);
+		assertEquals(VK_ACCESS_TRANSFER_WRITE_BIT, copy.bufferBarriers.get(1).srcAccessMask);
+		assertEquals(VK_ACCESS_TRANSFER_WRITE_BIT, copy.bufferBarriers.get(1).dstAccessMask);
+
+		assertTrue(graph.finalBatch.isEmpty());
+		assertEquals(2, graph.getStats().barrierCalls);
+		assertEquals(3, graph.getStats().bufferBarriers);
+	}
+
+	@Test public void aliasedImagesWrapAround() {
+		FakeGraph graph = new FakeGraph();
+		RenderGraph.Resource first = graph.createImage("first", 16, 16, VK_FORMAT_R8G8B8A8_UNORM);
+		RenderGraph.Resource second = graph.createImage("second", 16, 16, VK_FORMAT_R8G8B8A8_UNORM);
+		RenderGraph.Resource firstOutput = graph.importFakeBuffer("first output");
+		RenderGraph.Resource secondOutput = graph.importFakeBuffer("second output");
+		graph.addPass("draw first", RenderGraphTest.NOTHING).writeColor(first);
+		graph.addPass("use first", RenderGraphTest.NOTHING)
+			.readTexture(first)
+			.writeBuffer(firstOutput, VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT, VK_ACCESS_SHADER_WRITE_BIT);
+		graph.addPass("draw second", RenderGraphTest.NOTHING).writeColor(second);
+		graph.addPass("use second", RenderGraphTest.NOTHING)
+			.readTexture(second)
+			.writeBuffer(secondOutput, VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT, VK_ACCESS_SHADER_WRITE_BIT);
+		graph.compile();
+
+		assertEquals(1, graph.memorySlots.size());
+		assertNull(first.aliasOf);
+		assertSame(first, second.aliasOf);
+		assertEquals(16 * 16 * 4, graph.getStats().allocatedBytes);
+		assertEquals(2 * 16 * 16 * 4, graph.getStats().transientBytes);
+
+		/**
+		 * first takes the memory back from the previous execute's second.
+		 */
+		RenderGraph.BarrierBatch drawFirst = graph.batches.get(0);
+		assertEquals(VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT, drawFirst.srcStageMask);
+		assertEquals(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT, drawFirst.dstStageMask);
+		assertEquals(1, drawFirst.imageBarriers.size());
+		RenderGraph.Barrier barrier = drawFirst.imageBarriers.get(0);
+		assertSame(first, barrier.resource);
+		assertEquals(0, barrier.srcAccessMask);
+		assertEquals(VK_IMAGE_LAYOUT_UNDEFINED, barrier.oldLayout);
+		assertEquals(VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL, barrier.newLayout);
+
+		RenderGraph.BarrierBatch drawSecond = graph.batches.get(2);
+		assertEquals(VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT, drawSecond.srcStageMask);
+		assertEquals(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT, drawSecond.dstStageMask);
+		assertEquals(1, drawSecond.imageBarriers.size());
+		barrier = drawSecond.imageBarriers.get(0);
+		assertSame(second, barrier.resource);
+		assertEquals(0, barrier.srcAccessMask);
+		assertEquals(VK_IMAGE_LAYOUT_UNDEFINED, barrier.oldLayout);
+		assertEquals(VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL, barrier.newLayout);
+	}
+
+	@Test public void passesWithoutConsumersAreCulled() {
+		FakeGraph graph = new FakeGraph();
+		RenderGraph.Resource depth = graph.createImage("depth", 16, 16, VK_FORMAT_D32_SFLOAT);
+		RenderGraph.Resource debug = graph.createImage("debug", 16, 16, VK_FORMAT_R8G8B8A8_UNORM);
+		RenderGraph.Resource history = graph.createImage("history", 16, 16, VK_FORMAT_R8G8B8A8_UNORM);
+		RenderGraph.Resource output = graph.importFakeBuffer("output");
+		graph.markOutput(history);
+
+		graph.addPass("depth prepass", RenderGraphTest.NOTHING).writeDepth(depth);
+		// Reads something kept, but nothing reads what it writes.
+		graph.addPass("debug view", RenderGraphTest.NOTHING)
+			.readDepth(depth)
+			.writeColor(debug);
+		graph.addPass("lighting", RenderGraphTest.NOTHING)
+			.readDepth(depth)
+			.writeBuffer(output, VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT, VK_ACCESS_SHADER_WRITE_BIT);
+		graph.addPass("history", RenderGraphTest.NOTHING).writeColor(history);
+		graph.addPass("readback", RenderGraphTest.NOTHING).sideEffects();
+		graph.addPass("unused", RenderGraphTest.NOTHING).writeColor(debug);
+		graph.compile();
+
+		assertEquals(Arrays.asList("depth prepass", "lighting", "history", "readback"), RenderGraphTest.names(graph.getExecutionOrder()));
+		assertEquals(4, graph.getStats().passes);
+		assertEquals(2, graph.getStats().culledPasses);
+
+		// Only culled passes used debug, so it never gets memory.
+		assertEquals(-1, debug.firstUse);
+		assertEquals(2 * 16 * 16 * 4, graph.getStats().transientBytes);
+	}
+
+	@Test public void cullingFollowsChains() {
+		FakeGraph graph = new FakeGraph();
+		RenderGraph.Resource a = graph.createBuffer("a", 256, 0);
+		RenderGraph.Resource b = graph.createBuffer("b", 256, 0);
+		RenderGraph.Resource c = graph.createBuffer("c", 256, 0);
+		graph.addPass("make a", RenderGraphTest.NOTHING)
+			.writeBuffer(a, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_ACCESS_SHADER_WRITE_BIT);
+		graph.addPass("a to b", RenderGraphTest.NOTHING)
+			.readBuffer(a, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_ACCESS_SHADER_READ_BIT)
+			.writeBuffer(b, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_ACCESS_SHADER_WRITE_BIT);
+		graph.addPass("b to c", RenderGraphTest.NOTHING)
+			.readBuffer(b, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_ACCESS_SHADER_READ_BIT)
+			.writeBuffer(c, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_ACCESS_SHADER_WRITE_BIT);
+		graph.compile();
+
+		assertTrue(graph.getExecutionOrder().isEmpty());
+		assertEquals(3, graph.getStats().culledPasses);
+		assertEquals(0, graph.getStats().barrierCalls);
+
+		// Keeping the end of the chain keeps all of it.
+		graph.markOutput(c);
+		graph.compile();
+		assertEquals(Arrays.asList("make a", "a to b", "b to c"), RenderGraphTest.names(graph.getExecutionOrder()));
+		assertEquals(0, graph.getStats().culledPasses);
+	}
+
+	@Test public void orderFollowsDependencies() {
+		FakeGraph graph = new FakeGraph();
+		RenderGraph.Resource scratch = graph.createBuffer("scratch", 256, 0);
+		RenderGraph.Resource first = graph.importFakeBuffer("first");
+		RenderGraph.Resource second = graph.importFakeBuffer("second");
+		RenderGraph.Pass write = graph.addPass("write", RenderGraphTest.NOTHING)
+			.writeBuffer(scratch, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_ACCESS_SHADER_WRITE_BIT);
+		RenderGraph.Pass read = graph.addPass("read", RenderGraphTest.NOTHING)
+			.readBuffer(scratch, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_ACCESS_SHADER_READ_BIT)
+			.writeBuffer(first, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_ACCESS_SHADER_WRITE_BIT);
+		RenderGraph.Pass independent = graph.addPass("independent", RenderGraphTest.NOTHING).sideEffects();
+		RenderGraph.Pass rewrite = graph.addPass("rewrite", RenderGraphTest.NOTHING)
+			.writeBuffer(scratch, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_ACCESS_SHADER_WRITE_BIT);
+		RenderGraph.Pass reread = graph.addPass("reread", RenderGraphTest.NOTHING)
+			.readBuffer(scratch, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_ACCESS_SHADER_READ_BIT)
+			.writeBuffer(second, VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, VK_ACCESS_SHADER_WRITE_BIT);
+		graph.compile();
+
+		// Read after write, write after read, write after write.
+		assertEquals(Arrays.asList(write), read.dependencies);
+		assertTrue(rewrite.dependencies.containsAll(Arrays.asList(write, read)));
+		assertEquals(Arrays.asList(rewrite), reread.dependencies);
+		assertTrue(independent.dependencies.isEmpty());
+
+		List<RenderGraph.Pass> order = graph.getExecutionOrder();
+		assertEquals(Arrays.asList(write, read, independent, rewrite, reread), order);
+		for (RenderGraph.Pass pass: order) {
+			for (RenderGraph.Pass dependency: pass.dependencies) {
+				assertTrue(dependency + " runs after " + pass, order.indexOf(dependency) < order.indexOf(pass));
+			}
+		}
+	}
+
+	@Test(expected = AssertionError.class)
+	public void readBeforeWriteFails() {
+		FakeGraph graph = new FakeGraph();
+		RenderGraph.Resource scratch = graph.createBuffer("scratch", 256, 0);
+		RenderGraph.Resource output = graph.importFakeBuffer("output");
+		graph.addPass("copy", RenderGraphTest.NOTHING)
+			.readBuffer(scratch, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_ACCESS_TRANSFER_READ_BIT)
+			.writeBuffer(output, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_ACCESS_TRANSFER_WRITE_BIT);
+		graph.compile();
+	}
+}
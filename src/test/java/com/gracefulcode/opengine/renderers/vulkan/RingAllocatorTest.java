@@ -0,0 +1,74 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RingAllocatorTest {
+	@Test public void fillsAndReleasesInOrder() {
+		RingAllocator ring = new RingAllocator(1024);
+		assertEquals(0, ring.allocate(256, 16));
+		long batch = ring.getHead();
+		assertEquals(256, ring.allocate(512, 16));
+		assertEquals(768, ring.getUsed());
+
+		ring.release(batch);
+		assertEquals(512, ring.getUsed());
+		ring.release(ring.getHead());
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test public void wrapsRatherThanStraddlingTheEnd() {
+		RingAllocator ring = new RingAllocator(1024);
+		ring.allocate(768, 16);
+		long first = ring.getHead();
+		ring.allocate(128, 16);
+		ring.release(first);
+
+		// 128 bytes left at the end isn't enough, so this starts a new lap.
+		long position = ring.allocate(256, 16);
+		assertNotEquals(RingAllocator.NO_SPACE, position);
+		assertEquals(0, ring.offset(position));
+		assertEquals(1024, position);
+
+		// The skipped end counts as used until the lap before is released.
+		assertEquals(RingAllocator.NO_SPACE, ring.allocate(768, 16));
+		ring.release(ring.getHead());
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test public void wrapsForFreeWhenEmpty() {
+		RingAllocator ring = new RingAllocator(1024);
+		ring.allocate(1000, 1);
+		ring.release(ring.getHead());
+
+		long position = ring.allocate(1024, 1);
+		assertEquals(0, ring.offset(position));
+	}
+
+	@Test public void runsOutOfSpace() {
+		RingAllocator ring = new RingAllocator(1024);
+		assertEquals(RingAllocator.NO_SPACE, ring.allocate(2048, 1));
+
+		ring.allocate(1024, 1);
+		assertEquals(RingAllocator.NO_SPACE, ring.allocate(1, 1));
+	}
+
+	@Test public void alignsPhysicalOffsetsToAnything() {
+		RingAllocator ring = new RingAllocator(1000);
+		for (int i = 0; i < 100; i++) {
+			long position = ring.allocate(100, 48);
+			assertNotEquals(RingAllocator.NO_SPACE, position);
+			assertEquals(0, ring.offset(position) % 48);
+			assertTrue(ring.offset(position) + 100 <= ring.getCapacity());
+			ring.release(ring.getHead());
+		}
+	}
+
+	@Test(expected = AssertionError.class)
+	public void rejectsReleasesPastTheHead() {
+		RingAllocator ring = new RingAllocator(1024);
+		ring.allocate(16, 1);
+		ring.release(32);
+	}
+}
@@ -0,0 +1,228 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+public class SubmissionBatcherTest {
+	/**
+	 * A queue that remembers what it was given. Fences signal when the test
+	 * says so, or all at once if the device is lost.
+	 */
+	protected static class FakeBatcher extends SubmissionBatcher {
+		protected CopyOnWriteArrayList<List<Submission>> submitted = new CopyOnWriteArrayList<List<Submission>>();
+		protected CopyOnWriteArrayList<Long> submittedFences = new CopyOnWriteArrayList<Long>();
+		protected Set<Long> signalled = ConcurrentHashMap.newKeySet();
+		protected Set<Long> destroyed = ConcurrentHashMap.newKeySet();
+		protected volatile long fencesCreated;
+		protected volatile boolean isLost;
+		protected volatile boolean isBroken;
+
+		/**
+		 * Never flushes by itself within a test.
+		 */
+		protected FakeBatcher() {
+			super(null, TimeUnit.SECONDS.toNanos(60), "SubmissionBatcherTest");
+		}
+
+		protected void queueSubmit(ArrayList<Submission> drained, long fence) {
+			if (this.isBroken) throw new AssertionError("submit failed");
+			this.submitted.add(new ArrayList<Submission>(drained));
+			this.submittedFences.add(fence);
+		}
+
+		protected long createFence() {
+			return ++this.fencesCreated;
+		}
+
+		protected int getFenceStatus(long fence) {
+			if (this.isLost) return VK_ERROR_DEVICE_LOST;
+			return this.signalled.contains(fence) ? VK_SUCCESS : VK_NOT_READY;
+		}
+
+		protected int waitForFence(long fence) {
+			return this.isLost ? VK_ERROR_DEVICE_LOST : VK_SUCCESS;
+		}
+
+		protected void resetFence(long fence) {
+			this.signalled.remove(fence);
+		}
+
+		protected void destroyFence(long fence) {
+			this.destroyed.add(fence);
+		}
+
+		/**
+		 * Waits until the submit thread has nothing left to do and is asleep,
+		 * so whatever is enqueued next goes out in one batch on flush().
+		 */
+		protected void awaitIdle() throws InterruptedException {
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (!(this.incoming.isEmpty() && this.submitThread.getState() == Thread.State.TIMED_WAITING)) {
+				assertTrue("The submit thread never went idle.", System.nanoTime() < deadline);
+				Thread.sleep(1);
+			}
+		}
+
+		protected void awaitBatches(int count) throws InterruptedException {
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (this.submitted.size() < count) {
+				assertTrue("Only " + this.submitted.size() + " of " + count + " batches were submitted.", System.nanoTime() < deadline);
+				Thread.sleep(1);
+			}
+		}
+
+		/**
+		 * Signals the fence of batch index and lets the submit thread notice.
+		 */
+		protected void signal(int index) {
+			this.signalled.add(this.submittedFences.get(index));
+			this.flush();
+		}
+	}
+
+	protected FakeBatcher batcher = new FakeBatcher();
+
+	@After public void tearDown() {
+		this.batcher.dispose();
+	}
+
+	protected static Throwable cause(CompletableFuture<?> future) throws InterruptedException {
+		try {
+			future.get(10, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			return e.getCause();
+		} catch (TimeoutException e) {
+			fail("The future never completed.");
+		}
+		fail("The future didn't fail.");
+		return null;
+	}
+
+	@Test public void submissionsAreMergedInOrder() throws Exception {
+		this.batcher.awaitIdle();
+		ArrayList<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < 5; i++) {
+			futures.add(this.batcher.enqueue(new VkCommandBuffer[1], new long[] { 100 + i }, new int[] { VK_PIPELINE_STAGE_TRANSFER_BIT }, new long[] { 200 + i }));
+		}
+		this.batcher.flush();
+		this.batcher.awaitBatches(1);
+
+		List<SubmissionBatcher.Submission> batch = this.batcher.submitted.get(0);
+		assertEquals(5, batch.size());
+		for (int i = 0; i < 5; i++) {
+			// Each keeps its own semaphores.
+			assertSame(futures.get(i), batch.get(i).future);
+			assertEquals(100 + i, batch.get(i).waitSemaphores[0]);
+			assertEquals(200 + i, batch.get(i).signalSemaphores[0]);
+		}
+
+		SubmissionBatcher.Stats stats = this.batcher.getStats();
+		assertEquals(1, stats.batches);
+		assertEquals(5, stats.submissions);
+		assertEquals(5, stats.maxBatchSize);
+	}
+
+	@Test public void bigFlushesAreSplit() throws Exception {
+		this.batcher.awaitIdle();
+		for (int i = 0; i < SubmissionBatcher.MAX_BATCH_SIZE + 10; i++) {
+			this.batcher.enqueue(null);
+		}
+		this.batcher.flush();
+		this.batcher.awaitBatches(2);
+		assertEquals(SubmissionBatcher.MAX_BATCH_SIZE, this.batcher.submitted.get(0).size());
+		assertEquals(10, this.batcher.submitted.get(1).size());
+	}
+
+	@Test public void futuresCompleteWhenTheirFenceSignals() throws Exception {
+		this.batcher.awaitIdle();
+		CompletableFuture<Void> first = this.batcher.enqueue(null);
+		this.batcher.flush();
+		this.batcher.awaitBatches(1);
+
+		this.batcher.awaitIdle();
+		CompletableFuture<Void> second = this.batcher.enqueue(null);
+		this.batcher.flush();
+		this.batcher.awaitBatches(2);
+		assertNotEquals(this.batcher.submittedFences.get(0), this.batcher.submittedFences.get(1));
+
+		Thread.sleep(5);
+		assertFalse(first.isDone());
+		assertFalse(second.isDone());
+
+		this.batcher.signal(0);
+		first.get(10, TimeUnit.SECONDS);
+		assertFalse(second.isDone());
+
+		this.batcher.signal(1);
+		second.get(10, TimeUnit.SECONDS);
+
+		// Both fences are spare now, so the next batch doesn't need a new one.
+		this.batcher.awaitIdle();
+		this.batcher.enqueue(null);
+		this.batcher.flush();
+		this.batcher.awaitBatches(3);
+		assertEquals(2, this.batcher.fencesCreated);
+	}
+
+	@Test public void failedSubmitsFailTheirFutures() throws Exception {
+		this.batcher.isBroken = true;
+		CompletableFuture<Void> future = this.batcher.enqueue(null);
+		this.batcher.flush();
+		assertEquals("submit failed", SubmissionBatcherTest.cause(future).getMessage());
+
+		// The fence went back for reuse.
+		this.batcher.isBroken = false;
+		this.batcher.awaitIdle();
+		this.batcher.enqueue(null);
+		this.batcher.flush();
+		this.batcher.awaitBatches(1);
+		assertEquals(1, this.batcher.fencesCreated);
+	}
+
+	@Test public void lostDevicesFailEverythingInFlight() throws Exception {
+		this.batcher.awaitIdle();
+		CompletableFuture<Void> first = this.batcher.enqueue(null);
+		CompletableFuture<Void> second = this.batcher.enqueue(null);
+		this.batcher.flush();
+		this.batcher.awaitBatches(1);
+
+		this.batcher.isLost = true;
+		this.batcher.flush();
+		assertTrue(SubmissionBatcherTest.cause(first).getMessage().contains("fence status"));
+		assertTrue(SubmissionBatcherTest.cause(second).getMessage().contains("fence status"));
+
+		this.batcher.dispose();
+		assertTrue(this.batcher.destroyed.contains(this.batcher.submittedFences.get(0)));
+	}
+
+	@Test public void disposeFinishesWhatWasQueued() throws Exception {
+		this.batcher.awaitIdle();
+		CompletableFuture<Void> future = this.batcher.enqueue(null);
+		this.batcher.dispose();
+
+		assertTrue(future.isDone());
+		future.get();
+		assertEquals(1, this.batcher.submitted.size());
+		assertEquals(1, this.batcher.destroyed.size());
+
+		try {
+			this.batcher.enqueue(null);
+			fail("Enqueued after dispose.");
+		} catch (AssertionError e) {
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TlsfSubAllocatorTest {
+	@Test public void allocatesAndFrees() {
+		TlsfSubAllocator allocator = new TlsfSubAllocator(1 << 20);
+		long a = allocator.allocate(1000, 16);
+		long b = allocator.allocate(5000, 16);
+		assertNotEquals(SubAllocator.NO_SPACE, a);
+		assertNotEquals(SubAllocator.NO_SPACE, b);
+		assertTrue("Ranges overlap", a + 1000 <= b || b + 5000 <= a);
+		assertEquals(2, allocator.getAllocationCount());
+
+		allocator.free(a);
+		allocator.free(b);
+		assertTrue(allocator.isEmpty());
+		assertEquals(0, allocator.getUsedSize());
+	}
+
+	@Test public void mergesFreedNeighbours() {
+		TlsfSubAllocator allocator = new TlsfSubAllocator(4096);
+		long[] offsets = new long[4];
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = allocator.allocate(1024, 16);
+			assertNotEquals(SubAllocator.NO_SPACE, offsets[i]);
+		}
+		assertEquals(SubAllocator.NO_SPACE, allocator.allocate(16, 16));
+
+		// Free out of order so merging has to go both ways.
+		allocator.free(offsets[1]);
+		allocator.free(offsets[3]);
+		allocator.free(offsets[2]);
+		allocator.free(offsets[0]);
+
+		assertEquals(0, allocator.allocate(4096, 16));
+	}
+
+	@Test public void respectsAlignment() {
+		TlsfSubAllocator allocator = new TlsfSubAllocator(1 << 20);
+		allocator.allocate(48, 16);
+		for (long alignment = 16; alignment <= 65536; alignment *= 2) {
+			long offset = allocator.allocate(100, alignment);
+			assertNotEquals(SubAllocator.NO_SPACE, offset);
+			assertEquals("Offset " + offset + " for alignment " + alignment, 0, offset % alignment);
+		}
+	}
+
+	@Test public void runsOutOfSpace() {
+		TlsfSubAllocator allocator = new TlsfSubAllocator(1024);
+		assertEquals(SubAllocator.NO_SPACE, allocator.allocate(2048, 16));
+
+		long offset = allocator.allocate(1024, 16);
+		assertEquals(0, offset);
+		assertEquals(SubAllocator.NO_SPACE, allocator.allocate(16, 16));
+
+		allocator.free(offset);
+		assertNotEquals(SubAllocator.NO_SPACE, allocator.allocate(16, 16));
+	}
+
+	@Test(expected = AssertionError.class)
+	public void rejectsUnknownOffsets() {
+		new TlsfSubAllocator(1024).free(512);
+	}
+}
@@ -0,0 +1,64 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class VulkanCallTest {
+	protected static final Path SOURCES = Paths.get("src/main/java/com/gracefulcode/opengine/renderers/vulkan");
+
+	/**
+	 * A call to a Vulkan function other than vkCmd*.
+	 */
+	protected static final Pattern CALL = Pattern.compile("\\bvk(?!Cmd)[A-Z]\\w*\\(");
+	protected static final Pattern WRAPPED = Pattern.compile("VulkanCall\\.\\w+\\.(invoke|run)\\(\\(\\) -> ");
+
+	@Test public void invokeReturnsTheResult() {
+		assertEquals(VK_ERROR_DEVICE_LOST, VulkanCall.QUEUE_SUBMIT.invoke(() -> VK_ERROR_DEVICE_LOST));
+	}
+
+	@Test public void runRuns() {
+		boolean[] ran = new boolean[1];
+		VulkanCall.DESTROY_FENCE.run(() -> ran[0] = true);
+		assertTrue(ran[0]);
+	}
+
+	/**
+	 * Anything that calls Vulkan without going through VulkanCall is
+	 * invisible to Instrumentation.
+	 */
+	@Test public void everyCallGoesThroughVulkanCall() throws IOException {
+		Assume.assumeTrue("Not run from the project directory.", Files.isDirectory(VulkanCallTest.SOURCES));
+
+		List<String> unwrapped = new ArrayList<String>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(VulkanCallTest.SOURCES, "*.java")) {
+			for (Path file: files) {
+				List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+				for (int i = 0; i < lines.size(); i++) {
+					String line = lines.get(i).trim();
+					if (line.startsWith("*") || line.startsWith("//")) continue;
+
+					Matcher call = VulkanCallTest.CALL.matcher(line);
+					if (!call.find()) continue;
+					Matcher wrapped = VulkanCallTest.WRAPPED.matcher(line);
+					if (!wrapped.find() || wrapped.end() > call.start()) {
+						unwrapped.add(file.getFileName() + ":" + (i + 1) + ": " + line);
+					}
+				}
+			}
+		}
+		assertTrue(String.join("\n", unwrapped), unwrapped.isEmpty());
+	}
+}
@@ -0,0 +1,91 @@
+package com.gracefulcode.opengine.renderers.vulkan;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+import org.lwjgl.vulkan.VkPhysicalDeviceLimits;
+
+public class WorkgroupTunerTest {
+	protected static PhysicalDeviceLimits limits(int sizeX, int sizeY, int sizeZ, int invocations, int sharedMemory) {
+		long address = nmemCalloc(1, VkPhysicalDeviceLimits.SIZEOF);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXCOMPUTEWORKGROUPSIZE, sizeX);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXCOMPUTEWORKGROUPSIZE + 4, sizeY);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXCOMPUTEWORKGROUPSIZE + 8, sizeZ);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXCOMPUTEWORKGROUPINVOCATIONS, invocations);
+		memPutInt(address + VkPhysicalDeviceLimits.MAXCOMPUTESHAREDMEMORYSIZE, sharedMemory);
+
+		PhysicalDeviceLimits ret = new PhysicalDeviceLimits(VkPhysicalDeviceLimits.create(address));
+		nmemFree(address);
+		return ret;
+	}
+
+	/**
+	 * The spec's minimums.
+	 */
+	protected static WorkgroupTuner minimal() {
+		return new WorkgroupTuner(WorkgroupTunerTest.limits(128, 128, 64, 128, 16384));
+	}
+
+	@Test public void candidatesFitTheLimits() {
+		WorkgroupTuner tuner = WorkgroupTunerTest.minimal();
+		int[][] candidates = tuner.getCandidates(1, 0, 0);
+		assertEquals(3, candidates.length);
+		assertArrayEquals(new int[] { 32, 1, 1 }, candidates[0]);
+		assertArrayEquals(new int[] { 128, 1, 1 }, candidates[2]);
+
+		for (int dimensions = 1; dimensions <= 3; dimensions++) {
+			for (int[] candidate: tuner.getCandidates(dimensions, 0, 0)) {
+				assertTrue(candidate[0] * candidate[1] * candidate[2] <= 128);
+			}
+		}
+	}
+
+	@Test public void sidesAreCheckedOneByOne() {
+		WorkgroupTuner tuner = new WorkgroupTuner(WorkgroupTunerTest.limits(1024, 4, 4, 1024, 16384));
+		for (int[] candidate: tuner.getCandidates(2, 0, 0)) {
+			assertTrue(candidate[1] <= 4);
+		}
+		assertEquals(3, tuner.getCandidates(3, 0, 0).length);
+		assertFalse(tuner.isLegal(new int[] { 8, 8, 1 }, 0, 0));
+	}
+
+	@Test public void sharedMemoryRulesOutBigGroups() {
+		WorkgroupTuner tuner = WorkgroupTunerTest.minimal();
+
+		// 64 invocations * 200 bytes + 1000 fits in 16k; 128 doesn't.
+		int[][] candidates = tuner.getCandidates(1, 200, 1000);
+		assertEquals(2, candidates.length);
+		assertArrayEquals(new int[] { 64, 1, 1 }, candidates[1]);
+	}
+
+	@Test public void hugeSharedMemoryFallsBackToOneInvocation() {
+		WorkgroupTuner tuner = WorkgroupTunerTest.minimal();
+		int[][] candidates = tuner.getCandidates(2, 1000, 0);
+		assertEquals(1, candidates.length);
+		assertArrayEquals(new int[] { 1, 1, 1 }, candidates[0]);
+	}
+
+	@Test(expected = AssertionError.class)
+	public void sharedMemoryThatNeverFits() {
+		WorkgroupTunerTest.minimal().getCandidates(1, 0, 16385);
+	}
+
+	@Test public void defaultIsSixtyFourInvocations() {
+		WorkgroupTuner tuner = WorkgroupTunerTest.minimal();
+		assertArrayEquals(new int[] { 64, 1, 1 }, tuner.getDefaultShape(1, 0, 0));
+		assertArrayEquals(new int[] { 8, 8, 1 }, tuner.getDefaultShape(2, 0, 0));
+		assertArrayEquals(new int[] { 4, 4, 4 }, tuner.getDefaultShape(3, 0, 0));
+	}
+
+	@Test public void defaultFallsBackToTheLargestLegalShape() {
+		WorkgroupTuner tuner = WorkgroupTunerTest.minimal();
+
+		// Only 32 invocations fit.
+		assertArrayEquals(new int[] { 32, 1, 1 }, tuner.getDefaultShape(1, 500, 0));
+
+		// 8x8 is too tall.
+		tuner = new WorkgroupTuner(WorkgroupTunerTest.limits(128, 4, 64, 128, 16384));
+		assertArrayEquals(new int[] { 32, 4, 1 }, tuner.getDefaultShape(2, 0, 0));
+	}
+}